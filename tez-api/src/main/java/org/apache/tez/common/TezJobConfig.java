@@ -56,6 +56,17 @@ public class TezJobConfig {
   public static final int TEZ_RUNTIME_IFILE_READAHEAD_BYTES_DEFAULT =
       4 * 1024 * 1024;
 
+  /**
+   * The version of the checksum framing IFiles are written with. Version 1
+   * ends with a CRC32 and is read by all releases. Version 2 ends with a
+   * CRC32C, which is faster to compute on Java 9 and later, and can only be
+   * read by releases which support it, so it should only be enabled once all
+   * the readers of the outputs are upgraded.
+   */
+  public static final String TEZ_RUNTIME_IFILE_CHECKSUM_WRITE_VERSION =
+      "tez.runtime.ifile.checksum.write-version";
+  public static final int TEZ_RUNTIME_IFILE_CHECKSUM_WRITE_VERSION_DEFAULT = 1;
+
   /**
    * TODO Maybe move this over from IFile into this file. -1 for now means ignore.
    */
@@ -131,6 +142,57 @@ public class TezJobConfig {
 	      "tez.runtime.sort.threads";
   public static final int DEFAULT_TEZ_RUNTIME_SORT_THREADS = 1;
 
+  /**
+   * Number of threads used by the default sorter to sort the contents of the
+   * sort buffer before it is spilled. Records are first bucketed by partition,
+   * after which the partitions are sorted in parallel.
+   */
+  public static final String TEZ_RUNTIME_SORT_SPILL_THREADS =
+      "tez.runtime.sort.spill.threads";
+  public static final int DEFAULT_TEZ_RUNTIME_SORT_SPILL_THREADS = 1;
+
+  /**
+   * Whether the pipelined sorter (used when tez.runtime.sort.threads > 1)
+   * allocates its sort buffer from direct memory instead of the Java heap. The
+   * buffer, of tez.runtime.io.sort.mb, is then requested from the task's
+   * direct memory budget instead of its heap memory budget, see
+   * {@link #TEZ_TASK_SCALE_DIRECT_MEMORY_RESERVE_FRACTION}, and freed when the
+   * output closes.
+   */
+  public static final String TEZ_RUNTIME_PIPELINED_SORTER_DIRECT_BUFFER =
+      "tez.runtime.pipelined.sorter.direct.buffer";
+  public static final boolean DEFAULT_TEZ_RUNTIME_PIPELINED_SORTER_DIRECT_BUFFER = false;
+
+  /**
+   * Whether the sorters store a fixed-width, byte-comparable prefix of each
+   * key next to the record metadata, so that most comparisons avoid the key
+   * comparator. Only used for Text, BytesWritable, IntWritable and
+   * LongWritable keys with their default comparators.
+   */
+  public static final String TEZ_RUNTIME_SORT_KEY_PREFIX_ENABLED =
+      "tez.runtime.sort.key.prefix.enabled";
+  public static final boolean DEFAULT_TEZ_RUNTIME_SORT_KEY_PREFIX_ENABLED = false;
+
+  /**
+   * Whether the sorters use an in-place radix sort over the partition and the
+   * normalized key prefix, instead of a comparison sort. Implies
+   * tez.runtime.sort.key.prefix.enabled, and has the same restrictions on key
+   * types. Best suited to IntWritable and LongWritable keys, whose prefix
+   * determines the key order completely.
+   */
+  public static final String TEZ_RUNTIME_SORT_RADIX_ENABLED =
+      "tez.runtime.sort.radix.enabled";
+  public static final boolean DEFAULT_TEZ_RUNTIME_SORT_RADIX_ENABLED = false;
+
+  /**
+   * Whether merges select the next record with a loser tree, which needs
+   * about log2(k) key comparisons per record for k segments, instead of a
+   * binary heap, which needs up to twice as many.
+   */
+  public static final String TEZ_RUNTIME_MERGE_LOSER_TREE_ENABLED =
+      "tez.runtime.merge.loser-tree.enabled";
+  public static final boolean DEFAULT_TEZ_RUNTIME_MERGE_LOSER_TREE_ENABLED = false;
+
   /**
    * Specifies a partitioner class, which is used in Tez Runtime components
    * like OnFileSortedOutput
@@ -141,7 +203,43 @@ public class TezJobConfig {
    * Specifies a combiner class (primarily for Shuffle)
    */
   public static final String TEZ_RUNTIME_COMBINER_CLASS = "tez.runtime.combiner.class";
-  
+
+  /**
+   * Whether the memory-to-memory and on-disk merges of a shuffle run the
+   * combiner configured by {@link #TEZ_RUNTIME_COMBINER_CLASS} on the merged
+   * records, like the in-memory merge always does, and count the combined
+   * records. The final merge feeding the processor never combines.
+   */
+  public static final String TEZ_RUNTIME_SHUFFLE_MERGE_COMBINE_ENABLED =
+      "tez.runtime.shuffle.merge.combine.enabled";
+  public static final boolean DEFAULT_TEZ_RUNTIME_SHUFFLE_MERGE_COMBINE_ENABLED = false;
+
+  /**
+   * Maximum number of records in each batch handed out by the batch reader of
+   * ShuffledMergedInput.
+   */
+  public static final String TEZ_RUNTIME_BATCH_READER_MAX_RECORDS =
+      "tez.runtime.batch-reader.max-records";
+  public static final int DEFAULT_TEZ_RUNTIME_BATCH_READER_MAX_RECORDS = 1024;
+
+  /**
+   * Size in bytes after which the batch reader of ShuffledMergedInput ends a
+   * batch. A batch always holds at least one record.
+   */
+  public static final String TEZ_RUNTIME_BATCH_READER_MAX_BYTES =
+      "tez.runtime.batch-reader.max-bytes";
+  public static final int DEFAULT_TEZ_RUNTIME_BATCH_READER_MAX_BYTES = 1024 * 1024;
+
+  /**
+   * Whether the key/values reader of sorted inputs reuses one key instance,
+   * one value instance and one values Iterable for all key groups. Keys and
+   * values handed out must then be copied if they are kept, and a values
+   * Iterable of a previous key is no longer detected.
+   */
+  public static final String TEZ_RUNTIME_VALUES_ITERATOR_REUSE_OBJECTS =
+      "tez.runtime.values-iterator.reuse-objects";
+  public static final boolean DEFAULT_TEZ_RUNTIME_VALUES_ITERATOR_REUSE_OBJECTS = false;
+
   public static final String TEZ_RUNTIME_NUM_EXPECTED_PARTITIONS = "tez.runtime.num.expected.partitions";
   
   /**
@@ -244,6 +342,120 @@ public class TezJobConfig {
       "tez.runtime.shuffle.ssl.enable";
   public static final boolean DEFAULT_TEZ_RUNTIME_SHUFFLE_ENABLE_SSL = false;
 
+  /**
+   * Whether inputs produced on the same node should be read directly from the
+   * producer's output files, instead of being fetched from the ShuffleHandler.
+   * Requires the producer and the consumer to share the application local
+   * directories. Currently used by the unordered shuffle.
+   */
+  public static final String TEZ_RUNTIME_SHUFFLE_OPTIMIZE_LOCAL_FETCH =
+      "tez.runtime.shuffle.optimize.local.fetch";
+  public static final boolean DEFAULT_TEZ_RUNTIME_SHUFFLE_OPTIMIZE_LOCAL_FETCH = false;
+
+  /**
+   * Whether fetches should be made by a non-blocking client, which multiplexes
+   * all host connections on a few I/O threads, instead of by one blocking
+   * fetcher thread per host. With the async client, the number of hosts
+   * fetched from at once is limited by
+   * {@link #TEZ_RUNTIME_SHUFFLE_ASYNC_CLIENT_MAX_CONNECTIONS} instead of
+   * {@link #TEZ_RUNTIME_SHUFFLE_PARALLEL_COPIES}, which still sizes the
+   * threads reading local inputs. Currently used by the unordered shuffle.
+   */
+  public static final String TEZ_RUNTIME_SHUFFLE_ASYNC_CLIENT_ENABLED =
+      "tez.runtime.shuffle.async.client.enabled";
+  public static final boolean DEFAULT_TEZ_RUNTIME_SHUFFLE_ASYNC_CLIENT_ENABLED = false;
+
+  /**
+   * Number of I/O threads used by the async shuffle client.
+   */
+  public static final String TEZ_RUNTIME_SHUFFLE_ASYNC_CLIENT_IO_THREADS =
+      "tez.runtime.shuffle.async.client.io.threads";
+  public static final int DEFAULT_TEZ_RUNTIME_SHUFFLE_ASYNC_CLIENT_IO_THREADS = 2;
+
+  /**
+   * Number of threads used by the async shuffle client to check, decompress
+   * and write out the fetched data, off the I/O threads.
+   */
+  public static final String TEZ_RUNTIME_SHUFFLE_ASYNC_CLIENT_DECODE_THREADS =
+      "tez.runtime.shuffle.async.client.decode.threads";
+  public static final int DEFAULT_TEZ_RUNTIME_SHUFFLE_ASYNC_CLIENT_DECODE_THREADS = 2;
+
+  /**
+   * Maximum number of hosts the async shuffle client fetches from at once,
+   * each over one connection. Never lower than
+   * {@link #TEZ_RUNTIME_SHUFFLE_PARALLEL_COPIES}.
+   */
+  public static final String TEZ_RUNTIME_SHUFFLE_ASYNC_CLIENT_MAX_CONNECTIONS =
+      "tez.runtime.shuffle.async.client.max.connections";
+  public static final int DEFAULT_TEZ_RUNTIME_SHUFFLE_ASYNC_CLIENT_MAX_CONNECTIONS = 256;
+
+  /**
+   * Whether shuffle connections should be kept alive and reused for later
+   * fetches from the same host. The connections are pooled per JVM by
+   * HttpURLConnection, so they are shared by all inputs of a task. Requires a
+   * ShuffleHandler which supports keep-alive; others close the connection
+   * after each response. The pool keeps at most 5 idle connections per host;
+   * to change that, start the task JVMs with -Dhttp.maxConnections=&lt;n&gt;
+   * (see Vertex#setJavaOpts), and do not disable -Dhttp.keepAlive.
+   */
+  public static final String TEZ_RUNTIME_SHUFFLE_KEEP_ALIVE_ENABLED =
+      "tez.runtime.shuffle.keep-alive.enabled";
+  public static final boolean DEFAULT_TEZ_RUNTIME_SHUFFLE_KEEP_ALIVE_ENABLED = false;
+
+  /**
+   * Fraction of the task memory which inputs of an unordered edge may hold
+   * after they are fetched and before the processor reads them. Above this,
+   * no new fetches are started until the processor catches up, instead of
+   * fetching further inputs to disk. 0 disables the limit.
+   */
+  public static final String TEZ_RUNTIME_SHUFFLE_UNORDERED_BUFFER_PERCENT =
+      "tez.runtime.shuffle.unordered.buffer.percent";
+  public static final float DEFAULT_TEZ_RUNTIME_SHUFFLE_UNORDERED_BUFFER_PERCENT = 0.0f;
+
+  /**
+   * Whether a fetch which runs much longer than the average fetch may be
+   * duplicated by an idle fetcher once only a few inputs remain. The first
+   * copy to complete is kept and the other one is discarded.
+   */
+  public static final String TEZ_RUNTIME_SHUFFLE_HEDGED_FETCH_ENABLED =
+      "tez.runtime.shuffle.hedged-fetch.enabled";
+  public static final boolean DEFAULT_TEZ_RUNTIME_SHUFFLE_HEDGED_FETCH_ENABLED = false;
+
+  /**
+   * Fraction of the inputs which may remain for a straggling fetch to be
+   * hedged.
+   */
+  public static final String TEZ_RUNTIME_SHUFFLE_HEDGED_FETCH_TAIL_PERCENT =
+      "tez.runtime.shuffle.hedged-fetch.tail.percent";
+  public static final float DEFAULT_TEZ_RUNTIME_SHUFFLE_HEDGED_FETCH_TAIL_PERCENT = 0.1f;
+
+  /**
+   * Whether the shuffle memory limits should adapt to the heap headroom of
+   * the task and to the merge backlog. The largest output shuffled to memory
+   * is lowered under memory pressure, and the shuffle may exceed its memory
+   * budget while the heap is mostly free instead of stalling fetches.
+   */
+  public static final String TEZ_RUNTIME_SHUFFLE_MEMORY_ADAPTIVE_ENABLED =
+      "tez.runtime.shuffle.memory.adaptive.enabled";
+  public static final boolean DEFAULT_TEZ_RUNTIME_SHUFFLE_MEMORY_ADAPTIVE_ENABLED = false;
+
+  /**
+   * Fraction of the heap which the adaptive shuffle memory limits keep free.
+   */
+  public static final String TEZ_RUNTIME_SHUFFLE_MEMORY_ADAPTIVE_HEAP_RESERVE_PERCENT =
+      "tez.runtime.shuffle.memory.adaptive.heap.reserve.percent";
+  public static final float DEFAULT_TEZ_RUNTIME_SHUFFLE_MEMORY_ADAPTIVE_HEAP_RESERVE_PERCENT =
+      0.1f;
+
+  /**
+   * Fraction of the shuffle memory budget by which the shuffle may exceed the
+   * budget while the heap has headroom.
+   */
+  public static final String TEZ_RUNTIME_SHUFFLE_MEMORY_ADAPTIVE_MAX_OVERCOMMIT_PERCENT =
+      "tez.runtime.shuffle.memory.adaptive.max.overcommit.percent";
+  public static final float DEFAULT_TEZ_RUNTIME_SHUFFLE_MEMORY_ADAPTIVE_MAX_OVERCOMMIT_PERCENT =
+      0.25f;
+
   /**
    * 
    */
@@ -288,6 +500,28 @@ public class TezJobConfig {
       "tez.runtime.task.input.buffer.percent";
   public static final float DEFAULT_TEZ_RUNTIME_INPUT_BUFFER_PERCENT = 0.0f;
 
+  /**
+   * Number of key ranges the final shuffle merge is split into. Each range is
+   * merged by its own thread and handed to the processor in key order. 1
+   * disables the split. The split needs one extra read of every input to
+   * sample keys, and is skipped when intermediate data is compressed, since
+   * a compressed IFile cannot be read from an arbitrary record.
+   */
+  public static final String TEZ_RUNTIME_SHUFFLE_FINAL_MERGE_PARALLELISM =
+      "tez.runtime.shuffle.final-merge.parallelism";
+  public static final int DEFAULT_TEZ_RUNTIME_SHUFFLE_FINAL_MERGE_PARALLELISM = 1;
+
+  /**
+   * Bytes of merged records each key range may buffer ahead of the
+   * processor, when the final merge is split by key range. The prefetch of
+   * all ranges is taken from the shuffle memory, and reduced to what is left
+   * of it after the inputs kept in memory.
+   */
+  public static final String TEZ_RUNTIME_SHUFFLE_FINAL_MERGE_PREFETCH_BYTES =
+      "tez.runtime.shuffle.final-merge.prefetch.bytes";
+  public static final long DEFAULT_TEZ_RUNTIME_SHUFFLE_FINAL_MERGE_PREFETCH_BYTES =
+      8 * 1024 * 1024;
+
   // TODO Rename. 
   public static final String TEZ_RUNTIME_GROUP_COMPARATOR_CLASS = 
       "tez.runtime.group.comparator.class";
@@ -328,9 +562,37 @@ public class TezJobConfig {
    * The coded to be used when reading intermediate compressed input. Only
    * applicable if tez.runtime.intermediate-input.is-compressed is enabled.
    */
-  public static final String TEZ_RUNTIME_INTERMEDIATE_INPUT_COMPRESS_CODEC = 
+  public static final String TEZ_RUNTIME_INTERMEDIATE_INPUT_COMPRESS_CODEC =
       "tez.runtime.intermediate-input.compress.codec";
 
+  /**
+   * The algorithm used by the block compression codec,
+   * org.apache.tez.runtime.library.common.compress.BlockCompressionCodec, to
+   * compress each block: "snappy", "lz4", "deflate", or the name of a
+   * BlockCompressionAlgorithm class.
+   */
+  public static final String TEZ_RUNTIME_COMPRESS_BLOCK_ALGORITHM =
+      "tez.runtime.compress.block.algorithm";
+  public static final String DEFAULT_TEZ_RUNTIME_COMPRESS_BLOCK_ALGORITHM = "snappy";
+
+  /**
+   * The uncompressed size of the blocks written by the block compression
+   * codec. Each block is compressed and checksummed independently.
+   */
+  public static final String TEZ_RUNTIME_COMPRESS_BLOCK_SIZE =
+      "tez.runtime.compress.block.size";
+  public static final int DEFAULT_TEZ_RUNTIME_COMPRESS_BLOCK_SIZE = 64 * 1024;
+
+  /**
+   * The number of blocks a reader of a block compressed file on local disk
+   * decompresses ahead of the records being read. The blocks are decompressed
+   * by a pool shared by all readers in the JVM, of as many threads as there
+   * are processors, up to 4. 0 decompresses in the reading thread.
+   */
+  public static final String TEZ_RUNTIME_COMPRESS_BLOCK_READAHEAD_BLOCKS =
+      "tez.runtime.compress.block.readahead.blocks";
+  public static final int DEFAULT_TEZ_RUNTIME_COMPRESS_BLOCK_READAHEAD_BLOCKS = 2;
+
 
   public static final String TEZ_RUNTIME_INTERMEDIATE_INPUT_KEY_SECONDARY_COMPARATOR_CLASS = 
       "tez.runtime.intermediate-input.key.secondary.comparator.class";
@@ -386,6 +648,16 @@ public class TezJobConfig {
    */
   public static final String TEZ_TASK_SCALE_MEMORY_ADDITIONAL_RESERVATION_FRACTION_MAX = TEZ_TASK_PREFIX
       + "scale.memory.additional reservation.fraction.max";
+  /**
+   * The fraction of the JVM's direct memory limit (-XX:MaxDirectMemorySize)
+   * which will not be considered for the direct memory requests of a task,
+   * and is left to other users of direct memory such as network buffers.
+   */
+  @Private @Unstable
+  public static final String TEZ_TASK_SCALE_DIRECT_MEMORY_RESERVE_FRACTION = TEZ_TASK_PREFIX
+      + "scale.direct-memory.reserve-fraction";
+  public static final double TEZ_TASK_SCALE_DIRECT_MEMORY_RESERVE_FRACTION_DEFAULT = 0.3d;
+
   /*
    * Weighted ratios for individual component types in the RuntimeLibrary.
    * e.g. PARTITIONED_UNSORTED_OUTPUT:0,UNSORTED_INPUT:1,SORTED_OUTPUT:2,SORTED_MERGED_INPUT:3,PROCESSOR:1,OTHER:1
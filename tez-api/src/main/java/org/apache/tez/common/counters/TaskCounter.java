@@ -128,6 +128,18 @@ public enum TaskCounter {
    * Used by OnFileSortedOutput
    */
   ADDITIONAL_SPILL_COUNT,
+
+  /**
+   * Time spent sorting the in-memory buffer before spills, in milliseconds.
+   * Used by OnFileSortedOutput
+   */
+  SPILL_SORT_MILLIS,
+
+  /**
+   * Time spent writing sorted data out to spill files, in milliseconds.
+   * Used by OnFileSortedOutput
+   */
+  SPILL_WRITE_MILLIS,
   
   INPUT_GROUPS, // Not used at the moment. Will eventually replace REDUCE_INPUT_GROUPS
 
@@ -153,6 +165,12 @@ public enum TaskCounter {
    */
   SHUFFLE_BYTES_TO_DISK,
 
+  /**
+   * Number of bytes which were read directly from the producer's output files
+   * on the local node, without being copied
+   */
+  SHUFFLE_BYTES_DISK_DIRECT,
+
   /**
    * Number of Memory to Disk merges performed during sort-merge.
    * Used by ShuffledMergedInput
@@ -163,4 +181,16 @@ public enum TaskCounter {
    * Number of disk to disk merges performed during the sort-merge
    */
   NUM_DISK_TO_DISK_MERGES,
+
+  /**
+   * Number of records fed to the combiner by the merges of a shuffle.
+   * Used by ShuffledMergedInput
+   */
+  SHUFFLE_MERGE_COMBINE_INPUT_RECORDS,
+
+  /**
+   * Number of records written by the combiner in the merges of a shuffle.
+   * Used by ShuffledMergedInput
+   */
+  SHUFFLE_MERGE_COMBINE_OUTPUT_RECORDS,
 }
\ No newline at end of file
@@ -89,6 +89,15 @@ public class TezConfiguration extends Configuration {
   TEZ_AM_SECURITY_SERVICE_AUTHORIZATION_CLIENT =
       "security.job.client.protocol.acl";
 
+  /**
+   * The number of threads handling vertex, task and task attempt events in
+   * the AM. The events of a vertex are always handled by the same thread.
+   * With 0, all the events of the AM are handled by a single thread.
+   */
+  public static final String TEZ_AM_DISPATCHER_VERTEX_THREAD_COUNT =
+      TEZ_AM_PREFIX + "dispatcher.vertex.thread-count";
+  public static final int TEZ_AM_DISPATCHER_VERTEX_THREAD_COUNT_DEFAULT = 0;
+
   /**
    * Upper limit on the number of threads user to launch containers in the app
    * master. Expect level config, you shouldn't be needing it in most cases.
@@ -175,6 +184,31 @@ public class TezConfiguration extends Configuration {
       + "am.heartbeat.interval-ms.max";
   public static final int TEZ_TASK_AM_HEARTBEAT_INTERVAL_MS_DEFAULT = 100;
 
+  /**
+   * The interval between heartbeats after a heartbeat which sent or received
+   * events. Without events, the interval doubles up to
+   * {@link #TEZ_TASK_AM_HEARTBEAT_INTERVAL_MS}. Events produced by the task
+   * are sent once this interval has passed since the last heartbeat. Defaults
+   * to {@link #TEZ_TASK_AM_HEARTBEAT_INTERVAL_MS_MIN_DEFAULT} when
+   * {@link #TEZ_TASK_AM_HEARTBEAT_LONG_POLL_TIMEOUT_MS} is enabled, and to
+   * {@link #TEZ_TASK_AM_HEARTBEAT_INTERVAL_MS} otherwise, so that heartbeats
+   * are not sent more often than with a fixed interval unless the AM can hold
+   * them.
+   */
+  public static final String TEZ_TASK_AM_HEARTBEAT_INTERVAL_MS_MIN = TEZ_TASK_PREFIX
+      + "am.heartbeat.interval-ms.min";
+  public static final int TEZ_TASK_AM_HEARTBEAT_INTERVAL_MS_MIN_DEFAULT = 10;
+
+  /**
+   * How long the AM may hold a heartbeat which has no events to send, until
+   * events are available for the task. 0 disables holding heartbeats. The AM
+   * holds at most half of its task listener threads this way. The task ends
+   * the wait early once it has events to send or completes.
+   */
+  public static final String TEZ_TASK_AM_HEARTBEAT_LONG_POLL_TIMEOUT_MS = TEZ_TASK_PREFIX
+      + "am.heartbeat.long-poll.timeout-ms";
+  public static final int TEZ_TASK_AM_HEARTBEAT_LONG_POLL_TIMEOUT_MS_DEFAULT = 0;
+
   public static final String TEZ_TASK_MAX_EVENTS_PER_HEARTBEAT = TEZ_TASK_PREFIX
       + "max-events-per-heartbeat.max";
   public static final int TEZ_TASK_MAX_EVENTS_PER_HEARTBEAT_DEFAULT = 100;
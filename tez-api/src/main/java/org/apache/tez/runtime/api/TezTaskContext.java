@@ -157,6 +157,23 @@ public interface TezTaskContext {
    *          the callback handler to be invoked once memory is assigned
    */
   public void requestInitialMemory(long size, MemoryUpdateCallback callbackHandler);
+
+  /**
+   * Request a specific amount of direct (off-heap) memory during initialization
+   * (initialize(..*Context)), in addition to the heap memory requested with
+   * {@link #requestInitialMemory(long, MemoryUpdateCallback)}. Direct memory
+   * is assigned from the direct memory limit of the JVM, separately from the
+   * heap, and the requester is notified of the allocation at the same time.
+   * The requester must free the direct memory it allocated when it closes.
+   * 
+   * This method is optional, and can be called only once by any component.
+   * 
+   * @param size
+   *          request size in bytes.
+   * @param callbackHandler
+   *          the callback handler to be invoked once direct memory is assigned
+   */
+  public void requestInitialDirectMemory(long size, MemoryUpdateCallback callbackHandler);
   
   /**
    * Gets the total memory available to all components of the running task. This
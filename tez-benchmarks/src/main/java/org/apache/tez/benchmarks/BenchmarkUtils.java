@@ -0,0 +1,153 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.tez.common.TezJobConfig;
+import org.apache.tez.runtime.library.api.Partitioner;
+import org.apache.tez.runtime.library.common.compress.BlockCompressionCodec;
+import org.apache.tez.runtime.library.common.sort.impl.IFile;
+
+/**
+ * Shared set up for the benchmarks: configuration, scratch directories and
+ * synthetic IFile data.
+ */
+public class BenchmarkUtils {
+
+  private BenchmarkUtils() {
+  }
+
+  /**
+   * Configuration for Text keys and BytesWritable values, using the local
+   * file system and the given scratch directory.
+   */
+  public static Configuration createConf(File workDir) {
+    Configuration conf = new Configuration();
+    conf.set("fs.defaultFS", "file:///");
+    conf.set(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_OUTPUT_KEY_CLASS, Text.class.getName());
+    conf.set(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_OUTPUT_VALUE_CLASS,
+        BytesWritable.class.getName());
+    conf.set(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_INPUT_KEY_CLASS, Text.class.getName());
+    conf.set(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_INPUT_VALUE_CLASS,
+        BytesWritable.class.getName());
+    conf.set(TezJobConfig.TEZ_RUNTIME_PARTITIONER_CLASS, HashPartitioner.class.getName());
+    conf.setStrings(TezJobConfig.LOCAL_DIRS, workDir.getAbsolutePath());
+    return conf;
+  }
+
+  public static File createWorkDir(String name) {
+    File workDir = new File(System.getProperty("java.io.tmpdir"),
+        "tez-benchmarks-" + name + "-" + System.nanoTime());
+    if (!workDir.mkdirs()) {
+      throw new IllegalStateException("Could not create " + workDir);
+    }
+    return workDir;
+  }
+
+  public static void deleteWorkDir(File workDir) {
+    FileUtil.fullyDelete(workDir);
+  }
+
+  /**
+   * @param codecName "none", "default" for {@link DefaultCodec}, or
+   *          "block-" and an algorithm for {@link BlockCompressionCodec}
+   */
+  public static CompressionCodec createCodec(String codecName, Configuration conf) {
+    if ("none".equals(codecName)) {
+      return null;
+    } else if ("default".equals(codecName)) {
+      return ReflectionUtils.newInstance(DefaultCodec.class, conf);
+    } else if (codecName.startsWith("block-")) {
+      Configuration codecConf = new Configuration(conf);
+      codecConf.set(TezJobConfig.TEZ_RUNTIME_COMPRESS_BLOCK_ALGORITHM,
+          codecName.substring("block-".length()));
+      return ReflectionUtils.newInstance(BlockCompressionCodec.class, codecConf);
+    }
+    throw new IllegalArgumentException("Unknown codec: " + codecName);
+  }
+
+  /**
+   * Key for record i. Keys sort in the order of i.
+   */
+  public static void setKey(Text key, long i) {
+    key.set(String.format("key_%012d", i));
+  }
+
+  public static BytesWritable createValue(int length) {
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = (byte) i;
+    }
+    return new BytesWritable(bytes);
+  }
+
+  /**
+   * An IFile segment held in memory, as produced by {@link IFile.Writer}.
+   */
+  public static class IFileData {
+    /** Serialized segment, including the checksum */
+    public final byte[] bytes;
+    /** Length of the uncompressed records, without the checksum */
+    public final long rawLength;
+
+    IFileData(byte[] bytes, long rawLength) {
+      this.bytes = bytes;
+      this.rawLength = rawLength;
+    }
+  }
+
+  /**
+   * Write numRecords records with keys first, first + stride, ... to an
+   * in-memory IFile segment.
+   */
+  public static IFileData writeIFile(Configuration conf, CompressionCodec codec,
+      int numRecords, long first, long stride, int valueLength) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    FSDataOutputStream out = new FSDataOutputStream(bytes, null);
+    IFile.Writer writer = new IFile.Writer(conf, out, Text.class, BytesWritable.class, codec,
+        null, null);
+    Text key = new Text();
+    BytesWritable value = createValue(valueLength);
+    for (int i = 0; i < numRecords; i++) {
+      setKey(key, first + i * stride);
+      writer.append(key, value);
+    }
+    writer.close();
+    out.close();
+    return new IFileData(bytes.toByteArray(), writer.getRawLength());
+  }
+
+  public static class HashPartitioner implements Partitioner {
+    @Override
+    public int getPartition(Object key, Object value, int numPartitions) {
+      return (key.hashCode() & Integer.MAX_VALUE) % numPartitions;
+    }
+  }
+}
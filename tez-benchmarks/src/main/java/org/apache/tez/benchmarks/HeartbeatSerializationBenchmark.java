@@ -0,0 +1,169 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.tez.dag.records.TezDAGID;
+import org.apache.tez.dag.records.TezTaskAttemptID;
+import org.apache.tez.dag.records.TezTaskID;
+import org.apache.tez.dag.records.TezVertexID;
+import org.apache.tez.runtime.api.events.DataMovementEvent;
+import org.apache.tez.runtime.api.impl.EventMetaData;
+import org.apache.tez.runtime.api.impl.EventMetaData.EventProducerConsumerType;
+import org.apache.tez.runtime.api.impl.TezEvent;
+import org.apache.tez.runtime.api.impl.TezHeartbeatResponse;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serialization of the events of a task heartbeat: a
+ * {@link TezHeartbeatResponse} carrying numEvents data movement events of a
+ * scatter-gather edge, one from each source task, with payloadSize byte user
+ * payloads.
+ *
+ * The "compact" format is the one used by TezHeartbeatResponse. The
+ * "writable" format writes each {@link TezEvent} on its own, as heartbeats
+ * did before. The bytes and events serialized are reported as auxiliary
+ * counters, their ratio is the number of bytes per event.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HeartbeatSerializationBenchmark {
+
+  @Param({ "writable", "compact" })
+  public String format;
+
+  @Param({ "10000" })
+  public int numEvents;
+
+  @Param({ "64" })
+  public int payloadSize;
+
+  private TezHeartbeatResponse response;
+  private final DataOutputBuffer out = new DataOutputBuffer();
+  private final DataInputBuffer in = new DataInputBuffer();
+  private byte[] serialized;
+  private int serializedLength;
+
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class SerializationCounters {
+    public long bytes;
+    public long events;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      bytes = 0;
+      events = 0;
+    }
+  }
+
+  @Setup
+  public void setup() throws IOException {
+    TezDAGID dagId = TezDAGID.getInstance(Long.toString(System.currentTimeMillis()), 1, 1);
+    TezVertexID sourceVertex = TezVertexID.getInstance(dagId, 0);
+    TezVertexID destinationVertex = TezVertexID.getInstance(dagId, 1);
+    EventMetaData destination = new EventMetaData(EventProducerConsumerType.INPUT,
+        "reducer", "mapper", TezTaskAttemptID.getInstance(
+            TezTaskID.getInstance(destinationVertex, 0), 0));
+    Random random = new Random(0);
+    List<TezEvent> events = new ArrayList<TezEvent>(numEvents);
+    for (int i = 0; i < numEvents; ++i) {
+      byte[] payload = new byte[payloadSize];
+      random.nextBytes(payload);
+      TezEvent event = new TezEvent(new DataMovementEvent(0, i, 0, payload),
+          new EventMetaData(EventProducerConsumerType.OUTPUT, "mapper", "reducer",
+              TezTaskAttemptID.getInstance(TezTaskID.getInstance(sourceVertex, i),
+                  random.nextInt(10) == 0 ? 1 : 0)));
+      event.setDestinationInfo(destination);
+      events.add(event);
+    }
+    response = new TezHeartbeatResponse(events);
+
+    serializedLength = serialize();
+    serialized = new byte[serializedLength];
+    System.arraycopy(out.getData(), 0, serialized, 0, serializedLength);
+  }
+
+  @Benchmark
+  public int write(SerializationCounters counters) throws IOException {
+    int length = serialize();
+    counters.bytes += length;
+    counters.events += numEvents;
+    return length;
+  }
+
+  private int serialize() throws IOException {
+    out.reset();
+    if (format.equals("compact")) {
+      response.write(out);
+    } else {
+      out.writeInt(response.getEvents().size());
+      for (TezEvent event : response.getEvents()) {
+        event.write(out);
+      }
+    }
+    return out.getLength();
+  }
+
+  @Benchmark
+  public int read(SerializationCounters counters) throws IOException {
+    in.reset(serialized, serializedLength);
+    int count;
+    if (format.equals("compact")) {
+      TezHeartbeatResponse readResponse = new TezHeartbeatResponse();
+      readResponse.readFields(in);
+      count = readResponse.getEvents().size();
+    } else {
+      count = in.readInt();
+      List<TezEvent> events = new ArrayList<TezEvent>(count);
+      for (int i = 0; i < count; ++i) {
+        TezEvent event = new TezEvent();
+        event.readFields(in);
+        events.add(event);
+      }
+      count = events.size();
+    }
+    counters.bytes += serializedLength;
+    counters.events += count;
+    return count;
+  }
+}
@@ -0,0 +1,105 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.tez.runtime.library.common.sort.impl.IFile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serialization and deserialization of an IFile segment held in memory,
+ * with and without compression.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IFileBenchmark {
+
+  @Param({ "none", "default", "block-snappy", "block-lz4", "block-deflate" })
+  public String codec;
+
+  @Param({ "100000" })
+  public int numRecords;
+
+  @Param({ "32" })
+  public int valueLength;
+
+  private File workDir;
+  private Configuration conf;
+  private CompressionCodec compressionCodec;
+  private BenchmarkUtils.IFileData data;
+
+  @Setup
+  public void setup() throws IOException {
+    workDir = BenchmarkUtils.createWorkDir("ifile");
+    conf = BenchmarkUtils.createConf(workDir);
+    compressionCodec = BenchmarkUtils.createCodec(codec, conf);
+    data = BenchmarkUtils.writeIFile(conf, compressionCodec, numRecords, 0, 1, valueLength);
+  }
+
+  @TearDown
+  public void tearDown() {
+    BenchmarkUtils.deleteWorkDir(workDir);
+  }
+
+  @Benchmark
+  public int write() throws IOException {
+    return BenchmarkUtils.writeIFile(conf, compressionCodec, numRecords, 0, 1,
+        valueLength).bytes.length;
+  }
+
+  @Benchmark
+  public long read() throws IOException {
+    IFile.Reader reader = new IFile.Reader(new ByteArrayInputStream(data.bytes),
+        data.bytes.length, compressionCodec, null, null, false, 0, -1);
+    DataInputBuffer key = new DataInputBuffer();
+    DataInputBuffer value = new DataInputBuffer();
+    BytesWritable valueWritable = new BytesWritable();
+    long total = 0;
+    while (reader.nextRawKey(key)) {
+      reader.nextRawValue(value);
+      valueWritable.readFields(value);
+      total += key.getLength() + valueWritable.getLength();
+    }
+    reader.close();
+    return total;
+  }
+}
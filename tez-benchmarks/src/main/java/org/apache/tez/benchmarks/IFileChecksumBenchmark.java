@@ -0,0 +1,124 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.tez.runtime.library.common.sort.impl.IFileInputStream;
+import org.apache.tez.runtime.library.common.sort.impl.IFileOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Checksumming of IFile streams by {@link IFileOutputStream} and
+ * {@link IFileInputStream}, for each checksum version. Each operation
+ * processes dataLength bytes, in writes and reads of chunkSize bytes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IFileChecksumBenchmark {
+
+  @Param({ "1", "2" })
+  public int version;
+
+  @Param({ "8388608" })
+  public int dataLength;
+
+  @Param({ "64", "65536" })
+  public int chunkSize;
+
+  private byte[] data;
+  private byte[] checksummed;
+  private byte[] buffer;
+
+  @Setup
+  public void setup() throws IOException {
+    data = new byte[dataLength];
+    new Random(0).nextBytes(data);
+    buffer = new byte[chunkSize];
+    DataOutputBuffer out = new DataOutputBuffer(dataLength + 16);
+    writeChecksummed(out);
+    checksummed = out.getData().length == out.getLength() ? out.getData()
+        : Arrays.copyOf(out.getData(), out.getLength());
+  }
+
+  @Benchmark
+  public int write() throws IOException {
+    CountingOutputStream out = new CountingOutputStream();
+    writeChecksummed(out);
+    return out.count;
+  }
+
+  @Benchmark
+  public int read() throws IOException {
+    IFileInputStream in = new IFileInputStream(new ByteArrayInputStream(checksummed),
+        checksummed.length);
+    int total = 0;
+    int n;
+    while ((n = in.read(buffer, 0, buffer.length)) > 0) {
+      total += n;
+    }
+    in.close();
+    return total;
+  }
+
+  private void writeChecksummed(OutputStream out) throws IOException {
+    IFileOutputStream checksumOut = new IFileOutputStream(out, version);
+    for (int off = 0; off < dataLength; off += chunkSize) {
+      checksumOut.write(data, off, Math.min(chunkSize, dataLength - off));
+    }
+    checksumOut.finish();
+  }
+
+  /**
+   * Discards the data, so that only the checksumming is measured.
+   */
+  private static class CountingOutputStream extends OutputStream {
+    int count;
+
+    @Override
+    public void write(int b) {
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      count += len;
+    }
+  }
+}
@@ -0,0 +1,146 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.tez.common.TezJobConfig;
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.runtime.library.common.sort.impl.ExternalSorter;
+import org.apache.tez.runtime.library.common.sort.impl.PipelinedSorter;
+import org.apache.tez.runtime.library.common.sort.impl.dflt.DefaultSorter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the comparison sort and the radix sort of the sorters on
+ * fixed-width IntWritable and LongWritable keys with NullWritable values.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RadixSortBenchmark {
+
+  @Param({ "int", "long" })
+  public String keyType;
+
+  @Param({ "default", "pipelined" })
+  public String sorter;
+
+  @Param({ "false", "true" })
+  public boolean radix;
+
+  @Param({ "5000000" })
+  public int numRecords;
+
+  @Param({ "256" })
+  public int sortMb;
+
+  @Param({ "10" })
+  public int numPartitions;
+
+  private File workDir;
+  private Configuration conf;
+  private IntWritable[] intKeys;
+  private LongWritable[] longKeys;
+
+  @Setup(Level.Trial)
+  public void setupTrial() {
+    // a fixed random key set, so that every invocation sorts the same input
+    Random random = new Random(0);
+    if ("int".equals(keyType)) {
+      intKeys = new IntWritable[numRecords];
+      for (int i = 0; i < numRecords; i++) {
+        intKeys[i] = new IntWritable(random.nextInt());
+      }
+    } else if ("long".equals(keyType)) {
+      longKeys = new LongWritable[numRecords];
+      for (int i = 0; i < numRecords; i++) {
+        longKeys[i] = new LongWritable(random.nextLong());
+      }
+    } else {
+      throw new IllegalArgumentException("Unknown key type: " + keyType);
+    }
+  }
+
+  @Setup(Level.Invocation)
+  public void setupInvocation() {
+    workDir = BenchmarkUtils.createWorkDir("radix-sort");
+    conf = BenchmarkUtils.createConf(workDir);
+    conf.set(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_OUTPUT_KEY_CLASS,
+        "int".equals(keyType) ? IntWritable.class.getName() : LongWritable.class.getName());
+    conf.set(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_OUTPUT_VALUE_CLASS,
+        NullWritable.class.getName());
+    conf.setBoolean(TezJobConfig.TEZ_RUNTIME_SORT_RADIX_ENABLED, radix);
+  }
+
+  @TearDown(Level.Invocation)
+  public void tearDownInvocation() {
+    BenchmarkUtils.deleteWorkDir(workDir);
+  }
+
+  @Benchmark
+  public long sort() throws IOException {
+    long memory = (long) sortMb << 20;
+    StubOutputContext context = new StubOutputContext(
+        new String[] { workDir.getAbsolutePath() }, memory);
+    ExternalSorter externalSorter;
+    if ("default".equals(sorter)) {
+      externalSorter = new DefaultSorter(context, conf, numPartitions, memory);
+    } else if ("pipelined".equals(sorter)) {
+      conf.setInt(TezJobConfig.TEZ_RUNTIME_SORT_THREADS, 2);
+      externalSorter = new PipelinedSorter(context, conf, numPartitions, memory);
+    } else {
+      throw new IllegalArgumentException("Unknown sorter: " + sorter);
+    }
+    if (intKeys != null) {
+      for (IntWritable key : intKeys) {
+        externalSorter.write(key, NullWritable.get());
+      }
+    } else {
+      for (LongWritable key : longKeys) {
+        externalSorter.write(key, NullWritable.get());
+      }
+    }
+    externalSorter.flush();
+    externalSorter.close();
+    return context.getCounters().findCounter(TaskCounter.SPILL_SORT_MILLIS).getValue();
+  }
+}
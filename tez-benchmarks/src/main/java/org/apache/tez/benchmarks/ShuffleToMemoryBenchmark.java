@@ -0,0 +1,110 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.shuffle.common.FetchedInput;
+import org.apache.tez.runtime.library.shuffle.common.FetchedInputCallback;
+import org.apache.tez.runtime.library.shuffle.common.MemoryFetchedInput;
+import org.apache.tez.runtime.library.shuffle.common.ShuffleUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Copy of a single fetched map output into memory, as done by the fetchers
+ * for each input: checksum verification and, if enabled, decompression.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ShuffleToMemoryBenchmark {
+
+  private static final Log LOG = LogFactory.getLog(ShuffleToMemoryBenchmark.class);
+
+  @Param({ "none", "default" })
+  public String codec;
+
+  @Param({ "10000" })
+  public int numRecords;
+
+  @Param({ "32" })
+  public int valueLength;
+
+  private File workDir;
+  private CompressionCodec compressionCodec;
+  private BenchmarkUtils.IFileData data;
+  private final InputAttemptIdentifier attempt = new InputAttemptIdentifier(0, 0);
+  private final FetchedInputCallback callback = new FetchedInputCallback() {
+    @Override
+    public void fetchComplete(FetchedInput fetchedInput) {
+    }
+
+    @Override
+    public void fetchFailed(FetchedInput fetchedInput) {
+    }
+
+    @Override
+    public void freeResources(FetchedInput fetchedInput) {
+    }
+  };
+
+  @Setup
+  public void setup() throws IOException {
+    workDir = BenchmarkUtils.createWorkDir("shuffle");
+    Configuration conf = BenchmarkUtils.createConf(workDir);
+    compressionCodec = BenchmarkUtils.createCodec(codec, conf);
+    data = BenchmarkUtils.writeIFile(conf, compressionCodec, numRecords, 0, 1, valueLength);
+  }
+
+  @TearDown
+  public void tearDown() {
+    BenchmarkUtils.deleteWorkDir(workDir);
+  }
+
+  @Benchmark
+  public byte[] shuffleToMemory() throws IOException {
+    MemoryFetchedInput fetchedInput = new MemoryFetchedInput(data.rawLength,
+        data.bytes.length, attempt, callback);
+    ShuffleUtils.shuffleToMemory(fetchedInput, new ByteArrayInputStream(data.bytes),
+        (int) data.rawLength, data.bytes.length, compressionCodec, false, 0, LOG);
+    return fetchedInput.getBytes();
+  }
+}
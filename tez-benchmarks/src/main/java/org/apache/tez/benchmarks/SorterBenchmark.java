@@ -0,0 +1,126 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.tez.common.TezJobConfig;
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.runtime.library.common.sort.impl.ExternalSorter;
+import org.apache.tez.runtime.library.common.sort.impl.PipelinedSorter;
+import org.apache.tez.runtime.library.common.sort.impl.dflt.DefaultSorter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writes, sorts and spills a fixed number of records through the sorters used
+ * by OnFileSortedOutput.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SorterBenchmark {
+
+  @Param({ "default", "pipelined" })
+  public String sorter;
+
+  @Param({ "false", "true" })
+  public boolean keyPrefix;
+
+  @Param({ "1000000" })
+  public int numRecords;
+
+  @Param({ "64" })
+  public int sortMb;
+
+  @Param({ "10" })
+  public int numPartitions;
+
+  @Param({ "32" })
+  public int valueLength;
+
+  private File workDir;
+  private Configuration conf;
+  private Text[] keys;
+  private BytesWritable value;
+
+  @Setup(Level.Trial)
+  public void setupTrial() {
+    // a fixed, shuffled key set, so that every invocation sorts the same input
+    keys = new Text[numRecords];
+    for (int i = 0; i < numRecords; i++) {
+      keys[i] = new Text();
+      BenchmarkUtils.setKey(keys[i], (i * 0x9E3779B97F4A7C15L) >>> 24);
+    }
+    value = BenchmarkUtils.createValue(valueLength);
+  }
+
+  @Setup(Level.Invocation)
+  public void setupInvocation() {
+    workDir = BenchmarkUtils.createWorkDir("sorter");
+    conf = BenchmarkUtils.createConf(workDir);
+    conf.setBoolean(TezJobConfig.TEZ_RUNTIME_SORT_KEY_PREFIX_ENABLED, keyPrefix);
+  }
+
+  @TearDown(Level.Invocation)
+  public void tearDownInvocation() {
+    BenchmarkUtils.deleteWorkDir(workDir);
+  }
+
+  @Benchmark
+  public long sort() throws IOException {
+    long memory = (long) sortMb << 20;
+    StubOutputContext context = new StubOutputContext(
+        new String[] { workDir.getAbsolutePath() }, memory);
+    ExternalSorter externalSorter;
+    if ("default".equals(sorter)) {
+      externalSorter = new DefaultSorter(context, conf, numPartitions, memory);
+    } else if ("pipelined".equals(sorter)) {
+      conf.setInt(TezJobConfig.TEZ_RUNTIME_SORT_THREADS, 2);
+      externalSorter = new PipelinedSorter(context, conf, numPartitions, memory);
+    } else {
+      throw new IllegalArgumentException("Unknown sorter: " + sorter);
+    }
+    for (Text key : keys) {
+      externalSorter.write(key, value);
+    }
+    externalSorter.flush();
+    externalSorter.close();
+    return context.getCounters().findCounter(TaskCounter.OUTPUT_BYTES_PHYSICAL).getValue();
+  }
+}
@@ -0,0 +1,133 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.apache.hadoop.yarn.api.records.ApplicationId;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.runtime.api.Event;
+import org.apache.tez.runtime.api.MemoryUpdateCallback;
+import org.apache.tez.runtime.api.TezTaskContext;
+
+/**
+ * Minimal task context for running runtime components outside of a
+ * container. Events are dropped, and memory requests are granted in full.
+ */
+public abstract class StubTaskContext implements TezTaskContext {
+
+  private final TezCounters counters = new TezCounters();
+  private final String[] workDirs;
+  private final long totalMemory;
+
+  protected StubTaskContext(String[] workDirs, long totalMemory) {
+    this.workDirs = workDirs;
+    this.totalMemory = totalMemory;
+  }
+
+  @Override
+  public ApplicationId getApplicationId() {
+    return ApplicationId.newInstance(1, 1);
+  }
+
+  @Override
+  public int getDAGAttemptNumber() {
+    return 1;
+  }
+
+  @Override
+  public int getTaskIndex() {
+    return 0;
+  }
+
+  @Override
+  public int getTaskAttemptNumber() {
+    return 0;
+  }
+
+  @Override
+  public String getDAGName() {
+    return "benchmark";
+  }
+
+  @Override
+  public String getTaskVertexName() {
+    return "vertex";
+  }
+
+  @Override
+  public int getTaskVertexIndex() {
+    return 0;
+  }
+
+  @Override
+  public TezCounters getCounters() {
+    return counters;
+  }
+
+  @Override
+  public void sendEvents(List<Event> events) {
+  }
+
+  @Override
+  public byte[] getUserPayload() {
+    return null;
+  }
+
+  @Override
+  public String[] getWorkDirs() {
+    return workDirs;
+  }
+
+  @Override
+  public String getUniqueIdentifier() {
+    return "attempt_1_0001_1_01_000000_0";
+  }
+
+  @Override
+  public void fatalError(Throwable exception, String message) {
+    throw new RuntimeException(message, exception);
+  }
+
+  @Override
+  public ByteBuffer getServiceConsumerMetaData(String serviceName) {
+    return null;
+  }
+
+  @Override
+  public ByteBuffer getServiceProviderMetaData(String serviceName) {
+    return null;
+  }
+
+  @Override
+  public void requestInitialMemory(long size, MemoryUpdateCallback callbackHandler) {
+    callbackHandler.memoryAssigned(size);
+  }
+
+  @Override
+  public void requestInitialDirectMemory(long size, MemoryUpdateCallback callbackHandler) {
+    callbackHandler.memoryAssigned(size);
+  }
+
+  @Override
+  public long getTotalMemoryAvailableToTask() {
+    return totalMemory;
+  }
+}
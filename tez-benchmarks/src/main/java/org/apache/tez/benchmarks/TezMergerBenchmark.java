@@ -0,0 +1,161 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.util.Progress;
+import org.apache.tez.common.TezJobConfig;
+import org.apache.tez.runtime.library.common.sort.impl.IFile;
+import org.apache.tez.runtime.library.common.sort.impl.TezMerger;
+import org.apache.tez.runtime.library.common.sort.impl.TezMerger.Segment;
+import org.apache.tez.runtime.library.common.sort.impl.TezRawKeyValueIterator;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Single pass k-way merge of sorted, interleaved segments held in memory,
+ * with the loser tree and with the binary heap. The key comparisons and the
+ * records merged are reported as auxiliary counters, their ratio is the
+ * number of comparisons per record.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TezMergerBenchmark {
+
+  @Param({ "10", "100" })
+  public int numSegments;
+
+  @Param({ "1000000" })
+  public int totalRecords;
+
+  @Param({ "32" })
+  public int valueLength;
+
+  @Param({ "true", "false" })
+  public boolean loserTree;
+
+  private File workDir;
+  private Configuration conf;
+  private FileSystem localFs;
+  private BenchmarkUtils.IFileData[] data;
+  private final CountingComparator comparator = new CountingComparator();
+
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class MergeCounters {
+    public long comparisons;
+    public long records;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      comparisons = 0;
+      records = 0;
+    }
+  }
+
+  @Setup
+  public void setup() throws IOException {
+    workDir = BenchmarkUtils.createWorkDir("merger");
+    conf = BenchmarkUtils.createConf(workDir);
+    conf.setBoolean(TezJobConfig.TEZ_RUNTIME_MERGE_LOSER_TREE_ENABLED, loserTree);
+    localFs = FileSystem.getLocal(conf);
+    data = new BenchmarkUtils.IFileData[numSegments];
+    int recordsPerSegment = totalRecords / numSegments;
+    for (int i = 0; i < numSegments; i++) {
+      // segment i holds keys i, i + numSegments, ...
+      data[i] = BenchmarkUtils.writeIFile(conf, null, recordsPerSegment, i, numSegments,
+          valueLength);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    BenchmarkUtils.deleteWorkDir(workDir);
+  }
+
+  @Benchmark
+  public long merge(MergeCounters counters) throws IOException {
+    List<Segment> segments = new ArrayList<Segment>(numSegments);
+    for (BenchmarkUtils.IFileData segmentData : data) {
+      IFile.Reader reader = new IFile.Reader(new ByteArrayInputStream(segmentData.bytes),
+          segmentData.bytes.length, null, null, null, false, 0, -1);
+      segments.add(new Segment(reader, false));
+    }
+    TezRawKeyValueIterator iterator = TezMerger.merge(conf, localFs, Text.class,
+        BytesWritable.class, segments, numSegments, new Path(workDir.getAbsolutePath()),
+        comparator, null, null, null, null, new Progress());
+    comparator.count = 0;
+    long records = 0;
+    long total = 0;
+    while (iterator.next()) {
+      total += iterator.getKey().getLength() + iterator.getValue().getLength();
+      records++;
+    }
+    iterator.close();
+    counters.comparisons += comparator.count;
+    counters.records += records;
+    return total;
+  }
+
+  private static class CountingComparator implements RawComparator<Text> {
+    private final RawComparator<Text> comparator = WritableComparator.get(Text.class);
+    long count;
+
+    @Override
+    public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+      count++;
+      return comparator.compare(b1, s1, l1, b2, s2, l2);
+    }
+
+    @Override
+    public int compare(Text o1, Text o2) {
+      count++;
+      return comparator.compare(o1, o2);
+    }
+  }
+}
@@ -0,0 +1,160 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.util.Progress;
+import org.apache.tez.common.TezJobConfig;
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.runtime.library.common.ValuesIterator;
+import org.apache.tez.runtime.library.common.sort.impl.TezRawKeyValueIterator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Grouping of sorted records into keys and values by {@link ValuesIterator},
+ * on top of an iterator over pre-serialized records. Run with
+ * <code>-prof gc</code> to compare the allocation rate with and without
+ * object reuse.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ValuesIteratorBenchmark {
+
+  @Param({ "1", "10" })
+  public int valuesPerKey;
+
+  @Param({ "1000000" })
+  public int numRecords;
+
+  @Param({ "32" })
+  public int valueLength;
+
+  @Param({ "false", "true" })
+  public boolean reuseObjects;
+
+  private Configuration conf;
+  private byte[][] keys;
+  private byte[] value;
+
+  @Setup
+  public void setup() throws IOException {
+    conf = new Configuration();
+    conf.setBoolean(TezJobConfig.TEZ_RUNTIME_VALUES_ITERATOR_REUSE_OBJECTS, reuseObjects);
+    keys = new byte[numRecords][];
+    DataOutputBuffer out = new DataOutputBuffer();
+    Text key = new Text();
+    for (int i = 0; i < numRecords; i++) {
+      BenchmarkUtils.setKey(key, i / valuesPerKey);
+      out.reset();
+      key.write(out);
+      keys[i] = new byte[out.getLength()];
+      System.arraycopy(out.getData(), 0, keys[i], 0, out.getLength());
+    }
+    out.reset();
+    BenchmarkUtils.createValue(valueLength).write(out);
+    value = new byte[out.getLength()];
+    System.arraycopy(out.getData(), 0, value, 0, out.getLength());
+  }
+
+  @Benchmark
+  public long iterate() throws IOException {
+    TezCounters counters = new TezCounters();
+    ValuesIterator<Text, BytesWritable> iterator = new ValuesIterator<Text, BytesWritable>(
+        new ArrayKeyValueIterator(keys, value), WritableComparator.get(Text.class), Text.class,
+        BytesWritable.class, conf, counters.findCounter(TaskCounter.REDUCE_INPUT_GROUPS),
+        counters.findCounter(TaskCounter.REDUCE_INPUT_RECORDS));
+    long total = 0;
+    while (iterator.moveToNext()) {
+      total += iterator.getKey().getLength();
+      for (BytesWritable v : iterator.getValues()) {
+        total += v.getLength();
+      }
+    }
+    return total;
+  }
+
+  /**
+   * Serves pre-serialized keys, each paired with the same value.
+   */
+  private static class ArrayKeyValueIterator implements TezRawKeyValueIterator {
+    private final byte[][] keys;
+    private final byte[] value;
+    private final DataInputBuffer keyBuffer = new DataInputBuffer();
+    private final DataInputBuffer valueBuffer = new DataInputBuffer();
+    private final Progress progress = new Progress();
+    private int index = -1;
+
+    ArrayKeyValueIterator(byte[][] keys, byte[] value) {
+      this.keys = keys;
+      this.value = value;
+    }
+
+    @Override
+    public DataInputBuffer getKey() throws IOException {
+      return keyBuffer;
+    }
+
+    @Override
+    public DataInputBuffer getValue() throws IOException {
+      return valueBuffer;
+    }
+
+    @Override
+    public boolean next() throws IOException {
+      if (++index >= keys.length) {
+        return false;
+      }
+      keyBuffer.reset(keys[index], keys[index].length);
+      valueBuffer.reset(value, value.length);
+      return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+
+    @Override
+    public Progress getProgress() {
+      return progress;
+    }
+  }
+}
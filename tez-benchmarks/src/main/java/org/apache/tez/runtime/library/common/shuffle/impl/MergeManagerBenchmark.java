@@ -0,0 +1,149 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.shuffle.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalDirAllocator;
+import org.apache.tez.benchmarks.BenchmarkUtils;
+import org.apache.tez.benchmarks.StubInputContext;
+import org.apache.tez.common.TezJobConfig;
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.common.sort.impl.IFileChecksums;
+import org.apache.tez.runtime.library.common.sort.impl.TezRawKeyValueIterator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Feeds fetched map outputs to the {@link MergeManager} as the fetchers would,
+ * and drains the final merge. With the default memory limits, the in-memory
+ * merger spills to disk before the final merge.
+ *
+ * Lives in the MergeManager package to reach its package-private life cycle.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MergeManagerBenchmark {
+
+  @Param({ "100" })
+  public int numInputs;
+
+  @Param({ "10000" })
+  public int recordsPerInput;
+
+  @Param({ "32" })
+  public int valueLength;
+
+  @Param({ "256" })
+  public int taskMemoryMb;
+
+  private BenchmarkUtils.IFileData[] data;
+  private File workDir;
+  private Configuration conf;
+
+  @Setup(Level.Trial)
+  public void setupTrial() throws IOException {
+    Configuration dataConf = new Configuration();
+    data = new BenchmarkUtils.IFileData[numInputs];
+    for (int i = 0; i < numInputs; i++) {
+      data[i] = BenchmarkUtils.writeIFile(dataConf, null, recordsPerInput, i, numInputs,
+          valueLength);
+    }
+  }
+
+  @Setup(Level.Invocation)
+  public void setupInvocation() {
+    workDir = BenchmarkUtils.createWorkDir("merge-manager");
+    conf = BenchmarkUtils.createConf(workDir);
+  }
+
+  @TearDown(Level.Invocation)
+  public void tearDownInvocation() {
+    BenchmarkUtils.deleteWorkDir(workDir);
+  }
+
+  @Benchmark
+  public long shuffleAndMerge() throws Throwable {
+    long memory = (long) taskMemoryMb << 20;
+    StubInputContext context = new StubInputContext(
+        new String[] { workDir.getAbsolutePath() }, memory);
+    TezCounters counters = context.getCounters();
+    MergeManager merger = new MergeManager(conf, FileSystem.getLocal(conf),
+        new LocalDirAllocator(TezJobConfig.LOCAL_DIRS), context, null,
+        counters.findCounter(TaskCounter.SPILLED_RECORDS),
+        counters.findCounter(TaskCounter.COMBINE_INPUT_RECORDS),
+        counters.findCounter(TaskCounter.MERGED_MAP_OUTPUTS),
+        new ExceptionReporter() {
+          @Override
+          public void reportException(Throwable t) {
+            throw new RuntimeException(t);
+          }
+        }, MergeManager.getInitialMemoryRequirement(conf, memory), null, false, 0);
+    merger.configureAndStart();
+
+    for (int i = 0; i < numInputs; i++) {
+      // the fetchers copy the records without the checksum header and trailer
+      int length = (int) data[i].rawLength;
+      InputAttemptIdentifier attempt = new InputAttemptIdentifier(i, 0);
+      MapOutput mapOutput = merger.reserve(attempt, length, 0);
+      while (mapOutput.getType() == MapOutput.Type.WAIT) {
+        merger.waitForInMemoryMerge();
+        mapOutput = merger.reserve(attempt, length, 0);
+      }
+      if (mapOutput.getType() == MapOutput.Type.MEMORY) {
+        System.arraycopy(data[i].bytes,
+            data[i].bytes.length - IFileChecksums.CHECKSUM_SIZE - length,
+            mapOutput.getMemory(), 0, length);
+      } else {
+        mapOutput.getDisk().write(data[i].bytes);
+        mapOutput.getDisk().close();
+      }
+      mapOutput.commit();
+    }
+
+    TezRawKeyValueIterator iterator = merger.close();
+    long total = 0;
+    while (iterator.next()) {
+      total += iterator.getKey().getLength() + iterator.getValue().getLength();
+    }
+    iterator.close();
+    return total;
+  }
+}
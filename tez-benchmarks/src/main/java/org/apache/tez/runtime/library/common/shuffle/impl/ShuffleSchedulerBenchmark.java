@@ -0,0 +1,116 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.shuffle.impl;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.tez.benchmarks.StubInputContext;
+import org.apache.tez.common.TezJobConfig;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Runs the scheduling calls of a shuffle with many inputs from as many
+ * fetcher threads, without any data transfer, so that only the contention
+ * between the fetchers in the {@link ShuffleScheduler} is measured.
+ *
+ * Lives in the ShuffleScheduler package to reach the package-private class.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ShuffleSchedulerBenchmark {
+
+  @Param({ "1", "16", "64" })
+  public int numFetchers;
+
+  @Param({ "50000" })
+  public int numInputs;
+
+  @Param({ "200" })
+  public int numHosts;
+
+  @Benchmark
+  public long schedule() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setInt(TezJobConfig.TEZ_RUNTIME_SHUFFLE_FETCH_MAX_TASK_OUTPUT_AT_ONCE, 4);
+    StubInputContext context = new StubInputContext(new String[0], 0);
+    TezCounters counters = context.getCounters();
+    final ShuffleScheduler scheduler = new ShuffleScheduler(context, conf, numInputs, null,
+        new ShuffleClientMetrics("dag", "vertex", 0, conf, "user"),
+        counters.findCounter("test", "shuffled"), counters.findCounter("test", "bytes"),
+        counters.findCounter("test", "decompressed"), counters.findCounter("test", "failed"),
+        counters.findCounter("test", "disk"), counters.findCounter("test", "memory"));
+    for (int i = 0; i < numInputs; i++) {
+      scheduler.addKnownMapOutput("host" + (i % numHosts), 0, "http://host:80/",
+          new InputAttemptIdentifier(i, 0, "attempt_" + i));
+    }
+
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    Thread[] fetchers = new Thread[numFetchers];
+    for (int i = 0; i < numFetchers; i++) {
+      fetchers[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            while (true) {
+              MapHost host = scheduler.getHost();
+              for (InputAttemptIdentifier id : scheduler.getMapsForHost(host)) {
+                scheduler.copySucceeded(id, host, 1024, 1024, 1, null);
+              }
+              scheduler.freeHost(host);
+            }
+          } catch (InterruptedException e) {
+            return;
+          } catch (Throwable t) {
+            error.compareAndSet(null, t);
+          }
+        }
+      };
+      fetchers[i].setDaemon(true);
+      fetchers[i].start();
+    }
+    while (!scheduler.waitUntilDone(100) && error.get() == null) {
+    }
+    for (Thread fetcher : fetchers) {
+      fetcher.interrupt();
+      fetcher.join();
+    }
+    scheduler.close();
+    if (error.get() != null) {
+      throw new RuntimeException(error.get());
+    }
+    return counters.findCounter("test", "bytes").getValue();
+  }
+}
@@ -0,0 +1,101 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.hadoop.mapred;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.log4j.Logger;
+import org.apache.tez.common.TezTaskUmbilicalProtocol;
+import org.apache.tez.dag.records.TezTaskAttemptID;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Tracks the heartbeat of a task which waits at the AM for events to the
+ * task, so that the wait can be ended once the task has events to send or
+ * has completed, rather than holding them up until the wait times out.
+ * The AM is asked to end the wait from a thread of its own, so that the
+ * threads producing events never block on an RPC.
+ */
+class HeartbeatEventWait {
+
+  private static final Logger LOG = Logger.getLogger(HeartbeatEventWait.class);
+
+  private final TezTaskUmbilicalProtocol umbilical;
+  // the attempt of the heartbeat waiting for events, if there is one
+  private final AtomicReference<TezTaskAttemptID> waitingAttempt =
+      new AtomicReference<TezTaskAttemptID>();
+
+  private final ExecutorService endExecutor = Executors.newSingleThreadExecutor(
+      new ThreadFactoryBuilder().setDaemon(true)
+          .setNameFormat("HeartbeatEventWait").build());
+
+  HeartbeatEventWait(TezTaskUmbilicalProtocol umbilical) {
+    this.umbilical = umbilical;
+  }
+
+  /**
+   * Called before sending a heartbeat of the attempt which may wait.
+   */
+  void started(TezTaskAttemptID attemptId) {
+    waitingAttempt.set(attemptId);
+  }
+
+  /**
+   * Called once the heartbeat has returned.
+   */
+  void finished() {
+    waitingAttempt.set(null);
+  }
+
+  /**
+   * Have the AM end the wait of the heartbeat, if one may be waiting, without
+   * blocking the caller. Only the first call while a heartbeat waits asks the
+   * AM.
+   */
+  void end() {
+    final TezTaskAttemptID attemptId = waitingAttempt.getAndSet(null);
+    if (attemptId == null) {
+      return;
+    }
+    try {
+      endExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            umbilical.endEventWait(attemptId);
+          } catch (IOException e) {
+            // the heartbeat still returns once its wait times out
+            LOG.warn("Failed to end the wait for events of " + attemptId, e);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // stopped, events added while the task shuts down are not sent anyway
+    }
+  }
+
+  void stop() {
+    endExecutor.shutdownNow();
+  }
+}
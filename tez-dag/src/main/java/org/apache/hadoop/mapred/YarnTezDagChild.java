@@ -35,6 +35,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -111,7 +112,20 @@ public class YarnTezDagChild {
       new LinkedBlockingQueue<TezEvent>();
   private static AtomicLong requestCounter = new AtomicLong(0);
   private static long amPollInterval;
+  private static long amPollIntervalMin;
+  private static long amLongPollTimeout;
+  // interval until the next heartbeat, adapted to the events exchanged
+  private static long currentPollInterval;
+  private static volatile boolean lastHeartbeatHadEvents = false;
+  // the AM had more events than it could send in the last heartbeat
+  private static volatile boolean moreEventsAvailable = false;
+  // notified when the task has events to send
+  private static final Object heartbeatMonitor = new Object();
   private static TezTaskUmbilicalProtocol umbilical;
+  private static HeartbeatEventWait eventWait;
+  // out-of-band heartbeats about to be sent, which a regular heartbeat must
+  // not hold up by waiting for events
+  private static final AtomicInteger pendingOutOfBandHeartbeats = new AtomicInteger();
   private static ReentrantReadWriteLock taskLock = new ReentrantReadWriteLock();
   private static LogicalIOProcessorRuntimeTask currentTask = null;
   private static TezTaskAttemptID currentTaskAttemptID;
@@ -161,7 +175,7 @@ public class YarnTezDagChild {
               heartbeatError.set(true);
               break;
             }
-            Thread.sleep(amPollInterval);
+            waitForNextHeartbeat();
           } catch (InterruptedException e) {
             // we were interrupted so that we will stop.
             LOG.info("Heartbeat thread interrupted. " +
@@ -193,11 +207,54 @@ public class YarnTezDagChild {
     return heartbeatThread;
   }
 
-  private static synchronized boolean heartbeat() throws TezException, IOException {
-    return heartbeat(null);
+  /**
+   * Wait until the next heartbeat is due. Heartbeats are sent right away
+   * while the AM has more events, every amPollIntervalMin after heartbeats
+   * which exchanged events, and then less and less often up to amPollInterval.
+   * Events produced by the task are sent amPollIntervalMin after the last
+   * heartbeat at the latest.
+   */
+  private static void waitForNextHeartbeat() throws InterruptedException {
+    if (moreEventsAvailable) {
+      return;
+    }
+    if (lastHeartbeatHadEvents) {
+      currentPollInterval = amPollIntervalMin;
+    } else {
+      currentPollInterval = Math.min(amPollInterval,
+          Math.max(1, currentPollInterval * 2));
+    }
+    long start = System.currentTimeMillis();
+    long deadline = start + currentPollInterval;
+    long earliest = start + amPollIntervalMin;
+    synchronized (heartbeatMonitor) {
+      while (true) {
+        long now = System.currentTimeMillis();
+        if (now >= deadline || (now >= earliest && !eventsToSend.isEmpty())) {
+          return;
+        }
+        heartbeatMonitor.wait(eventsToSend.isEmpty() ?
+            deadline - now : Math.min(deadline, earliest) - now);
+      }
+    }
+  }
+
+  private static boolean heartbeat() throws TezException, IOException {
+    return sendHeartbeat(null);
+  }
+
+  private static boolean heartbeat(Collection<TezEvent> outOfBandEvents)
+      throws TezException, IOException {
+    pendingOutOfBandHeartbeats.incrementAndGet();
+    try {
+      eventWait.end();
+      return sendHeartbeat(outOfBandEvents);
+    } finally {
+      pendingOutOfBandHeartbeats.decrementAndGet();
+    }
   }
 
-  private static synchronized boolean heartbeat(
+  private static synchronized boolean sendHeartbeat(
       Collection<TezEvent> outOfBandEvents)
       throws TezException, IOException {
     TezEvent updateEvent = null;
@@ -249,14 +306,38 @@ public class YarnTezDagChild {
       }
     }
 
+    // only a regular heartbeat with nothing but a status update to send may
+    // wait at the AM for events to the task
+    boolean sendingEvents = events.size() > (updateEvent != null ? 1 : 0);
+    long maxEventWaitMs = 0;
+    if (outOfBandEvents == null && !sendingEvents && taskAttemptID != null
+        && amLongPollTimeout > 0) {
+      eventWait.started(taskAttemptID);
+      // output of the task from before the wait is marked as started would
+      // not end the wait, so the heartbeat does not wait then
+      if (eventsToSend.isEmpty() && pendingOutOfBandHeartbeats.get() == 0) {
+        maxEventWaitMs = amLongPollTimeout;
+      } else {
+        eventWait.finished();
+      }
+    }
+
     long reqId = requestCounter.incrementAndGet();
     TezHeartbeatRequest request = new TezHeartbeatRequest(reqId, events,
-        containerIdStr, taskAttemptID, eventCounter, eventsRange);
+        containerIdStr, taskAttemptID, eventCounter, eventsRange,
+        maxEventWaitMs);
     if (LOG.isDebugEnabled()) {
       LOG.debug("Sending heartbeat to AM"
           + ", request=" + request.toString());
     }
-    TezHeartbeatResponse response = umbilical.heartbeat(request);
+    TezHeartbeatResponse response;
+    try {
+      response = umbilical.heartbeat(request);
+    } finally {
+      if (maxEventWaitMs > 0) {
+        eventWait.finished();
+      }
+    }
     if (LOG.isDebugEnabled()) {
       LOG.debug("Received heartbeat response from AM"
           + ", response=" + response);
@@ -270,6 +351,9 @@ public class YarnTezDagChild {
           + ", responseReqId=" + response.getLastRequestId()
           + ", expectedReqId=" + reqId);
     }
+    int numReceived = response.getEvents() == null ? 0 : response.getEvents().size();
+    lastHeartbeatHadEvents = sendingEvents || numReceived > 0;
+    moreEventsAvailable = eventsRange > 0 && numReceived >= eventsRange;
     try {
       taskLock.readLock().lock();
       if (taskAttemptID == null
@@ -344,6 +428,15 @@ public class YarnTezDagChild {
     amPollInterval = defaultConf.getLong(
         TezConfiguration.TEZ_TASK_AM_HEARTBEAT_INTERVAL_MS,
         TezConfiguration.TEZ_TASK_AM_HEARTBEAT_INTERVAL_MS_DEFAULT);
+    amLongPollTimeout = defaultConf.getLong(
+        TezConfiguration.TEZ_TASK_AM_HEARTBEAT_LONG_POLL_TIMEOUT_MS,
+        TezConfiguration.TEZ_TASK_AM_HEARTBEAT_LONG_POLL_TIMEOUT_MS_DEFAULT);
+    // without the long poll, a shorter interval would only add heartbeats
+    amPollIntervalMin = Math.min(amPollInterval, defaultConf.getLong(
+        TezConfiguration.TEZ_TASK_AM_HEARTBEAT_INTERVAL_MS_MIN,
+        amLongPollTimeout > 0 ? TezConfiguration.TEZ_TASK_AM_HEARTBEAT_INTERVAL_MS_MIN_DEFAULT
+            : amPollInterval));
+    currentPollInterval = amPollIntervalMin;
     maxEventsToGet = defaultConf.getInt(
         TezConfiguration.TEZ_TASK_MAX_EVENTS_PER_HEARTBEAT,
         TezConfiguration.TEZ_TASK_MAX_EVENTS_PER_HEARTBEAT_DEFAULT);
@@ -369,12 +462,19 @@ public class YarnTezDagChild {
       }
     });
 
+    eventWait = new HeartbeatEventWait(umbilical);
     final Thread heartbeatThread = startHeartbeatThread();
 
     TezUmbilical tezUmbilical = new TezUmbilical() {
       @Override
       public void addEvents(Collection<TezEvent> events) {
         eventsToSend.addAll(events);
+        synchronized (heartbeatMonitor) {
+          heartbeatMonitor.notifyAll();
+        }
+        // the events are sent once a heartbeat waiting for events returns;
+        // the AM is asked to return it from another thread
+        eventWait.end();
       }
 
       @Override
@@ -670,6 +770,7 @@ public class YarnTezDagChild {
     } finally {
       stopped.set(true);
       heartbeatThread.interrupt();
+      eventWait.stop();
       RPC.stopProxy(umbilical);
       DefaultMetricsSystem.shutdown();
       // Shutting down log4j of the child-vm...
@@ -422,6 +422,12 @@ public class DAGAppMaster extends AbstractService {
   
   @VisibleForTesting
   protected Dispatcher createDispatcher() {
+    int vertexThreads = amConf.getInt(
+        TezConfiguration.TEZ_AM_DISPATCHER_VERTEX_THREAD_COUNT,
+        TezConfiguration.TEZ_AM_DISPATCHER_VERTEX_THREAD_COUNT_DEFAULT);
+    if (vertexThreads > 0) {
+      return new PartitionedDispatcher(vertexThreads);
+    }
     return new AsyncDispatcher();
   }
 
@@ -0,0 +1,282 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.tez.dag.app;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.metrics2.MetricsCollector;
+import org.apache.hadoop.metrics2.MetricsRecordBuilder;
+import org.apache.hadoop.metrics2.MetricsSource;
+import org.apache.hadoop.metrics2.lib.DefaultMetricsSystem;
+import org.apache.hadoop.metrics2.lib.Interns;
+import org.apache.hadoop.service.CompositeService;
+import org.apache.hadoop.yarn.event.AsyncDispatcher;
+import org.apache.hadoop.yarn.event.Dispatcher;
+import org.apache.hadoop.yarn.event.Event;
+import org.apache.hadoop.yarn.event.EventHandler;
+import org.apache.tez.dag.app.dag.event.TaskAttemptEvent;
+import org.apache.tez.dag.app.dag.event.TaskEvent;
+import org.apache.tez.dag.app.dag.event.VertexEvent;
+import org.apache.tez.dag.records.TezVertexID;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * A {@link Dispatcher} which processes the events of different vertices on
+ * different threads.
+ *
+ * Vertex, task and task attempt events are dispatched by one of
+ * <code>numVertexPartitions</code> {@link AsyncDispatcher}s, chosen by the
+ * vertex they belong to. All the other events, e.g. DAG, container, node and
+ * scheduler events, are dispatched by a separate AsyncDispatcher. Events of a
+ * vertex and of its tasks and attempts are therefore handled in the order
+ * they were sent, and events of different vertices are handled concurrently.
+ *
+ * The queue depth, time spent queued and time spent handling events of each
+ * partition are published as "AMDispatcherPartition" metrics records.
+ *
+ * Handlers of a vertex may only touch another vertex through its locked
+ * getters, or by sending it an event. Events routed between vertices are
+ * sent as events of the vertex they are routed to, so an {@link
+ * org.apache.tez.dag.app.dag.impl.Edge} routes events on the thread of its
+ * destination vertex, which also changes its parallelism and edge managers.
+ */
+@SuppressWarnings("rawtypes")
+public class PartitionedDispatcher extends CompositeService
+    implements Dispatcher {
+
+  private static final Log LOG = LogFactory.getLog(PartitionedDispatcher.class);
+  private static final String METRICS_SOURCE_NAME = "AMDispatcher";
+
+  private final Partition[] partitions;
+  private final Map<Class<? extends Enum>, EventHandler> handlers =
+      new ConcurrentHashMap<Class<? extends Enum>, EventHandler>();
+  private final EventHandler eventHandler = new PartitioningEventHandler();
+  private boolean metricsRegistered = false;
+
+  public PartitionedDispatcher(int numVertexPartitions) {
+    super(PartitionedDispatcher.class.getName());
+    if (numVertexPartitions < 1) {
+      throw new IllegalArgumentException("Invalid number of vertex partitions: "
+          + numVertexPartitions);
+    }
+    partitions = new Partition[numVertexPartitions + 1];
+    for (int i = 0; i < partitions.length; ++i) {
+      partitions[i] = new Partition(i == 0 ? "global" : "vertex-" + (i - 1));
+      addService(partitions[i].dispatcher);
+    }
+  }
+
+  @Override
+  protected void serviceStart() throws Exception {
+    DefaultMetricsSystem.instance().register(METRICS_SOURCE_NAME,
+        "AM event dispatcher partitions", new DispatcherMetrics());
+    metricsRegistered = true;
+    super.serviceStart();
+    LOG.info("Started dispatcher with " + (partitions.length - 1)
+        + " vertex partitions");
+  }
+
+  @Override
+  protected void serviceStop() throws Exception {
+    try {
+      super.serviceStop();
+    } finally {
+      // so that a dispatcher started later, e.g. by the next AM attempt in
+      // the same JVM, can register the source again
+      if (metricsRegistered) {
+        DefaultMetricsSystem.instance().unregisterSource(METRICS_SOURCE_NAME);
+        metricsRegistered = false;
+      }
+    }
+  }
+
+  @Override
+  public EventHandler getEventHandler() {
+    return eventHandler;
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public void register(Class<? extends Enum> eventType, EventHandler handler) {
+    synchronized (handlers) {
+      EventHandler registered = handlers.get(eventType);
+      if (registered == null) {
+        handlers.put(eventType, handler);
+        for (Partition partition : partitions) {
+          partition.dispatcher.register(eventType,
+              new MeasuredEventHandler(partition, eventType));
+        }
+      } else if (registered instanceof MultiListenerHandler) {
+        ((MultiListenerHandler) registered).addHandler(handler);
+      } else {
+        MultiListenerHandler multiHandler = new MultiListenerHandler();
+        multiHandler.addHandler(registered);
+        multiHandler.addHandler(handler);
+        handlers.put(eventType, multiHandler);
+      }
+    }
+  }
+
+  @VisibleForTesting
+  int getPartition(Event event) {
+    TezVertexID vertexId;
+    if (event instanceof VertexEvent) {
+      vertexId = ((VertexEvent) event).getVertexId();
+    } else if (event instanceof TaskEvent) {
+      vertexId = ((TaskEvent) event).getTaskID().getVertexID();
+    } else if (event instanceof TaskAttemptEvent) {
+      vertexId = ((TaskAttemptEvent) event).getTaskAttemptID().getTaskID()
+          .getVertexID();
+    } else {
+      return 0;
+    }
+    return 1 + vertexId.getId() % (partitions.length - 1);
+  }
+
+  @VisibleForTesting
+  int getQueueDepth(int partition) {
+    return partitions[partition].queueDepth.get();
+  }
+
+  private static class Partition {
+    final String name;
+    final AsyncDispatcher dispatcher = new AsyncDispatcher();
+    // times at which the queued events were sent, in queue order
+    final ConcurrentLinkedQueue<Long> sendTimes = new ConcurrentLinkedQueue<Long>();
+    final AtomicInteger queueDepth = new AtomicInteger();
+    final AtomicInteger maxQueueDepth = new AtomicInteger();
+    // since the last metrics update
+    final AtomicLong numEvents = new AtomicLong();
+    final AtomicLong queueTime = new AtomicLong();
+    final AtomicLong handleTime = new AtomicLong();
+
+    Partition(String name) {
+      this.name = name;
+    }
+  }
+
+  private class PartitioningEventHandler implements EventHandler<Event> {
+    @SuppressWarnings("unchecked")
+    @Override
+    public void handle(Event event) {
+      Partition partition = partitions[getPartition(event)];
+      // enqueue in send order, so that send times match the events handled.
+      // They are recorded before the event is queued, since it may be
+      // handled right away, and taken back if it could not be queued.
+      synchronized (partition) {
+        Long sendTime = System.currentTimeMillis();
+        partition.sendTimes.add(sendTime);
+        int depth = partition.queueDepth.incrementAndGet();
+        boolean queued = false;
+        try {
+          partition.dispatcher.getEventHandler().handle(event);
+          queued = true;
+        } finally {
+          if (queued) {
+            if (depth > partition.maxQueueDepth.get()) {
+              partition.maxQueueDepth.set(depth);
+            }
+          } else {
+            // removes an equal time, which leaves the queue as it was
+            partition.sendTimes.remove(sendTime);
+            partition.queueDepth.decrementAndGet();
+          }
+        }
+      }
+    }
+  }
+
+  private class MeasuredEventHandler implements EventHandler<Event> {
+    private final Partition partition;
+    private final Class<? extends Enum> eventType;
+
+    MeasuredEventHandler(Partition partition, Class<? extends Enum> eventType) {
+      this.partition = partition;
+      this.eventType = eventType;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void handle(Event event) {
+      long start = System.currentTimeMillis();
+      Long sendTime = partition.sendTimes.poll();
+      partition.queueDepth.decrementAndGet();
+      if (sendTime != null) {
+        partition.queueTime.addAndGet(start - sendTime);
+      }
+      try {
+        handlers.get(eventType).handle(event);
+      } finally {
+        partition.numEvents.incrementAndGet();
+        partition.handleTime.addAndGet(System.currentTimeMillis() - start);
+      }
+    }
+  }
+
+  private static class MultiListenerHandler implements EventHandler<Event> {
+    private final List<EventHandler<Event>> listeners =
+        new ArrayList<EventHandler<Event>>();
+
+    @SuppressWarnings("unchecked")
+    void addHandler(EventHandler handler) {
+      listeners.add(handler);
+    }
+
+    @Override
+    public void handle(Event event) {
+      for (EventHandler<Event> handler : listeners) {
+        handler.handle(event);
+      }
+    }
+  }
+
+  private class DispatcherMetrics implements MetricsSource {
+    @Override
+    public void getMetrics(MetricsCollector collector, boolean all) {
+      for (Partition partition : partitions) {
+        long numEvents = partition.numEvents.getAndSet(0);
+        long queueTime = partition.queueTime.getAndSet(0);
+        long handleTime = partition.handleTime.getAndSet(0);
+        MetricsRecordBuilder record = collector.addRecord("AMDispatcherPartition")
+            .setContext("tez")
+            .tag(Interns.info("Partition", "Dispatcher partition"), partition.name);
+        record.addGauge(Interns.info("QueueDepth", "Events waiting"),
+            partition.queueDepth.get());
+        record.addGauge(Interns.info("MaxQueueDepth", "Most events waiting"),
+            partition.maxQueueDepth.getAndSet(partition.queueDepth.get()));
+        record.addGauge(Interns.info("NumEvents", "Events handled"), numEvents);
+        record.addGauge(Interns.info("AvgQueueTimeMs",
+            "Average time events waited"),
+            numEvents == 0 ? 0f : (float) queueTime / numEvents);
+        record.addGauge(Interns.info("AvgHandleTimeMs",
+            "Average time spent handling events"),
+            numEvents == 0 ? 0f : (float) handleTime / numEvents);
+      }
+    }
+  }
+}
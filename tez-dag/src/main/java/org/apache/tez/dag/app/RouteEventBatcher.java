@@ -0,0 +1,109 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.apache.tez.dag.app;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.tez.dag.app.dag.event.VertexEventRouteEvent;
+import org.apache.tez.dag.records.TezVertexID;
+import org.apache.tez.runtime.api.impl.TezEvent;
+
+/**
+ * Collects the events sent by task heartbeats into one
+ * {@link VertexEventRouteEvent} per vertex.
+ *
+ * The first heartbeat with events for a vertex sends a route event. The
+ * events of the heartbeats which arrive before the vertex handles it are
+ * added to the same route event, instead of each heartbeat sending its own.
+ * The events of a vertex are routed in the order they were added.
+ */
+class RouteEventBatcher {
+
+  private final AppContext context;
+  private final ConcurrentMap<TezVertexID, Batch> batches =
+      new ConcurrentHashMap<TezVertexID, Batch>();
+
+  RouteEventBatcher(AppContext context) {
+    this.context = context;
+  }
+
+  private static class Batch {
+    private List<TezEvent> events = new ArrayList<TezEvent>();
+    // whether a route event which will take the events has been sent
+    private boolean sent = false;
+
+    /**
+     * @return true if a route event must be sent for the events
+     */
+    synchronized boolean add(List<TezEvent> newEvents) {
+      events.addAll(newEvents);
+      if (sent) {
+        return false;
+      }
+      sent = true;
+      return true;
+    }
+
+    synchronized List<TezEvent> take() {
+      List<TezEvent> taken = events;
+      events = new ArrayList<TezEvent>();
+      sent = false;
+      return taken;
+    }
+  }
+
+  /**
+   * A route event which takes the events of the batch of its vertex when
+   * the vertex handles it.
+   */
+  static class BatchedRouteEvent extends VertexEventRouteEvent {
+    private final Batch batch;
+    private List<TezEvent> events;
+
+    private BatchedRouteEvent(TezVertexID vertexId, Batch batch) {
+      super(vertexId, null);
+      this.batch = batch;
+    }
+
+    @Override
+    public synchronized List<TezEvent> getEvents() {
+      if (events == null) {
+        events = batch.take();
+      }
+      return events;
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  void add(TezVertexID vertexId, List<TezEvent> events) {
+    Batch batch = batches.get(vertexId);
+    if (batch == null) {
+      batch = new Batch();
+      Batch existing = batches.putIfAbsent(vertexId, batch);
+      if (existing != null) {
+        batch = existing;
+      }
+    }
+    if (batch.add(events)) {
+      context.getEventHandler().handle(new BatchedRouteEvent(vertexId, batch));
+    }
+  }
+}
@@ -25,6 +25,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -50,7 +51,6 @@ import org.apache.tez.dag.api.TezConfiguration;
 import org.apache.tez.dag.app.dag.DAG;
 import org.apache.tez.dag.app.dag.Task;
 import org.apache.tez.dag.app.dag.event.TaskAttemptEventStartedRemotely;
-import org.apache.tez.dag.app.dag.event.VertexEventRouteEvent;
 import org.apache.tez.dag.app.rm.container.AMContainerImpl;
 import org.apache.tez.dag.app.rm.container.AMContainerTask;
 import org.apache.tez.dag.app.security.authorize.TezAMPolicyProvider;
@@ -92,6 +92,8 @@ public class TaskAttemptListenerImpTezDag extends AbstractService implements
     long lastRequestId;
     TezHeartbeatResponse lastReponse;
     TezTaskAttemptID currentAttemptId;
+    // task of currentAttemptId, looked up on its first heartbeat
+    Task currentTask;
   }
 
   private ConcurrentMap<TezTaskAttemptID, ContainerId> attemptToInfoMap =
@@ -100,6 +102,10 @@ public class TaskAttemptListenerImpTezDag extends AbstractService implements
   private ConcurrentHashMap<ContainerId, ContainerInfo> registeredContainers =
       new ConcurrentHashMap<ContainerId, ContainerInfo>();
 
+  private final RouteEventBatcher routeEventBatcher;
+  // limits the RPC handlers held by heartbeats waiting for events
+  private volatile Semaphore eventWaitPermits = new Semaphore(0);
+
   public TaskAttemptListenerImpTezDag(AppContext context,
       TaskHeartbeatHandler thh, ContainerHeartbeatHandler chh,
       JobTokenSecretManager jobTokenSecretManager) {
@@ -108,6 +114,16 @@ public class TaskAttemptListenerImpTezDag extends AbstractService implements
     this.jobTokenSecretManager = jobTokenSecretManager;
     this.taskHeartbeatHandler = thh;
     this.containerHeartbeatHandler = chh;
+    this.routeEventBatcher = new RouteEventBatcher(context);
+  }
+
+  @Override
+  protected void serviceInit(Configuration conf) throws Exception {
+    int numHandlers = conf.getInt(
+        TezConfiguration.TEZ_AM_TASK_LISTENER_THREAD_COUNT,
+        TezConfiguration.TEZ_AM_TASK_LISTENER_THREAD_COUNT_DEFAULT);
+    eventWaitPermits = new Semaphore(numHandlers / 2);
+    super.serviceInit(conf);
   }
 
   @Override
@@ -363,7 +379,12 @@ public class TaskAttemptListenerImpTezDag extends AbstractService implements
       return;
     }
     synchronized (containerInfo) {
+      // a heartbeat of the attempt waiting for events returns right away
+      if (containerInfo.currentTask != null) {
+        containerInfo.currentTask.endTaskAttemptTezEventWait(attemptId);
+      }
       containerInfo.currentAttemptId = null;
+      containerInfo.currentTask = null;
       attemptToInfoMap.remove(attemptId);
     }
 
@@ -455,6 +476,10 @@ public class TaskAttemptListenerImpTezDag extends AbstractService implements
       return response;
     }
 
+    TezHeartbeatResponse response;
+    TezTaskAttemptID taskAttemptID = request.getCurrentTaskAttemptID();
+    // the task to wait for events of, once the container is unlocked
+    Task waitTask = null;
     synchronized (containerInfo) {
       pingContainerHeartbeatHandler(containerId);
 
@@ -464,10 +489,9 @@ public class TaskAttemptListenerImpTezDag extends AbstractService implements
         return containerInfo.lastReponse;
       }
 
-      TezHeartbeatResponse response = new TezHeartbeatResponse();
+      response = new TezHeartbeatResponse();
       response.setLastRequestId(requestId);
 
-      TezTaskAttemptID taskAttemptID = request.getCurrentTaskAttemptID();
       if (taskAttemptID != null) {
         ContainerId containerIdFromMap = attemptToInfoMap.get(taskAttemptID);
         if(containerIdFromMap == null || !containerIdFromMap.equals(containerId)) {
@@ -489,22 +513,80 @@ public class TaskAttemptListenerImpTezDag extends AbstractService implements
         }
         if(inEvents!=null && !inEvents.isEmpty()) {
           TezVertexID vertexId = taskAttemptID.getTaskID().getVertexID();
-          context.getEventHandler().handle(
-              new VertexEventRouteEvent(vertexId, inEvents));
+          routeEventBatcher.add(vertexId, inEvents);
         }
         taskHeartbeatHandler.pinged(taskAttemptID);
-        List<TezEvent> outEvents = context
-            .getCurrentDAG()
-            .getVertex(taskAttemptID.getTaskID().getVertexID())
-            .getTask(taskAttemptID.getTaskID())
-            .getTaskAttemptTezEvents(taskAttemptID, request.getStartIndex(),
-                request.getMaxEvents());
+        Task task = containerInfo.currentTask;
+        if (task == null || !task.getTaskId().equals(taskAttemptID.getTaskID())) {
+          task = context
+              .getCurrentDAG()
+              .getVertex(taskAttemptID.getTaskID().getVertexID())
+              .getTask(taskAttemptID.getTaskID());
+          containerInfo.currentTask = task;
+        }
+        List<TezEvent> outEvents = task.getTaskAttemptTezEvents(taskAttemptID,
+            request.getStartIndex(), request.getMaxEvents());
         response.setEvents(outEvents);
+        if (outEvents.isEmpty() && request.getMaxEventWaitMs() > 0) {
+          waitTask = task;
+        }
       }
       containerInfo.lastRequestId = requestId;
       containerInfo.lastReponse = response;
+    }
+    if (waitTask == null) {
+      return response;
+    }
+
+    // The container is not locked while waiting, so that the attempt can be
+    // unregistered, and the wait ended, meanwhile.
+    Semaphore permits = eventWaitPermits;
+    if (!permits.tryAcquire()) {
+      return response;
+    }
+    boolean hasEvents;
+    try {
+      hasEvents = waitTask.waitForTaskAttemptTezEvents(taskAttemptID,
+          request.getMaxEventWaitMs());
+    } finally {
+      permits.release();
+    }
+    if (!hasEvents) {
       return response;
     }
+    synchronized (containerInfo) {
+      if (containerInfo.lastRequestId != requestId
+          || !taskAttemptID.equals(containerInfo.currentAttemptId)) {
+        return response;
+      }
+      TezHeartbeatResponse eventsResponse = new TezHeartbeatResponse();
+      eventsResponse.setLastRequestId(requestId);
+      eventsResponse.setEvents(waitTask.getTaskAttemptTezEvents(taskAttemptID,
+          request.getStartIndex(), request.getMaxEvents()));
+      containerInfo.lastReponse = eventsResponse;
+      return eventsResponse;
+    }
+  }
+
+  /**
+   * Ends the wait of a heartbeat of the attempt for events, so that the
+   * events the attempt has to send are not held up by it.
+   */
+  @Override
+  public void endEventWait(TezTaskAttemptID taskAttemptId) throws IOException {
+    ContainerId containerId = attemptToInfoMap.get(taskAttemptId);
+    ContainerInfo containerInfo =
+        containerId == null ? null : registeredContainers.get(containerId);
+    if (containerInfo == null) {
+      return;
+    }
+    Task task;
+    synchronized (containerInfo) {
+      task = containerInfo.currentTask;
+    }
+    if (task != null && task.getTaskId().equals(taskAttemptId.getTaskID())) {
+      task.endTaskAttemptTezEventWait(taskAttemptId);
+    }
   }
 
   private Map<String, TezLocalResource> convertLocalResourceMap(Map<String, LocalResource> ylrs)
@@ -78,6 +78,22 @@ public interface Task {
   
   public List<TezEvent> getTaskAttemptTezEvents(TezTaskAttemptID attemptID,
       int fromEventId, int maxEvents);
+
+  /**
+   * Wait up to waitMs for events to an attempt which has taken all its
+   * events with {@link #getTaskAttemptTezEvents(TezTaskAttemptID, int, int)}.
+   *
+   * @return whether there may be events to take, false if the wait timed
+   *         out or was ended
+   */
+  public boolean waitForTaskAttemptTezEvents(TezTaskAttemptID attemptID,
+      long waitMs);
+
+  /**
+   * End the wait for events of an attempt, e.g. because it has events to
+   * send. Its next wait is ended if it is not waiting.
+   */
+  public void endTaskAttemptTezEventWait(TezTaskAttemptID attemptID);
   
   public List<String> getDiagnostics();
 
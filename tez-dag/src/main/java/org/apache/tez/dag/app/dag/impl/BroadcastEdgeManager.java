@@ -21,14 +21,13 @@ package org.apache.tez.dag.app.dag.impl;
 import java.util.List;
 import java.util.Map;
 
-import org.apache.tez.dag.api.EdgeManager;
 import org.apache.tez.dag.api.EdgeManagerContext;
 import org.apache.tez.runtime.api.events.DataMovementEvent;
 import org.apache.tez.runtime.api.events.InputReadErrorEvent;
 
 import com.google.common.collect.Lists;
 
-public class BroadcastEdgeManager implements EdgeManager {
+public class BroadcastEdgeManager implements OnDemandRoutingEdgeManager {
 
   @Override
   public void initialize(EdgeManagerContext edgeManagerContext) {
@@ -70,6 +69,16 @@ public class BroadcastEdgeManager implements EdgeManager {
     return event.getIndex();
   }
   
+  @Override
+  public int getSourceOutputIndex(int sourceTaskIndex, int destinationTaskIndex) {
+    return 0;
+  }
+
+  @Override
+  public int getDestinationInputIndex(int sourceTaskIndex, int destinationTaskIndex) {
+    return sourceTaskIndex;
+  }
+
   void addAllDestinationTaskIndices(int numDestinationTasks, List<Integer> taskIndices) {
     for(int i=0; i<numDestinationTasks; ++i) {
       taskIndices.add(new Integer(i));
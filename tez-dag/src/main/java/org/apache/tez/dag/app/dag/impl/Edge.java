@@ -87,7 +87,9 @@ public class Edge {
 
   private EdgeProperty edgeProperty;
   private EdgeManagerContext edgeManagerContext;
-  private EdgeManager edgeManager;
+  // replaced by the destination vertex, read by the source vertex for the
+  // output specs of its tasks
+  private volatile EdgeManager edgeManager;
   @SuppressWarnings("rawtypes")
   private EventHandler eventHandler;
   private AtomicBoolean bufferEvents = new AtomicBoolean(false);
@@ -96,6 +98,10 @@ public class Edge {
   private Vertex sourceVertex;
   private Vertex destinationVertex; // this may end up being a list for shared edge
   private EventMetaData destinationMetaInfo;
+  // set when the events of the edge are routed when the destination tasks ask
+  // for them, instead of being copied to every destination task
+  private TaskEventLog destinationEventLog;
+  private OnDemandRoute onDemandRoute;
 
   @SuppressWarnings("rawtypes")
   public Edge(EdgeProperty edgeProperty, EventHandler eventHandler) {
@@ -138,6 +144,12 @@ public class Edge {
         destinationVertex.getName(), 
         sourceVertex.getName(), 
         null);
+    if (edgeManager instanceof OnDemandRoutingEdgeManager) {
+      onDemandRoute = new OnDemandRoute(
+          (OnDemandRoutingEdgeManager) edgeManager, destinationMetaInfo);
+    } else {
+      onDemandRoute = null;
+    }
   }
 
   public synchronized void setCustomEdgeManager(EdgeManagerDescriptor descriptor) {
@@ -177,6 +189,10 @@ public class Edge {
     this.destinationVertex = destinationVertex;
   }
 
+  void setDestinationEventLog(TaskEventLog destinationEventLog) {
+    this.destinationEventLog = destinationEventLog;
+  }
+
   public InputSpec getDestinationSpec(int destinationTaskIndex) {
     return new InputSpec(sourceVertex.getName(),
         edgeProperty.getEdgeDestination(),
@@ -305,12 +321,20 @@ public class Edge {
       boolean isDataMovementEvent = true;
       switch (tezEvent.getEventType()) {
       case COMPOSITE_DATA_MOVEMENT_EVENT:
+        if (destinationEventLog != null && onDemandRoute != null) {
+          destinationEventLog.addRoutedEvent(tezEvent, onDemandRoute);
+          break;
+        }
         handleCompositeDataMovementEvent(tezEvent);
         break;
       case INPUT_FAILED_EVENT:
         isDataMovementEvent = false;
         // fall through
       case DATA_MOVEMENT_EVENT:
+        if (destinationEventLog != null && onDemandRoute != null) {
+          destinationEventLog.addRoutedEvent(tezEvent, onDemandRoute);
+          break;
+        }
         Map<Integer, List<Integer>> inputIndicesToTaskIndices = Maps
         .newHashMap();
         TezTaskAttemptID srcAttemptId = tezEvent.getSourceInfo()
@@ -350,6 +374,71 @@ public class Edge {
     eventHandler.handle(new TaskEventAddTezEvent(taskId, tezEvent));
   }
 
+  /**
+   * Routes the events of the edge to a destination task when it asks for
+   * them. The source events are kept as they were sent, and the events of a
+   * destination task are created from them for every request.
+   */
+  static class OnDemandRoute {
+
+    private final OnDemandRoutingEdgeManager edgeManager;
+    private final EventMetaData destinationMetaInfo;
+
+    OnDemandRoute(OnDemandRoutingEdgeManager edgeManager,
+        EventMetaData destinationMetaInfo) {
+      this.edgeManager = edgeManager;
+      this.destinationMetaInfo = destinationMetaInfo;
+    }
+
+    /**
+     * Add the events which the destination task receives from a source event
+     * to events.
+     */
+    void routeToDestination(TezEvent tezEvent, int destTaskIndex,
+        List<TezEvent> events) {
+      int srcTaskIndex = tezEvent.getSourceInfo().getTaskAttemptID()
+          .getTaskID().getId();
+      int outputIndex = edgeManager.getSourceOutputIndex(srcTaskIndex,
+          destTaskIndex);
+      if (outputIndex < 0) {
+        return;
+      }
+      int inputIndex = edgeManager.getDestinationInputIndex(srcTaskIndex,
+          destTaskIndex);
+      Event event;
+      switch (tezEvent.getEventType()) {
+      case COMPOSITE_DATA_MOVEMENT_EVENT:
+        CompositeDataMovementEvent compEvent =
+            (CompositeDataMovementEvent) tezEvent.getEvent();
+        if (outputIndex < compEvent.getSourceIndexStart()
+            || outputIndex >= compEvent.getSourceIndexEnd()) {
+          return;
+        }
+        event = new DataMovementEvent(outputIndex, inputIndex,
+            compEvent.getVersion(), compEvent.getUserPayload());
+        break;
+      case DATA_MOVEMENT_EVENT:
+        DataMovementEvent dmEvent = (DataMovementEvent) tezEvent.getEvent();
+        if (dmEvent.getSourceIndex() != outputIndex) {
+          return;
+        }
+        event = new DataMovementEvent(outputIndex, inputIndex,
+            dmEvent.getVersion(), dmEvent.getUserPayload());
+        break;
+      case INPUT_FAILED_EVENT:
+        InputFailedEvent ifEvent = (InputFailedEvent) tezEvent.getEvent();
+        event = new InputFailedEvent(inputIndex, ifEvent.getVersion());
+        break;
+      default:
+        throw new TezUncheckedException("Unhandled tez event type: "
+            + tezEvent.getEventType());
+      }
+      TezEvent routedEvent = new TezEvent(event, tezEvent.getSourceInfo());
+      routedEvent.setDestinationInfo(destinationMetaInfo);
+      events.add(routedEvent);
+    }
+  }
+
   public String getSourceVertexName() {
     return this.sourceVertex.getName();
   }
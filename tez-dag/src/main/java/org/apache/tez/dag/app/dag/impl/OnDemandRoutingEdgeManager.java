@@ -0,0 +1,47 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.tez.dag.app.dag.impl;
+
+import org.apache.tez.dag.api.EdgeManager;
+
+/**
+ * An {@link EdgeManager} which can route the events of a source task to one
+ * destination task at a time. Every destination task receives at most one
+ * output of every source task, on one of its inputs.
+ *
+ * The events of edges with such a manager are stored once in the
+ * {@link TaskEventLog} of the destination vertex, and routed when a
+ * destination task asks for its events, instead of being copied for every
+ * destination task when they arrive.
+ */
+interface OnDemandRoutingEdgeManager extends EdgeManager {
+
+  /**
+   * @return the index of the output of the source task which is sent to the
+   *         destination task, or -1 if the destination task receives none of
+   *         its outputs
+   */
+  int getSourceOutputIndex(int sourceTaskIndex, int destinationTaskIndex);
+
+  /**
+   * @return the index of the input of the destination task which receives
+   *         the output of the source task
+   */
+  int getDestinationInputIndex(int sourceTaskIndex, int destinationTaskIndex);
+}
@@ -22,14 +22,13 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
-import org.apache.tez.dag.api.EdgeManager;
 import org.apache.tez.dag.api.EdgeManagerContext;
 import org.apache.tez.runtime.api.events.DataMovementEvent;
 import org.apache.tez.runtime.api.events.InputReadErrorEvent;
 
 import com.google.common.collect.Lists;
 
-public class ScatterGatherEdgeManager implements EdgeManager {
+public class ScatterGatherEdgeManager implements OnDemandRoutingEdgeManager {
 
   @Override
   public void initialize(EdgeManagerContext edgeManagerContext) {
@@ -74,6 +73,16 @@ public class ScatterGatherEdgeManager implements EdgeManager {
     return numDestTasks;
   }
   
+  @Override
+  public int getSourceOutputIndex(int sourceTaskIndex, int destinationTaskIndex) {
+    return destinationTaskIndex;
+  }
+
+  @Override
+  public int getDestinationInputIndex(int sourceTaskIndex, int destinationTaskIndex) {
+    return sourceTaskIndex;
+  }
+
   void addAllDestinationTaskIndices(int numDestinationTasks, List<Integer> taskIndices) {
     for(int i=0; i<numDestinationTasks; ++i) {
       taskIndices.add(new Integer(i));
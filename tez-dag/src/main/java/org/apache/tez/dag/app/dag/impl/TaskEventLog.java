@@ -0,0 +1,256 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.tez.dag.app.dag.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.tez.runtime.api.impl.TezEvent;
+
+/**
+ * The events sent to the tasks of a vertex.
+ *
+ * Events of edges with an {@link OnDemandRoutingEdgeManager} are stored once
+ * for all the destination tasks, and routed to a task when one of its attempts
+ * asks for its events. The other events are stored for the task they were
+ * sent to. The memory used is therefore proportional to the number of source
+ * events, rather than to the number of source events times the number of
+ * destination tasks.
+ *
+ * An attempt reads the events of its task as one sequence, in the order they
+ * were added, asking for the events from the number of events it has read so
+ * far. Where an attempt is in the log is kept in a {@link Cursor}, so that
+ * reading the next events does not route the events before them again.
+ *
+ * The log is append only. Events are added by the dispatcher, and read by
+ * the heartbeats of the attempts without taking a lock: an entry is
+ * published by the volatile write of the number of entries added, after it
+ * has been stored.
+ */
+public class TaskEventLog {
+
+  private final EntryList routedEntries = new EntryList();
+  private final ConcurrentMap<Integer, EntryList> taskEntries =
+      new ConcurrentHashMap<Integer, EntryList>();
+  // orders the routed events and the events of each task. Entries with a
+  // smaller sequence are visible to readers.
+  private volatile int nextSequence = 0;
+  // attempts waiting for events wait on this, and are notified of every event
+  private final Object eventsAdded = new Object();
+  private volatile int numWaiting = 0;
+
+  private static class Entry {
+    final int sequence;
+    final TezEvent event;
+    // null for events of a single task
+    final Edge.OnDemandRoute route;
+
+    Entry(int sequence, TezEvent event, Edge.OnDemandRoute route) {
+      this.sequence = sequence;
+      this.event = event;
+      this.route = route;
+    }
+  }
+
+  /**
+   * A list with a single writer, which can be read while it is appended to.
+   */
+  private static class EntryList {
+    private volatile Entry[] entries = new Entry[16];
+    private volatile int size = 0;
+
+    void add(Entry entry) {
+      Entry[] current = entries;
+      if (size == current.length) {
+        Entry[] grown = new Entry[current.length * 2];
+        System.arraycopy(current, 0, grown, 0, size);
+        entries = grown;
+        current = grown;
+      }
+      current[size] = entry;
+      size = size + 1;
+    }
+
+    /**
+     * @return the entry at index, if it has a sequence smaller than limit
+     */
+    Entry get(int index, int limit) {
+      // reading size first makes the entries before it visible
+      if (index >= size) {
+        return null;
+      }
+      Entry entry = entries[index];
+      return entry.sequence < limit ? entry : null;
+    }
+  }
+
+  /**
+   * The position of a task attempt in the log.
+   */
+  public static class Cursor {
+    private int routedPosition = 0;
+    private int taskPosition = 0;
+    // events of the last entry, which may not all have been returned
+    private final List<TezEvent> pending = new ArrayList<TezEvent>(1);
+    private int pendingPosition = 0;
+    private int numEvents = 0;
+    // set to end the wait of the attempt, guarded by eventsAdded
+    private boolean waitEnded = false;
+
+    private void reset() {
+      routedPosition = 0;
+      taskPosition = 0;
+      pending.clear();
+      pendingPosition = 0;
+      numEvents = 0;
+    }
+  }
+
+  /**
+   * Add an event to be routed to each destination task by the edge route.
+   */
+  synchronized void addRoutedEvent(TezEvent event, Edge.OnDemandRoute route) {
+    routedEntries.add(new Entry(nextSequence, event, route));
+    nextSequence = nextSequence + 1;
+    notifyWaiting();
+  }
+
+  /**
+   * Add an event for a single task.
+   */
+  synchronized void addTaskEvent(int taskIndex, TezEvent event) {
+    EntryList entries = taskEntries.get(taskIndex);
+    if (entries == null) {
+      entries = new EntryList();
+      taskEntries.put(taskIndex, entries);
+    }
+    entries.add(new Entry(nextSequence, event, null));
+    nextSequence = nextSequence + 1;
+    notifyWaiting();
+  }
+
+  private void notifyWaiting() {
+    // waiting attempts count themselves before checking for events, so one
+    // which is not counted yet will see the event
+    if (numWaiting > 0) {
+      synchronized (eventsAdded) {
+        eventsAdded.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Wait until there may be events of a task after the cursor. The cursor is
+   * only read, so events may be taken at the cursor while it is waited on.
+   *
+   * @return false if no event was added before the timeout, or the wait was
+   *         ended by {@link #endWait(Cursor)}
+   */
+  boolean waitForEvents(int taskIndex, Cursor cursor, long timeoutMs)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    synchronized (eventsAdded) {
+      numWaiting++;
+      try {
+        while (!hasEvents(taskIndex, cursor)) {
+          long remaining = deadline - System.currentTimeMillis();
+          if (remaining <= 0 || cursor.waitEnded) {
+            return false;
+          }
+          eventsAdded.wait(remaining);
+        }
+        return true;
+      } finally {
+        cursor.waitEnded = false;
+        numWaiting--;
+      }
+    }
+  }
+
+  /**
+   * End the wait at the cursor, or the next one if there is none, e.g.
+   * because the attempt has events to send or has completed.
+   */
+  void endWait(Cursor cursor) {
+    synchronized (eventsAdded) {
+      cursor.waitEnded = true;
+      eventsAdded.notifyAll();
+    }
+  }
+
+  private boolean hasEvents(int taskIndex, Cursor cursor) {
+    if (cursor.pendingPosition < cursor.pending.size()) {
+      return true;
+    }
+    int limit = nextSequence;
+    if (routedEntries.get(cursor.routedPosition, limit) != null) {
+      return true;
+    }
+    EntryList entries = taskEntries.get(taskIndex);
+    return entries != null && entries.get(cursor.taskPosition, limit) != null;
+  }
+
+  /**
+   * Get up to maxEvents events of a task, starting at event fromEventId.
+   * Calls for the same cursor must not run concurrently.
+   *
+   * @param cursor the position of the attempt asking for the events. It is
+   *          rewound if the attempt is not where it was left by the previous
+   *          call, e.g. for the first call of an attempt.
+   */
+  List<TezEvent> getEvents(int taskIndex, Cursor cursor, int fromEventId, int maxEvents) {
+    int limit = nextSequence;
+    int skip = 0;
+    if (cursor.numEvents != fromEventId) {
+      cursor.reset();
+      skip = fromEventId;
+    }
+    EntryList entries = taskEntries.get(taskIndex);
+    List<TezEvent> events = new ArrayList<TezEvent>();
+    while (events.size() < maxEvents) {
+      if (cursor.pendingPosition < cursor.pending.size()) {
+        TezEvent event = cursor.pending.get(cursor.pendingPosition++);
+        cursor.numEvents++;
+        if (skip > 0) {
+          skip--;
+        } else {
+          events.add(event);
+        }
+        continue;
+      }
+      Entry routed = routedEntries.get(cursor.routedPosition, limit);
+      Entry task = entries != null ? entries.get(cursor.taskPosition, limit) : null;
+      if (routed == null && task == null) {
+        break;
+      }
+      cursor.pending.clear();
+      cursor.pendingPosition = 0;
+      if (routed == null || (task != null && task.sequence < routed.sequence)) {
+        cursor.taskPosition++;
+        cursor.pending.add(task.event);
+      } else {
+        cursor.routedPosition++;
+        routed.route.routeToDestination(routed.event, taskIndex, cursor.pending);
+      }
+    }
+    return events;
+  }
+}
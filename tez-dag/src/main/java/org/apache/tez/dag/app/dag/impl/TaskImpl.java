@@ -25,6 +25,8 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -121,7 +123,10 @@ public class TaskImpl implements Task, EventHandler<TaskEvent> {
 
   protected TaskLocationHint locationHint;
 
-  private List<TezEvent> tezEventsForTaskAttempts = new ArrayList<TezEvent>();
+  // shared with the other tasks of the vertex, see TaskEventLog
+  private final TaskEventLog eventLog;
+  private final ConcurrentMap<TezTaskAttemptID, TaskEventLog.Cursor> eventCursors =
+      new ConcurrentHashMap<TezTaskAttemptID, TaskEventLog.Cursor>();
   private static final List<TezEvent> EMPTY_TASK_ATTEMPT_TEZ_EVENTS =
       new ArrayList(0);
 
@@ -333,6 +338,17 @@ public class TaskImpl implements Task, EventHandler<TaskEvent> {
       Clock clock, TaskHeartbeatHandler thh, AppContext appContext,
       boolean leafVertex, TaskLocationHint locationHint, Resource resource,
       ContainerContext containerContext) {
+    this(vertexId, taskIndex, eventHandler, conf, taskAttemptListener, clock,
+        thh, appContext, leafVertex, locationHint, resource, containerContext,
+        new TaskEventLog());
+  }
+
+  public TaskImpl(TezVertexID vertexId, int taskIndex,
+      EventHandler eventHandler, Configuration conf,
+      TaskAttemptListener taskAttemptListener,
+      Clock clock, TaskHeartbeatHandler thh, AppContext appContext,
+      boolean leafVertex, TaskLocationHint locationHint, Resource resource,
+      ContainerContext containerContext, TaskEventLog eventLog) {
     this.conf = conf;
     this.clock = clock;
     ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
@@ -352,6 +368,7 @@ public class TaskImpl implements Task, EventHandler<TaskEvent> {
     this.locationHint = locationHint;
     this.taskResource = resource;
     this.containerContext = containerContext;
+    this.eventLog = eventLog;
     stateMachine = stateMachineFactory.make(this);
   }
 
@@ -459,36 +476,67 @@ public class TaskImpl implements Task, EventHandler<TaskEvent> {
   public List<TezEvent> getTaskAttemptTezEvents(TezTaskAttemptID attemptID,
       int fromEventId, int maxEvents) {
     List<TezEvent> events = EMPTY_TASK_ATTEMPT_TEZ_EVENTS;
-    readLock.lock();
+    // the event log is read without locking the task, the lock is only taken
+    // to check the attempt on its first request. The cursor is removed once
+    // the attempt completes, see handleTaskAttemptCompletion.
+    TaskEventLog.Cursor cursor = eventCursors.get(attemptID);
+    if (cursor == null) {
+      readLock.lock();
+      try {
+        TaskAttempt attempt = attempts.get(attemptID);
+        if (attempt == null) {
+          throw new TezUncheckedException("Unknown TA: " + attemptID
+              + " asking for events from task:" + getTaskId());
+        }
+        if (attempt.isFinished()) {
+          return events;
+        }
+        cursor = new TaskEventLog.Cursor();
+        TaskEventLog.Cursor existing = eventCursors.putIfAbsent(attemptID, cursor);
+        if (existing != null) {
+          cursor = existing;
+        }
+      } finally {
+        readLock.unlock();
+      }
+    }
 
-    if (!attempts.containsKey(attemptID)) {
-      throw new TezUncheckedException("Unknown TA: " + attemptID
-          + " asking for events from task:" + getTaskId());
+    List<TezEvent> routedEvents = eventLog.getEvents(taskId.getId(), cursor,
+        fromEventId, maxEvents);
+    if (!routedEvents.isEmpty()) {
+      int toEventId = fromEventId + routedEvents.size();
+      events = Collections.unmodifiableList(routedEvents);
+      LOG.info("TaskAttempt:" + attemptID + " sent events: (" + fromEventId
+          + "-" + toEventId + ")");
+      // events of scatter-gather and broadcast edges are created here, from
+      // the single copy of the source event kept in the vertex event log.
+      // Other events are shared with the other attempts and not modified,
+      // e.g. to set the taskAttemptId into their destination metadata.
     }
+    return events;
+  }
 
+  @Override
+  public boolean waitForTaskAttemptTezEvents(TezTaskAttemptID attemptID,
+      long waitMs) {
+    // the cursor exists after the first request, until the attempt completes
+    TaskEventLog.Cursor cursor = eventCursors.get(attemptID);
+    if (cursor == null) {
+      return false;
+    }
     try {
-      if (tezEventsForTaskAttempts.size() > fromEventId) {
-        int actualMax = Math.min(maxEvents,
-            (tezEventsForTaskAttempts.size() - fromEventId));
-        int toEventId = actualMax + fromEventId;
-        events = Collections.unmodifiableList(new ArrayList<TezEvent>(
-            tezEventsForTaskAttempts.subList(fromEventId, toEventId)));
-        LOG.info("TaskAttempt:" + attemptID + " sent events: (" + fromEventId
-            + "-" + toEventId + ")");
-        // currently not modifying the events so that we dont have to create
-        // copies of events. e.g. if we have to set taskAttemptId into the TezEvent
-        // destination metadata then we will need to create a copy of the TezEvent
-        // and then modify the metadata and then send the copy on the RPC. This
-        // is important because TezEvents are only routed in the AM and not copied
-        // during routing. So e.g. a broadcast edge will send the same event to
-        // all consumers (like it should). If copies were created then re-routing
-        // the events on parallelism changes would be difficult. We would have to
-        // buffer the events in the Vertex until the parallelism was set and then
-        // route the events.
-      }
-      return events;
-    } finally {
-      readLock.unlock();
+      return eventLog.waitForEvents(taskId.getId(), cursor, waitMs);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  @Override
+  public void endTaskAttemptTezEventWait(TezTaskAttemptID attemptID) {
+    TaskEventLog.Cursor cursor = eventCursors.get(attemptID);
+    if (cursor != null) {
+      eventLog.endWait(cursor);
     }
   }
 
@@ -609,6 +657,11 @@ public class TaskImpl implements Task, EventHandler<TaskEvent> {
     }
   }
 
+  @VisibleForTesting
+  boolean hasEventCursor(TezTaskAttemptID attemptID) {
+    return eventCursors.containsKey(attemptID);
+  }
+
   @VisibleForTesting
   public TaskStateInternal getInternalState() {
     readLock.lock();
@@ -890,6 +943,11 @@ public class TaskImpl implements Task, EventHandler<TaskEvent> {
   // always called inside a transition, in turn inside the Write Lock
   private void handleTaskAttemptCompletion(TezTaskAttemptID attemptId,
       TaskAttemptStateInternal attemptState) {
+    // the attempt asks for no more events
+    TaskEventLog.Cursor cursor = eventCursors.remove(attemptId);
+    if (cursor != null) {
+      eventLog.endWait(cursor);
+    }
     this.sendTaskAttemptCompletionEvent(attemptId, attemptState);
   }
 
@@ -1445,7 +1503,7 @@ public class TaskImpl implements Task, EventHandler<TaskEvent> {
     @Override
     public void transition(TaskImpl task, TaskEvent event) {
       TaskEventAddTezEvent addEvent = (TaskEventAddTezEvent) event;
-      task.tezEventsForTaskAttempts.add(addEvent.getTezEvent());
+      task.eventLog.addTaskEvent(task.taskId.getId(), addEvent.getTezEvent());
     }
   }
 
@@ -495,7 +495,8 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex,
       stateMachine;
 
   //changing fields while the vertex is running
-  private int numTasks;
+  // read without the lock, e.g. by the edges of other vertices
+  private volatile int numTasks;
   private int completedTaskCount = 0;
   private int succeededTaskCount = 0;
   private int failedTaskCount = 0;
@@ -531,6 +532,8 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex,
   List<TezEvent> pendingTaskEvents = Lists.newLinkedList();
   List<TezEvent> pendingRouteEvents = new LinkedList<TezEvent>();
   List<TezTaskAttemptID> pendingReportedSrcCompletions = Lists.newLinkedList();
+  // events sent to the tasks of this vertex
+  private final TaskEventLog taskEventLog = new TaskEventLog();
 
   private RootInputInitializerRunner rootInputInitializer;
 
@@ -1612,7 +1615,7 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex,
               (this.targetVertices != null ?
                 this.targetVertices.isEmpty() : true),
               locHint, this.taskResource,
-              this.containerContext);
+              this.containerContext, this.taskEventLog);
       this.addTask(task);
       if(LOG.isDebugEnabled()) {
         LOG.debug("Created task for vertex " + this.getVertexId() + ": " +
@@ -3147,6 +3150,9 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex,
   @Override
   public void setInputVertices(Map<Vertex, Edge> inVertices) {
     this.sourceVertices = inVertices;
+    for (Edge edge : inVertices.values()) {
+      edge.setDestinationEventLog(taskEventLog);
+    }
   }
 
   @Override
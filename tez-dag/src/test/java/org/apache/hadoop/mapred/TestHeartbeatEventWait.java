@@ -0,0 +1,109 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.hadoop.mapred;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.tez.common.TezTaskUmbilicalProtocol;
+import org.apache.tez.dag.records.TezDAGID;
+import org.apache.tez.dag.records.TezTaskAttemptID;
+import org.apache.tez.dag.records.TezTaskID;
+import org.apache.tez.dag.records.TezVertexID;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class TestHeartbeatEventWait {
+
+  private final TezTaskAttemptID attemptId = TezTaskAttemptID.getInstance(
+      TezTaskID.getInstance(TezVertexID.getInstance(
+          TezDAGID.getInstance("1000", 1, 1), 1), 0), 0);
+
+  @Test
+  public void testEndOnlyWhileWaiting() throws Exception {
+    TezTaskUmbilicalProtocol umbilical = mock(TezTaskUmbilicalProtocol.class);
+    HeartbeatEventWait eventWait = new HeartbeatEventWait(umbilical);
+
+    // no heartbeat is waiting
+    eventWait.end();
+    verify(umbilical, never()).endEventWait(any(TezTaskAttemptID.class));
+
+    // the AM is asked once for a waiting heartbeat
+    eventWait.started(attemptId);
+    eventWait.end();
+    eventWait.end();
+    verify(umbilical, timeout(5000).times(1)).endEventWait(attemptId);
+    eventWait.finished();
+
+    // the heartbeat has returned
+    eventWait.started(attemptId);
+    eventWait.finished();
+    eventWait.end();
+    Thread.sleep(100);
+    verify(umbilical, times(1)).endEventWait(attemptId);
+    eventWait.stop();
+  }
+
+  @Test(timeout = 5000)
+  public void testEndDoesNotBlock() throws Exception {
+    final CountDownLatch rpcStarted = new CountDownLatch(1);
+    final CountDownLatch rpcDone = new CountDownLatch(1);
+    TezTaskUmbilicalProtocol umbilical = mock(TezTaskUmbilicalProtocol.class);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        rpcStarted.countDown();
+        rpcDone.await();
+        return null;
+      }
+    }).when(umbilical).endEventWait(any(TezTaskAttemptID.class));
+    HeartbeatEventWait eventWait = new HeartbeatEventWait(umbilical);
+
+    // returns while the AM has not answered yet
+    eventWait.started(attemptId);
+    eventWait.end();
+    rpcStarted.await();
+    rpcDone.countDown();
+    eventWait.stop();
+  }
+
+  @Test
+  public void testEndFailure() throws Exception {
+    TezTaskUmbilicalProtocol umbilical = mock(TezTaskUmbilicalProtocol.class);
+    doThrow(new IOException("Connection lost")).when(umbilical)
+        .endEventWait(any(TezTaskAttemptID.class));
+    HeartbeatEventWait eventWait = new HeartbeatEventWait(umbilical);
+
+    // the heartbeat returns once its wait times out instead
+    eventWait.started(attemptId);
+    eventWait.end();
+    verify(umbilical, timeout(5000).times(1)).endEventWait(attemptId);
+    eventWait.stop();
+  }
+}
@@ -0,0 +1,195 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.tez.dag.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.yarn.exceptions.YarnRuntimeException;
+import org.apache.hadoop.yarn.event.Event;
+import org.apache.hadoop.yarn.event.EventHandler;
+import org.apache.tez.dag.app.dag.event.DAGEvent;
+import org.apache.tez.dag.app.dag.event.DAGEventType;
+import org.apache.tez.dag.app.dag.event.TaskEvent;
+import org.apache.tez.dag.app.dag.event.TaskEventType;
+import org.apache.tez.dag.app.dag.event.VertexEvent;
+import org.apache.tez.dag.app.dag.event.VertexEventType;
+import org.apache.tez.dag.records.TezDAGID;
+import org.apache.tez.dag.records.TezTaskID;
+import org.apache.tez.dag.records.TezVertexID;
+import org.junit.Test;
+
+public class TestPartitionedDispatcher {
+
+  @SuppressWarnings("rawtypes")
+  private static class RecordingHandler implements EventHandler<Event> {
+    final Map<Object, List<Object>> eventsByEntity = new HashMap<Object, List<Object>>();
+    final Map<Object, Set<Thread>> threadsByEntity = new HashMap<Object, Set<Thread>>();
+    int numEvents = 0;
+
+    @Override
+    public synchronized void handle(Event event) {
+      Object entity;
+      if (event instanceof VertexEvent) {
+        entity = ((VertexEvent) event).getVertexId();
+      } else if (event instanceof TaskEvent) {
+        entity = ((TaskEvent) event).getTaskID().getVertexID();
+      } else {
+        entity = ((DAGEvent) event).getDAGId();
+      }
+      List<Object> events = eventsByEntity.get(entity);
+      if (events == null) {
+        events = new ArrayList<Object>();
+        eventsByEntity.put(entity, events);
+      }
+      events.add(event.getType());
+      Set<Thread> threads = threadsByEntity.get(entity);
+      if (threads == null) {
+        threads = new HashSet<Thread>();
+        threadsByEntity.put(entity, threads);
+      }
+      threads.add(Thread.currentThread());
+      numEvents++;
+      notifyAll();
+    }
+
+    synchronized void waitForEvents(int expected) throws InterruptedException {
+      while (numEvents < expected) {
+        wait();
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test(timeout = 10000)
+  public void testFailedSendLeavesMetrics() throws Exception {
+    PartitionedDispatcher dispatcher = new PartitionedDispatcher(1);
+    RecordingHandler handler = new RecordingHandler();
+    dispatcher.register(VertexEventType.class, handler);
+    dispatcher.init(new Configuration());
+    dispatcher.start();
+    try {
+      TezVertexID vertexId = TezVertexID.getInstance(TezDAGID.getInstance("1000", 1, 1), 0);
+      VertexEvent event = new VertexEvent(vertexId, VertexEventType.V_START);
+      int partition = dispatcher.getPartition(event);
+      // the event cannot be queued by an interrupted thread
+      Thread.currentThread().interrupt();
+      try {
+        dispatcher.getEventHandler().handle(event);
+        fail("Event queued by an interrupted thread");
+      } catch (YarnRuntimeException e) {
+      }
+      Thread.interrupted();
+      assertEquals(0, dispatcher.getQueueDepth(partition));
+
+      dispatcher.getEventHandler().handle(event);
+      handler.waitForEvents(1);
+      assertEquals(1, handler.numEvents);
+      assertEquals(0, dispatcher.getQueueDepth(partition));
+    } finally {
+      dispatcher.stop();
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test(timeout = 10000)
+  public void testVertexPartitioning() throws Exception {
+    PartitionedDispatcher dispatcher = new PartitionedDispatcher(2);
+    RecordingHandler handler = new RecordingHandler();
+    dispatcher.register(DAGEventType.class, handler);
+    dispatcher.register(VertexEventType.class, handler);
+    dispatcher.register(TaskEventType.class, handler);
+    dispatcher.init(new Configuration());
+    dispatcher.start();
+    try {
+      TezDAGID dagId = TezDAGID.getInstance("1000", 1, 1);
+      TezVertexID vertex0 = TezVertexID.getInstance(dagId, 0);
+      TezVertexID vertex1 = TezVertexID.getInstance(dagId, 1);
+      TezVertexID vertex2 = TezVertexID.getInstance(dagId, 2);
+
+      DAGEvent dagEvent = new DAGEvent(dagId, DAGEventType.DAG_INIT);
+      VertexEvent v0Event = new VertexEvent(vertex0, VertexEventType.V_START);
+      TaskEvent v0TaskEvent = new TaskEvent(TezTaskID.getInstance(vertex0, 3),
+          TaskEventType.T_SCHEDULE);
+      VertexEvent v1Event = new VertexEvent(vertex1, VertexEventType.V_START);
+      VertexEvent v2Event = new VertexEvent(vertex2, VertexEventType.V_START);
+      assertEquals(0, dispatcher.getPartition(dagEvent));
+      assertEquals(dispatcher.getPartition(v0Event),
+          dispatcher.getPartition(v0TaskEvent));
+      assertEquals(dispatcher.getPartition(v0Event),
+          dispatcher.getPartition(v2Event));
+      assertTrue(dispatcher.getPartition(v0Event)
+          != dispatcher.getPartition(v1Event));
+
+      int numEventsPerEntity = 1000;
+      for (int i = 0; i < numEventsPerEntity; ++i) {
+        dispatcher.getEventHandler().handle(dagEvent);
+        dispatcher.getEventHandler().handle(v0Event);
+        dispatcher.getEventHandler().handle(v0TaskEvent);
+        dispatcher.getEventHandler().handle(v1Event);
+        dispatcher.getEventHandler().handle(v2Event);
+      }
+      handler.waitForEvents(5 * numEventsPerEntity);
+
+      // events of a vertex and its tasks are handled in order, by one thread
+      List<Object> expected = new ArrayList<Object>();
+      for (int i = 0; i < numEventsPerEntity; ++i) {
+        expected.add(VertexEventType.V_START);
+        expected.add(TaskEventType.T_SCHEDULE);
+      }
+      assertEquals(expected, handler.eventsByEntity.get(vertex0));
+      assertEquals(numEventsPerEntity, handler.eventsByEntity.get(vertex1).size());
+      assertEquals(numEventsPerEntity, handler.eventsByEntity.get(dagId).size());
+      for (Set<Thread> threads : handler.threadsByEntity.values()) {
+        assertEquals(1, threads.size());
+      }
+      assertEquals(handler.threadsByEntity.get(vertex0),
+          handler.threadsByEntity.get(vertex2));
+      assertFalse(handler.threadsByEntity.get(vertex0).equals(
+          handler.threadsByEntity.get(vertex1)));
+      for (int i = 0; i < 3; ++i) {
+        assertEquals(0, dispatcher.getQueueDepth(i));
+      }
+    } finally {
+      dispatcher.stop();
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testRestart() throws Exception {
+    // the metrics source of a stopped dispatcher does not keep another one
+    // from starting
+    for (int i = 0; i < 2; ++i) {
+      PartitionedDispatcher dispatcher = new PartitionedDispatcher(1);
+      dispatcher.init(new Configuration());
+      dispatcher.start();
+      dispatcher.stop();
+    }
+  }
+}
@@ -0,0 +1,294 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.apache.tez.dag.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.yarn.api.records.ApplicationAttemptId;
+import org.apache.hadoop.yarn.api.records.ApplicationId;
+import org.apache.hadoop.yarn.api.records.ContainerId;
+import org.apache.hadoop.yarn.event.Event;
+import org.apache.hadoop.yarn.event.EventHandler;
+import org.apache.tez.common.security.JobTokenSecretManager;
+import org.apache.tez.dag.app.dag.DAG;
+import org.apache.tez.dag.app.dag.Task;
+import org.apache.tez.dag.app.dag.Vertex;
+import org.apache.tez.dag.app.dag.event.VertexEventRouteEvent;
+import org.apache.tez.dag.records.TezDAGID;
+import org.apache.tez.dag.records.TezTaskAttemptID;
+import org.apache.tez.dag.records.TezTaskID;
+import org.apache.tez.dag.records.TezVertexID;
+import org.apache.tez.runtime.api.events.DataMovementEvent;
+import org.apache.tez.runtime.api.impl.EventMetaData;
+import org.apache.tez.runtime.api.impl.TezEvent;
+import org.apache.tez.runtime.api.impl.TezHeartbeatRequest;
+import org.apache.tez.runtime.api.impl.TezHeartbeatResponse;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+@SuppressWarnings({ "rawtypes", "unchecked" })
+public class TestTaskAttemptListenerImpTezDag {
+
+  private static final Log LOG =
+      LogFactory.getLog(TestTaskAttemptListenerImpTezDag.class);
+
+  private final TezVertexID vertexId = TezVertexID.getInstance(
+      TezDAGID.getInstance("1000", 1, 1), 1);
+
+  /**
+   * Records the route events sent by the listener, and optionally handles
+   * them like the vertex would.
+   */
+  private static class RouteEventRecorder implements EventHandler<Event> {
+    final List<VertexEventRouteEvent> routeEvents =
+        Collections.synchronizedList(new ArrayList<VertexEventRouteEvent>());
+    final AtomicLong numRoutedEvents = new AtomicLong();
+    final boolean handle;
+
+    RouteEventRecorder(boolean handle) {
+      this.handle = handle;
+    }
+
+    @Override
+    public void handle(Event event) {
+      VertexEventRouteEvent routeEvent = (VertexEventRouteEvent) event;
+      if (handle) {
+        numRoutedEvents.addAndGet(routeEvent.getEvents().size());
+      } else {
+        routeEvents.add(routeEvent);
+      }
+    }
+  }
+
+  private AppContext createAppContext(EventHandler eventHandler,
+      List<Task> tasks, DAG dag) {
+    AppContext appContext = mock(AppContext.class);
+    Vertex vertex = mock(Vertex.class);
+    doReturn(dag).when(appContext).getCurrentDAG();
+    doReturn(eventHandler).when(appContext).getEventHandler();
+    doReturn(vertex).when(dag).getVertex(vertexId);
+    for (Task task : tasks) {
+      doReturn(task).when(vertex).getTask(task.getTaskId());
+    }
+    return appContext;
+  }
+
+  private Task createTask(int taskIndex) {
+    Task task = mock(Task.class);
+    doReturn(TezTaskID.getInstance(vertexId, taskIndex)).when(task).getTaskId();
+    doReturn(Collections.emptyList()).when(task).getTaskAttemptTezEvents(
+        any(TezTaskAttemptID.class), anyInt(), anyInt());
+    return task;
+  }
+
+  private ContainerId createContainerId(int id) {
+    return ContainerId.newInstance(
+        ApplicationAttemptId.newInstance(ApplicationId.newInstance(1, 1), 1), id);
+  }
+
+  private TaskAttemptListenerImpTezDag createListener(AppContext appContext) {
+    return new TaskAttemptListenerImpTezDag(appContext,
+        mock(TaskHeartbeatHandler.class), mock(ContainerHeartbeatHandler.class),
+        mock(JobTokenSecretManager.class));
+  }
+
+  private List<TezEvent> createEvents(int numEvents) {
+    List<TezEvent> events = new ArrayList<TezEvent>(numEvents);
+    for (int i = 0; i < numEvents; ++i) {
+      events.add(new TezEvent(new DataMovementEvent(null), new EventMetaData()));
+    }
+    return events;
+  }
+
+  @Test(timeout = 5000)
+  public void testHeartbeatBatchesRouteEvents() throws Exception {
+    RouteEventRecorder recorder = new RouteEventRecorder(false);
+    Task task = createTask(0);
+    DAG dag = mock(DAG.class);
+    AppContext appContext = createAppContext(recorder,
+        Collections.singletonList(task), dag);
+    TaskAttemptListenerImpTezDag listener = createListener(appContext);
+
+    ContainerId containerId = createContainerId(1);
+    TezTaskAttemptID attemptId = TezTaskAttemptID.getInstance(task.getTaskId(), 0);
+    listener.registerRunningContainer(containerId);
+    listener.registerTaskAttempt(attemptId, containerId);
+
+    for (int i = 1; i <= 3; ++i) {
+      TezHeartbeatResponse response = listener.heartbeat(new TezHeartbeatRequest(
+          i, createEvents(2), containerId.toString(), attemptId, 0, 100));
+      assertEquals(i, response.getLastRequestId());
+      assertFalse(response.shouldDie());
+    }
+    // the events of the heartbeats before the vertex takes them are batched
+    assertEquals(1, recorder.routeEvents.size());
+    assertEquals(6, recorder.routeEvents.get(0).getEvents().size());
+
+    listener.heartbeat(new TezHeartbeatRequest(4, createEvents(1),
+        containerId.toString(), attemptId, 0, 100));
+    assertEquals(2, recorder.routeEvents.size());
+    assertEquals(1, recorder.routeEvents.get(1).getEvents().size());
+    // taking the events again returns the same events
+    assertEquals(6, recorder.routeEvents.get(0).getEvents().size());
+
+    // the task is looked up once for the attempt
+    verify(dag, times(1)).getVertex(vertexId);
+    verify(task, times(4)).getTaskAttemptTezEvents(attemptId, 0, 100);
+  }
+
+  /**
+   * Sends synthetic heartbeats from many containers concurrently, the way the
+   * RPC handlers of the listener would. The number of containers and of
+   * heartbeats per container can be raised with the
+   * tez.test.heartbeat.containers and tez.test.heartbeat.count properties.
+   */
+  @Test(timeout = 60000)
+  public void testConcurrentHeartbeats() throws Exception {
+    final int numContainers = Integer.getInteger("tez.test.heartbeat.containers", 500);
+    final int numHeartbeats = Integer.getInteger("tez.test.heartbeat.count", 20);
+    int numHandlers = 30;
+
+    RouteEventRecorder recorder = new RouteEventRecorder(true);
+    List<Task> tasks = new ArrayList<Task>(numContainers);
+    for (int i = 0; i < numContainers; ++i) {
+      tasks.add(createTask(i));
+    }
+    AppContext appContext = createAppContext(recorder, tasks, mock(DAG.class));
+    final TaskAttemptListenerImpTezDag listener = createListener(appContext);
+
+    List<Callable<Void>> containers = new ArrayList<Callable<Void>>(numContainers);
+    for (int i = 0; i < numContainers; ++i) {
+      final ContainerId containerId = createContainerId(i + 1);
+      final TezTaskAttemptID attemptId =
+          TezTaskAttemptID.getInstance(tasks.get(i).getTaskId(), 0);
+      listener.registerRunningContainer(containerId);
+      listener.registerTaskAttempt(attemptId, containerId);
+      containers.add(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          for (int requestId = 1; requestId <= numHeartbeats; ++requestId) {
+            listener.heartbeat(new TezHeartbeatRequest(requestId,
+                createEvents(1), containerId.toString(), attemptId, 0, 100));
+          }
+          return null;
+        }
+      });
+    }
+
+    ExecutorService handlers = Executors.newFixedThreadPool(numHandlers);
+    try {
+      long start = System.nanoTime();
+      for (Future<Void> future : handlers.invokeAll(containers)) {
+        future.get();
+      }
+      long elapsedMs = Math.max(1, (System.nanoTime() - start) / 1000000);
+      LOG.info("Handled " + numContainers * numHeartbeats + " heartbeats from "
+          + numContainers + " containers in " + elapsedMs + " ms ("
+          + (numContainers * numHeartbeats * 1000L / elapsedMs) + "/s)");
+    } finally {
+      handlers.shutdownNow();
+    }
+    assertEquals((long) numContainers * numHeartbeats,
+        recorder.numRoutedEvents.get());
+  }
+
+  @Test(timeout = 10000)
+  public void testEventWaitEndedWithoutContainerLock() throws Exception {
+    Task task = createTask(0);
+    final Semaphore waitStarted = new Semaphore(0);
+    final Semaphore waitEnded = new Semaphore(0);
+    doAnswer(new Answer<Boolean>() {
+      @Override
+      public Boolean answer(InvocationOnMock invocation) throws Throwable {
+        waitStarted.release();
+        waitEnded.tryAcquire(10, TimeUnit.SECONDS);
+        return false;
+      }
+    }).when(task).waitForTaskAttemptTezEvents(any(TezTaskAttemptID.class), anyLong());
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        waitEnded.release();
+        return null;
+      }
+    }).when(task).endTaskAttemptTezEventWait(any(TezTaskAttemptID.class));
+    AppContext appContext = createAppContext(new RouteEventRecorder(true),
+        Collections.singletonList(task), mock(DAG.class));
+    final TaskAttemptListenerImpTezDag listener = createListener(appContext);
+    listener.init(new Configuration());
+
+    final ContainerId containerId = createContainerId(1);
+    final TezTaskAttemptID attemptId =
+        TezTaskAttemptID.getInstance(task.getTaskId(), 0);
+    listener.registerRunningContainer(containerId);
+    listener.registerTaskAttempt(attemptId, containerId);
+
+    ExecutorService handlers = Executors.newSingleThreadExecutor();
+    try {
+      for (int requestId = 1; requestId <= 2; ++requestId) {
+        final long id = requestId;
+        Future<TezHeartbeatResponse> response = handlers.submit(
+            new Callable<TezHeartbeatResponse>() {
+              @Override
+              public TezHeartbeatResponse call() throws Exception {
+                return listener.heartbeat(new TezHeartbeatRequest(id,
+                    createEvents(0), containerId.toString(), attemptId, 0, 100,
+                    10000));
+              }
+            });
+        waitStarted.acquire();
+        if (requestId == 1) {
+          // the task has events to send
+          listener.endEventWait(attemptId);
+        } else {
+          // the attempt ends, which needs the container lock
+          listener.unregisterTaskAttempt(attemptId);
+        }
+        assertEquals(requestId, response.get().getLastRequestId());
+        assertEquals(0, response.get().getEvents().size());
+      }
+    } finally {
+      handlers.shutdownNow();
+    }
+    verify(task, times(2)).endTaskAttemptTezEventWait(attemptId);
+  }
+}
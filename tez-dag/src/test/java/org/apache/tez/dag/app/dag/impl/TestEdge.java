@@ -20,9 +20,11 @@ package org.apache.tez.dag.app.dag.impl;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -50,6 +52,7 @@ import org.apache.tez.dag.records.TezTaskID;
 import org.apache.tez.dag.records.TezVertexID;
 import org.apache.tez.runtime.api.events.CompositeDataMovementEvent;
 import org.apache.tez.runtime.api.events.DataMovementEvent;
+import org.apache.tez.runtime.api.events.InputFailedEvent;
 import org.apache.tez.runtime.api.impl.EventMetaData;
 import org.apache.tez.runtime.api.impl.EventMetaData.EventProducerConsumerType;
 import org.apache.tez.runtime.api.impl.TezEvent;
@@ -115,6 +118,62 @@ public class TestEdge {
 
   }
   
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  @Test (timeout = 5000)
+  public void testOnDemandEventRouting() {
+    EventHandler eventHandler = mock(EventHandler.class);
+    EdgeProperty edgeProp = new EdgeProperty(DataMovementType.SCATTER_GATHER,
+        DataSourceType.PERSISTED, SchedulingType.SEQUENTIAL, mock(OutputDescriptor.class),
+        mock(InputDescriptor.class));
+    Edge edge = new Edge(edgeProp, eventHandler);
+
+    TezVertexID srcVertexID = createVertexID(1);
+    TezVertexID destVertexID = createVertexID(2);
+    LinkedHashMap<TezTaskID, Task> srcTasks = mockTasks(srcVertexID, 1);
+    LinkedHashMap<TezTaskID, Task> destTasks = mockTasks(destVertexID, 5);
+
+    TezTaskID srcTaskID = srcTasks.keySet().iterator().next();
+
+    edge.setSourceVertex(mockVertex("src", srcVertexID, srcTasks));
+    edge.setDestinationVertex(mockVertex("dest", destVertexID, destTasks));
+    TaskEventLog eventLog = new TaskEventLog();
+    edge.setDestinationEventLog(eventLog);
+    edge.initialize();
+
+    TezTaskAttemptID srcTAID = createTAIDForTest(srcTaskID, 2);
+    EventMetaData srcMeta = new EventMetaData(EventProducerConsumerType.OUTPUT, "consumerVertex", "producerVertex", srcTAID);
+
+    CompositeDataMovementEvent cdmEvent = new CompositeDataMovementEvent(0, destTasks.size(), "bytes".getBytes());
+    cdmEvent.setVersion(2);
+    edge.sendTezEventToDestinationTasks(new TezEvent(cdmEvent, srcMeta));
+    InputFailedEvent ifEvent = new InputFailedEvent(0, 2);
+    edge.sendTezEventToDestinationTasks(new TezEvent(ifEvent, srcMeta));
+
+    // events are kept once in the log instead of being sent to each task
+    verify(eventHandler, never()).handle(any(Event.class));
+
+    for (TezTaskID destTaskID : destTasks.keySet()) {
+      int destIndex = destTaskID.getId();
+      TaskEventLog.Cursor cursor = new TaskEventLog.Cursor();
+      List<TezEvent> events = eventLog.getEvents(destIndex, cursor, 0, 100);
+      assertEquals(2, events.size());
+      DataMovementEvent dmEvent = (DataMovementEvent) events.get(0).getEvent();
+      assertEquals(srcTAID.getId(), dmEvent.getVersion());
+      assertEquals(destIndex, dmEvent.getSourceIndex());
+      assertEquals(srcTaskID.getId(), dmEvent.getTargetIndex());
+      assertTrue(Arrays.equals("bytes".getBytes(), dmEvent.getUserPayload()));
+      InputFailedEvent routedIfEvent = (InputFailedEvent) events.get(1).getEvent();
+      assertEquals(srcTaskID.getId(), routedIfEvent.getTargetIndex());
+      assertEquals(2, routedIfEvent.getVersion());
+
+      // reading from the last event returns nothing, rewinding re-routes
+      assertTrue(eventLog.getEvents(destIndex, cursor, 2, 100).isEmpty());
+      events = eventLog.getEvents(destIndex, cursor, 1, 100);
+      assertEquals(1, events.size());
+      assertTrue(events.get(0).getEvent() instanceof InputFailedEvent);
+    }
+  }
+
   @SuppressWarnings("rawtypes")
   private void verifyEvents(List<Event> events, TezTaskAttemptID srcTAID, LinkedHashMap<TezTaskID, Task> destTasks) {
     int count = 0;
@@ -381,6 +381,102 @@ public class TestTaskImpl {
     assertEquals(6, fetchedList.size());
   }
 
+  @Test(timeout = 5000)
+  public void testWaitForTaskAttemptTezEvents() throws Exception {
+    final TezTaskID taskId = getNewTaskID();
+    scheduleTaskAttempt(taskId);
+    TezTaskAttemptID attemptID = mockTask.getAttemptList().iterator().next()
+        .getID();
+    // no events, the wait times out
+    assertEquals(0, mockTask.getTaskAttemptTezEvents(attemptID, 0, 100).size());
+    assertFalse(mockTask.waitForTaskAttemptTezEvents(attemptID, 10));
+
+    Thread sender = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException e) {
+          return;
+        }
+        sendTezEventsToTask(taskId, 2);
+      }
+    };
+    sender.start();
+    assertTrue(mockTask.waitForTaskAttemptTezEvents(attemptID, 4000));
+    sender.join();
+    assertEquals(2, mockTask.getTaskAttemptTezEvents(attemptID, 0, 100).size());
+  }
+
+  @Test(timeout = 5000)
+  public void testEndTaskAttemptTezEventWait() throws Exception {
+    TezTaskID taskId = getNewTaskID();
+    scheduleTaskAttempt(taskId);
+    final TezTaskAttemptID attemptID = mockTask.getLastAttempt().getID();
+    assertEquals(0, mockTask.getTaskAttemptTezEvents(attemptID, 0, 100).size());
+
+    // ending the wait before it starts ends the next wait
+    mockTask.endTaskAttemptTezEventWait(attemptID);
+    assertFalse(mockTask.waitForTaskAttemptTezEvents(attemptID, 4000));
+
+    Thread ender = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException e) {
+          return;
+        }
+        mockTask.endTaskAttemptTezEventWait(attemptID);
+      }
+    };
+    ender.start();
+    long start = System.currentTimeMillis();
+    assertFalse(mockTask.waitForTaskAttemptTezEvents(attemptID, 4000));
+    assertTrue(System.currentTimeMillis() - start < 4000);
+    ender.join();
+
+    // completing the attempt ends its wait
+    launchTaskAttempt(attemptID);
+    Thread killer = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException e) {
+          return;
+        }
+        killRunningTaskAttempt(attemptID);
+      }
+    };
+    killer.start();
+    start = System.currentTimeMillis();
+    assertFalse(mockTask.waitForTaskAttemptTezEvents(attemptID, 4000));
+    assertTrue(System.currentTimeMillis() - start < 4000);
+    killer.join();
+  }
+
+  @Test
+  public void testEventCursorRemovedOnAttemptCompletion() {
+    TezTaskID taskId = getNewTaskID();
+    scheduleTaskAttempt(taskId);
+    sendTezEventsToTask(taskId, 2);
+    TezTaskAttemptID attemptID = mockTask.getLastAttempt().getID();
+    launchTaskAttempt(attemptID);
+    assertEquals(2, mockTask.getTaskAttemptTezEvents(attemptID, 0, 100).size());
+    assertTrue(mockTask.hasEventCursor(attemptID));
+
+    killRunningTaskAttempt(attemptID);
+    assertFalse(mockTask.hasEventCursor(attemptID));
+
+    // the next attempt reads the events from the start
+    TezTaskAttemptID nextAttemptID = mockTask.getLastAttempt().getID();
+    assertTrue(!attemptID.equals(nextAttemptID));
+    assertEquals(2, mockTask.getTaskAttemptTezEvents(nextAttemptID, 0, 100).size());
+    failRunningTaskAttempt(nextAttemptID);
+    assertFalse(mockTask.hasEventCursor(nextAttemptID));
+  }
+
   @Test
   public void testTaskProgress() {
     LOG.info("--- START: testTaskProgress ---");
@@ -41,7 +41,7 @@ import org.apache.tez.runtime.common.security.JobTokenSelector;
 //@ProtocolInfo(protocolName = "TezTaskUmbilicalProtocol", protocolVersion = 1)
 public interface TezTaskUmbilicalProtocol extends VersionedProtocol {
 
-  public static final long versionID = 19L;
+  public static final long versionID = 21L;
 
   ContainerTask getTask(ContainerContext containerContext) throws IOException;
 
@@ -53,4 +53,10 @@ public interface TezTaskUmbilicalProtocol extends VersionedProtocol {
   public TezHeartbeatResponse heartbeat(TezHeartbeatRequest request)
       throws IOException, TezException;
 
+  /**
+   * End the wait for events of a heartbeat of the attempt, which is sent
+   * while it waits because the attempt has events to send.
+   */
+  public void endEventWait(TezTaskAttemptID taskAttemptID) throws IOException;
+
 }
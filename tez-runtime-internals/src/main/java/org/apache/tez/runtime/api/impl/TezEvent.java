@@ -45,6 +45,7 @@ import org.apache.tez.runtime.internals.api.events.SystemEventProtos.TaskAttempt
 import org.apache.tez.runtime.internals.api.events.SystemEventProtos.TaskAttemptFailedEventProto;
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.MessageLite;
 
 public class TezEvent implements Writable {
 
@@ -122,65 +123,61 @@ public class TezEvent implements Writable {
       TaskStatusUpdateEvent sEvt = (TaskStatusUpdateEvent) event;
       sEvt.write(out);
     } else {
-      byte[] eventBytes = null;
-      switch (eventType) {
-      case DATA_MOVEMENT_EVENT:
-        eventBytes =
-            ProtoConverters.convertDataMovementEventToProto(
-                (DataMovementEvent) event).toByteArray();
-        break;
-      case COMPOSITE_DATA_MOVEMENT_EVENT:
-        eventBytes =
-            ProtoConverters.convertCompositeDataMovementEventToProto(
-                (CompositeDataMovementEvent) event).toByteArray();
-        break;
-      case VERTEX_MANAGER_EVENT:
-        VertexManagerEvent vmEvt = (VertexManagerEvent) event;
-        VertexManagerEventProto.Builder vmBuilder = VertexManagerEventProto.newBuilder();
-        vmBuilder.setTargetVertexName(vmEvt.getTargetVertexName());
-        if (vmEvt.getUserPayload() != null) {
-          vmBuilder.setUserPayload(ByteString.copyFrom(vmEvt.getUserPayload()));
-        }
-        eventBytes = vmBuilder.build().toByteArray();
-        break;
-      case INPUT_READ_ERROR_EVENT:
-        InputReadErrorEvent ideEvt = (InputReadErrorEvent) event;
-        eventBytes = InputReadErrorEventProto.newBuilder()
-            .setIndex(ideEvt.getIndex())
-            .setDiagnostics(ideEvt.getDiagnostics())
-            .setVersion(ideEvt.getVersion())
-            .build().toByteArray();
-        break;
-      case TASK_ATTEMPT_FAILED_EVENT:
-        TaskAttemptFailedEvent tfEvt = (TaskAttemptFailedEvent) event;
-        eventBytes = TaskAttemptFailedEventProto.newBuilder()
-            .setDiagnostics(tfEvt.getDiagnostics())
-            .build().toByteArray();
-        break;
-      case TASK_ATTEMPT_COMPLETED_EVENT:
-        eventBytes = TaskAttemptCompletedEventProto.newBuilder()
-            .build().toByteArray();
-        break;
-      case INPUT_FAILED_EVENT:
-        InputFailedEvent ifEvt = (InputFailedEvent) event;
-        eventBytes = InputFailedEventProto.newBuilder()
-            .setSourceIndex(ifEvt.getSourceIndex())
-            .setTargetIndex(ifEvt.getTargetIndex())
-            .setVersion(ifEvt.getVersion()).build().toByteArray();
-        break;
-      case ROOT_INPUT_DATA_INFORMATION_EVENT:
-        eventBytes = ProtoConverters.convertRootInputDataInformationEventToProto(
-            (RootInputDataInformationEvent) event).toByteArray();
-        break;
-      default:
-        throw new TezUncheckedException("Unknown TezEvent"
-           + ", type=" + eventType);
-      }
+      byte[] eventBytes = toProto().toByteArray();
       out.writeInt(eventBytes.length);
       out.write(eventBytes);
     }
   }
 
+  /**
+   * @return the event as a protobuf message. Not supported for
+   *         TASK_STATUS_UPDATE_EVENT, which is a Writable.
+   */
+  MessageLite toProto() {
+    switch (eventType) {
+    case DATA_MOVEMENT_EVENT:
+      return ProtoConverters.convertDataMovementEventToProto(
+          (DataMovementEvent) event);
+    case COMPOSITE_DATA_MOVEMENT_EVENT:
+      return ProtoConverters.convertCompositeDataMovementEventToProto(
+          (CompositeDataMovementEvent) event);
+    case VERTEX_MANAGER_EVENT:
+      VertexManagerEvent vmEvt = (VertexManagerEvent) event;
+      VertexManagerEventProto.Builder vmBuilder = VertexManagerEventProto.newBuilder();
+      vmBuilder.setTargetVertexName(vmEvt.getTargetVertexName());
+      if (vmEvt.getUserPayload() != null) {
+        vmBuilder.setUserPayload(ByteString.copyFrom(vmEvt.getUserPayload()));
+      }
+      return vmBuilder.build();
+    case INPUT_READ_ERROR_EVENT:
+      InputReadErrorEvent ideEvt = (InputReadErrorEvent) event;
+      return InputReadErrorEventProto.newBuilder()
+          .setIndex(ideEvt.getIndex())
+          .setDiagnostics(ideEvt.getDiagnostics())
+          .setVersion(ideEvt.getVersion())
+          .build();
+    case TASK_ATTEMPT_FAILED_EVENT:
+      TaskAttemptFailedEvent tfEvt = (TaskAttemptFailedEvent) event;
+      return TaskAttemptFailedEventProto.newBuilder()
+          .setDiagnostics(tfEvt.getDiagnostics())
+          .build();
+    case TASK_ATTEMPT_COMPLETED_EVENT:
+      return TaskAttemptCompletedEventProto.newBuilder().build();
+    case INPUT_FAILED_EVENT:
+      InputFailedEvent ifEvt = (InputFailedEvent) event;
+      return InputFailedEventProto.newBuilder()
+          .setSourceIndex(ifEvt.getSourceIndex())
+          .setTargetIndex(ifEvt.getTargetIndex())
+          .setVersion(ifEvt.getVersion()).build();
+    case ROOT_INPUT_DATA_INFORMATION_EVENT:
+      return ProtoConverters.convertRootInputDataInformationEventToProto(
+          (RootInputDataInformationEvent) event);
+    default:
+      throw new TezUncheckedException("Unknown TezEvent"
+         + ", type=" + eventType);
+    }
+  }
+
   private void deserializeEvent(DataInput in) throws IOException {
     if (!in.readBoolean()) {
       event = null;
@@ -195,52 +192,53 @@ public class TezEvent implements Writable {
       int eventBytesLen = in.readInt();
       byte[] eventBytes = new byte[eventBytesLen];
       in.readFully(eventBytes);
-      switch (eventType) {
-      case DATA_MOVEMENT_EVENT:
-        DataMovementEventProto dmProto =
-            DataMovementEventProto.parseFrom(eventBytes);
-        event = ProtoConverters.convertDataMovementEventFromProto(dmProto);
-        break;
-      case COMPOSITE_DATA_MOVEMENT_EVENT:
-        CompositeEventProto cProto = CompositeEventProto.parseFrom(eventBytes);
-        event = ProtoConverters.convertCompositeDataMovementEventFromProto(cProto);
-        break;
-      case VERTEX_MANAGER_EVENT:
-        VertexManagerEventProto vmProto =
-            VertexManagerEventProto.parseFrom(eventBytes);
-        event = new VertexManagerEvent(vmProto.getTargetVertexName(),
-            vmProto.getUserPayload() != null ? vmProto.getUserPayload().toByteArray() : null);
-        break;
-      case INPUT_READ_ERROR_EVENT:
-        InputReadErrorEventProto ideProto =
-            InputReadErrorEventProto.parseFrom(eventBytes);
-        event = new InputReadErrorEvent(ideProto.getDiagnostics(),
-            ideProto.getIndex(), ideProto.getVersion());
-        break;
-      case TASK_ATTEMPT_FAILED_EVENT:
-        TaskAttemptFailedEventProto tfProto =
-            TaskAttemptFailedEventProto.parseFrom(eventBytes);
-        event = new TaskAttemptFailedEvent(tfProto.getDiagnostics());
-        break;
-      case TASK_ATTEMPT_COMPLETED_EVENT:
-        event = new TaskAttemptCompletedEvent();
-        break;
-      case INPUT_FAILED_EVENT:
-        InputFailedEventProto ifProto =
-            InputFailedEventProto.parseFrom(eventBytes);
-        event = new InputFailedEvent(ifProto.getSourceIndex(),
-            ifProto.getTargetIndex(), ifProto.getVersion());
-        break;
-      case ROOT_INPUT_DATA_INFORMATION_EVENT:
-        RootInputDataInformationEventProto difProto = RootInputDataInformationEventProto
-            .parseFrom(eventBytes);
-        event = ProtoConverters.convertRootInputDataInformationEventFromProto(difProto);
-        break;
-      default:
-        // RootInputUpdatePayload event not wrapped in a TezEvent.
-        throw new TezUncheckedException("Unexpected TezEvent"
-           + ", type=" + eventType);
-      }
+      event = fromProto(eventType, eventBytes, 0, eventBytesLen);
+    }
+  }
+
+  /**
+   * Parses an event written by {@link #toProto()}.
+   */
+  static Event fromProto(EventType eventType, byte[] eventBytes, int offset,
+      int length) throws IOException {
+    switch (eventType) {
+    case DATA_MOVEMENT_EVENT:
+      DataMovementEventProto dmProto =
+          DataMovementEventProto.PARSER.parseFrom(eventBytes, offset, length);
+      return ProtoConverters.convertDataMovementEventFromProto(dmProto);
+    case COMPOSITE_DATA_MOVEMENT_EVENT:
+      CompositeEventProto cProto =
+          CompositeEventProto.PARSER.parseFrom(eventBytes, offset, length);
+      return ProtoConverters.convertCompositeDataMovementEventFromProto(cProto);
+    case VERTEX_MANAGER_EVENT:
+      VertexManagerEventProto vmProto =
+          VertexManagerEventProto.PARSER.parseFrom(eventBytes, offset, length);
+      return new VertexManagerEvent(vmProto.getTargetVertexName(),
+          vmProto.getUserPayload() != null ? vmProto.getUserPayload().toByteArray() : null);
+    case INPUT_READ_ERROR_EVENT:
+      InputReadErrorEventProto ideProto =
+          InputReadErrorEventProto.PARSER.parseFrom(eventBytes, offset, length);
+      return new InputReadErrorEvent(ideProto.getDiagnostics(),
+          ideProto.getIndex(), ideProto.getVersion());
+    case TASK_ATTEMPT_FAILED_EVENT:
+      TaskAttemptFailedEventProto tfProto =
+          TaskAttemptFailedEventProto.PARSER.parseFrom(eventBytes, offset, length);
+      return new TaskAttemptFailedEvent(tfProto.getDiagnostics());
+    case TASK_ATTEMPT_COMPLETED_EVENT:
+      return new TaskAttemptCompletedEvent();
+    case INPUT_FAILED_EVENT:
+      InputFailedEventProto ifProto =
+          InputFailedEventProto.PARSER.parseFrom(eventBytes, offset, length);
+      return new InputFailedEvent(ifProto.getSourceIndex(),
+          ifProto.getTargetIndex(), ifProto.getVersion());
+    case ROOT_INPUT_DATA_INFORMATION_EVENT:
+      RootInputDataInformationEventProto difProto =
+          RootInputDataInformationEventProto.PARSER.parseFrom(eventBytes, offset, length);
+      return ProtoConverters.convertRootInputDataInformationEventFromProto(difProto);
+    default:
+      // RootInputUpdatePayload event not wrapped in a TezEvent.
+      throw new TezUncheckedException("Unexpected TezEvent"
+         + ", type=" + eventType);
     }
   }
 
@@ -0,0 +1,381 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.api.impl;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.util.StringInterner;
+import org.apache.hadoop.yarn.api.records.ApplicationId;
+import org.apache.tez.dag.records.TezDAGID;
+import org.apache.tez.dag.records.TezTaskAttemptID;
+import org.apache.tez.dag.records.TezTaskID;
+import org.apache.tez.dag.records.TezVertexID;
+import org.apache.tez.runtime.api.Event;
+import org.apache.tez.runtime.api.events.TaskStatusUpdateEvent;
+import org.apache.tez.runtime.api.impl.EventMetaData.EventProducerConsumerType;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+
+/**
+ * Compact encoding of the lists of {@link TezEvent}s sent in task heartbeats,
+ * used by {@link TezHeartbeatRequest} and {@link TezHeartbeatResponse}.
+ *
+ * The events of a heartbeat mostly come from the same few vertices and from
+ * attempts of the same DAG, so compared to writing each TezEvent on its own:
+ * <ul>
+ * <li>each vertex name is written once per list, and then referred to by
+ * its index in the list's dictionary,</li>
+ * <li>a task attempt ID is written relative to the previous source, or
+ * destination, attempt ID in the list, leaving out its DAG and vertex when
+ * they are the same,</li>
+ * <li>types, lengths and IDs are written as variable length integers, and
+ * flags share a single header byte,</li>
+ * <li>event payloads are serialized in buffers kept by the calling thread,
+ * instead of in a new byte array per event.</li>
+ * </ul>
+ */
+final class TezEventListCodec {
+
+  // header byte of an event
+  private static final int EVENT_TYPE_MASK = 0x1f; // ordinal + 1, 0 if no event
+  private static final int HAS_SOURCE_INFO = 0x20;
+  private static final int HAS_DESTINATION_INFO = 0x40;
+
+  // header byte of an EventMetaData
+  private static final int GENERATOR_MASK = 0x03;
+  private static final int HAS_ATTEMPT_ID = 0x04;
+  private static final int NEW_DAG = 0x08;
+  private static final int NEW_VERTEX = 0x10;
+
+  // attempt IDs are written relative to the last one of the same kind
+  private static final int SOURCE = 0;
+  private static final int DESTINATION = 1;
+
+  // buffers which grew larger are not kept for the next list
+  private static final int MAX_POOLED_BUFFER_SIZE = 1024 * 1024;
+  private static final int INITIAL_BUFFER_SIZE = 4096;
+
+  private static final ThreadLocal<Buffers> BUFFERS = new ThreadLocal<Buffers>() {
+    @Override
+    protected Buffers initialValue() {
+      return new Buffers();
+    }
+  };
+
+  private static final EventType[] EVENT_TYPES = EventType.values();
+  private static final EventProducerConsumerType[] GENERATORS =
+      EventProducerConsumerType.values();
+
+  static {
+    if (EVENT_TYPES.length > EVENT_TYPE_MASK
+        || GENERATORS.length > GENERATOR_MASK + 1) {
+      throw new ExceptionInInitializerError(
+          "Event types or generators do not fit the event header");
+    }
+  }
+
+  private TezEventListCodec() {
+  }
+
+  static void writeEvents(DataOutput out, List<TezEvent> events)
+      throws IOException {
+    Buffers buffers = BUFFERS.get();
+    try {
+      Encoder encoder = new Encoder(out, buffers);
+      WritableUtils.writeVInt(out, events.size());
+      for (TezEvent event : events) {
+        encoder.writeEvent(event);
+      }
+    } finally {
+      buffers.release();
+    }
+  }
+
+  static List<TezEvent> readEvents(DataInput in) throws IOException {
+    Buffers buffers = BUFFERS.get();
+    try {
+      Decoder decoder = new Decoder(in, buffers);
+      int numEvents = WritableUtils.readVInt(in);
+      if (numEvents < 0) {
+        throw new IOException("Invalid number of events: " + numEvents);
+      }
+      List<TezEvent> events = new ArrayList<TezEvent>(numEvents);
+      for (int i = 0; i < numEvents; ++i) {
+        events.add(decoder.readEvent());
+      }
+      return events;
+    } finally {
+      buffers.release();
+    }
+  }
+
+  /**
+   * The buffers of a thread, reused for each list it encodes or decodes.
+   */
+  private static class Buffers {
+    private byte[] bytes = new byte[INITIAL_BUFFER_SIZE];
+    private DataOutputBuffer out = new DataOutputBuffer(INITIAL_BUFFER_SIZE);
+    private final DataInputBuffer in = new DataInputBuffer();
+
+    byte[] getBytes(int size) {
+      if (bytes.length < size) {
+        bytes = new byte[Math.max(size, 2 * bytes.length)];
+      }
+      return bytes;
+    }
+
+    DataOutputBuffer getOutputBuffer() {
+      out.reset();
+      return out;
+    }
+
+    void release() {
+      if (bytes.length > MAX_POOLED_BUFFER_SIZE) {
+        bytes = new byte[INITIAL_BUFFER_SIZE];
+      }
+      if (out.getData().length > MAX_POOLED_BUFFER_SIZE) {
+        out = new DataOutputBuffer(INITIAL_BUFFER_SIZE);
+      }
+      in.reset(bytes, 0);
+    }
+  }
+
+  private static class Encoder {
+    private final DataOutput out;
+    private final Buffers buffers;
+    private final Map<String, Integer> names = new HashMap<String, Integer>();
+    private final TezTaskAttemptID[] lastAttemptIds = new TezTaskAttemptID[2];
+
+    Encoder(DataOutput out, Buffers buffers) {
+      this.out = out;
+      this.buffers = buffers;
+    }
+
+    void writeEvent(TezEvent tezEvent) throws IOException {
+      Event event = tezEvent.getEvent();
+      int header = event == null ? 0 : tezEvent.getEventType().ordinal() + 1;
+      if (tezEvent.getSourceInfo() != null) {
+        header |= HAS_SOURCE_INFO;
+      }
+      if (tezEvent.getDestinationInfo() != null) {
+        header |= HAS_DESTINATION_INFO;
+      }
+      out.writeByte(header);
+      if (event != null) {
+        writePayload(tezEvent);
+      }
+      if (tezEvent.getSourceInfo() != null) {
+        writeMetaData(tezEvent.getSourceInfo(), SOURCE);
+      }
+      if (tezEvent.getDestinationInfo() != null) {
+        writeMetaData(tezEvent.getDestinationInfo(), DESTINATION);
+      }
+    }
+
+    private void writePayload(TezEvent tezEvent) throws IOException {
+      if (tezEvent.getEventType() == EventType.TASK_STATUS_UPDATE_EVENT) {
+        DataOutputBuffer buffer = buffers.getOutputBuffer();
+        ((TaskStatusUpdateEvent) tezEvent.getEvent()).write(buffer);
+        WritableUtils.writeVInt(out, buffer.getLength());
+        out.write(buffer.getData(), 0, buffer.getLength());
+      } else {
+        MessageLite proto = tezEvent.toProto();
+        int size = proto.getSerializedSize();
+        byte[] bytes = buffers.getBytes(size);
+        CodedOutputStream protoOut = CodedOutputStream.newInstance(bytes, 0, size);
+        proto.writeTo(protoOut);
+        protoOut.checkNoSpaceLeft();
+        WritableUtils.writeVInt(out, size);
+        out.write(bytes, 0, size);
+      }
+    }
+
+    private void writeMetaData(EventMetaData metaData, int kind)
+        throws IOException {
+      TezTaskAttemptID attemptId = metaData.getTaskAttemptID();
+      TezTaskAttemptID lastAttemptId = lastAttemptIds[kind];
+      int header = metaData.getEventGenerator().ordinal();
+      TezVertexID vertexId = null;
+      if (attemptId != null) {
+        header |= HAS_ATTEMPT_ID;
+        vertexId = attemptId.getTaskID().getVertexID();
+        if (lastAttemptId == null
+            || !vertexId.getDAGId().equals(getVertexId(lastAttemptId).getDAGId())) {
+          header |= NEW_DAG | NEW_VERTEX;
+        } else if (!vertexId.equals(getVertexId(lastAttemptId))) {
+          header |= NEW_VERTEX;
+        }
+      }
+      out.writeByte(header);
+      writeName(metaData.getTaskVertexName());
+      writeName(metaData.getEdgeVertexName());
+      if (attemptId == null) {
+        return;
+      }
+      if ((header & NEW_DAG) != 0) {
+        TezDAGID dagId = vertexId.getDAGId();
+        WritableUtils.writeVLong(out, dagId.getApplicationId().getClusterTimestamp());
+        WritableUtils.writeVInt(out, dagId.getApplicationId().getId());
+        WritableUtils.writeVInt(out, dagId.getId());
+      }
+      int lastTaskId = 0;
+      if ((header & NEW_VERTEX) != 0) {
+        WritableUtils.writeVInt(out, vertexId.getId());
+      } else {
+        lastTaskId = lastAttemptId.getTaskID().getId();
+      }
+      WritableUtils.writeVInt(out, attemptId.getTaskID().getId() - lastTaskId);
+      WritableUtils.writeVInt(out, attemptId.getId());
+      lastAttemptIds[kind] = attemptId;
+    }
+
+    /**
+     * Writes the index of the name in the dictionary. A name which is not in
+     * the dictionary yet is added, and written after its index.
+     */
+    private void writeName(String name) throws IOException {
+      Integer index = names.get(name);
+      if (index != null) {
+        WritableUtils.writeVInt(out, index);
+      } else {
+        WritableUtils.writeVInt(out, names.size());
+        Text.writeString(out, name);
+        names.put(name, names.size());
+      }
+    }
+  }
+
+  private static TezVertexID getVertexId(TezTaskAttemptID attemptId) {
+    return attemptId.getTaskID().getVertexID();
+  }
+
+  private static class Decoder {
+    private final DataInput in;
+    private final Buffers buffers;
+    private final List<String> names = new ArrayList<String>();
+    private final TezTaskAttemptID[] lastAttemptIds = new TezTaskAttemptID[2];
+
+    Decoder(DataInput in, Buffers buffers) {
+      this.in = in;
+      this.buffers = buffers;
+    }
+
+    TezEvent readEvent() throws IOException {
+      int header = in.readUnsignedByte();
+      int eventTypeCode = header & EVENT_TYPE_MASK;
+      TezEvent tezEvent;
+      EventMetaData sourceInfo = null;
+      if (eventTypeCode == 0) {
+        tezEvent = new TezEvent();
+        if ((header & HAS_SOURCE_INFO) != 0) {
+          tezEvent.setSourceInfo(readMetaData(SOURCE));
+        }
+      } else {
+        if (eventTypeCode > EVENT_TYPES.length) {
+          throw new IOException("Invalid event type: " + (eventTypeCode - 1));
+        }
+        Event event = readPayload(EVENT_TYPES[eventTypeCode - 1]);
+        if ((header & HAS_SOURCE_INFO) != 0) {
+          sourceInfo = readMetaData(SOURCE);
+        }
+        tezEvent = new TezEvent(event, sourceInfo);
+      }
+      if ((header & HAS_DESTINATION_INFO) != 0) {
+        tezEvent.setDestinationInfo(readMetaData(DESTINATION));
+      }
+      return tezEvent;
+    }
+
+    private Event readPayload(EventType eventType) throws IOException {
+      int size = WritableUtils.readVInt(in);
+      if (size < 0) {
+        throw new IOException("Invalid event size: " + size);
+      }
+      byte[] bytes = buffers.getBytes(size);
+      in.readFully(bytes, 0, size);
+      if (eventType == EventType.TASK_STATUS_UPDATE_EVENT) {
+        TaskStatusUpdateEvent event = new TaskStatusUpdateEvent();
+        buffers.in.reset(bytes, size);
+        event.readFields(buffers.in);
+        return event;
+      }
+      return TezEvent.fromProto(eventType, bytes, 0, size);
+    }
+
+    private EventMetaData readMetaData(int kind) throws IOException {
+      TezTaskAttemptID lastAttemptId = lastAttemptIds[kind];
+      int header = in.readUnsignedByte();
+      EventProducerConsumerType generator = GENERATORS[header & GENERATOR_MASK];
+      String taskVertexName = readName();
+      String edgeVertexName = readName();
+      TezTaskAttemptID attemptId = null;
+      if ((header & HAS_ATTEMPT_ID) != 0) {
+        if (lastAttemptId == null && (header & NEW_DAG) == 0) {
+          throw new IOException("Task attempt ID without a previous one to follow");
+        }
+        TezDAGID dagId;
+        if ((header & NEW_DAG) != 0) {
+          long clusterTimestamp = WritableUtils.readVLong(in);
+          int appId = WritableUtils.readVInt(in);
+          dagId = TezDAGID.getInstance(
+              ApplicationId.newInstance(clusterTimestamp, appId),
+              WritableUtils.readVInt(in));
+        } else {
+          dagId = getVertexId(lastAttemptId).getDAGId();
+        }
+        TezVertexID vertexId;
+        int lastTaskId = 0;
+        if ((header & NEW_VERTEX) != 0) {
+          vertexId = TezVertexID.getInstance(dagId, WritableUtils.readVInt(in));
+        } else {
+          vertexId = getVertexId(lastAttemptId);
+          lastTaskId = lastAttemptId.getTaskID().getId();
+        }
+        TezTaskID taskId = TezTaskID.getInstance(vertexId,
+            lastTaskId + WritableUtils.readVInt(in));
+        attemptId = TezTaskAttemptID.getInstance(taskId, WritableUtils.readVInt(in));
+        lastAttemptIds[kind] = attemptId;
+      }
+      return new EventMetaData(generator, taskVertexName, edgeVertexName,
+          attemptId);
+    }
+
+    private String readName() throws IOException {
+      int index = WritableUtils.readVInt(in);
+      if (index == names.size()) {
+        names.add(StringInterner.weakIntern(Text.readString(in)));
+      } else if (index < 0 || index > names.size()) {
+        throw new IOException("Invalid vertex name index: " + index
+            + ", dictionary size: " + names.size());
+      }
+      return names.get(index);
+    }
+  }
+}
@@ -21,7 +21,6 @@ package org.apache.tez.runtime.api.impl;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
@@ -38,6 +37,8 @@ public class TezHeartbeatRequest implements Writable {
   private int startIndex;
   private int maxEvents;
   private long requestId;
+  // how long the AM may wait for events to return, if there are none
+  private long maxEventWaitMs;
 
   public TezHeartbeatRequest() {
   }
@@ -45,6 +46,14 @@ public class TezHeartbeatRequest implements Writable {
   public TezHeartbeatRequest(long requestId, List<TezEvent> events,
       String containerIdentifier, TezTaskAttemptID taskAttemptID,
       int startIndex, int maxEvents) {
+    this(requestId, events, containerIdentifier, taskAttemptID, startIndex,
+        maxEvents, 0);
+  }
+
+  public TezHeartbeatRequest(long requestId, List<TezEvent> events,
+      String containerIdentifier, TezTaskAttemptID taskAttemptID,
+      int startIndex, int maxEvents, long maxEventWaitMs) {
+    this.maxEventWaitMs = maxEventWaitMs;
     this.containerIdentifier = containerIdentifier;
     this.requestId = requestId;
     this.events = Collections.unmodifiableList(events);
@@ -77,14 +86,15 @@ public class TezHeartbeatRequest implements Writable {
     return currentTaskAttemptID;
   }
 
+  public long getMaxEventWaitMs() {
+    return maxEventWaitMs;
+  }
+
   @Override
   public void write(DataOutput out) throws IOException {
     if (events != null) {
       out.writeBoolean(true);
-      out.writeInt(events.size());
-      for (TezEvent e : events) {
-        e.write(out);
-      }
+      TezEventListCodec.writeEvents(out, events);
     } else {
       out.writeBoolean(false);
     }
@@ -97,19 +107,14 @@ public class TezHeartbeatRequest implements Writable {
     out.writeInt(startIndex);
     out.writeInt(maxEvents);
     out.writeLong(requestId);
+    out.writeLong(maxEventWaitMs);
     Text.writeString(out, containerIdentifier);
   }
 
   @Override
   public void readFields(DataInput in) throws IOException {
     if (in.readBoolean()) {
-      int eventsCount = in.readInt();
-      events = new ArrayList<TezEvent>(eventsCount);
-      for (int i = 0; i < eventsCount; ++i) {
-        TezEvent e = new TezEvent();
-        e.readFields(in);
-        events.add(e);
-      }
+      events = TezEventListCodec.readEvents(in);
     }
     if (in.readBoolean()) {
       currentTaskAttemptID = TezTaskAttemptID.readTezTaskAttemptID(in);
@@ -119,6 +124,7 @@ public class TezHeartbeatRequest implements Writable {
     startIndex = in.readInt();
     maxEvents = in.readInt();
     requestId = in.readLong();
+    maxEventWaitMs = in.readLong();
     containerIdentifier = Text.readString(in);
   }
 
@@ -129,6 +135,7 @@ public class TezHeartbeatRequest implements Writable {
         + ", requestId=" + requestId
         + ", startIndex=" + startIndex
         + ", maxEventsToGet=" + maxEvents
+        + ", maxEventWaitMs=" + maxEventWaitMs
         + ", taskAttemptId=" + currentTaskAttemptID
         + ", eventCount=" + (events != null ? events.size() : 0)
         + " }";
@@ -174,6 +174,12 @@ public abstract class TezTaskContextImpl implements TezTaskContext {
     this.initialMemoryDistributor.requestMemory(size, callbackHandler, this, this.descriptor);
   }
 
+  @Override
+  public void requestInitialDirectMemory(long size, MemoryUpdateCallback callbackHandler) {
+    this.initialMemoryDistributor.requestDirectMemory(size, callbackHandler, this,
+        this.descriptor);
+  }
+
   @Override
   public long getTotalMemoryAvailableToTask() {
     return Runtime.getRuntime().maxMemory();
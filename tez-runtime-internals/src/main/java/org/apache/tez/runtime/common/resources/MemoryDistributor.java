@@ -59,10 +59,15 @@ public class MemoryDistributor {
   private AtomicInteger numOutputsSeen = new AtomicInteger(0);
 
   private long totalJvmMemory;
+  private long totalDirectMemory;
   private final boolean isEnabled;
+  private final double directReserveFraction;
   private final Set<TezTaskContext> dupSet = Collections
       .newSetFromMap(new ConcurrentHashMap<TezTaskContext, Boolean>());
   private final List<RequestorInfo> requestList;
+  private final Set<TezTaskContext> directDupSet = Collections
+      .newSetFromMap(new ConcurrentHashMap<TezTaskContext, Boolean>());
+  private final List<RequestorInfo> directRequestList;
 
   /**
    * @param numInputs
@@ -76,15 +81,22 @@ public class MemoryDistributor {
     this.conf = conf;
     isEnabled = conf.getBoolean(TezJobConfig.TEZ_TASK_SCALE_MEMORY_ENABLED,
         TezJobConfig.TEZ_TASK_SCALE_MEMORY_ENABLED_DEFAULT);
-    
+    directReserveFraction = conf.getDouble(
+        TezJobConfig.TEZ_TASK_SCALE_DIRECT_MEMORY_RESERVE_FRACTION,
+        TezJobConfig.TEZ_TASK_SCALE_DIRECT_MEMORY_RESERVE_FRACTION_DEFAULT);
+    Preconditions.checkArgument(directReserveFraction >= 0 && directReserveFraction <= 1,
+        TezJobConfig.TEZ_TASK_SCALE_DIRECT_MEMORY_RESERVE_FRACTION
+            + " should be between 0 and 1: " + directReserveFraction);
 
     this.numTotalInputs = numTotalInputs;
     this.numTotalOutputs = numTotalOutputs;
     this.totalJvmMemory = Runtime.getRuntime().maxMemory();
+    this.totalDirectMemory = getMaxDirectMemory();
     this.requestList = Collections.synchronizedList(new LinkedList<RequestorInfo>());
+    this.directRequestList = Collections.synchronizedList(new LinkedList<RequestorInfo>());
     LOG.info("InitialMemoryDistributor (isEnabled=" + isEnabled + ") invoked with: numInputs="
         + numTotalInputs + ", numOutputs=" + numTotalOutputs
-        + ", JVM.maxFree=" + totalJvmMemory);
+        + ", JVM.maxFree=" + totalJvmMemory + ", JVM.maxDirect=" + totalDirectMemory);
   }
 
 
@@ -96,6 +108,24 @@ public class MemoryDistributor {
       TezTaskContext taskContext, TezEntityDescriptor descriptor) {
     registerRequest(requestSize, callback, taskContext, descriptor);
   }
+
+  /**
+   * Used by the Tez framework to request direct memory on behalf of user
+   * requests. Direct memory is distributed separately from the heap, within
+   * the direct memory limit of the JVM.
+   */
+  public void requestDirectMemory(long requestSize, MemoryUpdateCallback callback,
+      TezTaskContext taskContext, TezEntityDescriptor descriptor) {
+    Preconditions.checkArgument(requestSize >= 0);
+    Preconditions.checkNotNull(callback);
+    Preconditions.checkNotNull(taskContext);
+    Preconditions.checkNotNull(descriptor);
+    if (!directDupSet.add(taskContext)) {
+      throw new TezUncheckedException(
+          "A single entity can only make one call to request direct memory for now");
+    }
+    directRequestList.add(new RequestorInfo(taskContext, requestSize, callback, descriptor));
+  }
   
   /**
    * Used by the Tez framework to distribute initial memory after components
@@ -141,6 +171,34 @@ public class MemoryDistributor {
           + rInfo.getRequestContext().getRequestedSize() + ", allocated=" + allocated);
       rInfo.getCallback().memoryAssigned(allocated);
     }
+    makeDirectAllocations();
+  }
+
+  /**
+   * Direct memory requests are scaled down in proportion if together they
+   * exceed the direct memory available to the task.
+   */
+  private void makeDirectAllocations() {
+    if (directRequestList.isEmpty()) {
+      return;
+    }
+    long totalRequested = 0;
+    for (RequestorInfo rInfo : directRequestList) {
+      totalRequested += rInfo.getRequestContext().getRequestedSize();
+    }
+    long available = (long) (totalDirectMemory - directReserveFraction * totalDirectMemory);
+    double scale = 1d;
+    if (isEnabled && totalRequested > available) {
+      scale = available / (double) totalRequested;
+    }
+    for (RequestorInfo rInfo : directRequestList) {
+      long allocated = (long) (rInfo.getRequestContext().getRequestedSize() * scale);
+      LOG.info("Informing: " + rInfo.getRequestContext().getComponentType() + ", "
+          + rInfo.getRequestContext().getComponentVertexName() + ", "
+          + rInfo.getRequestContext().getComponentClassName() + ": requestedDirect="
+          + rInfo.getRequestContext().getRequestedSize() + ", allocatedDirect=" + allocated);
+      rInfo.getCallback().memoryAssigned(allocated);
+    }
   }
 
   /**
@@ -153,6 +211,31 @@ public class MemoryDistributor {
     this.totalJvmMemory = size;
   }
 
+  /**
+   * Allow tests to set direct memory.
+   * @param size
+   */
+  @Private
+  @VisibleForTesting
+  void setDirectMemory(long size) {
+    this.totalDirectMemory = size;
+  }
+
+  /**
+   * The limit the JVM enforces on the memory of direct buffers:
+   * -XX:MaxDirectMemorySize, or the maximum heap size if that is not set.
+   */
+  private static long getMaxDirectMemory() {
+    try {
+      Class<?> vm = Class.forName("sun.misc.VM");
+      return (Long) vm.getMethod("maxDirectMemory").invoke(null);
+    } catch (Exception e) {
+      LOG.warn("Cannot read the direct memory limit of the JVM,"
+          + " using its default, the maximum heap size", e);
+      return Runtime.getRuntime().maxMemory();
+    }
+  }
+
   private long registerRequest(long requestSize, MemoryUpdateCallback callback,
       TezTaskContext entityContext, TezEntityDescriptor descriptor) {
     Preconditions.checkArgument(requestSize >= 0);
@@ -0,0 +1,175 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.api.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.dag.records.TezDAGID;
+import org.apache.tez.dag.records.TezTaskAttemptID;
+import org.apache.tez.dag.records.TezTaskID;
+import org.apache.tez.dag.records.TezVertexID;
+import org.apache.tez.runtime.api.events.DataMovementEvent;
+import org.apache.tez.runtime.api.events.InputReadErrorEvent;
+import org.apache.tez.runtime.api.events.TaskStatusUpdateEvent;
+import org.apache.tez.runtime.api.impl.EventMetaData.EventProducerConsumerType;
+import org.junit.Test;
+
+public class TestTezEventListCodec {
+
+  private static TezTaskAttemptID createAttemptId(TezDAGID dagId, int vertexId,
+      int taskId, int attemptId) {
+    return TezTaskAttemptID.getInstance(TezTaskID.getInstance(
+        TezVertexID.getInstance(dagId, vertexId), taskId), attemptId);
+  }
+
+  private static TezHeartbeatResponse roundTrip(TezHeartbeatResponse response)
+      throws IOException {
+    DataOutputBuffer out = new DataOutputBuffer();
+    response.write(out);
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    TezHeartbeatResponse read = new TezHeartbeatResponse();
+    read.readFields(in);
+    assertEquals(out.getLength(), in.getPosition());
+    return read;
+  }
+
+  private static void assertMetaDataEquals(EventMetaData expected,
+      EventMetaData actual) {
+    assertEquals(expected.getEventGenerator(), actual.getEventGenerator());
+    assertEquals(expected.getTaskVertexName(), actual.getTaskVertexName());
+    assertEquals(expected.getEdgeVertexName(), actual.getEdgeVertexName());
+    assertEquals(expected.getTaskAttemptID(), actual.getTaskAttemptID());
+  }
+
+  @Test(timeout = 5000)
+  public void testRoundTrip() throws IOException {
+    TezDAGID dag1 = TezDAGID.getInstance("1000", 1, 1);
+    TezDAGID dag2 = TezDAGID.getInstance("1000", 1, 2);
+    EventMetaData destination = new EventMetaData(EventProducerConsumerType.INPUT,
+        "reducer", "mapper", createAttemptId(dag1, 1, 0, 0));
+    // attempt IDs which change DAG, vertex and task in both directions
+    TezTaskAttemptID[] sourceAttempts = new TezTaskAttemptID[] {
+        createAttemptId(dag1, 0, 5, 0), createAttemptId(dag1, 0, 6, 1),
+        createAttemptId(dag1, 0, 2, 0), createAttemptId(dag1, 2, 100000, 3),
+        createAttemptId(dag2, 0, 1, 0), createAttemptId(dag1, 0, 1, 0),
+        null };
+
+    List<TezEvent> events = new ArrayList<TezEvent>();
+    for (int i = 0; i < sourceAttempts.length; ++i) {
+      TezEvent event = new TezEvent(
+          new DataMovementEvent(i, 0, 1, new byte[] { (byte) i, 1, 2 }),
+          new EventMetaData(EventProducerConsumerType.OUTPUT,
+              i % 2 == 0 ? "mapper" : "joiner", "reducer", sourceAttempts[i]));
+      event.setDestinationInfo(destination);
+      events.add(event);
+    }
+    TezCounters counters = new TezCounters();
+    counters.findCounter("group", "counter").increment(42);
+    events.add(new TezEvent(new TaskStatusUpdateEvent(counters, 0.5f),
+        new EventMetaData(EventProducerConsumerType.SYSTEM, "mapper", "",
+            sourceAttempts[0])));
+    events.add(new TezEvent(new InputReadErrorEvent("diagnostics", 3, 1), null));
+
+    TezHeartbeatResponse response = new TezHeartbeatResponse(events);
+    response.setLastRequestId(7);
+    TezHeartbeatResponse read = roundTrip(response);
+    assertEquals(7, read.getLastRequestId());
+    assertEquals(events.size(), read.getEvents().size());
+
+    for (int i = 0; i < sourceAttempts.length; ++i) {
+      TezEvent expected = events.get(i);
+      TezEvent actual = read.getEvents().get(i);
+      assertEquals(EventType.DATA_MOVEMENT_EVENT, actual.getEventType());
+      DataMovementEvent dmEvent = (DataMovementEvent) actual.getEvent();
+      assertEquals(i, dmEvent.getSourceIndex());
+      assertEquals(1, dmEvent.getVersion());
+      assertArrayEquals(new byte[] { (byte) i, 1, 2 }, dmEvent.getUserPayload());
+      assertMetaDataEquals(expected.getSourceInfo(), actual.getSourceInfo());
+      assertMetaDataEquals(destination, actual.getDestinationInfo());
+    }
+
+    TezEvent statusEvent = read.getEvents().get(sourceAttempts.length);
+    TaskStatusUpdateEvent status = (TaskStatusUpdateEvent) statusEvent.getEvent();
+    assertEquals(0.5f, status.getProgress(), 0f);
+    assertEquals(42,
+        status.getCounters().findCounter("group", "counter").getValue());
+    assertMetaDataEquals(events.get(sourceAttempts.length).getSourceInfo(),
+        statusEvent.getSourceInfo());
+    assertNull(statusEvent.getDestinationInfo());
+
+    TezEvent errorEvent = read.getEvents().get(sourceAttempts.length + 1);
+    InputReadErrorEvent error = (InputReadErrorEvent) errorEvent.getEvent();
+    assertEquals("diagnostics", error.getDiagnostics());
+    assertEquals(3, error.getIndex());
+    assertNull(errorEvent.getSourceInfo());
+  }
+
+  @Test(timeout = 5000)
+  public void testCompactRequest() throws IOException {
+    TezDAGID dagId = TezDAGID.getInstance("1000", 1, 1);
+    TezTaskAttemptID currentAttempt = createAttemptId(dagId, 1, 0, 0);
+    EventMetaData destination = new EventMetaData(EventProducerConsumerType.INPUT,
+        "reducer", "mapper", currentAttempt);
+    List<TezEvent> events = new ArrayList<TezEvent>();
+    int writableSize = 0;
+    for (int i = 0; i < 1000; ++i) {
+      TezEvent event = new TezEvent(new DataMovementEvent(i, 0, 0, new byte[16]),
+          new EventMetaData(EventProducerConsumerType.OUTPUT, "mapper",
+              "reducer", createAttemptId(dagId, 0, i, 0)));
+      event.setDestinationInfo(destination);
+      events.add(event);
+      DataOutputBuffer eventOut = new DataOutputBuffer();
+      event.write(eventOut);
+      writableSize += eventOut.getLength();
+    }
+
+    TezHeartbeatRequest request = new TezHeartbeatRequest(3, events,
+        "container", currentAttempt, 10, 100, 500);
+    DataOutputBuffer out = new DataOutputBuffer();
+    request.write(out);
+    // vertex names and DAG IDs are written once, not with every event
+    assertTrue("Compact size " + out.getLength() + ", Writable size "
+        + writableSize, out.getLength() * 2 < writableSize);
+
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    TezHeartbeatRequest read = new TezHeartbeatRequest();
+    read.readFields(in);
+    assertEquals(3, read.getRequestId());
+    assertEquals(currentAttempt, read.getCurrentTaskAttemptID());
+    assertEquals(500, read.getMaxEventWaitMs());
+    assertEquals("container", read.getContainerIdentifier());
+    assertEquals(events.size(), read.getEvents().size());
+    for (int i = 0; i < events.size(); ++i) {
+      assertMetaDataEquals(events.get(i).getSourceInfo(),
+          read.getEvents().get(i).getSourceInfo());
+    }
+  }
+}
@@ -209,6 +209,48 @@ public class TestMemoryDistributor {
     assertEquals(2000, e2Callback.assigned);
     assertEquals(1000, e3Callback.assigned);
   }
+
+
+  @Test(timeout = 5000)
+  public void testDirectMemory() {
+    MemoryDistributor dist = new MemoryDistributor(1, 2, conf);
+    
+    dist.setJvmMemory(10000l);
+    dist.setDirectMemory(10000l);
+
+    // Heap request - input
+    MemoryUpdateCallbackForTest e1Callback = new MemoryUpdateCallbackForTest();
+    TezInputContext e1InputContext1 = createTestInputContext();
+    InputDescriptor e1InDesc1 = createTestInputDescriptor();
+    dist.requestMemory(5000, e1Callback, e1InputContext1, e1InDesc1);
+    
+    // Heap and direct requests - outputs
+    MemoryUpdateCallbackForTest e2Callback = new MemoryUpdateCallbackForTest();
+    MemoryUpdateCallbackForTest e2DirectCallback = new MemoryUpdateCallbackForTest();
+    TezOutputContext e2OutputContext1 = createTestOutputContext();
+    OutputDescriptor e2OutDesc1 = createTestOutputDescriptor();
+    dist.requestMemory(0, e2Callback, e2OutputContext1, e2OutDesc1);
+    dist.requestDirectMemory(6000, e2DirectCallback, e2OutputContext1, e2OutDesc1);
+
+    MemoryUpdateCallbackForTest e3Callback = new MemoryUpdateCallbackForTest();
+    MemoryUpdateCallbackForTest e3DirectCallback = new MemoryUpdateCallbackForTest();
+    TezOutputContext e3OutputContext2 = createTestOutputContext();
+    OutputDescriptor e3OutDesc2 = createTestOutputDescriptor();
+    dist.requestMemory(0, e3Callback, e3OutputContext2, e3OutDesc2);
+    dist.requestDirectMemory(8000, e3DirectCallback, e3OutputContext2, e3OutDesc2);
+    
+    dist.makeInitialAllocations();
+    
+    // Direct requests do not take from the heap
+    assertEquals(5000, e1Callback.assigned);
+    assertEquals(0, e2Callback.assigned);
+    assertEquals(0, e3Callback.assigned);
+    // Direct available: 70% of 10K = 7000
+    // 2 requests - 6K, 8K
+    // Scale down to - 3000, 4000
+    assertEquals(3000, e2DirectCallback.assigned);
+    assertEquals(4000, e3DirectCallback.assigned);
+  }
   
   
   private static class MemoryUpdateCallbackForTest implements MemoryUpdateCallback {
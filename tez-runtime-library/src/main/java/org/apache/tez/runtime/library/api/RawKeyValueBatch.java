@@ -0,0 +1,186 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.api;
+
+import org.apache.hadoop.classification.InterfaceStability.Evolving;
+import org.apache.hadoop.io.DataInputBuffer;
+
+/**
+ * A batch of serialized key/value records, as read by a
+ * {@link RawKeyValueBatchReader}. The keys and values of all records are
+ * stored back to back in a single byte array, and located through offset and
+ * length arrays indexed by record. Records are in sorted key order, and
+ * {@link #isNewKey(int)} marks the first record of each key group, including
+ * groups which started in a previous batch.
+ *
+ * The batch, its arrays and its data are reused for the next batch. Callers
+ * which keep records across batches must copy them.
+ */
+@Evolving
+public class RawKeyValueBatch {
+
+  private byte[] data;
+  private int dataLength;
+  private int size;
+  private int[] keyOffsets;
+  private int[] keyLengths;
+  private int[] valueOffsets;
+  private int[] valueLengths;
+  private boolean[] newKeys;
+
+  public RawKeyValueBatch(int maxRecords, int initialBufferSize) {
+    data = new byte[Math.max(1, initialBufferSize)];
+    keyOffsets = new int[maxRecords];
+    keyLengths = new int[maxRecords];
+    valueOffsets = new int[maxRecords];
+    valueLengths = new int[maxRecords];
+    newKeys = new boolean[maxRecords];
+  }
+
+  /**
+   * @return the number of records in the batch
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return the maximum number of records a batch holds
+   */
+  public int capacity() {
+    return keyOffsets.length;
+  }
+
+  /**
+   * @return the array holding the serialized keys and values. Only the first
+   *         {@link #getDataLength()} bytes are valid.
+   */
+  public byte[] getData() {
+    return data;
+  }
+
+  /**
+   * @return the number of bytes used by the records of the batch
+   */
+  public int getDataLength() {
+    return dataLength;
+  }
+
+  public int getKeyOffset(int record) {
+    return keyOffsets[record];
+  }
+
+  public int getKeyLength(int record) {
+    return keyLengths[record];
+  }
+
+  public int getValueOffset(int record) {
+    return valueOffsets[record];
+  }
+
+  public int getValueLength(int record) {
+    return valueLengths[record];
+  }
+
+  /**
+   * @return true if the record has a different key than the record before it
+   */
+  public boolean isNewKey(int record) {
+    return newKeys[record];
+  }
+
+  /**
+   * The offset and length arrays themselves, for operators which process a
+   * batch in a tight loop. Only the first {@link #size()} entries are valid.
+   */
+  public int[] getKeyOffsets() {
+    return keyOffsets;
+  }
+
+  public int[] getKeyLengths() {
+    return keyLengths;
+  }
+
+  public int[] getValueOffsets() {
+    return valueOffsets;
+  }
+
+  public int[] getValueLengths() {
+    return valueLengths;
+  }
+
+  public boolean[] getNewKeys() {
+    return newKeys;
+  }
+
+  /**
+   * Point a buffer at the key of a record, e.g. to deserialize it.
+   */
+  public void getKey(int record, DataInputBuffer buffer) {
+    buffer.reset(data, keyOffsets[record], keyLengths[record]);
+  }
+
+  /**
+   * Point a buffer at the value of a record, e.g. to deserialize it.
+   */
+  public void getValue(int record, DataInputBuffer buffer) {
+    buffer.reset(data, valueOffsets[record], valueLengths[record]);
+  }
+
+  /**
+   * Empty the batch, keeping its buffers.
+   */
+  public void clear() {
+    size = 0;
+    dataLength = 0;
+  }
+
+  /**
+   * @return true if no more records fit in the batch
+   */
+  public boolean isFull() {
+    return size == keyOffsets.length;
+  }
+
+  /**
+   * Copy a record to the end of the batch. The batch must not be full.
+   */
+  public void add(byte[] key, int keyOffset, int keyLength,
+      byte[] value, int valueOffset, int valueLength, boolean newKey) {
+    ensureCapacity(dataLength + keyLength + valueLength);
+    keyOffsets[size] = dataLength;
+    keyLengths[size] = keyLength;
+    System.arraycopy(key, keyOffset, data, dataLength, keyLength);
+    dataLength += keyLength;
+    valueOffsets[size] = dataLength;
+    valueLengths[size] = valueLength;
+    System.arraycopy(value, valueOffset, data, dataLength, valueLength);
+    dataLength += valueLength;
+    newKeys[size] = newKey;
+    size++;
+  }
+
+  private void ensureCapacity(int length) {
+    if (length > data.length) {
+      byte[] newData = new byte[Math.max(length, data.length * 2)];
+      System.arraycopy(data, 0, newData, 0, dataLength);
+      data = newData;
+    }
+  }
+}
@@ -0,0 +1,58 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.api;
+
+import java.io.IOException;
+
+import org.apache.hadoop.classification.InterfaceStability.Evolving;
+import org.apache.tez.runtime.api.Reader;
+
+/**
+ * A {@link Reader} which hands out sorted input as batches of serialized
+ * key/value records, without deserializing them.
+ *
+ * Example usage
+ * <code>
+ * while (batchReader.next()) {
+ *   RawKeyValueBatch batch = batchReader.getCurrentBatch();
+ *   for (int i = 0; i < batch.size(); i++) {
+ *     ... batch.getData(), batch.getKeyOffset(i), batch.getKeyLength(i) ...
+ *   }
+ * }
+ * </code>
+ */
+@Evolving
+public interface RawKeyValueBatchReader extends Reader {
+
+  /**
+   * Moves to the next batch of records. The previous batch is overwritten.
+   *
+   * @return true if the next batch has at least one record, false if there
+   *         are no more records
+   * @throws IOException
+   *           if an error occurs
+   */
+  public boolean next() throws IOException;
+
+  /**
+   * Returns the current batch
+   * @return the current batch
+   */
+  public RawKeyValueBatch getCurrentBatch();
+}
@@ -24,9 +24,11 @@ import java.util.NoSuchElementException;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.RawComparator;
 import org.apache.hadoop.io.serializer.Deserializer;
 import org.apache.hadoop.io.serializer.SerializationFactory;
+import org.apache.tez.common.TezJobConfig;
 import org.apache.tez.common.counters.TezCounter;
 import org.apache.tez.runtime.library.common.sort.impl.TezRawKeyValueIterator;
 
@@ -35,6 +37,14 @@ import com.google.common.base.Preconditions;
 /**
  * Iterates values while keys match in sorted input.
  * 
+ * Keys are compared in their serialized form, and a key is only deserialized
+ * once, when the iterator moves to its group. With
+ * {@link TezJobConfig#TEZ_RUNTIME_VALUES_ITERATOR_REUSE_OBJECTS} enabled, the
+ * key and value instances and the {@link Iterable} returned by
+ * {@link #getValues()} are reused for every group, so iterating does not
+ * allocate for serializations which deserialize into the given instance, such
+ * as Writables.
+ * 
  * This class is not thread safe. Accessing methods from multiple threads will
  * lead to corrupt data.
  * 
@@ -43,17 +53,20 @@ import com.google.common.base.Preconditions;
 public class ValuesIterator<KEY,VALUE> {
   protected TezRawKeyValueIterator in; //input iterator
   private KEY key;               // current key
-  private KEY nextKey;
+  private KEY spareKey;          // previous key, deserialized into unless reusing
   private VALUE value;             // current value
-  //private boolean hasNext;                      // more w/ this key
   private boolean more;                         // more in file
   private RawComparator<KEY> comparator;
   private Deserializer<KEY> keyDeserializer;
   private Deserializer<VALUE> valDeserializer;
   private DataInputBuffer keyIn = new DataInputBuffer();
   private DataInputBuffer valueIn = new DataInputBuffer();
+  // Serialized form of the current key, for comparisons with the next records
+  private final DataOutputBuffer keyBytes = new DataOutputBuffer();
   private TezCounter inputKeyCounter;
   private TezCounter inputValueCounter;
+  private final boolean reuseObjects;
+  private final ValuesIterable reusedValues;
   
   private int keyCtr = 0;
   private boolean hasMoreValues; // For the current key.
@@ -75,6 +88,10 @@ public class ValuesIterator<KEY,VALUE> {
     this.keyDeserializer.open(keyIn);
     this.valDeserializer = serializationFactory.getDeserializer(valClass);
     this.valDeserializer.open(this.valueIn);
+    this.reuseObjects = conf.getBoolean(
+        TezJobConfig.TEZ_RUNTIME_VALUES_ITERATOR_REUSE_OBJECTS,
+        TezJobConfig.DEFAULT_TEZ_RUNTIME_VALUES_ITERATOR_REUSE_OBJECTS);
+    this.reusedValues = reuseObjects ? new ValuesIterable() : null;
   }
 
   TezRawKeyValueIterator getRawIterator() { return in; }
@@ -86,14 +103,22 @@ public class ValuesIterator<KEY,VALUE> {
    */
   public boolean moveToNext() throws IOException {
     if (isFirstRecord) {
-      readNextKey();
-      key = nextKey;
-      nextKey = null;
-      hasMoreValues = more;
+      more = in.next();
       isFirstRecord = false;
     } else {
-      nextKey();
+      // skip the values which were not read
+      while (hasMoreValues) {
+        readNextKey();
+      }
+      if (more) {
+        inputKeyCounter.increment(1);
+        ++keyCtr;
+      }
+    }
+    if (more) {
+      readKey();
     }
+    hasMoreValues = more;
     return more;
   }
   
@@ -105,80 +130,89 @@ public class ValuesIterator<KEY,VALUE> {
   // TODO NEWTEZ Maybe add another method which returns an iterator instead of iterable
   
   public Iterable<VALUE> getValues() {
-    return new Iterable<VALUE>() {
-
-      @Override
-      public Iterator<VALUE> iterator() {
-        
-        return new Iterator<VALUE>() {
-
-          private final int keyNumber = keyCtr;
-          
-          @Override
-          public boolean hasNext() {
-            return hasMoreValues;
-          }
-
-          @Override
-          public VALUE next() {
-            if (!hasMoreValues) {
-              throw new NoSuchElementException("iterate past last value");
-            }
-            Preconditions
-                .checkState(
-                    keyNumber == keyCtr,
-                    "Cannot use values iterator on the previous K-V pair after moveToNext has been invoked to move to the next K-V pair");
-            
-            try {
-              readNextValue();
-              readNextKey();
-            } catch (IOException ie) {
-              throw new RuntimeException("problem advancing post rec#"+keyCtr, ie);
-            }
-            inputValueCounter.increment(1);
-            return value;
-          }
-
-          @Override
-          public void remove() {
-            throw new UnsupportedOperationException("Cannot remove elements");
-          }
-        };
-      }
-    };
+    if (reuseObjects) {
+      return reusedValues;
+    }
+    return new ValuesIterable();
   }
-  
-  
 
-  /** Start processing next unique key. */
-  private void nextKey() throws IOException {
-    // read until we find a new key
-    while (hasMoreValues) { 
-      readNextKey();
+  /**
+   * Values of the current key. When reused across keys, the check against
+   * iterating the values of a previous key is lost.
+   */
+  private class ValuesIterable implements Iterable<VALUE>, Iterator<VALUE> {
+
+    private int keyNumber = keyCtr;
+
+    @Override
+    public Iterator<VALUE> iterator() {
+      if (reuseObjects) {
+        keyNumber = keyCtr;
+      }
+      return this;
     }
-    if (more) {
-      inputKeyCounter.increment(1);
-      ++keyCtr;
+
+    @Override
+    public boolean hasNext() {
+      return hasMoreValues;
+    }
+
+    @Override
+    public VALUE next() {
+      if (!hasMoreValues) {
+        throw new NoSuchElementException("iterate past last value");
+      }
+      Preconditions
+          .checkState(
+              keyNumber == keyCtr,
+              "Cannot use values iterator on the previous K-V pair after moveToNext has been invoked to move to the next K-V pair");
+
+      try {
+        readNextValue();
+        readNextKey();
+      } catch (IOException ie) {
+        throw new RuntimeException("problem advancing post rec#"+keyCtr, ie);
+      }
+      inputValueCounter.increment(1);
+      return value;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException("Cannot remove elements");
+    }
+  }
+
+  /**
+   * Deserialize the key of the current record, which starts a new group, and
+   * keep its serialized form for comparisons.
+   */
+  private void readKey() throws IOException {
+    DataInputBuffer nextKeyBytes = in.getKey();
+    int offset = nextKeyBytes.getPosition();
+    int length = nextKeyBytes.getLength() - offset;
+    keyBytes.reset();
+    keyBytes.write(nextKeyBytes.getData(), offset, length);
+    keyIn.reset(keyBytes.getData(), 0, length);
+    if (reuseObjects) {
+      key = keyDeserializer.deserialize(key);
+    } else {
+      KEY tmpKey = key;
+      key = keyDeserializer.deserialize(spareKey);
+      spareKey = tmpKey;
     }
-    
-    // move the next key to the current one
-    KEY tmpKey = key;
-    key = nextKey;
-    nextKey = tmpKey;
-    hasMoreValues = more;
   }
 
   /** 
-   * read the next key - which may be the same as the current key.
+   * Move to the next record, and check whether its key is the current key.
    */
   private void readNextKey() throws IOException {
     more = in.next();
     if (more) {      
       DataInputBuffer nextKeyBytes = in.getKey();
-      keyIn.reset(nextKeyBytes.getData(), nextKeyBytes.getPosition(), nextKeyBytes.getLength());
-      nextKey = keyDeserializer.deserialize(nextKey);
-      // TODO Is a counter increment required here ?
-      hasMoreValues = key != null && (comparator.compare(key, nextKey) == 0);
+      int offset = nextKeyBytes.getPosition();
+      hasMoreValues = comparator.compare(keyBytes.getData(), 0, keyBytes.getLength(),
+          nextKeyBytes.getData(), offset, nextKeyBytes.getLength() - offset) == 0;
     } else {
       hasMoreValues = false;
     }
@@ -0,0 +1,112 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.compress;
+
+import java.io.IOException;
+
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * Compresses and decompresses whole blocks held in byte arrays, for
+ * {@link BlockCompressionCodec}. An instance is used by one stream at a time,
+ * so implementations may keep state between calls.
+ *
+ * Implementations other than the built-in ones must have a public no-argument
+ * constructor, and an id of at least {@link #MIN_CUSTOM_ID}.
+ */
+@Private
+public abstract class BlockCompressionAlgorithm {
+
+  public static final byte DEFLATE_ID = 1;
+  public static final byte SNAPPY_ID = 2;
+  public static final byte LZ4_ID = 3;
+  public static final byte MIN_CUSTOM_ID = 64;
+
+  /**
+   * @return the id stored in the streams written with this algorithm
+   */
+  public abstract byte getId();
+
+  /**
+   * @return the largest size the compressed form of length bytes can have
+   */
+  public abstract int maxCompressedLength(int length);
+
+  /**
+   * Compress length bytes of src into dst, which has room for
+   * {@link #maxCompressedLength(int)} bytes.
+   *
+   * @return the compressed length
+   */
+  public abstract int compress(byte[] src, int srcOffset, int length,
+      byte[] dst, int dstOffset) throws IOException;
+
+  /**
+   * Decompress length bytes of src into dst, which has room for the
+   * uncompressedLength bytes recorded at compression time.
+   */
+  public abstract void decompress(byte[] src, int srcOffset, int length,
+      byte[] dst, int dstOffset, int uncompressedLength) throws IOException;
+
+  /**
+   * Release any resources held by the algorithm.
+   */
+  public void end() {
+  }
+
+  /**
+   * Create the algorithm configured by name: "snappy", "lz4", "deflate", or a
+   * class name.
+   */
+  public static BlockCompressionAlgorithm create(String name, Configuration conf) {
+    if ("snappy".equalsIgnoreCase(name)) {
+      return new SnappyBlockCompression();
+    } else if ("lz4".equalsIgnoreCase(name)) {
+      return new Lz4BlockCompression();
+    } else if ("deflate".equalsIgnoreCase(name)) {
+      return new DeflateBlockCompression();
+    }
+    try {
+      Class<? extends BlockCompressionAlgorithm> clazz =
+          Class.forName(name).asSubclass(BlockCompressionAlgorithm.class);
+      return ReflectionUtils.newInstance(clazz, conf);
+    } catch (ClassNotFoundException e) {
+      throw new IllegalArgumentException("Unknown block compression algorithm: " + name, e);
+    }
+  }
+
+  /**
+   * Create the built-in algorithm stored with an id, or null if the id is not
+   * one of a built-in algorithm.
+   */
+  public static BlockCompressionAlgorithm forId(byte id) {
+    switch (id) {
+    case DEFLATE_ID:
+      return new DeflateBlockCompression();
+    case SNAPPY_ID:
+      return new SnappyBlockCompression();
+    case LZ4_ID:
+      return new Lz4BlockCompression();
+    default:
+      return null;
+    }
+  }
+}
@@ -0,0 +1,346 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.compress;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.classification.InterfaceAudience.Public;
+import org.apache.hadoop.classification.InterfaceStability.Evolving;
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionInputStream;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.Compressor;
+import org.apache.hadoop.io.compress.CompressorStream;
+import org.apache.hadoop.io.compress.Decompressor;
+import org.apache.tez.common.TezJobConfig;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A {@link CompressionCodec} which splits the data into blocks of
+ * {@link TezJobConfig#TEZ_RUNTIME_COMPRESS_BLOCK_SIZE} bytes, and compresses
+ * and checksums each block on its own with the
+ * {@link TezJobConfig#TEZ_RUNTIME_COMPRESS_BLOCK_ALGORITHM}. Set it as the
+ * intermediate output and input codec to write IFiles in this format.
+ *
+ * A stream is laid out as
+ * <pre>
+ *   byte version, byte algorithm id
+ *   block*: int uncompressed length, int stored length, int CRC32 of the
+ *           stored bytes, stored bytes
+ *   int 0, int block count
+ *   (long block offset, long uncompressed offset)*
+ *   int block count, long length of the stream
+ * </pre>
+ * A block is stored uncompressed when compression does not make it smaller,
+ * in which case both its lengths are equal. Offsets are relative to the start
+ * of the stream. The block index lets readers locate blocks without reading
+ * the ones before them, and the length of the stream at its end lets them
+ * find the streams of concatenated outputs from the last one, see
+ * {@link #readBlockIndex(FSDataInputStream, long, long)}.
+ *
+ * Files on a local file system are read through the block index by
+ * {@link IndexedBlockDecompressionInputStream}, which decompresses up to
+ * {@link TezJobConfig#TEZ_RUNTIME_COMPRESS_BLOCK_READAHEAD_BLOCKS} blocks
+ * ahead of the reader, on {@link #DECOMPRESS_THREADS} threads shared by all
+ * readers in the JVM.
+ */
+@Public
+@Evolving
+public class BlockCompressionCodec implements Configurable, CompressionCodec {
+
+  static final byte VERSION = 1;
+  // version and algorithm id
+  static final int HEADER_LENGTH = 2;
+  static final int BLOCK_HEADER_LENGTH = 12;
+  // end marker and block count
+  static final int END_LENGTH = 8;
+  static final int INDEX_ENTRY_LENGTH = 16;
+  // block count and stream length
+  static final int FOOTER_LENGTH = 12;
+
+  /**
+   * Size of the pool decompressing blocks ahead of the readers. It does not
+   * depend on the configuration of any reader, since the pool is shared.
+   */
+  public static final int DECOMPRESS_THREADS =
+      Math.min(4, Runtime.getRuntime().availableProcessors());
+  // Threads which are idle for this long exit
+  private static final long DECOMPRESS_THREAD_KEEP_ALIVE_SECONDS = 30;
+
+  private static ExecutorService decompressExecutor;
+
+  private Configuration conf;
+
+  @Override
+  public void setConf(Configuration conf) {
+    this.conf = conf;
+  }
+
+  @Override
+  public Configuration getConf() {
+    return conf;
+  }
+
+  @Override
+  public CompressionOutputStream createOutputStream(OutputStream out) throws IOException {
+    return createOutputStream(out, createCompressor());
+  }
+
+  @Override
+  public CompressionOutputStream createOutputStream(OutputStream out, Compressor compressor)
+      throws IOException {
+    return new CompressorStream(out, compressor,
+        ((BlockCompressor) compressor).getMaxFrameLength());
+  }
+
+  @Override
+  public Class<? extends Compressor> getCompressorType() {
+    return BlockCompressor.class;
+  }
+
+  @Override
+  public Compressor createCompressor() {
+    return new BlockCompressor(conf);
+  }
+
+  @Override
+  public CompressionInputStream createInputStream(InputStream in) throws IOException {
+    return createInputStream(in, createDecompressor());
+  }
+
+  @Override
+  public CompressionInputStream createInputStream(InputStream in, Decompressor decompressor)
+      throws IOException {
+    return new BlockDecompressionInputStream(in, (BlockDecompressor) decompressor);
+  }
+
+  /**
+   * Create a stream which reads the blocks of a file through its block index,
+   * decompressing them ahead of the reader in parallel.
+   *
+   * @param in the input holding the file, which is closed with the stream
+   * @param start the position of the compressed data in the input
+   * @param length the length of the compressed data, excluding any trailing
+   *          data such as the IFile checksum
+   */
+  public IndexedBlockDecompressionInputStream createIndexedInputStream(FSDataInputStream in,
+      long start, long length) throws IOException {
+    Configuration conf = this.conf == null ? new Configuration(false) : this.conf;
+    int readAhead = conf.getInt(TezJobConfig.TEZ_RUNTIME_COMPRESS_BLOCK_READAHEAD_BLOCKS,
+        TezJobConfig.DEFAULT_TEZ_RUNTIME_COMPRESS_BLOCK_READAHEAD_BLOCKS);
+    return new IndexedBlockDecompressionInputStream(in, start, length, conf,
+        readAhead > 0 ? getDecompressExecutor() : null, Math.max(readAhead, 1));
+  }
+
+  /**
+   * The threads are shared by all readers in the JVM, and exit once idle.
+   */
+  private static synchronized ExecutorService getDecompressExecutor() {
+    if (decompressExecutor == null) {
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(DECOMPRESS_THREADS,
+          DECOMPRESS_THREADS, DECOMPRESS_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(),
+          new ThreadFactoryBuilder().setDaemon(true)
+              .setNameFormat("BlockDecompressor #%d").build());
+      executor.allowCoreThreadTimeOut(true);
+      decompressExecutor = executor;
+    }
+    return decompressExecutor;
+  }
+
+  @Override
+  public Class<? extends Decompressor> getDecompressorType() {
+    return BlockDecompressor.class;
+  }
+
+  @Override
+  public Decompressor createDecompressor() {
+    return new BlockDecompressor(conf);
+  }
+
+  @Override
+  public String getDefaultExtension() {
+    return ".tzblock";
+  }
+
+  /**
+   * Read the block index of data written by this codec, which may consist of
+   * several streams written one after the other.
+   *
+   * @param in the input holding the data
+   * @param start the position of the data in the input
+   * @param length the length of the data, excluding any trailing data such as
+   *          the IFile checksum
+   */
+  public static BlockIndex readBlockIndex(FSDataInputStream in, long start, long length)
+      throws IOException {
+    // The streams are found from the last one, each ending with its length
+    LinkedList<StreamIndex> streams = new LinkedList<StreamIndex>();
+    int totalBlocks = 0;
+    long end = length;
+    while (end > 0) {
+      if (end < HEADER_LENGTH + END_LENGTH + FOOTER_LENGTH) {
+        throw new IOException("Corrupt block index: stream ending at " + end
+            + " is too short");
+      }
+      in.seek(start + end - FOOTER_LENGTH);
+      int numBlocks = in.readInt();
+      long streamLength = in.readLong();
+      long streamStart = end - streamLength;
+      long indexStart = end - FOOTER_LENGTH - (long) numBlocks * INDEX_ENTRY_LENGTH;
+      if (numBlocks <= 0 || streamStart < 0 || indexStart < streamStart + HEADER_LENGTH) {
+        throw new IOException("Corrupt block index of stream ending at " + end + ": "
+            + numBlocks + " blocks, length " + streamLength);
+      }
+      StreamIndex stream = new StreamIndex(numBlocks);
+      in.seek(start + streamStart + 1);
+      stream.algorithmId = in.readByte();
+      in.seek(start + indexStart);
+      for (int i = 0; i < numBlocks; i++) {
+        stream.offsets[i] = streamStart + in.readLong();
+        stream.uncompressedOffsets[i] = in.readLong();
+      }
+      in.seek(start + stream.offsets[numBlocks - 1]);
+      stream.uncompressedLength = stream.uncompressedOffsets[numBlocks - 1] + in.readInt();
+      streams.addFirst(stream);
+      totalBlocks += numBlocks;
+      end = streamStart;
+    }
+
+    long[] offsets = new long[totalBlocks];
+    long[] uncompressedOffsets = new long[totalBlocks];
+    byte[] algorithmIds = new byte[totalBlocks];
+    int block = 0;
+    long uncompressedStart = 0;
+    for (StreamIndex stream : streams) {
+      for (int i = 0; i < stream.offsets.length; i++, block++) {
+        offsets[block] = stream.offsets[i];
+        uncompressedOffsets[block] = uncompressedStart + stream.uncompressedOffsets[i];
+        algorithmIds[block] = stream.algorithmId;
+      }
+      uncompressedStart += stream.uncompressedLength;
+    }
+    return new BlockIndex(offsets, uncompressedOffsets, algorithmIds, uncompressedStart);
+  }
+
+  private static class StreamIndex {
+    final long[] offsets;
+    final long[] uncompressedOffsets;
+    byte algorithmId;
+    long uncompressedLength;
+
+    StreamIndex(int numBlocks) {
+      offsets = new long[numBlocks];
+      uncompressedOffsets = new long[numBlocks];
+    }
+  }
+
+  /**
+   * Positions of the blocks of the streams of a file.
+   */
+  public static class BlockIndex {
+    private final long[] offsets;
+    private final long[] uncompressedOffsets;
+    private final byte[] algorithmIds;
+    private final long uncompressedLength;
+
+    BlockIndex(long[] offsets, long[] uncompressedOffsets, byte[] algorithmIds,
+        long uncompressedLength) {
+      this.offsets = offsets;
+      this.uncompressedOffsets = uncompressedOffsets;
+      this.algorithmIds = algorithmIds;
+      this.uncompressedLength = uncompressedLength;
+    }
+
+    public int getNumBlocks() {
+      return offsets.length;
+    }
+
+    /**
+     * @return the offset of the block header, from the start of the data
+     */
+    public long getBlockOffset(int block) {
+      return offsets[block];
+    }
+
+    /**
+     * @return the offset of the first byte of the block in the uncompressed data
+     */
+    public long getUncompressedOffset(int block) {
+      return uncompressedOffsets[block];
+    }
+
+    /**
+     * @return the id of the algorithm the block is compressed with
+     */
+    public byte getAlgorithmId(int block) {
+      return algorithmIds[block];
+    }
+
+    public long getUncompressedLength() {
+      return uncompressedLength;
+    }
+
+    /**
+     * @return the block holding an uncompressed position
+     */
+    public int findBlock(long uncompressedPosition) {
+      int low = 0;
+      int high = offsets.length - 1;
+      while (low < high) {
+        int mid = (low + high + 1) >>> 1;
+        if (uncompressedOffsets[mid] <= uncompressedPosition) {
+          low = mid;
+        } else {
+          high = mid - 1;
+        }
+      }
+      return low;
+    }
+  }
+
+  static int putInt(byte[] b, int off, int v) {
+    b[off] = (byte) (v >>> 24);
+    b[off + 1] = (byte) (v >>> 16);
+    b[off + 2] = (byte) (v >>> 8);
+    b[off + 3] = (byte) v;
+    return off + 4;
+  }
+
+  static int putLong(byte[] b, int off, long v) {
+    putInt(b, off, (int) (v >>> 32));
+    return putInt(b, off + 4, (int) v);
+  }
+
+  static int getInt(byte[] b, int off) {
+    return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16)
+        | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+  }
+}
@@ -0,0 +1,265 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.compress;
+
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.compress.Compressor;
+import org.apache.tez.common.TezJobConfig;
+
+/**
+ * Compresses into the stream format of {@link BlockCompressionCodec}. The
+ * input is gathered into blocks, each block is compressed and checksummed
+ * once it is full, and the last block and the block index are written once
+ * the input is finished. Nothing is written for a stream without input.
+ */
+@Private
+public class BlockCompressor implements Compressor {
+
+  private BlockCompressionAlgorithm algorithm;
+  private byte[] uncompressed;
+  private int buffered = 0;
+  private final CRC32 crc = new CRC32();
+
+  // Input not yet copied into the block
+  private byte[] input;
+  private int inputOffset = 0;
+  private int inputLength = 0;
+
+  // Compressed data not yet returned by compress
+  private byte[] output;
+  private int outputOffset = 0;
+  private int outputLength = 0;
+
+  private boolean started = false;
+  private boolean finish = false;
+  private boolean indexWritten = false;
+  // Position in the stream and in the uncompressed data
+  private long position = 0;
+  private long uncompressedPosition = 0;
+  private long[] blockOffsets = new long[16];
+  private long[] uncompressedOffsets = new long[16];
+  private int numBlocks = 0;
+
+  private long bytesRead = 0;
+  private long bytesWritten = 0;
+
+  BlockCompressor(Configuration conf) {
+    reinit(conf);
+  }
+
+  @Override
+  public void reinit(Configuration conf) {
+    reset();
+    if (conf == null && algorithm != null) {
+      return;
+    }
+    if (conf == null) {
+      conf = new Configuration(false);
+    }
+    if (algorithm != null) {
+      algorithm.end();
+    }
+    algorithm = BlockCompressionAlgorithm.create(conf.get(
+        TezJobConfig.TEZ_RUNTIME_COMPRESS_BLOCK_ALGORITHM,
+        TezJobConfig.DEFAULT_TEZ_RUNTIME_COMPRESS_BLOCK_ALGORITHM), conf);
+    int blockSize = conf.getInt(TezJobConfig.TEZ_RUNTIME_COMPRESS_BLOCK_SIZE,
+        TezJobConfig.DEFAULT_TEZ_RUNTIME_COMPRESS_BLOCK_SIZE);
+    if (uncompressed == null || uncompressed.length != blockSize) {
+      uncompressed = new byte[blockSize];
+    }
+    int maxFrameLength = BlockCompressionCodec.HEADER_LENGTH
+        + BlockCompressionCodec.BLOCK_HEADER_LENGTH
+        + Math.max(blockSize, algorithm.maxCompressedLength(blockSize));
+    if (output == null || output.length < maxFrameLength) {
+      output = new byte[maxFrameLength];
+    }
+  }
+
+  /**
+   * @return the size of the buffer which {@link #compress(byte[], int, int)}
+   *         returns a whole block into
+   */
+  int getMaxFrameLength() {
+    return output.length;
+  }
+
+  @Override
+  public void setInput(byte[] b, int off, int len) {
+    if (b == null) {
+      throw new NullPointerException();
+    }
+    if (off < 0 || len < 0 || off > b.length - len) {
+      throw new ArrayIndexOutOfBoundsException();
+    }
+    input = b;
+    inputOffset = off;
+    inputLength = len;
+  }
+
+  @Override
+  public boolean needsInput() {
+    return outputLength == 0 && inputLength == 0;
+  }
+
+  @Override
+  public void setDictionary(byte[] b, int off, int len) {
+    // blocks are compressed on their own, without a dictionary
+  }
+
+  @Override
+  public long getBytesRead() {
+    return bytesRead;
+  }
+
+  @Override
+  public long getBytesWritten() {
+    return bytesWritten;
+  }
+
+  @Override
+  public void finish() {
+    finish = true;
+  }
+
+  @Override
+  public boolean finished() {
+    return finish && indexWritten && outputLength == 0 && inputLength == 0;
+  }
+
+  @Override
+  public int compress(byte[] b, int off, int len) throws IOException {
+    while (outputLength == 0) {
+      if (inputLength > 0) {
+        int n = Math.min(inputLength, uncompressed.length - buffered);
+        System.arraycopy(input, inputOffset, uncompressed, buffered, n);
+        buffered += n;
+        inputOffset += n;
+        inputLength -= n;
+        bytesRead += n;
+        if (buffered == uncompressed.length) {
+          writeBlock();
+        }
+      } else if (finish && !indexWritten) {
+        if (buffered > 0) {
+          writeBlock();
+        }
+        writeIndex();
+      } else {
+        return 0;
+      }
+    }
+    int n = Math.min(len, outputLength);
+    System.arraycopy(output, outputOffset, b, off, n);
+    outputOffset += n;
+    outputLength -= n;
+    bytesWritten += n;
+    return n;
+  }
+
+  private void writeBlock() throws IOException {
+    int pos = 0;
+    if (!started) {
+      output[pos++] = BlockCompressionCodec.VERSION;
+      output[pos++] = algorithm.getId();
+      position += BlockCompressionCodec.HEADER_LENGTH;
+      started = true;
+    }
+    int dataOffset = pos + BlockCompressionCodec.BLOCK_HEADER_LENGTH;
+    int storedLength = algorithm.compress(uncompressed, 0, buffered, output, dataOffset);
+    if (storedLength >= buffered) {
+      System.arraycopy(uncompressed, 0, output, dataOffset, buffered);
+      storedLength = buffered;
+    }
+    crc.reset();
+    crc.update(output, dataOffset, storedLength);
+
+    if (numBlocks == blockOffsets.length) {
+      long[] newOffsets = new long[numBlocks * 2];
+      long[] newUncompressedOffsets = new long[numBlocks * 2];
+      System.arraycopy(blockOffsets, 0, newOffsets, 0, numBlocks);
+      System.arraycopy(uncompressedOffsets, 0, newUncompressedOffsets, 0, numBlocks);
+      blockOffsets = newOffsets;
+      uncompressedOffsets = newUncompressedOffsets;
+    }
+    blockOffsets[numBlocks] = position;
+    uncompressedOffsets[numBlocks] = uncompressedPosition;
+    numBlocks++;
+
+    pos = BlockCompressionCodec.putInt(output, pos, buffered);
+    pos = BlockCompressionCodec.putInt(output, pos, storedLength);
+    BlockCompressionCodec.putInt(output, pos, (int) crc.getValue());
+    outputOffset = 0;
+    outputLength = dataOffset + storedLength;
+    position += BlockCompressionCodec.BLOCK_HEADER_LENGTH + storedLength;
+    uncompressedPosition += buffered;
+    buffered = 0;
+  }
+
+  private void writeIndex() {
+    indexWritten = true;
+    if (!started) {
+      return;
+    }
+    int length = BlockCompressionCodec.END_LENGTH
+        + numBlocks * BlockCompressionCodec.INDEX_ENTRY_LENGTH
+        + BlockCompressionCodec.FOOTER_LENGTH;
+    if (output.length < length) {
+      output = new byte[length];
+    }
+    int pos = BlockCompressionCodec.putInt(output, 0, 0);
+    pos = BlockCompressionCodec.putInt(output, pos, numBlocks);
+    for (int i = 0; i < numBlocks; i++) {
+      pos = BlockCompressionCodec.putLong(output, pos, blockOffsets[i]);
+      pos = BlockCompressionCodec.putLong(output, pos, uncompressedOffsets[i]);
+    }
+    pos = BlockCompressionCodec.putInt(output, pos, numBlocks);
+    pos = BlockCompressionCodec.putLong(output, pos, position + length);
+    outputOffset = 0;
+    outputLength = pos;
+  }
+
+  @Override
+  public void reset() {
+    input = null;
+    inputOffset = 0;
+    inputLength = 0;
+    outputOffset = 0;
+    outputLength = 0;
+    buffered = 0;
+    started = false;
+    finish = false;
+    indexWritten = false;
+    position = 0;
+    uncompressedPosition = 0;
+    numBlocks = 0;
+    bytesRead = 0;
+    bytesWritten = 0;
+  }
+
+  @Override
+  public void end() {
+    if (algorithm != null) {
+      algorithm.end();
+    }
+  }
+}
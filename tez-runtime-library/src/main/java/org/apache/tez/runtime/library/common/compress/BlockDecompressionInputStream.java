@@ -0,0 +1,115 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.compress;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+import org.apache.hadoop.io.compress.CompressionInputStream;
+
+/**
+ * Reads the block format of {@link BlockCompressionCodec} sequentially. Only
+ * the bytes of the stream are read from the underlying stream, and as soon as
+ * the last block has been read the block index is read past too, so that a
+ * reader which reads exactly the uncompressed length, as the fetchers do,
+ * leaves the underlying stream at the end of the compressed data.
+ *
+ * Streams written one after the other, as the outputs of concatenated chunks
+ * are, read as one. The next stream is only looked for once more data is
+ * asked for than the previous stream holds.
+ */
+@Private
+public class BlockDecompressionInputStream extends CompressionInputStream {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final BlockDecompressor decompressor;
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+  private boolean eof = false;
+  private final byte[] oneByte = new byte[1];
+
+  public BlockDecompressionInputStream(InputStream in, BlockDecompressor decompressor)
+      throws IOException {
+    super(in);
+    this.decompressor = decompressor;
+  }
+
+  @Override
+  public int read() throws IOException {
+    return read(oneByte, 0, 1) == -1 ? -1 : (oneByte[0] & 0xff);
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    while (!eof) {
+      int n = decompressor.decompress(b, off, len);
+      if (n > 0) {
+        readPastBlock();
+        return n;
+      }
+      if (decompressor.finished()) {
+        decompressor.reset();
+      }
+      if (!fill()) {
+        eof = true;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Once the output of a block is returned, read the next block, or the end
+   * of the stream.
+   */
+  private void readPastBlock() throws IOException {
+    while (!decompressor.hasOutput() && !decompressor.finished()) {
+      fill();
+      decompressor.decode();
+    }
+  }
+
+  /**
+   * Give the decompressor the input it needs to complete the part of the
+   * stream it is reading.
+   *
+   * @return false if the underlying stream ended between streams
+   */
+  private boolean fill() throws IOException {
+    int n = in.read(buffer, 0, Math.min(buffer.length, decompressor.getBytesNeeded()));
+    if (n == -1) {
+      if (decompressor.atStreamStart()) {
+        return false;
+      }
+      throw new EOFException("Truncated block compressed stream");
+    }
+    decompressor.setInput(buffer, 0, n);
+    return true;
+  }
+
+  @Override
+  public void resetState() throws IOException {
+    decompressor.reset();
+    eof = false;
+  }
+}
@@ -0,0 +1,299 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.compress;
+
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.compress.Decompressor;
+import org.apache.tez.common.TezJobConfig;
+
+/**
+ * Decompresses the stream format of {@link BlockCompressionCodec}, verifying
+ * the checksum of each block before decompressing it. The input may be given
+ * in pieces of any size; the parts of the stream are gathered until they are
+ * complete. Once the block index has been read past the decompressor is
+ * finished, and {@link #getRemaining()} is the input following the stream.
+ */
+@Private
+public class BlockDecompressor implements Decompressor {
+
+  private enum State {
+    HEADER, BLOCK_LENGTH, BLOCK_HEADER, BLOCK_DATA, INDEX_LENGTH, INDEX, FINISHED
+  }
+
+  private final Configuration conf;
+  // The configured algorithm, and the one of the stream being read
+  private final BlockCompressionAlgorithm configured;
+  private BlockCompressionAlgorithm current;
+  private final CRC32 crc = new CRC32();
+
+  private State state;
+  // The part of the stream being gathered
+  private byte[] part;
+  private int partLength;
+  private int partFilled;
+  private long indexRemaining;
+
+  private int uncompressedLength;
+  private int storedLength;
+  private int checksum;
+  private int blockNumber;
+  private byte[] compressed = new byte[512];
+  private byte[] uncompressed = new byte[0];
+  private int outputPosition;
+  private int outputLength;
+
+  private byte[] input;
+  private int inputOffset;
+  private int inputLength;
+
+  BlockDecompressor(Configuration conf) {
+    this.conf = conf == null ? new Configuration(false) : conf;
+    this.configured = BlockCompressionAlgorithm.create(this.conf.get(
+        TezJobConfig.TEZ_RUNTIME_COMPRESS_BLOCK_ALGORITHM,
+        TezJobConfig.DEFAULT_TEZ_RUNTIME_COMPRESS_BLOCK_ALGORITHM), this.conf);
+    reset();
+  }
+
+  /**
+   * Create the algorithm of a stream, which is the configured one if it has
+   * the id, and otherwise the built-in one with the id.
+   */
+  static BlockCompressionAlgorithm createAlgorithm(byte id, Configuration conf)
+      throws IOException {
+    String name = conf.get(TezJobConfig.TEZ_RUNTIME_COMPRESS_BLOCK_ALGORITHM,
+        TezJobConfig.DEFAULT_TEZ_RUNTIME_COMPRESS_BLOCK_ALGORITHM);
+    BlockCompressionAlgorithm algorithm = BlockCompressionAlgorithm.forId(id);
+    if (algorithm == null) {
+      algorithm = BlockCompressionAlgorithm.create(name, conf);
+      if (algorithm.getId() != id) {
+        algorithm.end();
+        throw new IOException("Unknown block compression algorithm id " + id
+            + ", configured algorithm has id " + algorithm.getId());
+      }
+    }
+    return algorithm;
+  }
+
+  private BlockCompressionAlgorithm getAlgorithm(byte id) throws IOException {
+    if (current != null && current.getId() == id) {
+      return current;
+    }
+    if (current != null && current != configured) {
+      current.end();
+    }
+    current = configured.getId() == id ? configured : createAlgorithm(id, conf);
+    return current;
+  }
+
+  @Override
+  public void setInput(byte[] b, int off, int len) {
+    if (b == null) {
+      throw new NullPointerException();
+    }
+    if (off < 0 || len < 0 || off > b.length - len) {
+      throw new ArrayIndexOutOfBoundsException();
+    }
+    input = b;
+    inputOffset = off;
+    inputLength = len;
+  }
+
+  @Override
+  public boolean needsInput() {
+    return inputLength == 0 && !hasOutput() && state != State.FINISHED;
+  }
+
+  @Override
+  public void setDictionary(byte[] b, int off, int len) {
+    // blocks are compressed on their own, without a dictionary
+  }
+
+  @Override
+  public boolean needsDictionary() {
+    return false;
+  }
+
+  @Override
+  public boolean finished() {
+    return state == State.FINISHED && !hasOutput();
+  }
+
+  @Override
+  public int decompress(byte[] b, int off, int len) throws IOException {
+    decode();
+    int n = Math.min(len, outputLength - outputPosition);
+    System.arraycopy(uncompressed, outputPosition, b, off, n);
+    outputPosition += n;
+    return n;
+  }
+
+  @Override
+  public int getRemaining() {
+    return inputLength;
+  }
+
+  /**
+   * Consume the input until a block is decompressed, the stream ends, or the
+   * input runs out.
+   */
+  void decode() throws IOException {
+    while (!hasOutput() && state != State.FINISHED && inputLength > 0) {
+      if (state == State.INDEX) {
+        int n = (int) Math.min(indexRemaining, inputLength);
+        inputOffset += n;
+        inputLength -= n;
+        indexRemaining -= n;
+        if (indexRemaining == 0) {
+          state = State.FINISHED;
+        }
+        continue;
+      }
+      int n = Math.min(partLength - partFilled, inputLength);
+      System.arraycopy(input, inputOffset, part, partFilled, n);
+      partFilled += n;
+      inputOffset += n;
+      inputLength -= n;
+      if (partFilled == partLength) {
+        partComplete();
+      }
+    }
+  }
+
+  boolean hasOutput() {
+    return outputPosition < outputLength;
+  }
+
+  /**
+   * @return the number of bytes of input needed to complete the part of the
+   *         stream being read, so that a stream can be read without reading
+   *         past its end
+   */
+  int getBytesNeeded() {
+    switch (state) {
+    case FINISHED:
+      return 0;
+    case INDEX:
+      return (int) Math.min(indexRemaining, Integer.MAX_VALUE);
+    default:
+      return partLength - partFilled;
+    }
+  }
+
+  /**
+   * @return whether nothing of the current stream has been read
+   */
+  boolean atStreamStart() {
+    return state == State.HEADER && partFilled == 0;
+  }
+
+  private void partComplete() throws IOException {
+    switch (state) {
+    case HEADER:
+      int version = part[0];
+      if (version != BlockCompressionCodec.VERSION) {
+        throw new IOException("Unsupported block compression version " + version);
+      }
+      getAlgorithm(part[1]);
+      expect(State.BLOCK_LENGTH, compressed, 4);
+      break;
+    case BLOCK_LENGTH:
+      uncompressedLength = BlockCompressionCodec.getInt(part, 0);
+      if (uncompressedLength == 0) {
+        expect(State.INDEX_LENGTH, compressed, 4);
+      } else {
+        expect(State.BLOCK_HEADER, compressed, 8);
+      }
+      break;
+    case BLOCK_HEADER:
+      storedLength = BlockCompressionCodec.getInt(part, 0);
+      checksum = BlockCompressionCodec.getInt(part, 4);
+      if (uncompressedLength < 0 || storedLength < 0 || storedLength > uncompressedLength) {
+        throw new IOException("Corrupt header of block " + blockNumber + ": length "
+            + uncompressedLength + ", stored length " + storedLength);
+      }
+      if (compressed.length < storedLength) {
+        compressed = new byte[storedLength];
+      }
+      if (uncompressed.length < uncompressedLength) {
+        uncompressed = new byte[uncompressedLength];
+      }
+      // A block stored uncompressed is read in place
+      expect(State.BLOCK_DATA,
+          storedLength == uncompressedLength ? uncompressed : compressed, storedLength);
+      break;
+    case BLOCK_DATA:
+      crc.reset();
+      crc.update(part, 0, storedLength);
+      if ((int) crc.getValue() != checksum) {
+        throw new IOException("Checksum error in block " + blockNumber);
+      }
+      if (part != uncompressed) {
+        current.decompress(part, 0, storedLength, uncompressed, 0, uncompressedLength);
+      }
+      outputPosition = 0;
+      outputLength = uncompressedLength;
+      blockNumber++;
+      expect(State.BLOCK_LENGTH, compressed, 4);
+      break;
+    case INDEX_LENGTH:
+      int numBlocks = BlockCompressionCodec.getInt(part, 0);
+      if (numBlocks != blockNumber) {
+        throw new IOException("Block index of " + numBlocks + " blocks, read "
+            + blockNumber + " blocks");
+      }
+      state = State.INDEX;
+      indexRemaining = (long) numBlocks * BlockCompressionCodec.INDEX_ENTRY_LENGTH
+          + BlockCompressionCodec.FOOTER_LENGTH;
+      break;
+    default:
+      throw new IllegalStateException("Unexpected state " + state);
+    }
+  }
+
+  private void expect(State next, byte[] buffer, int length) {
+    state = next;
+    part = buffer;
+    partLength = length;
+    partFilled = 0;
+  }
+
+  @Override
+  public void reset() {
+    expect(State.HEADER, compressed, BlockCompressionCodec.HEADER_LENGTH);
+    indexRemaining = 0;
+    blockNumber = 0;
+    outputPosition = 0;
+    outputLength = 0;
+    input = null;
+    inputOffset = 0;
+    inputLength = 0;
+  }
+
+  @Override
+  public void end() {
+    configured.end();
+    if (current != null && current != configured) {
+      current.end();
+    }
+  }
+}
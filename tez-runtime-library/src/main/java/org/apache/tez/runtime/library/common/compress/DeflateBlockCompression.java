@@ -0,0 +1,106 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.compress;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+
+/**
+ * Raw deflate blocks, through the JDK's zlib.
+ */
+@Private
+public class DeflateBlockCompression extends BlockCompressionAlgorithm {
+
+  private Deflater deflater;
+  private Inflater inflater;
+
+  @Override
+  public byte getId() {
+    return DEFLATE_ID;
+  }
+
+  @Override
+  public int maxCompressedLength(int length) {
+    // zlib's deflateBound for stored blocks, with room to spare
+    return length + (length >> 12) + (length >> 14) + 64;
+  }
+
+  @Override
+  public int compress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset)
+      throws IOException {
+    if (deflater == null) {
+      deflater = new Deflater(Deflater.BEST_SPEED, true);
+    }
+    deflater.reset();
+    deflater.setInput(src, srcOffset, length);
+    deflater.finish();
+    int compressed = 0;
+    int room = maxCompressedLength(length);
+    while (!deflater.finished()) {
+      int n = deflater.deflate(dst, dstOffset + compressed, room - compressed);
+      if (n == 0 && compressed == room) {
+        throw new IOException("Deflated block exceeds " + room + " bytes");
+      }
+      compressed += n;
+    }
+    return compressed;
+  }
+
+  @Override
+  public void decompress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset,
+      int uncompressedLength) throws IOException {
+    if (inflater == null) {
+      inflater = new Inflater(true);
+    }
+    inflater.reset();
+    inflater.setInput(src, srcOffset, length);
+    int inflated = 0;
+    try {
+      while (inflated < uncompressedLength) {
+        int n = inflater.inflate(dst, dstOffset + inflated, uncompressedLength - inflated);
+        if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+          break;
+        }
+        inflated += n;
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupt deflate block", e);
+    }
+    if (inflated != uncompressedLength) {
+      throw new IOException("Deflate block inflated to " + inflated + " bytes, expected "
+          + uncompressedLength);
+    }
+  }
+
+  @Override
+  public void end() {
+    if (deflater != null) {
+      deflater.end();
+      deflater = null;
+    }
+    if (inflater != null) {
+      inflater.end();
+      inflater = null;
+    }
+  }
+}
@@ -0,0 +1,265 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.compress;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.Seekable;
+import org.apache.tez.runtime.library.common.compress.BlockCompressionCodec.BlockIndex;
+
+/**
+ * Reads data written by {@link BlockCompressionCodec} from a file through its
+ * block index. The blocks are read with positioned reads and decompressed
+ * ahead of the reader on an executor, and {@link #seek(long)} moves to any
+ * uncompressed position without reading the blocks before it. Streams
+ * written one after the other, as the outputs of concatenated chunks are,
+ * read as one.
+ */
+@Private
+public class IndexedBlockDecompressionInputStream extends InputStream implements Seekable {
+
+  private final FSDataInputStream fileIn;
+  private final long start;
+  private final long length;
+  private final Configuration conf;
+  private final BlockIndex index;
+  // Decompresses in the reading thread if null
+  private final ExecutorService executor;
+  private final int readAhead;
+  // Algorithms not in use by a block being decompressed
+  private final ConcurrentLinkedQueue<BlockCompressionAlgorithm> algorithms =
+      new ConcurrentLinkedQueue<BlockCompressionAlgorithm>();
+
+  private final LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+  // The next block to decompress, and the next one to read
+  private int nextDecompressBlock = 0;
+  private int nextReadBlock = 0;
+  private byte[] block;
+  private int blockPosition = 0;
+  private long position = 0;
+  private volatile boolean closed = false;
+  private final byte[] oneByte = new byte[1];
+
+  IndexedBlockDecompressionInputStream(FSDataInputStream in, long start, long length,
+      Configuration conf, ExecutorService executor, int readAhead) throws IOException {
+    this.fileIn = in;
+    this.start = start;
+    this.length = length;
+    this.conf = conf;
+    this.index = BlockCompressionCodec.readBlockIndex(in, start, length);
+    this.executor = executor;
+    this.readAhead = readAhead;
+  }
+
+  @Override
+  public int read() throws IOException {
+    return read(oneByte, 0, 1) == -1 ? -1 : (oneByte[0] & 0xff);
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+    if (len == 0) {
+      return 0;
+    }
+    while (block == null || blockPosition == block.length) {
+      if (!nextBlock()) {
+        return -1;
+      }
+    }
+    int n = Math.min(len, block.length - blockPosition);
+    System.arraycopy(block, blockPosition, b, off, n);
+    blockPosition += n;
+    position += n;
+    return n;
+  }
+
+  private boolean nextBlock() throws IOException {
+    if (nextReadBlock == index.getNumBlocks()) {
+      block = null;
+      return false;
+    }
+    if (executor == null) {
+      block = decompress(nextReadBlock);
+    } else {
+      block = takeDecompressed();
+    }
+    blockPosition = 0;
+    nextReadBlock++;
+    return true;
+  }
+
+  private byte[] takeDecompressed() throws IOException {
+    while (pending.size() < readAhead && nextDecompressBlock < index.getNumBlocks()) {
+      final int blockNumber = nextDecompressBlock++;
+      pending.add(executor.submit(new Callable<byte[]>() {
+        @Override
+        public byte[] call() throws IOException {
+          return decompress(blockNumber);
+        }
+      }));
+    }
+    try {
+      return pending.removeFirst().get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while decompressing block " + nextReadBlock, e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Failed to decompress block " + nextReadBlock, e.getCause());
+    }
+  }
+
+  private byte[] decompress(int blockNumber) throws IOException {
+    long offset = start + index.getBlockOffset(blockNumber);
+    byte[] header = new byte[BlockCompressionCodec.BLOCK_HEADER_LENGTH];
+    readFully(offset, header, header.length, blockNumber);
+    int uncompressedLength = BlockCompressionCodec.getInt(header, 0);
+    int storedLength = BlockCompressionCodec.getInt(header, 4);
+    int checksum = BlockCompressionCodec.getInt(header, 8);
+    if (uncompressedLength <= 0 || storedLength < 0 || storedLength > uncompressedLength) {
+      throw new IOException("Corrupt header of block " + blockNumber + ": length "
+          + uncompressedLength + ", stored length " + storedLength);
+    }
+    byte[] stored = new byte[storedLength];
+    readFully(offset + header.length, stored, storedLength, blockNumber);
+    CRC32 crc = new CRC32();
+    crc.update(stored, 0, storedLength);
+    if ((int) crc.getValue() != checksum) {
+      throw new IOException("Checksum error in block " + blockNumber);
+    }
+    if (storedLength == uncompressedLength) {
+      return stored;
+    }
+    byte[] uncompressed = new byte[uncompressedLength];
+    BlockCompressionAlgorithm algorithm = takeAlgorithm(index.getAlgorithmId(blockNumber));
+    try {
+      algorithm.decompress(stored, 0, storedLength, uncompressed, 0, uncompressedLength);
+    } finally {
+      algorithms.add(algorithm);
+      // close() may have drained the algorithms before this one was added
+      if (closed && algorithms.remove(algorithm)) {
+        algorithm.end();
+      }
+    }
+    return uncompressed;
+  }
+
+  private void readFully(long offset, byte[] b, int len, int blockNumber)
+      throws IOException {
+    try {
+      fileIn.readFully(offset, b, 0, len);
+    } catch (EOFException e) {
+      throw new IOException("Truncated block " + blockNumber, e);
+    }
+  }
+
+  private BlockCompressionAlgorithm takeAlgorithm(byte id) throws IOException {
+    BlockCompressionAlgorithm algorithm = algorithms.poll();
+    if (algorithm != null && algorithm.getId() != id) {
+      algorithm.end();
+      algorithm = null;
+    }
+    return algorithm != null ? algorithm : BlockDecompressor.createAlgorithm(id, conf);
+  }
+
+  /**
+   * Move to a position in the uncompressed data.
+   */
+  @Override
+  public void seek(long pos) throws IOException {
+    if (pos < 0 || pos > index.getUncompressedLength()) {
+      throw new EOFException("Cannot seek to " + pos + ", the uncompressed length is "
+          + index.getUncompressedLength());
+    }
+    cancelPending();
+    block = null;
+    blockPosition = 0;
+    position = pos;
+    if (pos == index.getUncompressedLength()) {
+      nextDecompressBlock = index.getNumBlocks();
+      nextReadBlock = nextDecompressBlock;
+      return;
+    }
+    int blockNumber = index.findBlock(pos);
+    nextDecompressBlock = blockNumber;
+    nextReadBlock = blockNumber;
+    nextBlock();
+    blockPosition = (int) (pos - index.getUncompressedOffset(blockNumber));
+  }
+
+  /**
+   * @return the position in the uncompressed data
+   */
+  @Override
+  public long getPos() {
+    return position;
+  }
+
+  @Override
+  public boolean seekToNewSource(long targetPos) throws IOException {
+    return false;
+  }
+
+  /**
+   * @return the length of the compressed data up to the end of the blocks
+   *         read so far
+   */
+  public long getCompressedPosition() {
+    return nextReadBlock < index.getNumBlocks() ? index.getBlockOffset(nextReadBlock)
+        : length;
+  }
+
+  private void cancelPending() {
+    for (Future<byte[]> future : pending) {
+      future.cancel(false);
+    }
+    pending.clear();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    cancelPending();
+    BlockCompressionAlgorithm algorithm;
+    while ((algorithm = algorithms.poll()) != null) {
+      algorithm.end();
+    }
+    fileIn.close();
+  }
+}
@@ -0,0 +1,78 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.compress;
+
+import java.io.IOException;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+
+/**
+ * Raw LZ4 blocks, through lz4-java. Uses its JNI binding where the native
+ * library loads, and its pure Java implementation elsewhere; all of them read
+ * and write the same format.
+ */
+@Private
+public class Lz4BlockCompression extends BlockCompressionAlgorithm {
+
+  private static final LZ4Factory FACTORY = LZ4Factory.fastestInstance();
+
+  private final LZ4Compressor compressor = FACTORY.fastCompressor();
+  private final LZ4SafeDecompressor decompressor = FACTORY.safeDecompressor();
+
+  @Override
+  public byte getId() {
+    return LZ4_ID;
+  }
+
+  @Override
+  public int maxCompressedLength(int length) {
+    return compressor.maxCompressedLength(length);
+  }
+
+  @Override
+  public int compress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset)
+      throws IOException {
+    try {
+      return compressor.compress(src, srcOffset, length, dst, dstOffset,
+          maxCompressedLength(length));
+    } catch (LZ4Exception e) {
+      throw new IOException("Failed to compress lz4 block", e);
+    }
+  }
+
+  @Override
+  public void decompress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset,
+      int uncompressedLength) throws IOException {
+    int n;
+    try {
+      n = decompressor.decompress(src, srcOffset, length, dst, dstOffset, uncompressedLength);
+    } catch (LZ4Exception e) {
+      throw new IOException("Corrupt lz4 block", e);
+    }
+    if (n != uncompressedLength) {
+      throw new IOException("Lz4 block decompressed to " + n + " bytes, expected "
+          + uncompressedLength);
+    }
+  }
+}
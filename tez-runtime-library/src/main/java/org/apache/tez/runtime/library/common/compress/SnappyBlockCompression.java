@@ -0,0 +1,108 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.compress;
+
+import java.io.IOException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+import org.xerial.snappy.Snappy;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * Raw snappy blocks. Uses the native library bundled with snappy-java, and
+ * falls back to the pure Java implementation of org.iq80.snappy on platforms
+ * it cannot load on. Both read and write the same format.
+ */
+@Private
+public class SnappyBlockCompression extends BlockCompressionAlgorithm {
+
+  private static final Log LOG = LogFactory.getLog(SnappyBlockCompression.class);
+
+  private static final boolean NATIVE_AVAILABLE;
+
+  static {
+    boolean available;
+    try {
+      Snappy.getNativeLibraryVersion();
+      Snappy.maxCompressedLength(1);
+      available = true;
+    } catch (Throwable t) {
+      LOG.info("Native snappy not available, using the pure Java implementation: " + t);
+      available = false;
+    }
+    NATIVE_AVAILABLE = available;
+  }
+
+  private final boolean useNative;
+
+  public SnappyBlockCompression() {
+    this(NATIVE_AVAILABLE);
+  }
+
+  @VisibleForTesting
+  SnappyBlockCompression(boolean useNative) {
+    this.useNative = useNative;
+  }
+
+  public static boolean isNativeAvailable() {
+    return NATIVE_AVAILABLE;
+  }
+
+  @Override
+  public byte getId() {
+    return SNAPPY_ID;
+  }
+
+  @Override
+  public int maxCompressedLength(int length) {
+    return useNative ? Snappy.maxCompressedLength(length)
+        : org.iq80.snappy.Snappy.maxCompressedLength(length);
+  }
+
+  @Override
+  public int compress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset)
+      throws IOException {
+    if (useNative) {
+      return Snappy.compress(src, srcOffset, length, dst, dstOffset);
+    }
+    return org.iq80.snappy.Snappy.compress(src, srcOffset, length, dst, dstOffset);
+  }
+
+  @Override
+  public void decompress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset,
+      int uncompressedLength) throws IOException {
+    int n;
+    if (useNative) {
+      n = Snappy.uncompress(src, srcOffset, length, dst, dstOffset);
+    } else {
+      try {
+        n = org.iq80.snappy.Snappy.uncompress(src, srcOffset, length, dst, dstOffset);
+      } catch (RuntimeException e) {
+        throw new IOException("Corrupt snappy block", e);
+      }
+    }
+    if (n != uncompressedLength) {
+      throw new IOException("Snappy block decompressed to " + n + " bytes, expected "
+          + uncompressedLength);
+    }
+  }
+}
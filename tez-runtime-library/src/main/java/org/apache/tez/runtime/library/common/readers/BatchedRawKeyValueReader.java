@@ -0,0 +1,112 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.readers;
+
+import java.io.IOException;
+
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.tez.common.counters.TezCounter;
+import org.apache.tez.runtime.library.api.RawKeyValueBatch;
+import org.apache.tez.runtime.library.api.RawKeyValueBatchReader;
+import org.apache.tez.runtime.library.common.sort.impl.TezRawKeyValueIterator;
+
+/**
+ * Copies the records of a sorted {@link TezRawKeyValueIterator} into
+ * {@link RawKeyValueBatch}es. A batch ends once it holds its maximum number of
+ * records, or once its data reaches the byte limit.
+ *
+ * This class is not thread safe.
+ */
+@Private
+public class BatchedRawKeyValueReader implements RawKeyValueBatchReader {
+
+  private final TezRawKeyValueIterator in;
+  @SuppressWarnings("rawtypes")
+  private final RawComparator comparator;
+  private final int maxBytes;
+  private final TezCounter inputKeyCounter;
+  private final TezCounter inputValueCounter;
+  private final RawKeyValueBatch batch;
+  // Last key of the previous batch, to find key groups spanning batches
+  private final DataOutputBuffer lastKey = new DataOutputBuffer();
+  private boolean hasLastKey = false;
+  private boolean done = false;
+
+  @SuppressWarnings("rawtypes")
+  public BatchedRawKeyValueReader(TezRawKeyValueIterator in, RawComparator comparator,
+      int maxRecords, int maxBytes, TezCounter inputKeyCounter,
+      TezCounter inputValueCounter) {
+    this.in = in;
+    this.comparator = comparator;
+    this.maxBytes = maxBytes;
+    this.inputKeyCounter = inputKeyCounter;
+    this.inputValueCounter = inputValueCounter;
+    this.batch = new RawKeyValueBatch(maxRecords, Math.min(maxBytes, 64 * 1024));
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public boolean next() throws IOException {
+    if (batch.size() > 0) {
+      int last = batch.size() - 1;
+      lastKey.reset();
+      lastKey.write(batch.getData(), batch.getKeyOffset(last), batch.getKeyLength(last));
+      hasLastKey = true;
+    }
+    batch.clear();
+    int newKeys = 0;
+    while (!done && !batch.isFull() && batch.getDataLength() < maxBytes) {
+      if (!in.next()) {
+        done = true;
+        break;
+      }
+      DataInputBuffer key = in.getKey();
+      DataInputBuffer value = in.getValue();
+      int keyOffset = key.getPosition();
+      int keyLength = key.getLength() - keyOffset;
+      boolean newKey;
+      int size = batch.size();
+      if (size > 0) {
+        newKey = comparator.compare(batch.getData(), batch.getKeyOffset(size - 1),
+            batch.getKeyLength(size - 1), key.getData(), keyOffset, keyLength) != 0;
+      } else if (hasLastKey) {
+        newKey = comparator.compare(lastKey.getData(), 0, lastKey.getLength(),
+            key.getData(), keyOffset, keyLength) != 0;
+      } else {
+        newKey = true;
+      }
+      if (newKey) {
+        newKeys++;
+      }
+      batch.add(key.getData(), keyOffset, keyLength, value.getData(), value.getPosition(),
+          value.getLength() - value.getPosition(), newKey);
+    }
+    inputKeyCounter.increment(newKeys);
+    inputValueCounter.increment(batch.size());
+    return batch.size() > 0;
+  }
+
+  @Override
+  public RawKeyValueBatch getCurrentBatch() {
+    return batch;
+  }
+}
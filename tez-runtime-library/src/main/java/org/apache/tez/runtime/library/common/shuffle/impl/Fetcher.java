@@ -51,6 +51,7 @@ import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
 import org.apache.tez.runtime.library.common.security.SecureShuffleUtils;
 import org.apache.tez.runtime.library.common.shuffle.impl.MapOutput.Type;
 import org.apache.tez.runtime.library.common.sort.impl.IFileInputStream;
+import org.apache.tez.runtime.library.shuffle.common.ShuffleUtils;
 
 import com.google.common.annotations.VisibleForTesting;
 
@@ -82,6 +83,7 @@ class Fetcher extends Thread {
   private final int connectionTimeout;
   private final int readTimeout;
   private final int bufferSize;
+  private final boolean keepAlive;
   
   // Decompression of map-outputs
   private final CompressionCodec codec;
@@ -141,6 +143,7 @@ class Fetcher extends Thread {
     
     this.bufferSize = job.getInt(TezJobConfig.TEZ_RUNTIME_SHUFFLE_BUFFER_SIZE, 
             TezJobConfig.DEFAULT_TEZ_RUNTIME_SHUFFLE_BUFFER_SIZE);
+    this.keepAlive = ShuffleUtils.isKeepAliveEnabled(job);
 
     setName("fetcher [" + TezUtils.cleanVertexName(inputContext.getSourceVertexName()) + "] #" + id);
     setDaemon(true);
@@ -244,12 +247,13 @@ class Fetcher extends Thread {
     remaining = new LinkedHashSet<InputAttemptIdentifier>(srcAttempts);
     
     // Construct the url and connect
-    DataInputStream input;
+    HttpURLConnection connection = null;
+    DataInputStream input = null;
     boolean connectSucceeded = false;
     
     try {
       URL url = getMapOutputURL(host, srcAttempts);
-      HttpURLConnection connection = openConnection(url);
+      connection = openConnection(url);
       
       // generate hash of the url
       String msgToEncode = SecureShuffleUtils.buildMsgFrom(url);
@@ -265,12 +269,14 @@ class Fetcher extends Thread {
           ShuffleHeader.DEFAULT_HTTP_HEADER_NAME);
       connection.addRequestProperty(ShuffleHeader.HTTP_HEADER_VERSION,
           ShuffleHeader.DEFAULT_HTTP_HEADER_VERSION);
+      long connectStartTime = System.currentTimeMillis();
       connect(connection, connectionTimeout);
       connectSucceeded = true;
       input = new DataInputStream(new BufferedInputStream(connection.getInputStream(), bufferSize));
 
       // Validate response code
       int rc = connection.getResponseCode();
+      host.getHealth().connected(System.currentTimeMillis() - connectStartTime);
       if (rc != HttpURLConnection.HTTP_OK) {
         throw new IOException(
             "Got invalid response code " + rc + " from " + url +
@@ -293,6 +299,7 @@ class Fetcher extends Thread {
       SecureShuffleUtils.verifyReply(replyHash, encHash, jobTokenSecret);
       LOG.info("for url="+msgToEncode+" sent hash and receievd reply");
     } catch (IOException ie) {
+      ShuffleUtils.releaseConnection(connection, input, keepAlive, false, LOG);
       ioErrs.increment(1);
       if (!connectSucceeded) {
         LOG.warn("Failed to connect to " + host + " with " + remaining.size() + " inputs", ie);
@@ -340,7 +347,8 @@ class Fetcher extends Thread {
         }
       }
       
-      IOUtils.cleanup(LOG, input);
+      ShuffleUtils.releaseConnection(connection, input, keepAlive,
+          failedTasks == null && remaining.isEmpty(), LOG);
       
       // Sanity check
       if (failedTasks == null && !remaining.isEmpty()) {
@@ -0,0 +1,106 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.shuffle.impl;
+
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+
+/**
+ * Observed fetch performance of one source host, shared by the
+ * {@link MapHost}s of all partitions on that host. Bandwidth and connection
+ * latency are exponentially weighted moving averages, so that a host which
+ * turns sick is noticed after a few fetches.
+ */
+@Private
+class HostHealth {
+
+  // Weight of the latest observation in the moving averages
+  private static final double ALPHA = 0.3;
+
+  private final String hostName;
+  private int successes;
+  private int failures;
+  private long bytesFetched;
+  // bytes per millisecond, -1 until the first fetch completes
+  private double bandwidth = -1;
+  // milliseconds to connect and validate the response, -1 until known
+  private double latency = -1;
+
+  HostHealth(String hostName) {
+    this.hostName = hostName;
+  }
+
+  String getHostName() {
+    return hostName;
+  }
+
+  synchronized void connected(long millis) {
+    latency = latency < 0 ? millis : ALPHA * millis + (1 - ALPHA) * latency;
+  }
+
+  synchronized void fetchSucceeded(long bytes, long millis) {
+    successes++;
+    bytesFetched += bytes;
+    double observed = (double) bytes / Math.max(1, millis);
+    bandwidth = bandwidth < 0 ? observed : ALPHA * observed + (1 - ALPHA) * bandwidth;
+  }
+
+  synchronized void fetchFailed() {
+    failures++;
+  }
+
+  synchronized boolean isObserved() {
+    return successes + failures > 0;
+  }
+
+  synchronized double getBandwidth() {
+    return bandwidth;
+  }
+
+  synchronized double getLatency() {
+    return latency;
+  }
+
+  synchronized double getErrorRate() {
+    int attempts = successes + failures;
+    return attempts == 0 ? 0 : (double) failures / attempts;
+  }
+
+  synchronized long getBytesFetched() {
+    return bytesFetched;
+  }
+
+  /**
+   * Expected useful throughput of the host: its bandwidth, discounted by the
+   * share of fetches which fail. Hosts which have not been fetched from yet
+   * score highest, so that every host is measured early on.
+   */
+  synchronized double getScore() {
+    if (!isObserved()) {
+      return Double.MAX_VALUE;
+    }
+    return Math.max(0, bandwidth) * (1 - getErrorRate());
+  }
+
+  @Override
+  public synchronized String toString() {
+    return hostName + " [bandwidth=" + String.format("%.1f", bandwidth * 1000 / (1024 * 1024))
+        + " MB/s, latency=" + String.format("%.0f", latency) + " ms, successes="
+        + successes + ", failures=" + failures + "]";
+  }
+}
@@ -45,7 +45,7 @@ public class InMemoryReader extends Reader {
   public InMemoryReader(MergeManager merger, InputAttemptIdentifier taskAttemptId,
                         byte[] data, int start, int length)
   throws IOException {
-    super(null, length - start, null,null, null, false, 0, -1);
+    super(null, length, null,null, null, false, 0, -1);
     this.merger = merger;
     this.taskAttemptId = taskAttemptId;
 
@@ -75,6 +75,11 @@ public class InMemoryReader extends Reader {
   public long getLength() { 
     return fileLength;
   }
+
+  @Override
+  public int getHeaderLength() {
+    return 0;
+  }
   
   private void dumpOnError() {
     File dumpFile = new File("../output/" + taskAttemptId + ".dump");
@@ -24,10 +24,16 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.classification.InterfaceAudience;
 import org.apache.hadoop.classification.InterfaceStability;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.BoundedByteArrayOutputStream;
 import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.io.serializer.SerializationFactory;
+import org.apache.hadoop.io.serializer.Serializer;
+import org.apache.tez.common.counters.TezCounter;
 import org.apache.tez.runtime.library.common.sort.impl.IFile;
+import org.apache.tez.runtime.library.common.sort.impl.IFileChecksums;
 import org.apache.tez.runtime.library.common.sort.impl.IFileOutputStream;
 import org.apache.tez.runtime.library.common.sort.impl.IFile.Writer;
 
@@ -38,17 +44,58 @@ public class InMemoryWriter extends Writer {
 
   private DataOutputStream out;
 
+  private final TezCounter writesCounter;
+  private Serializer keySerializer;
+  private Serializer valueSerializer;
+  private final DataOutputBuffer serializedRecord = new DataOutputBuffer();
+
   // TODO Verify and fix counters if required.
   
   public InMemoryWriter(BoundedByteArrayOutputStream arrayStream) {
+    this(arrayStream, null);
+  }
+
+  /**
+   * Creates a writer which also accepts objects, such as the output of a
+   * combiner, and counts the records it writes into writesCounter.
+   */
+  public InMemoryWriter(Configuration conf,
+      BoundedByteArrayOutputStream arrayStream, Class keyClass,
+      Class valueClass, TezCounter writesCounter) throws IOException {
+    this(arrayStream, writesCounter);
+    SerializationFactory serializationFactory = new SerializationFactory(conf);
+    this.keySerializer = serializationFactory.getSerializer(keyClass);
+    this.keySerializer.open(serializedRecord);
+    this.valueSerializer = serializationFactory.getSerializer(valueClass);
+    this.valueSerializer.open(serializedRecord);
+  }
+
+  private InMemoryWriter(BoundedByteArrayOutputStream arrayStream,
+      TezCounter writesCounter) {
     super(null, null);
+    this.writesCounter = writesCounter;
+    // No header, InMemoryReader reads the records from the start of the array
     this.out =
-      new DataOutputStream(new IFileOutputStream(arrayStream));
+      new DataOutputStream(new IFileOutputStream(arrayStream, IFileChecksums.VERSION_1));
   }
 
   public void append(Object key, Object value) throws IOException {
-    throw new UnsupportedOperationException
-    ("InMemoryWriter.append(K key, V value");
+    if (keySerializer == null) {
+      throw new UnsupportedOperationException
+      ("InMemoryWriter.append(K key, V value");
+    }
+    serializedRecord.reset();
+    keySerializer.serialize(key);
+    int keyLength = serializedRecord.getLength();
+    valueSerializer.serialize(value);
+    int valueLength = serializedRecord.getLength() - keyLength;
+
+    WritableUtils.writeVInt(out, keyLength);
+    WritableUtils.writeVInt(out, valueLength);
+    out.write(serializedRecord.getData(), 0, serializedRecord.getLength());
+    if (writesCounter != null) {
+      writesCounter.increment(1);
+    }
   }
 
   public void append(DataInputBuffer key, DataInputBuffer value)
@@ -86,7 +133,9 @@ public class InMemoryWriter extends Writer {
       out.write(key.getData(), key.getPosition(), keyLength);
       out.write(value.getData(), value.getPosition(), valueLength);
     }
-
+    if (writesCounter != null) {
+      writesCounter.increment(1);
+    }
   }
 
   public void close() throws IOException {
@@ -97,6 +146,11 @@ public class InMemoryWriter extends Writer {
     // Close the stream
     out.close();
     out = null;
+
+    if (keySerializer != null) {
+      keySerializer.close();
+      valueSerializer.close();
+    }
   }
 
 }
@@ -0,0 +1,838 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.shuffle.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.io.serializer.SerializationFactory;
+import org.apache.hadoop.io.serializer.Serializer;
+import org.apache.hadoop.util.Progress;
+import org.apache.tez.common.counters.TezCounter;
+import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.common.sort.impl.IFile;
+import org.apache.tez.runtime.library.common.sort.impl.IFile.Reader.KeyState;
+import org.apache.tez.runtime.library.common.sort.impl.IFileChecksums;
+import org.apache.tez.runtime.library.common.sort.impl.TezMerger;
+import org.apache.tez.runtime.library.common.sort.impl.TezMerger.Segment;
+import org.apache.tez.runtime.library.common.sort.impl.TezRawKeyValueIterator;
+import org.apache.tez.runtime.library.hadoop.compat.NullProgressable;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Final merge of the shuffled inputs, split into key ranges which are merged
+ * in parallel.
+ *
+ * The range boundaries are chosen from keys sampled with the offsets of their
+ * records, weighted by the bytes they stand for. Files merged by the
+ * {@link MergeManager} are sampled while they are written, see
+ * {@link SampledWriter}, so they are not read before the merge. Other inputs
+ * are read once up front to sample them: inputs in memory, which costs no
+ * I/O, and map outputs fetched to disk, for which the read also verifies the
+ * checksum, which the range readers cannot. Each range then opens its own reader
+ * on every input at the last sampled record before the range starts, skips
+ * the few records which belong to the previous range and stops at the first
+ * sampled record past its end. Inputs must not be compressed, since readers
+ * are started at arbitrary records.
+ *
+ * Each range is merged by its own thread into a bounded queue of serialized
+ * records, and the queues are drained in key order. The queues together hold
+ * the prefetch memory reserved from the {@link MergeManager}, which is
+ * released on close.
+ */
+@Private
+@SuppressWarnings("rawtypes")
+class KeyRangeMerger implements TezRawKeyValueIterator {
+
+  private static final Log LOG = LogFactory.getLog(KeyRangeMerger.class);
+
+  // Total number of samples per range, over all inputs
+  private static final int SAMPLES_PER_RANGE = 100;
+  // Bounds of the samples a SampledWriter keeps per file
+  private static final long MIN_WRITE_SAMPLE_INTERVAL = 64 * 1024;
+  private static final int MAX_WRITE_SAMPLES = 1024;
+  static final int BATCH_SIZE = 256 * 1024;
+  private static final Batch END_OF_RANGE = new Batch(null, 0, null);
+
+  private final MergeManager manager;
+  private final Configuration conf;
+  private final FileSystem fs;
+  private final Class keyClass;
+  private final Class valueClass;
+  private final RawComparator comparator;
+  private final Path tmpDir;
+  private final int mergeFactor;
+  private final int parallelism;
+  private final long prefetchMemory;
+  private final int queueCapacity;
+  private final int ifileBufferSize;
+  private final TezCounter readsCounter;
+  private final TezCounter bytesReadCounter;
+  private final ExecutorService executor;
+
+  private final List<Source> sources = new ArrayList<Source>();
+  private final List<BlockingQueue<Batch>> queues =
+      new ArrayList<BlockingQueue<Batch>>();
+  private byte[][] boundaries;
+
+  private final DataInputBuffer batchIn = new DataInputBuffer();
+  private final DataInputBuffer key = new DataInputBuffer();
+  private final DataInputBuffer value = new DataInputBuffer();
+  private final Progress progress = new Progress();
+  private int currentRange;
+  private long totalBytes;
+  private long bytesConsumed;
+  private volatile boolean closed;
+
+  KeyRangeMerger(MergeManager manager, Configuration conf, FileSystem fs,
+      Class keyClass, Class valueClass, RawComparator comparator, Path tmpDir,
+      int mergeFactor, int parallelism, long prefetchMemory, int ifileBufferSize,
+      TezCounter readsCounter, TezCounter bytesReadCounter, String name) {
+    this.manager = manager;
+    this.conf = conf;
+    this.fs = fs;
+    this.keyClass = keyClass;
+    this.valueClass = valueClass;
+    this.comparator = comparator;
+    this.tmpDir = tmpDir;
+    this.mergeFactor = mergeFactor;
+    this.parallelism = parallelism;
+    this.prefetchMemory = prefetchMemory;
+    this.queueCapacity = (int) Math.max(1, prefetchMemory / parallelism / BATCH_SIZE);
+    this.ifileBufferSize = ifileBufferSize;
+    this.readsCounter = readsCounter;
+    this.bytesReadCounter = bytesReadCounter;
+    this.executor = Executors.newFixedThreadPool(parallelism,
+        new ThreadFactoryBuilder().setDaemon(true)
+            .setNameFormat("KeyRangeMerger [" + name + "] #%d").build());
+  }
+
+  void addInMemory(InputAttemptIdentifier attemptIdentifier, byte[] data) {
+    sources.add(new InMemorySource(attemptIdentifier, data));
+  }
+
+  void addOnDisk(Path file) {
+    addOnDisk(file, null);
+  }
+
+  /**
+   * @param fileSamples the samples of the file taken by the
+   *          {@link SampledWriter} which wrote it, or null to read the file
+   *          to sample it
+   */
+  void addOnDisk(Path file, FileSamples fileSamples) {
+    sources.add(new DiskSource(file, fileSamples));
+  }
+
+  /**
+   * Sample the inputs, and start merging the key ranges.
+   */
+  void start() throws IOException {
+    try {
+      sample();
+    } catch (IOException e) {
+      close();
+      throw e;
+    }
+    boundaries = selectBoundaries();
+    int numRanges = boundaries.length + 1;
+    LOG.info("Merging " + sources.size() + " inputs, " + totalBytes
+        + " bytes in " + numRanges + " key ranges");
+    for (int i = 0; i < numRanges; i++) {
+      BlockingQueue<Batch> queue = new ArrayBlockingQueue<Batch>(queueCapacity);
+      queues.add(queue);
+      executor.submit(new RangeMergeCallable(i, queue));
+    }
+  }
+
+  private void sample() throws IOException {
+    long sourceBytes = 0;
+    for (Source source : sources) {
+      sourceBytes += source.getFileLength();
+    }
+    long stride = Math.max(1, sourceBytes / (SAMPLES_PER_RANGE * parallelism));
+    List<Future<Void>> futures = new ArrayList<Future<Void>>();
+    for (final Source source : sources) {
+      // every input gets a few samples, so that no range reads all of it
+      final long sourceStride = Math.max(1,
+          Math.min(stride, source.getFileLength() / parallelism));
+      futures.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+          source.sample(sourceStride);
+          return null;
+        }
+      }));
+    }
+    for (Future<Void> future : futures) {
+      waitFor(future);
+    }
+    for (Source source : sources) {
+      totalBytes += source.dataLength;
+    }
+  }
+
+  private void waitFor(Future<Void> future) throws IOException {
+    try {
+      future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while sampling inputs", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * Pick the keys which split the sampled bytes into equal parts. Boundaries
+   * which would leave a range without sampled keys are dropped, so there may
+   * be fewer ranges than requested.
+   */
+  private byte[][] selectBoundaries() {
+    List<Sample> samples = new ArrayList<Sample>();
+    long totalWeight = 0;
+    for (Source source : sources) {
+      samples.addAll(source.samples);
+      for (Sample sample : source.samples) {
+        totalWeight += sample.weight;
+      }
+    }
+    Collections.sort(samples, new Comparator<Sample>() {
+      @Override
+      public int compare(Sample a, Sample b) {
+        return compareKeys(a.key, b.key);
+      }
+    });
+    List<byte[]> selected = new ArrayList<byte[]>();
+    if (samples.isEmpty()) {
+      return new byte[0][];
+    }
+    byte[] previous = samples.get(0).key;
+    long weight = 0;
+    int next = 1;
+    for (Sample sample : samples) {
+      if (next == parallelism) {
+        break;
+      }
+      weight += sample.weight;
+      if (weight * parallelism >= totalWeight * next) {
+        if (compareKeys(previous, sample.key) < 0) {
+          selected.add(sample.key);
+          previous = sample.key;
+        }
+        while (next < parallelism && weight * parallelism >= totalWeight * next) {
+          next++;
+        }
+      }
+    }
+    return selected.toArray(new byte[selected.size()][]);
+  }
+
+  private int compareKeys(byte[] a, byte[] b) {
+    return comparator.compare(a, 0, a.length, b, 0, b.length);
+  }
+
+  private int compareKeys(DataInputBuffer a, byte[] b) {
+    return comparator.compare(a.getData(), a.getPosition(),
+        a.getLength() - a.getPosition(), b, 0, b.length);
+  }
+
+  @VisibleForTesting
+  int getNumRanges() {
+    return queues.size();
+  }
+
+  @Override
+  public DataInputBuffer getKey() throws IOException {
+    return key;
+  }
+
+  @Override
+  public DataInputBuffer getValue() throws IOException {
+    return value;
+  }
+
+  @Override
+  public boolean next() throws IOException {
+    while (batchIn.getPosition() >= batchIn.getLength()) {
+      if (currentRange == queues.size()) {
+        progress.set(1.0f);
+        return false;
+      }
+      Batch batch;
+      try {
+        batch = queues.get(currentRange).take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for merged records", e);
+      }
+      if (batch.error != null) {
+        throw new IOException("Merge of key range " + currentRange + " failed",
+            batch.error);
+      }
+      if (batch == END_OF_RANGE) {
+        currentRange++;
+        continue;
+      }
+      batchIn.reset(batch.data, batch.length);
+      bytesConsumed += batch.length;
+      progress.set(totalBytes == 0 ? 1.0f
+          : Math.min(1.0f, (float) bytesConsumed / totalBytes));
+    }
+    int keyLength = WritableUtils.readVInt(batchIn);
+    int valueLength = WritableUtils.readVInt(batchIn);
+    int position = batchIn.getPosition();
+    byte[] data = batchIn.getData();
+    key.reset(data, position, keyLength);
+    value.reset(data, position + keyLength, valueLength);
+    batchIn.skip(keyLength + valueLength);
+    return true;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    executor.shutdownNow();
+    try {
+      if (!executor.awaitTermination(60, TimeUnit.SECONDS)) {
+        LOG.warn("Timed out waiting for key range mergers to stop");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    for (Source source : sources) {
+      source.release();
+    }
+    manager.releasePrefetchMemory(prefetchMemory);
+  }
+
+  @Override
+  public Progress getProgress() {
+    return progress;
+  }
+
+  private static class Batch {
+    final byte[] data;
+    final int length;
+    final Throwable error;
+
+    Batch(byte[] data, int length, Throwable error) {
+      this.data = data;
+      this.length = length;
+      this.error = error;
+    }
+  }
+
+  private static class Sample {
+    final byte[] key;
+    final long offset;
+    final long weight;
+
+    Sample(byte[] key, long offset, long weight) {
+      this.key = key;
+      this.offset = offset;
+      this.weight = weight;
+    }
+  }
+
+  private abstract class Source {
+    final List<Sample> samples = new ArrayList<Sample>();
+    // Length of the records, excluding the checksum header and trailer of a file
+    long dataLength;
+    int headerLength;
+
+    abstract long getFileLength();
+
+    /**
+     * Open a reader over [start, end) of the records. Both must be offsets
+     * of records, or the end of the data.
+     */
+    abstract IFile.Reader open(long start, long end) throws IOException;
+
+    abstract IFile.Reader openForSampling() throws IOException;
+
+    abstract void release() throws IOException;
+
+    void sample(long stride) throws IOException {
+      scan(stride);
+    }
+
+    /**
+     * Sample the keys by reading all the records.
+     */
+    final void scan(long stride) throws IOException {
+      IFile.Reader reader = openForSampling();
+      DataInputBuffer sampleKey = new DataInputBuffer();
+      DataInputBuffer skipValue = new DataInputBuffer();
+      long nextSample = 0;
+      try {
+        while (true) {
+          long offset = reader.bytesRead;
+          KeyState state = reader.readRawKey(sampleKey);
+          if (state == KeyState.NO_KEY) {
+            break;
+          }
+          // A repeated key has no key bytes, and cannot start a reader
+          if (state == KeyState.NEW_KEY && offset >= nextSample) {
+            samples.add(new Sample(Arrays.copyOfRange(sampleKey.getData(),
+                sampleKey.getPosition(), sampleKey.getLength()), offset, stride));
+            nextSample = offset + stride;
+          }
+          reader.nextRawValue(skipValue);
+        }
+        headerLength = reader.getHeaderLength();
+        dataLength = reader.getLength() - headerLength;
+      } finally {
+        reader.close();
+      }
+    }
+
+    /**
+     * Offset of the last sampled record before the key, which is where a
+     * reader for keys from the given one on may start.
+     */
+    long startOffset(byte[] lower) {
+      long offset = 0;
+      if (lower != null) {
+        for (Sample sample : samples) {
+          if (compareKeys(sample.key, lower) >= 0) {
+            break;
+          }
+          offset = sample.offset;
+        }
+      }
+      return offset;
+    }
+
+    /**
+     * Offset of the first sampled record at or after the key, where a reader
+     * for keys before the given one may stop.
+     */
+    long endOffset(byte[] upper) {
+      if (upper != null) {
+        for (Sample sample : samples) {
+          if (compareKeys(sample.key, upper) >= 0) {
+            return sample.offset;
+          }
+        }
+      }
+      return dataLength;
+    }
+  }
+
+  private class InMemorySource extends Source {
+    private final InputAttemptIdentifier attemptIdentifier;
+    private final byte[] data;
+
+    InMemorySource(InputAttemptIdentifier attemptIdentifier, byte[] data) {
+      this.attemptIdentifier = attemptIdentifier;
+      this.data = data;
+    }
+
+    @Override
+    long getFileLength() {
+      return data.length;
+    }
+
+    @Override
+    IFile.Reader open(long start, long end) throws IOException {
+      return new InMemoryReader(null, attemptIdentifier, data, (int) start,
+          (int) (end - start));
+    }
+
+    @Override
+    IFile.Reader openForSampling() throws IOException {
+      return open(0, data.length);
+    }
+
+    @Override
+    void release() {
+      manager.unreserve(data.length);
+    }
+  }
+
+  private class DiskSource extends Source {
+    private final Path file;
+    private final FileSamples fileSamples;
+    private long fileLength = -1;
+
+    DiskSource(Path file, FileSamples fileSamples) {
+      this.file = file;
+      this.fileSamples = fileSamples;
+      if (fileSamples != null) {
+        fileLength = fileSamples.fileLength;
+      }
+    }
+
+    @Override
+    void sample(long stride) throws IOException {
+      if (fileSamples == null) {
+        scan(stride);
+        return;
+      }
+      dataLength = fileSamples.dataLength;
+      headerLength = (int) (fileLength - dataLength - IFileChecksums.CHECKSUM_SIZE);
+      // Take every sample at least a stride past the previous one, weighted
+      // by the bytes up to the next one taken
+      List<Sample> taken = new ArrayList<Sample>();
+      long nextSample = 0;
+      for (Sample sample : fileSamples.samples) {
+        if (sample.offset >= nextSample) {
+          taken.add(sample);
+          nextSample = sample.offset + stride;
+        }
+      }
+      for (int i = 0; i < taken.size(); i++) {
+        long end = i + 1 < taken.size() ? taken.get(i + 1).offset : dataLength;
+        Sample sample = taken.get(i);
+        samples.add(new Sample(sample.key, sample.offset, end - sample.offset));
+      }
+    }
+
+    @Override
+    long getFileLength() {
+      if (fileLength == -1) {
+        try {
+          fileLength = fs.getFileStatus(file).getLen();
+        } catch (IOException e) {
+          // surfaces again when the file is opened
+          fileLength = 0;
+        }
+      }
+      return fileLength;
+    }
+
+    @Override
+    IFile.Reader open(long start, long end) throws IOException {
+      FSDataInputStream in = fs.open(file);
+      in.seek(headerLength + start);
+      // The checksum covers the whole file, and was verified when sampling.
+      // Starting past the header, the reader takes the records for version 1.
+      IFile.Reader reader = new IFile.Reader(in,
+          end - start + (getFileLength() - dataLength - headerLength), null, readsCounter,
+          bytesReadCounter, false, 0, ifileBufferSize);
+      reader.disableChecksumValidation();
+      return reader;
+    }
+
+    @Override
+    IFile.Reader openForSampling() throws IOException {
+      return new IFile.Reader(fs, file, null, null, null, false, 0,
+          ifileBufferSize);
+    }
+
+    @Override
+    void release() throws IOException {
+      fs.delete(file, false);
+    }
+  }
+
+  /**
+   * Keys of a file with the offsets of their records, taken by the
+   * {@link SampledWriter} which wrote it.
+   */
+  static class FileSamples {
+    private final List<Sample> samples;
+    // Length of the records, and of the whole file
+    private final long dataLength;
+    private final long fileLength;
+
+    FileSamples(List<Sample> samples, long dataLength, long fileLength) {
+      this.samples = samples;
+      this.dataLength = dataLength;
+      this.fileLength = fileLength;
+    }
+  }
+
+  /**
+   * Writer of an uncompressed file for the merge, which samples keys with the
+   * offsets of their records while writing. A sample is taken at least every
+   * {@link #MIN_WRITE_SAMPLE_INTERVAL} bytes, and every other sample is
+   * dropped whenever there are {@link #MAX_WRITE_SAMPLES}, so that the samples
+   * of a large file stay few.
+   */
+  static class SampledWriter extends IFile.Writer {
+    private final Serializer sampleKeySerializer;
+    private final DataOutputBuffer sampleKeyBuffer = new DataOutputBuffer();
+    private final List<Sample> samples = new ArrayList<Sample>();
+    private long interval = MIN_WRITE_SAMPLE_INTERVAL;
+    private long nextSample = 0;
+    private FileSamples fileSamples;
+
+    @SuppressWarnings("unchecked")
+    SampledWriter(Configuration conf, FileSystem fs, Path file, Class keyClass,
+        Class valueClass, TezCounter writesCounter) throws IOException {
+      super(conf, fs, file, keyClass, valueClass, null, writesCounter, null);
+      sampleKeySerializer = new SerializationFactory(conf).getSerializer(keyClass);
+      sampleKeySerializer.open(sampleKeyBuffer);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void append(Object key, Object value) throws IOException {
+      long offset = getRawLength();
+      super.append(key, value);
+      if (offset >= nextSample) {
+        sampleKeyBuffer.reset();
+        sampleKeySerializer.serialize(key);
+        addSample(Arrays.copyOf(sampleKeyBuffer.getData(), sampleKeyBuffer.getLength()),
+            offset);
+      }
+    }
+
+    @Override
+    public void append(DataInputBuffer key, DataInputBuffer value)
+        throws IOException {
+      long offset = getRawLength();
+      super.append(key, value);
+      if (offset >= nextSample) {
+        addSample(Arrays.copyOfRange(key.getData(), key.getPosition(),
+            key.getLength()), offset);
+      }
+    }
+
+    private void addSample(byte[] key, long offset) {
+      samples.add(new Sample(key, offset, 0));
+      if (samples.size() == MAX_WRITE_SAMPLES) {
+        for (int i = 0; i < MAX_WRITE_SAMPLES / 2; i++) {
+          samples.set(i, samples.get(2 * i));
+        }
+        samples.subList(MAX_WRITE_SAMPLES / 2, MAX_WRITE_SAMPLES).clear();
+        interval *= 2;
+        offset = samples.get(samples.size() - 1).offset;
+      }
+      nextSample = offset + interval;
+    }
+
+    @Override
+    public void setRLE(boolean rle) {
+      // A repeated key has no key bytes, and its record cannot start a reader
+      Preconditions.checkArgument(!rle, "RLE cannot be used on a sampled file");
+      super.setRLE(rle);
+    }
+
+    @Override
+    public void close() throws IOException {
+      super.close();
+      sampleKeySerializer.close();
+      fileSamples = new FileSamples(samples, getRawLength(), getCompressedLength());
+    }
+
+    /**
+     * @return the samples of the file, once it is closed
+     */
+    FileSamples getFileSamples() {
+      return fileSamples;
+    }
+  }
+
+  /**
+   * Reads the records of one key range from one input.
+   */
+  private class RangeReader extends IFile.Reader {
+
+    private final Source source;
+    private final long start;
+    private final long end;
+    private final byte[] upper;
+    private byte[] lower;
+    private IFile.Reader reader;
+    private boolean done;
+    private final DataInputBuffer skipValue = new DataInputBuffer();
+    private final DataInputBuffer rangeValue = new DataInputBuffer();
+
+    RangeReader(Source source, long start, long end, byte[] lower,
+        byte[] upper) throws IOException {
+      super(null, end - start, null, null, null, false, 0, -1);
+      this.source = source;
+      this.start = start;
+      this.end = end;
+      this.lower = lower;
+      this.upper = upper;
+    }
+
+    @Override
+    public KeyState readRawKey(DataInputBuffer key) throws IOException {
+      if (done) {
+        return KeyState.NO_KEY;
+      }
+      if (reader == null) {
+        reader = source.open(start, end);
+      }
+      while (true) {
+        if (reader.bytesRead >= end - start) {
+          done = true;
+          return KeyState.NO_KEY;
+        }
+        KeyState state = reader.readRawKey(key);
+        if (state == KeyState.NO_KEY) {
+          done = true;
+          return state;
+        }
+        if (lower != null) {
+          if (compareKeys(key, lower) < 0) {
+            reader.nextRawValue(skipValue);
+            continue;
+          }
+          // keys are sorted, so there is nothing left to skip
+          lower = null;
+        }
+        if (upper != null && compareKeys(key, upper) >= 0) {
+          done = true;
+          return KeyState.NO_KEY;
+        }
+        return state;
+      }
+    }
+
+    @Override
+    public void nextRawValue(DataInputBuffer value) throws IOException {
+      // The merge treats reader-backed segments as in memory, and may hand
+      // in the buffer of another segment, which a file reader would overwrite
+      reader.nextRawValue(rangeValue);
+      int position = rangeValue.getPosition();
+      value.reset(rangeValue.getData(), position,
+          rangeValue.getLength() - position);
+    }
+
+    @Override
+    public long getPosition() throws IOException {
+      return reader == null ? 0 : reader.bytesRead;
+    }
+
+    @Override
+    public long getLength() {
+      return fileLength;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (reader != null) {
+        reader.close();
+        reader = null;
+      }
+    }
+  }
+
+  private class RangeMergeCallable implements Callable<Void> {
+
+    private final int range;
+    private final BlockingQueue<Batch> queue;
+
+    RangeMergeCallable(int range, BlockingQueue<Batch> queue) {
+      this.range = range;
+      this.queue = queue;
+    }
+
+    @Override
+    public Void call() throws InterruptedException {
+      try {
+        merge();
+        queue.put(END_OF_RANGE);
+      } catch (InterruptedException e) {
+        throw e;
+      } catch (Throwable t) {
+        if (!closed) {
+          LOG.error("Merge of key range " + range + " failed", t);
+        }
+        queue.put(new Batch(null, 0, t));
+      }
+      return null;
+    }
+
+    private void merge() throws IOException, InterruptedException {
+      byte[] lower = range == 0 ? null : boundaries[range - 1];
+      byte[] upper = range == boundaries.length ? null : boundaries[range];
+      List<Segment> segments = new ArrayList<Segment>();
+      for (Source source : sources) {
+        long start = source.startOffset(lower);
+        long end = source.endOffset(upper);
+        if (start < end) {
+          segments.add(new Segment(
+              new RangeReader(source, start, end, lower, upper), true));
+        }
+      }
+      if (segments.isEmpty()) {
+        return;
+      }
+      // Intermediate merges of different ranges must not share file names
+      TezRawKeyValueIterator iter = TezMerger.merge(conf, fs, keyClass,
+          valueClass, segments, mergeFactor, new Path(tmpDir, "range" + range),
+          comparator, new NullProgressable(), readsCounter, null,
+          bytesReadCounter, null);
+      try {
+        DataOutputBuffer out = new DataOutputBuffer(BATCH_SIZE);
+        while (iter.next()) {
+          DataInputBuffer k = iter.getKey();
+          DataInputBuffer v = iter.getValue();
+          int keyLength = k.getLength() - k.getPosition();
+          int valueLength = v.getLength() - v.getPosition();
+          WritableUtils.writeVInt(out, keyLength);
+          WritableUtils.writeVInt(out, valueLength);
+          out.write(k.getData(), k.getPosition(), keyLength);
+          out.write(v.getData(), v.getPosition(), valueLength);
+          if (out.getLength() >= BATCH_SIZE) {
+            queue.put(new Batch(out.getData(), out.getLength(), null));
+            out = new DataOutputBuffer(BATCH_SIZE);
+          }
+          if (Thread.interrupted()) {
+            throw new InterruptedException();
+          }
+        }
+        if (out.getLength() > 0) {
+          queue.put(new Batch(out.getData(), out.getLength(), null));
+        }
+      } finally {
+        iter.close();
+      }
+    }
+  }
+}
@@ -40,12 +40,32 @@ class MapHost {
   private final String identifier;
   // Tracks attempt IDs
   private List<InputAttemptIdentifier> maps = new ArrayList<InputAttemptIdentifier>();
+  private final HostHealth health;
+  // The host whose straggling fetch this one duplicates, null if not a hedge
+  private final MapHost hedgedHost;
+  // Inputs of the fetch in progress, and when it started
+  private List<InputAttemptIdentifier> inFlight = new ArrayList<InputAttemptIdentifier>();
+  private long fetchStartTime;
+  private boolean hedged;
+  // Whether the host waits in the scheduler's queue of pending hosts
+  private boolean queued;
   
   public MapHost(int partitionId, String hostName, String baseUrl) {
+    this(partitionId, hostName, baseUrl, new HostHealth(hostName));
+  }
+
+  MapHost(int partitionId, String hostName, String baseUrl, HostHealth health) {
+    this(partitionId, hostName, baseUrl, health, null);
+  }
+
+  private MapHost(int partitionId, String hostName, String baseUrl,
+      HostHealth health, MapHost hedgedHost) {
     this.partitionId = partitionId;
     this.hostName = hostName;
     this.baseUrl = baseUrl;
     this.identifier = createIdentifier(hostName, partitionId);
+    this.health = health;
+    this.hedgedHost = hedgedHost;
   }
   
   public static String createIdentifier(String hostName, int partitionId) {
@@ -72,11 +92,16 @@ class MapHost {
     return baseUrl;
   }
 
-  public synchronized void addKnownMap(InputAttemptIdentifier srcAttempt) {
+  /**
+   * @return true if the host turned PENDING, and should be queued
+   */
+  public synchronized boolean addKnownMap(InputAttemptIdentifier srcAttempt) {
     maps.add(srcAttempt);
     if (state == State.IDLE) {
       state = State.PENDING;
+      return true;
     }
+    return false;
   }
 
   public synchronized List<InputAttemptIdentifier> getAndClearKnownMaps() {
@@ -87,6 +112,64 @@ class MapHost {
   
   public synchronized void markBusy() {
     state = State.BUSY;
+    fetchStartTime = System.currentTimeMillis();
+    hedged = false;
+    queued = false;
+  }
+
+  /**
+   * Mark the host as queued for a fetcher. It stays queued until a fetcher
+   * marks it busy.
+   * @return false if the host is queued already, and must not be queued twice
+   */
+  synchronized boolean markQueued() {
+    if (queued) {
+      return false;
+    }
+    queued = true;
+    return true;
+  }
+
+  HostHealth getHealth() {
+    return health;
+  }
+
+  MapHost getHedgedHost() {
+    return hedgedHost;
+  }
+
+  synchronized void setInFlight(List<InputAttemptIdentifier> inFlight) {
+    this.inFlight = inFlight;
+  }
+
+  synchronized boolean hasInFlight() {
+    return !inFlight.isEmpty();
+  }
+
+  synchronized long getFetchStartTime() {
+    return fetchStartTime;
+  }
+
+  synchronized boolean isHedged() {
+    return hedged;
+  }
+
+  /**
+   * Create a host which fetches the inputs of the fetch in progress on this
+   * one a second time. Map outputs are only served by the node which produced
+   * them, so the duplicate goes to the same host, over a new connection.
+   * @return the duplicate, or null if the host is not fetching or is
+   *         already hedged
+   */
+  synchronized MapHost createHedge() {
+    if (state != State.BUSY || hedged) {
+      return null;
+    }
+    hedged = true;
+    MapHost hedge = new MapHost(partitionId, hostName, baseUrl, health, this);
+    hedge.maps.addAll(inFlight);
+    hedge.markBusy();
+    return hedge;
   }
   
   public synchronized void markPenalized() {
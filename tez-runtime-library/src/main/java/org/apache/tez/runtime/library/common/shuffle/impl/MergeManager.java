@@ -17,11 +17,14 @@
  */
 package org.apache.tez.runtime.library.common.shuffle.impl;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -40,6 +43,7 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.DataInputBuffer;
 import org.apache.hadoop.io.RawComparator;
 import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.util.Progress;
 import org.apache.hadoop.util.Progressable;
 import org.apache.tez.common.TezJobConfig;
 import org.apache.tez.common.TezUtils;
@@ -58,6 +62,9 @@ import org.apache.tez.runtime.library.common.sort.impl.IFile.Writer;
 import org.apache.tez.runtime.library.common.sort.impl.TezMerger.Segment;
 import org.apache.tez.runtime.library.common.task.local.output.TezTaskOutputFiles;
 import org.apache.tez.runtime.library.hadoop.compat.NullProgressable;
+import org.apache.tez.runtime.library.shuffle.common.AdaptiveShuffleMemoryPolicy;
+
+import com.google.common.annotations.VisibleForTesting;
 
 
 /**
@@ -79,6 +86,11 @@ public class MergeManager {
   private final  TezTaskOutputFiles mapOutputFile;
   private final Progressable nullProgressable = new NullProgressable();
   private final Combiner combiner;  
+  // Whether the memory-to-memory and on-disk merges run the combiner too, and
+  // all combines are counted. The in-memory merge always combines.
+  private final boolean combineInMerges;
+  private final TezCounter combineInputRecords;
+  private final TezCounter combineOutputRecords;
   
   private final Set<MapOutput> inMemoryMergedMapOutputs = 
     new TreeSet<MapOutput>(new MapOutput.MapOutputComparator());
@@ -90,6 +102,9 @@ public class MergeManager {
   
   private final Set<Path> onDiskMapOutputs = new TreeSet<Path>();
   private final OnDiskMerger onDiskMerger;
+  // Keys sampled while writing the merged files, for the key range merge
+  private final Map<Path, KeyRangeMerger.FileSamples> mergedFileSamples =
+      new HashMap<Path, KeyRangeMerger.FileSamples>();
   
   private final long memoryLimit;
   private final int postMergeMemLimit;
@@ -97,6 +112,8 @@ public class MergeManager {
   private long commitMemory;
   private final int ioSortFactor;
   private final long maxSingleShuffleLimit;
+  // Adjusts the limits to the heap headroom, if enabled
+  private final AdaptiveShuffleMemoryPolicy memoryPolicy;
   
   private final int memToMemMergeOutputsThreshold; 
   private final long mergeThreshold;
@@ -126,6 +143,10 @@ public class MergeManager {
   private final int ifileReadAheadLength;
   private final int ifileBufferSize;
 
+  private final int finalMergeParallelism;
+  private final long finalMergePrefetchBytes;
+  private final boolean splitByKeyRange;
+
 
   /**
    * Construct the MergeManager. Must call start before it becomes usable.
@@ -150,6 +171,13 @@ public class MergeManager {
     this.initialMemoryAvailable = initialMemoryAvailable;
     
     this.combiner = combiner;
+    this.combineInMerges = combiner != null && conf.getBoolean(
+        TezJobConfig.TEZ_RUNTIME_SHUFFLE_MERGE_COMBINE_ENABLED,
+        TezJobConfig.DEFAULT_TEZ_RUNTIME_SHUFFLE_MERGE_COMBINE_ENABLED);
+    this.combineInputRecords = inputContext.getCounters().findCounter(
+        TaskCounter.SHUFFLE_MERGE_COMBINE_INPUT_RECORDS);
+    this.combineOutputRecords = inputContext.getCounters().findCounter(
+        TaskCounter.SHUFFLE_MERGE_COMBINE_OUTPUT_RECORDS);
 
     this.reduceCombineInputCounter = reduceCombineInputCounter;
     this.spilledRecordsCounter = spilledRecordsCounter;
@@ -173,6 +201,15 @@ public class MergeManager {
     }
     this.ifileBufferSize = conf.getInt("io.file.buffer.size",
         TezJobConfig.TEZ_RUNTIME_IFILE_BUFFER_SIZE_DEFAULT);
+    this.finalMergeParallelism = conf.getInt(
+        TezJobConfig.TEZ_RUNTIME_SHUFFLE_FINAL_MERGE_PARALLELISM,
+        TezJobConfig.DEFAULT_TEZ_RUNTIME_SHUFFLE_FINAL_MERGE_PARALLELISM);
+    this.finalMergePrefetchBytes = conf.getLong(
+        TezJobConfig.TEZ_RUNTIME_SHUFFLE_FINAL_MERGE_PREFETCH_BYTES,
+        TezJobConfig.DEFAULT_TEZ_RUNTIME_SHUFFLE_FINAL_MERGE_PREFETCH_BYTES);
+    // Readers of a key range start at arbitrary records, which a compressed
+    // stream does not allow
+    this.splitByKeyRange = finalMergeParallelism > 1 && codec == null;
     
     // Figure out initial memory req start
     final float maxInMemCopyUse =
@@ -254,6 +291,13 @@ public class MergeManager {
           + "maxSingleShuffleLimit: " + this.maxSingleShuffleLimit
           + "mergeThreshold: " + this.mergeThreshold);
     }
+
+    if (AdaptiveShuffleMemoryPolicy.isEnabled(conf)) {
+      this.memoryPolicy = new AdaptiveShuffleMemoryPolicy(conf, memoryLimit,
+          maxSingleShuffleLimit);
+    } else {
+      this.memoryPolicy = null;
+    }
     
     boolean allowMemToMemMerge = 
         conf.getBoolean(
@@ -321,19 +365,24 @@ public class MergeManager {
   }
   
   private boolean canShuffleToMemory(long requestedSize) {
+    if (memoryPolicy != null) {
+      return requestedSize < memoryPolicy.getSingleShuffleLimit(inMemoryMerger.isInProgress());
+    }
     return (requestedSize < maxSingleShuffleLimit); 
   }
 
   final private MapOutput stallShuffle = new MapOutput(null);
 
-  public synchronized MapOutput reserve(InputAttemptIdentifier srcAttemptIdentifier, 
-                                             long requestedSize,
-                                             int fetcher
-                                             ) throws IOException {
+  public MapOutput reserve(InputAttemptIdentifier srcAttemptIdentifier, 
+                           long requestedSize,
+                           int fetcher
+                           ) throws IOException {
+    // Outputs shuffled to disk do not touch the memory accounting, and are
+    // set up without holding the lock
     if (!canShuffleToMemory(requestedSize)) {
       LOG.info(srcAttemptIdentifier + ": Shuffling to disk since " + requestedSize + 
-               " is greater than maxSingleShuffleLimit (" + 
-               maxSingleShuffleLimit + ")");
+               " is greater than the single shuffle limit (maxSingleShuffleLimit=" + 
+               maxSingleShuffleLimit + ", adaptive=" + (memoryPolicy != null) + ")");
       return new MapOutput(srcAttemptIdentifier, this, requestedSize, conf, 
                                 localDirAllocator, fetcher, true,
                                 mapOutputFile);
@@ -353,19 +402,31 @@ public class MergeManager {
     // (usedMemory + requestedSize > memoryLimit). When this thread is done
     // fetching, this will automatically trigger a merge thereby unlocking
     // all the stalled threads
+    //
+    // With the adaptive policy, threads may also go past the limit by a
+    // bounded amount while the heap has room for the output.
     
-    if (usedMemory > memoryLimit) {
-      LOG.debug(srcAttemptIdentifier + ": Stalling shuffle since usedMemory (" + usedMemory
-          + ") is greater than memoryLimit (" + memoryLimit + ")." + 
-          " CommitMemory is (" + commitMemory + ")"); 
-      return stallShuffle;
+    synchronized (this) {
+      if (usedMemory > memoryLimit && (memoryPolicy == null
+          || !memoryPolicy.canExceedMemoryLimit(usedMemory, requestedSize))) {
+        if (LOG.isDebugEnabled()) {
+          LOG.debug(srcAttemptIdentifier + ": Stalling shuffle since usedMemory (" + usedMemory
+              + ") is greater than memoryLimit (" + memoryLimit + ")." + 
+              " CommitMemory is (" + commitMemory + ")");
+        }
+        return stallShuffle;
+      }
+      
+      // Allow the in-memory shuffle to progress
+      if (LOG.isDebugEnabled()) {
+        LOG.debug(srcAttemptIdentifier + ": Proceeding with shuffle since usedMemory ("
+            + usedMemory + ") is lesser than memoryLimit (" + memoryLimit + ")."
+            + "CommitMemory is (" + commitMemory + ")");
+      }
+      usedMemory += requestedSize;
     }
-    
-    // Allow the in-memory shuffle to progress
-    LOG.debug(srcAttemptIdentifier + ": Proceeding with shuffle since usedMemory ("
-        + usedMemory + ") is lesser than memoryLimit (" + memoryLimit + ")."
-        + "CommitMemory is (" + commitMemory + ")"); 
-    return unconditionalReserve(srcAttemptIdentifier, requestedSize, true);
+    // The buffer is allocated outside of the lock
+    return new MapOutput(srcAttemptIdentifier, this, (int)requestedSize, true);
   }
   
   /**
@@ -383,6 +444,27 @@ public class MergeManager {
     usedMemory -= size;
   }
 
+  /**
+   * Reserve the memory the key ranges of the final merge buffer ahead of the
+   * processor: the configured prefetch of every range, within what is left
+   * of the shuffle memory. Each range buffers at least one batch, which is
+   * reserved even past the limit.
+   */
+  @VisibleForTesting
+  synchronized long reservePrefetchMemory() {
+    long requested = finalMergeParallelism * finalMergePrefetchBytes;
+    long minimum = (long) finalMergeParallelism * KeyRangeMerger.BATCH_SIZE;
+    long reserved = Math.max(minimum, Math.min(requested, memoryLimit - usedMemory));
+    usedMemory += reserved;
+    LOG.info("Reserved " + reserved + " bytes for the prefetch of " + finalMergeParallelism
+        + " key ranges, usedMemory=" + usedMemory + ", memoryLimit=" + memoryLimit);
+    return reserved;
+  }
+
+  synchronized void releasePrefetchMemory(long size) {
+    usedMemory -= size;
+  }
+
   public synchronized void closeInMemoryFile(MapOutput mapOutput) { 
     inMemoryMapOutputs.add(mapOutput);
     LOG.info("closeInMemoryFile -> map-output of size: " + mapOutput.getSize()
@@ -390,6 +472,9 @@ public class MergeManager {
         + ", commitMemory -> " + commitMemory + ", usedMemory ->" + usedMemory);
 
     commitMemory+= mapOutput.getSize();
+    if (memoryPolicy != null) {
+      memoryPolicy.fetchedToMemory(mapOutput.getSize());
+    }
 
     synchronized (inMemoryMerger) {
       // Can hang if mergeThreshold is really low.
@@ -467,9 +552,97 @@ public class MergeManager {
     return kvIter;
   }
    
+  /**
+   * Create the writer of a merged file, which samples the keys it writes
+   * when the final merge is split by key range.
+   */
+  private Writer createMergeWriter(Configuration conf, FileSystem fs,
+      Path outputPath, Class keyClass, Class valueClass,
+      TezCounter writesCounter) throws IOException {
+    if (splitByKeyRange) {
+      return new KeyRangeMerger.SampledWriter(conf, fs, outputPath, keyClass,
+          valueClass, writesCounter);
+    }
+    return new Writer(conf, fs, outputPath, keyClass, valueClass, codec,
+        writesCounter, null);
+  }
+
+  private synchronized void addMergedFileSamples(Path file, Writer writer) {
+    if (writer instanceof KeyRangeMerger.SampledWriter) {
+      mergedFileSamples.put(file,
+          ((KeyRangeMerger.SampledWriter) writer).getFileSamples());
+    }
+  }
+
+  private synchronized KeyRangeMerger.FileSamples removeMergedFileSamples(
+      Path file) {
+    return mergedFileSamples.remove(file);
+  }
+
   void runCombineProcessor(TezRawKeyValueIterator kvIter, Writer writer)
       throws IOException, InterruptedException {
-    combiner.combine(kvIter, writer);
+    combiner.combine(new CountingIterator(kvIter, combineInputRecords), writer);
+  }
+
+  /**
+   * Write the output of a merge, through the combiner if the merges combine.
+   * The in-memory merge runs an uncounted combiner even when the other merges
+   * do not combine. The writer must count its records into
+   * combineOutputRecords when combineInMerges is set.
+   */
+  private void writeMergeOutput(TezRawKeyValueIterator kvIter, Writer writer,
+      boolean inMemoryMerge) throws IOException, InterruptedException {
+    if (combineInMerges) {
+      runCombineProcessor(kvIter, writer);
+    } else if (inMemoryMerge && combiner != null) {
+      // TODO Counters for Combine
+      combiner.combine(kvIter, writer);
+    } else {
+      TezMerger.writeFile(kvIter, writer, nullProgressable,
+          TezJobConfig.DEFAULT_RECORDS_BEFORE_PROGRESS);
+    }
+  }
+
+  /**
+   * Counts the records the combiner reads.
+   */
+  private static class CountingIterator implements TezRawKeyValueIterator {
+    private final TezRawKeyValueIterator kvIter;
+    private final TezCounter counter;
+
+    CountingIterator(TezRawKeyValueIterator kvIter, TezCounter counter) {
+      this.kvIter = kvIter;
+      this.counter = counter;
+    }
+
+    @Override
+    public DataInputBuffer getKey() throws IOException {
+      return kvIter.getKey();
+    }
+
+    @Override
+    public DataInputBuffer getValue() throws IOException {
+      return kvIter.getValue();
+    }
+
+    @Override
+    public boolean next() throws IOException {
+      if (kvIter.next()) {
+        counter.increment(1);
+        return true;
+      }
+      return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+      kvIter.close();
+    }
+
+    @Override
+    public Progress getProgress() {
+      return kvIter.getProgress();
+    }
   }
 
   /**
@@ -486,39 +659,66 @@ public class MergeManager {
     }
 
     @Override
-    public void merge(List<MapOutput> inputs) throws IOException {
+    public void merge(List<MapOutput> inputs) throws IOException, InterruptedException {
       if (inputs == null || inputs.size() == 0) {
         return;
       }
 
       InputAttemptIdentifier dummyMapId = inputs.get(0).getAttemptIdentifier(); 
-      List<Segment> inMemorySegments = new ArrayList<Segment>();
-      long mergeOutputSize = 
-        createInMemorySegments(inputs, inMemorySegments, 0);
-      int noInMemorySegments = inMemorySegments.size();
-      
-      MapOutput mergedMapOutputs = 
-        unconditionalReserve(dummyMapId, mergeOutputSize, false);
+      List<MapOutput> mergeInputs = new ArrayList<MapOutput>(inputs);
+      inputs.clear();
+      long mergeOutputSize = 0;
+      int primaryMapOutputs = 0;
+      for (MapOutput mo : mergeInputs) {
+        mergeOutputSize += mo.getMemory().length;
+        if (mo.isPrimaryMapOutput()) {
+          primaryMapOutputs++;
+        }
+      }
+      int noInMemorySegments = mergeInputs.size();
       
-      Writer writer = 
-        new InMemoryWriter(mergedMapOutputs.getArrayStream());
-
       LOG.info("Initiating Memory-to-Memory merge with " + noInMemorySegments +
                " segments of total-size: " + mergeOutputSize);
 
-      // Nothing will be materialized to disk because the sort factor is being
-      // set to the number of in memory segments.
-      // TODO Is this doing any combination ?
-      TezRawKeyValueIterator rIter = 
-        TezMerger.merge(conf, rfs,
-                       ConfigUtils.getIntermediateInputKeyClass(conf),
-                       ConfigUtils.getIntermediateInputValueClass(conf),
-                       inMemorySegments, inMemorySegments.size(),
-                       new Path(inputContext.getUniqueIdentifier()),
-                       (RawComparator)ConfigUtils.getIntermediateInputKeyComparator(conf),
-                       nullProgressable, null, null, null, null); 
-      TezMerger.writeFile(rIter, writer, nullProgressable, TezJobConfig.DEFAULT_RECORDS_BEFORE_PROGRESS);
-      writer.close();
+      // The merged output is never larger than its inputs. The output of the
+      // combiner usually is not either, but if it does not fit the inputs are
+      // merged again without combining.
+      MapOutput mergedMapOutputs =
+          unconditionalReserve(dummyMapId, mergeOutputSize, false);
+      boolean combined = false;
+      if (combineInMerges) {
+        long inputRecords = combineInputRecords.getValue();
+        long outputRecords = combineOutputRecords.getValue();
+        Writer writer = new InMemoryWriter(conf,
+            mergedMapOutputs.getArrayStream(),
+            ConfigUtils.getIntermediateInputKeyClass(conf),
+            ConfigUtils.getIntermediateInputValueClass(conf),
+            combineOutputRecords);
+        try {
+          runCombineProcessor(mergeInMemory(mergeInputs), writer);
+          writer.close();
+          combined = true;
+        } catch (EOFException e) {
+          LOG.info("Combined output of the Memory-to-Memory merge exceeds " +
+              mergeOutputSize + " bytes, merging without combining");
+          combineInputRecords.setValue(inputRecords);
+          combineOutputRecords.setValue(outputRecords);
+          mergedMapOutputs.getArrayStream().reset();
+        }
+      }
+      if (!combined) {
+        Writer writer = 
+          new InMemoryWriter(mergedMapOutputs.getArrayStream());
+        TezMerger.writeFile(mergeInMemory(mergeInputs), writer,
+            nullProgressable, TezJobConfig.DEFAULT_RECORDS_BEFORE_PROGRESS);
+        writer.close();
+      }
+
+      // The inputs are only released once merged, see mergeInMemory
+      for (MapOutput mo : mergeInputs) {
+        unreserve(mo.getMemory().length);
+      }
+      mergedMapOutputsCounter.increment(primaryMapOutputs);
 
       LOG.info(inputContext.getUniqueIdentifier() +  
                " Memory-to-Memory merge of the " + noInMemorySegments +
@@ -527,6 +727,30 @@ public class MergeManager {
       // Note the output of the merge
       closeInMemoryMergedFile(mergedMapOutputs);
     }
+
+    /**
+     * Merges the inputs without releasing them, so that they can be merged
+     * again if the combined output does not fit in the reserved memory.
+     */
+    private TezRawKeyValueIterator mergeInMemory(List<MapOutput> mergeInputs)
+        throws IOException {
+      List<Segment> inMemorySegments = new ArrayList<Segment>();
+      for (MapOutput mo : mergeInputs) {
+        byte[] data = mo.getMemory();
+        IFile.Reader reader = new InMemoryReader(null,
+            mo.getAttemptIdentifier(), data, 0, data.length);
+        inMemorySegments.add(new Segment(reader, true));
+      }
+      // Nothing will be materialized to disk because the sort factor is being
+      // set to the number of in memory segments.
+      return TezMerger.merge(conf, rfs,
+                       ConfigUtils.getIntermediateInputKeyClass(conf),
+                       ConfigUtils.getIntermediateInputValueClass(conf),
+                       inMemorySegments, inMemorySegments.size(),
+                       new Path(inputContext.getUniqueIdentifier()),
+                       (RawComparator)ConfigUtils.getIntermediateInputKeyComparator(conf),
+                       nullProgressable, null, null, null, null);
+    }
   }
   
   /**
@@ -547,6 +771,7 @@ public class MergeManager {
       }
       
       numMemToDiskMerges.increment(1);
+      long mergeStartTime = System.currentTimeMillis();
       
       //name this output file same as the name of the first file that is 
       //there in the current list of inmem files (this is guaranteed to
@@ -574,11 +799,10 @@ public class MergeManager {
 
       Writer writer = null;
       try {
-        writer =
-            new Writer(conf, rfs, outputPath,
-                (Class)ConfigUtils.getIntermediateInputKeyClass(conf),
-                (Class)ConfigUtils.getIntermediateInputValueClass(conf),
-                codec, null, null);
+        writer = createMergeWriter(conf, rfs, outputPath,
+            (Class)ConfigUtils.getIntermediateInputKeyClass(conf),
+            (Class)ConfigUtils.getIntermediateInputValueClass(conf),
+            combineInMerges ? combineOutputRecords : null);
 
         TezRawKeyValueIterator rIter = null;
         LOG.info("Initiating in-memory merge with " + noInMemorySegments + 
@@ -596,14 +820,10 @@ public class MergeManager {
         // read from each of the segments being merged - which is essentially
         // what will be written to disk.
 
-        if (null == combiner) {
-          TezMerger.writeFile(rIter, writer, nullProgressable, TezJobConfig.DEFAULT_RECORDS_BEFORE_PROGRESS);
-        } else {
-          // TODO Counters for Combine
-          runCombineProcessor(rIter, writer);
-        }
+        writeMergeOutput(rIter, writer, true);
         writer.close();
         additionalBytesWritten.increment(writer.getCompressedLength());
+        addMergedFileSamples(outputPath, writer);
         writer = null;
 
         LOG.info(inputContext.getUniqueIdentifier() +  
@@ -624,6 +844,9 @@ public class MergeManager {
 
       // Note the output of the merge
       closeOnDiskFile(outputPath);
+      if (memoryPolicy != null) {
+        memoryPolicy.merged(mergeOutputSize, System.currentTimeMillis() - mergeStartTime);
+      }
     }
 
   }
@@ -640,7 +863,7 @@ public class MergeManager {
     }
     
     @Override
-    public void merge(List<Path> inputs) throws IOException {
+    public void merge(List<Path> inputs) throws IOException, InterruptedException {
       // sanity check
       if (inputs == null || inputs.isEmpty()) {
         LOG.info("No ondisk files to merge...");
@@ -669,10 +892,10 @@ public class MergeManager {
         localDirAllocator.getLocalPathForWrite(inputs.get(0).toString(), 
             approxOutputSize, conf).suffix(Constants.MERGED_OUTPUT_PREFIX);
       Writer writer = 
-        new Writer(conf, rfs, outputPath, 
+        createMergeWriter(conf, rfs, outputPath, 
                         (Class)ConfigUtils.getIntermediateInputKeyClass(conf), 
                         (Class)ConfigUtils.getIntermediateInputValueClass(conf),
-                        codec, null, null);
+                        combineInMerges ? combineOutputRecords : null);
       TezRawKeyValueIterator iter  = null;
       Path tmpDir = new Path(inputContext.getUniqueIdentifier());
       try {
@@ -688,7 +911,7 @@ public class MergeManager {
         // TODO Maybe differentiate between data written because of Merges and
         // the finalMerge (i.e. final mem available may be different from
         // initial merge mem)
-        TezMerger.writeFile(iter, writer, nullProgressable, TezJobConfig.DEFAULT_RECORDS_BEFORE_PROGRESS);
+        writeMergeOutput(iter, writer, false);
         writer.close();
         additionalBytesWritten.increment(writer.getCompressedLength());
       } catch (IOException e) {
@@ -696,6 +919,12 @@ public class MergeManager {
         throw e;
       }
 
+      // The inputs are deleted by the merge
+      for (Path file : inputs) {
+        removeMergedFileSamples(file);
+      }
+      addMergedFileSamples(outputPath, writer);
+
       closeOnDiskFile(outputPath);
 
       LOG.info(inputContext.getUniqueIdentifier() +
@@ -800,7 +1029,7 @@ public class MergeManager {
                                                 this.postMergeMemLimit);
       final int numMemDiskSegments = memDiskSegments.size();
       if (numMemDiskSegments > 0 &&
-            ioSortFactor > onDiskMapOutputs.size()) {
+            (ioSortFactor > onDiskMapOutputs.size() || splitByKeyRange)) {
         
         // If we reach here, it implies that we have less than io.sort.factor
         // disk segments and this will be incremented by 1 (result of the 
@@ -818,8 +1047,8 @@ public class MergeManager {
         final TezRawKeyValueIterator rIter = TezMerger.merge(job, fs, keyClass, valueClass,
             memDiskSegments, numMemDiskSegments, tmpDir, comparator, nullProgressable,
             spilledRecordsCounter, null, additionalBytesRead, null);
-        final Writer writer = new Writer(job, fs, outputPath,
-            keyClass, valueClass, codec, null, null);
+        final Writer writer = createMergeWriter(job, fs, outputPath,
+            keyClass, valueClass, null);
         try {
           TezMerger.writeFile(rIter, writer, nullProgressable, TezJobConfig.DEFAULT_RECORDS_BEFORE_PROGRESS);
           // add to list of final disk outputs.
@@ -839,6 +1068,7 @@ public class MergeManager {
             additionalBytesWritten.increment(writer.getCompressedLength());
           }
         }
+        addMergedFileSamples(outputPath, writer);
         LOG.info("Merged " + numMemDiskSegments + " segments, " +
                  inMemToDiskBytes + " bytes to disk to satisfy " +
                  "reduce memory limit");
@@ -851,6 +1081,11 @@ public class MergeManager {
       }
     }
 
+    if (splitByKeyRange) {
+      return keyRangeMerge(job, fs, keyClass, valueClass, comparator, tmpDir,
+          inMemoryMapOutputs, onDiskMapOutputs);
+    }
+
     // segments on disk
     List<Segment> diskSegments = new ArrayList<Segment>();
     long onDiskBytes = inMemToDiskBytes;
@@ -904,4 +1139,31 @@ public class MergeManager {
                  comparator, nullProgressable, spilledRecordsCounter, null,
                  additionalBytesRead, null);
   }
+
+  private TezRawKeyValueIterator keyRangeMerge(Configuration job,
+      FileSystem fs, Class keyClass, Class valueClass,
+      RawComparator comparator, Path tmpDir,
+      List<MapOutput> inMemoryMapOutputs, List<Path> onDiskMapOutputs)
+      throws IOException {
+    KeyRangeMerger merger = new KeyRangeMerger(this, job, fs, keyClass,
+        valueClass, comparator, tmpDir, ioSortFactor, finalMergeParallelism,
+        reservePrefetchMemory(), ifileBufferSize, spilledRecordsCounter,
+        additionalBytesRead,
+        TezUtils.cleanVertexName(inputContext.getSourceVertexName()));
+    for (MapOutput mo : inMemoryMapOutputs) {
+      merger.addInMemory(mo.getAttemptIdentifier(), mo.getMemory());
+      if (mo.isPrimaryMapOutput()) {
+        mergedMapOutputsCounter.increment(1);
+      }
+    }
+    inMemoryMapOutputs.clear();
+    for (Path file : onDiskMapOutputs) {
+      merger.addOnDisk(file, removeMergedFileSamples(file));
+      if (!file.toString().endsWith(Constants.MERGED_OUTPUT_PREFIX)) {
+        mergedMapOutputsCounter.increment(1);
+      }
+    }
+    merger.start();
+    return merger;
+  }
 }
@@ -151,6 +151,7 @@ public class Shuffle implements ExceptionReporter {
           this.conf,
           this.numInputs,
           this,
+          metrics,
           shuffledInputsCounter,
           reduceShuffleBytes,
           reduceDataSizeDecompressed,
@@ -159,7 +160,8 @@ public class Shuffle implements ExceptionReporter {
           bytesShuffedToMem);
     eventHandler= new ShuffleInputEventHandler(
           inputContext,
-          scheduler);
+          scheduler,
+          ShuffleUtils.isKeepAliveEnabled(conf));
     merger = new MergeManager(
           this.conf,
           localFS,
@@ -298,9 +300,7 @@ public class Shuffle implements ExceptionReporter {
       throwingThreadName = Thread.currentThread().getName();
       // Notify the scheduler so that the reporting thread finds the 
       // exception immediately.
-      synchronized (scheduler) {
-        scheduler.notifyAll();
-      }
+      scheduler.wakeup();
     }
   }
   
@@ -17,6 +17,9 @@
  */
 package org.apache.tez.runtime.library.common.shuffle.impl;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.metrics.MetricsContext;
 import org.apache.hadoop.metrics.MetricsRecord;
@@ -34,6 +37,11 @@ class ShuffleClientMetrics implements Updater {
   private long numBytes = 0;
   private int numThreadsBusy = 0;
   private final int numCopiers;
+  private final MetricsContext metricsContext;
+  private final String dagName;
+  private final String taskId;
+  private final List<HostHealth> hosts = new ArrayList<HostHealth>();
+  private final List<MetricsRecord> hostMetrics = new ArrayList<MetricsRecord>();
   
   ShuffleClientMetrics(String dagName, String vertexName, int taskIndex, Configuration conf, 
       String user) {
@@ -42,12 +50,14 @@ class ShuffleClientMetrics implements Updater {
             TezJobConfig.TEZ_RUNTIME_SHUFFLE_PARALLEL_COPIES, 
             TezJobConfig.DEFAULT_TEZ_RUNTIME_SHUFFLE_PARALLEL_COPIES);
 
-    MetricsContext metricsContext = MetricsUtil.getContext(Constants.TEZ);
+    this.metricsContext = MetricsUtil.getContext(Constants.TEZ);
+    this.dagName = dagName;
+    this.taskId = TezRuntimeUtils.getTaskIdentifier(vertexName, taskIndex);
     this.shuffleMetrics = 
       MetricsUtil.createRecord(metricsContext, "shuffleInput");
     this.shuffleMetrics.setTag("user", user);
     this.shuffleMetrics.setTag("dagName", dagName);
-    this.shuffleMetrics.setTag("taskId", TezRuntimeUtils.getTaskIdentifier(vertexName, taskIndex));
+    this.shuffleMetrics.setTag("taskId", taskId);
     this.shuffleMetrics.setTag("sessionId", 
         conf.get(
             TezJobConfig.TEZ_RUNTIME_METRICS_SESSION_ID, 
@@ -69,6 +79,18 @@ class ShuffleClientMetrics implements Updater {
   public synchronized void threadFree() {
     --numThreadsBusy;
   }
+  /**
+   * Publish the observed bandwidth, latency and error rate of a source host
+   * in a "shuffleInputHost" record tagged with the host name.
+   */
+  synchronized void registerHost(HostHealth health) {
+    MetricsRecord record = MetricsUtil.createRecord(metricsContext, "shuffleInputHost");
+    record.setTag("dagName", dagName);
+    record.setTag("taskId", taskId);
+    record.setTag("host", health.getHostName());
+    hosts.add(health);
+    hostMetrics.add(record);
+  }
   public void doUpdates(MetricsContext unused) {
     synchronized (this) {
       shuffleMetrics.incrMetric("shuffle_input_bytes", numBytes);
@@ -85,6 +107,17 @@ class ShuffleClientMetrics implements Updater {
       numBytes = 0;
       numSuccessFetches = 0;
       numFailedFetches = 0;
+      for (int i = 0; i < hosts.size(); i++) {
+        HostHealth health = hosts.get(i);
+        MetricsRecord record = hostMetrics.get(i);
+        // bytes per ms to MB per s
+        record.setMetric("shuffle_host_bandwidth_mbps",
+            (float) (Math.max(0, health.getBandwidth()) * 1000 / (1024 * 1024)));
+        record.setMetric("shuffle_host_latency_ms", (float) Math.max(0, health.getLatency()));
+        record.setMetric("shuffle_host_error_rate", (float) health.getErrorRate());
+        record.setMetric("shuffle_host_bytes", health.getBytesFetched());
+        record.update();
+      }
     }
     shuffleMetrics.update();
   }
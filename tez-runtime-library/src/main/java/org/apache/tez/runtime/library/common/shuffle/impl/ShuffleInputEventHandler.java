@@ -42,13 +42,15 @@ public class ShuffleInputEventHandler {
 
   private final ShuffleScheduler scheduler;
   private final TezInputContext inputContext;
+  private final boolean keepAlive;
 
   private int maxMapRuntime = 0;
   
   public ShuffleInputEventHandler(TezInputContext inputContext,
-      ShuffleScheduler scheduler) {
+      ShuffleScheduler scheduler, boolean keepAlive) {
     this.inputContext = inputContext;
     this.scheduler = scheduler;
+    this.keepAlive = keepAlive;
   }
 
   public void handleEvents(List<Event> events) {
@@ -122,6 +124,9 @@ public class ShuffleInputEventHandler {
     
     sb.append("&reduce=");
     sb.append(partitionId);
+    if (keepAlive) {
+      sb.append("&keepAlive=true");
+    }
     sb.append("&map=");
     URI u = URI.create(sb.toString());
     return u;
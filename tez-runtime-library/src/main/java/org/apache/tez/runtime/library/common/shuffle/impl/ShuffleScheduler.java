@@ -20,8 +20,7 @@ package org.apache.tez.runtime.library.common.shuffle.impl;
 import java.io.IOException;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -29,15 +28,20 @@ import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.DelayQueue;
 import java.util.concurrent.Delayed;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.io.IntWritable;
 import org.apache.tez.common.TezJobConfig;
 import org.apache.tez.common.TezUtils;
 import org.apache.tez.common.counters.TaskCounter;
@@ -51,6 +55,14 @@ import org.apache.tez.runtime.library.common.shuffle.impl.MapOutput.Type;
 
 import com.google.common.collect.Lists;
 
+/**
+ * Tracks the inputs left to fetch and hands out hosts to the fetchers. The
+ * fetchers do not take a scheduler-wide lock: host state is guarded by each
+ * {@link MapHost}, input completion is claimed with a compare-and-set, and
+ * pending hosts wait in a concurrent priority queue. The scheduler monitor
+ * only keeps the registration of outputs and {@link #resetKnownMaps()} from
+ * interleaving.
+ */
 class ShuffleScheduler {
   static ThreadLocal<Long> shuffleStart = new ThreadLocal<Long>() {
     protected Long initialValue() {
@@ -61,26 +73,47 @@ class ShuffleScheduler {
   private static final Log LOG = LogFactory.getLog(ShuffleScheduler.class);
   private static final long INITIAL_PENALTY = 2000l; // 2 seconds
   private static final float PENALTY_GROWTH_RATE = 1.3f;
+  // A fetch is hedged once it runs this many times longer than the average
+  // fetch, and for at least HEDGE_MIN_FETCH_MILLIS
+  private static final int HEDGE_SLOWDOWN = 3;
+  private static final long HEDGE_MIN_FETCH_MILLIS = 1000l;
+  private static final long HEDGE_CHECK_INTERVAL = 500l;
+  // A pending host is handed out ahead of hosts which score higher once it
+  // has waited this long
+  private static final long MAX_PENDING_WAIT_MILLIS = 10000l;
   
   // TODO NEWTEZ May need to be a string if attempting to fetch from multiple inputs.
-  private boolean[] finishedMaps;
+  private final AtomicIntegerArray finishedMaps;
   private final int numInputs;
-  private int remainingMaps;
-  private Map<String, MapHost> mapLocations = new HashMap<String, MapHost>();
+  private final AtomicInteger remainingMaps;
+  // Guards waits for the shuffle to finish
+  private final Object doneMonitor = new Object();
+  private final ConcurrentMap<String, MapHost> mapLocations =
+      new ConcurrentHashMap<String, MapHost>();
   //TODO NEWTEZ Clean this and other maps at some point
   private ConcurrentMap<String, InputAttemptIdentifier> pathToIdentifierMap = new ConcurrentHashMap<String, InputAttemptIdentifier>(); 
-  private Set<MapHost> pendingHosts = new HashSet<MapHost>();
-  private Set<InputAttemptIdentifier> obsoleteInputs = new HashSet<InputAttemptIdentifier>();
+  // Holds the hosts in state PENDING, each once, by score. Hosts taken
+  // through pendingOrder leave a stale entry behind, which is skipped.
+  private final PriorityBlockingQueue<PendingHost> pendingHosts =
+      new PriorityBlockingQueue<PendingHost>();
+  // The entries of pendingHosts in the order they were queued
+  private final ConcurrentLinkedQueue<PendingHost> pendingOrder =
+      new ConcurrentLinkedQueue<PendingHost>();
+  private final ConcurrentMap<String, HostHealth> hostHealth =
+      new ConcurrentHashMap<String, HostHealth>();
+  private final Set<InputAttemptIdentifier> obsoleteInputs = Collections
+      .newSetFromMap(new ConcurrentHashMap<InputAttemptIdentifier, Boolean>());
   
   private final Random random = new Random(System.currentTimeMillis());
   private final DelayQueue<Penalty> penalties = new DelayQueue<Penalty>();
   private final Referee referee;
-  private final Map<InputAttemptIdentifier, IntWritable> failureCounts =
-    new HashMap<InputAttemptIdentifier,IntWritable>(); 
-  private final Map<String,IntWritable> hostFailures = 
-    new HashMap<String,IntWritable>();
+  private final ConcurrentMap<InputAttemptIdentifier, AtomicInteger> failureCounts =
+      new ConcurrentHashMap<InputAttemptIdentifier, AtomicInteger>();
+  private final ConcurrentMap<String, AtomicInteger> hostFailures =
+      new ConcurrentHashMap<String, AtomicInteger>();
   private final TezInputContext inputContext;
   private final Shuffle shuffle;
+  private final ShuffleClientMetrics metrics;
   private final TezCounter shuffledInputsCounter;
   private final TezCounter skippedInputCounter;
   private final TezCounter reduceShuffleBytes;
@@ -90,22 +123,27 @@ class ShuffleScheduler {
   private final TezCounter bytesShuffledToMem;
   
   private final long startTime;
-  private long lastProgressTime;
+  private volatile long lastProgressTime;
 
   private int maxTaskOutputAtOnce;
   private int maxFetchFailuresBeforeReporting;
   private boolean reportReadErrorImmediately = true; 
   private int maxFailedUniqueFetches = 5;
   private final int abortFailureLimit;
-  private int maxMapRuntime = 0;
-
-  private long totalBytesShuffledTillNow = 0;
-  private DecimalFormat  mbpsFormat = new DecimalFormat("0.00");
+  private volatile int maxMapRuntime = 0;
+  private final boolean hedgeEnabled;
+  private final int hedgeTailInputs;
+  private final AtomicLong totalFetchMillis = new AtomicLong();
+  private final AtomicInteger numFetches = new AtomicInteger();
+
+  private final AtomicLong totalBytesShuffledTillNow = new AtomicLong();
+  private final DecimalFormat mbpsFormat = new DecimalFormat("0.00");
   
   public ShuffleScheduler(TezInputContext inputContext,
                           Configuration conf,
                           int numberOfInputs,
                           Shuffle shuffle,
+                          ShuffleClientMetrics metrics,
                           TezCounter shuffledInputsCounter,
                           TezCounter reduceShuffleBytes,
                           TezCounter reduceBytesDecompressed,
@@ -115,10 +153,11 @@ class ShuffleScheduler {
     this.inputContext = inputContext;
     this.numInputs = numberOfInputs;
     abortFailureLimit = Math.max(30, numberOfInputs / 10);
-    remainingMaps = numberOfInputs;
-    finishedMaps = new boolean[remainingMaps]; // default init to false
+    remainingMaps = new AtomicInteger(numberOfInputs);
+    finishedMaps = new AtomicIntegerArray(numberOfInputs); // 1 once finished
     this.referee = new Referee();
     this.shuffle = shuffle;
+    this.metrics = metrics;
     this.shuffledInputsCounter = shuffledInputsCounter;
     this.reduceShuffleBytes = reduceShuffleBytes;
     this.reduceBytesDecompressed = reduceBytesDecompressed;
@@ -143,6 +182,13 @@ class ShuffleScheduler {
             TezJobConfig.TEZ_RUNTIME_SHUFFLE_FETCH_MAX_TASK_OUTPUT_AT_ONCE,
             TezJobConfig.DEFAULT_TEZ_RUNTIME_SHUFFLE_FETCH_MAX_TASK_OUTPUT_AT_ONCE));
     
+    this.hedgeEnabled = conf.getBoolean(
+        TezJobConfig.TEZ_RUNTIME_SHUFFLE_HEDGED_FETCH_ENABLED,
+        TezJobConfig.DEFAULT_TEZ_RUNTIME_SHUFFLE_HEDGED_FETCH_ENABLED);
+    this.hedgeTailInputs = Math.max(1, (int) (numberOfInputs * conf.getFloat(
+        TezJobConfig.TEZ_RUNTIME_SHUFFLE_HEDGED_FETCH_TAIL_PERCENT,
+        TezJobConfig.DEFAULT_TEZ_RUNTIME_SHUFFLE_HEDGED_FETCH_TAIL_PERCENT)));
+    
     this.skippedInputCounter = inputContext.getCounters().findCounter(TaskCounter.NUM_SKIPPED_INPUTS);
     
     LOG.info("ShuffleScheduler running for sourceVertex: "
@@ -151,24 +197,34 @@ class ShuffleScheduler {
         + ", reportReadErrorImmediately=" + reportReadErrorImmediately
         + ", maxFailedUniqueFetches=" + maxFailedUniqueFetches
         + ", abortFailureLimit=" + abortFailureLimit
-        + ", maxMapRuntime=" + maxMapRuntime);
+        + ", maxMapRuntime=" + maxMapRuntime
+        + ", hedgeEnabled=" + hedgeEnabled
+        + ", hedgeTailInputs=" + hedgeTailInputs);
   }
 
-  public synchronized void copySucceeded(InputAttemptIdentifier srcAttemptIdentifier, 
-                                         MapHost host,
-                                         long bytesCompressed,
-                                         long bytesDecompressed,
-                                         long milis,
-                                         MapOutput output
-                                         ) throws IOException {
+  public void copySucceeded(InputAttemptIdentifier srcAttemptIdentifier, 
+                            MapHost host,
+                            long bytesCompressed,
+                            long bytesDecompressed,
+                            long milis,
+                            MapOutput output
+                            ) throws IOException {
     failureCounts.remove(srcAttemptIdentifier);
     if (host != null) {
       hostFailures.remove(host.getHostName());
+      host.getHealth().fetchSucceeded(bytesCompressed, milis);
     }
     
-    if (!isInputFinished(srcAttemptIdentifier.getInputIdentifier().getInputIndex())) {
+    int inputIndex = srcAttemptIdentifier.getInputIdentifier().getInputIndex();
+    // Only the first copy of an input to complete may claim it
+    if (finishedMaps.compareAndSet(inputIndex, 0, 1)) {
       if (output != null) {
-        output.commit();
+        try {
+          output.commit();
+        } catch (IOException e) {
+          finishedMaps.set(inputIndex, 0);
+          throw e;
+        }
         if (output.getType() == Type.DISK) {
           bytesShuffledToDisk.increment(bytesCompressed);
         } else {
@@ -180,61 +236,66 @@ class ShuffleScheduler {
         // registered without needing to fetch data
         skippedInputCounter.increment(1);
       }
-      setInputFinished(srcAttemptIdentifier.getInputIdentifier().getInputIndex());
       
-      if (--remainingMaps == 0) {
+      if (remainingMaps.decrementAndGet() == 0) {
         LOG.info("All inputs fetched for input vertex : " + inputContext.getSourceVertexName());
-        notifyAll();
+        wakeup();
       }
 
       // update the status
       lastProgressTime = System.currentTimeMillis();
-      totalBytesShuffledTillNow += bytesCompressed;
+      totalBytesShuffledTillNow.addAndGet(bytesCompressed);
       logProgress();
       reduceShuffleBytes.increment(bytesCompressed);
       reduceBytesDecompressed.increment(bytesDecompressed);
       if (LOG.isDebugEnabled()) {
         LOG.debug("src task: "
             + TezRuntimeUtils.getTaskAttemptIdentifier(
-                inputContext.getSourceVertexName(), srcAttemptIdentifier.getInputIdentifier().getInputIndex(),
+                inputContext.getSourceVertexName(), inputIndex,
                 srcAttemptIdentifier.getAttemptNumber()) + " done");
       }
+    } else if (output != null) {
+      // Another fetch of the same input, e.g. a hedged one, won the race
+      LOG.info("Discarding duplicate copy of " + srcAttemptIdentifier + " from " + host);
+      output.abort();
     }
-    // TODO NEWTEZ Should this be releasing the output, if not committed ? Possible memory leak in case of speculation.
   }
 
   private void logProgress() {
-    float mbs = (float) totalBytesShuffledTillNow / (1024 * 1024);
-    int mapsDone = numInputs - remainingMaps;
+    float mbs = (float) totalBytesShuffledTillNow.get() / (1024 * 1024);
+    int mapsDone = numInputs - remainingMaps.get();
     long secsSinceStart = (System.currentTimeMillis() - startTime) / 1000 + 1;
 
     float transferRate = mbs / secsSinceStart;
-    LOG.info("copy(" + mapsDone + " of " + numInputs + " at "
-        + mbpsFormat.format(transferRate) + " MB/s)");
+    String rate;
+    synchronized (mbpsFormat) {
+      rate = mbpsFormat.format(transferRate);
+    }
+    LOG.info("copy(" + mapsDone + " of " + numInputs + " at " + rate + " MB/s)");
   }
 
-  public synchronized void copyFailed(InputAttemptIdentifier srcAttempt,
-                                      MapHost host,
-                                      boolean readError,
-                                      boolean connectError) {
+  public void copyFailed(InputAttemptIdentifier srcAttempt,
+                         MapHost host,
+                         boolean readError,
+                         boolean connectError) {
+    if (isInputFinished(srcAttempt.getInputIdentifier().getInputIndex())) {
+      // Typically the straggling fetch of an input which a hedge completed.
+      // The input is not needed anymore, so the failure is not held against
+      // the host or the source.
+      LOG.info("Ignoring failed fetch of finished input " + srcAttempt + " from " + host);
+      return;
+    }
+    host.getHealth().fetchFailed();
+    if (host.getHedgedHost() != null) {
+      // The original fetch is still running and is responsible for the input
+      LOG.info("Hedged fetch of " + srcAttempt + " from " + host + " failed");
+      return;
+    }
     host.penalize();
-    int failures = 1;
-    if (failureCounts.containsKey(srcAttempt)) {
-      IntWritable x = failureCounts.get(srcAttempt);
-      x.set(x.get() + 1);
-      failures = x.get();
-    } else {
-      failureCounts.put(srcAttempt, new IntWritable(1));      
-    }
-    String hostname = host.getHostName();
+    int failures = incrementFailures(failureCounts, srcAttempt);
     // TODO TEZ-922 hostFailures isn't really used for anything. Factor it into error
     // reporting / potential blacklisting of hosts.
-    if (hostFailures.containsKey(hostname)) {
-      IntWritable x = hostFailures.get(hostname);
-      x.set(x.get() + 1);
-    } else {
-      hostFailures.put(hostname, new IntWritable(1));
-    }
+    incrementFailures(hostFailures, host.getHostName());
     if (failures >= abortFailureLimit) {
       // This task has seen too many fetch failures - report it as failed. The
       // AM may retry it if max failures has not been reached.
@@ -263,6 +324,19 @@ class ShuffleScheduler {
     penalties.add(new Penalty(host, delay));    
   }
 
+  private static <K> int incrementFailures(ConcurrentMap<K, AtomicInteger> failures,
+      K key) {
+    AtomicInteger count = failures.get(key);
+    if (count == null) {
+      AtomicInteger newCount = new AtomicInteger();
+      count = failures.putIfAbsent(key, newCount);
+      if (count == null) {
+        count = newCount;
+      }
+    }
+    return count.incrementAndGet();
+  }
+
   public void reportLocalError(IOException ioe) {
     LOG.error("Shuffle failed : caused by local error", ioe);
     shuffle.reportException(ioe);
@@ -298,7 +372,7 @@ class ShuffleScheduler {
     final float MAX_ALLOWED_STALL_TIME_PERCENT = 0.5f;
 
     long totalFailures = failedShuffleCounter.getValue();
-    int doneMaps = numInputs - remainingMaps;
+    int doneMaps = numInputs - remainingMaps.get();
     
     boolean reducerHealthy =
       (((float)totalFailures / (totalFailures + doneMaps))
@@ -344,51 +418,110 @@ class ShuffleScheduler {
   }
   
   public synchronized void addKnownMapOutput(String hostName,
-                                             int partitionId,
-                                             String hostUrl,
-                                             InputAttemptIdentifier srcAttempt) {
+                                int partitionId,
+                                String hostUrl,
+                                InputAttemptIdentifier srcAttempt) {
     String identifier = MapHost.createIdentifier(hostName, partitionId);
     MapHost host = mapLocations.get(identifier);
     if (host == null) {
-      host = new MapHost(partitionId, hostName, hostUrl);
-      assert identifier.equals(host.getIdentifier());
-      mapLocations.put(identifier, host);
+      HostHealth health = hostHealth.get(hostName);
+      if (health == null) {
+        HostHealth newHealth = new HostHealth(hostName);
+        health = hostHealth.putIfAbsent(hostName, newHealth);
+        if (health == null) {
+          health = newHealth;
+          metrics.registerHost(health);
+        }
+      }
+      MapHost newHost = new MapHost(partitionId, hostName, hostUrl, health);
+      assert identifier.equals(newHost.getIdentifier());
+      host = mapLocations.putIfAbsent(identifier, newHost);
+      if (host == null) {
+        host = newHost;
+      }
     }
-    host.addKnownMap(srcAttempt);
+    // Register the path first, a fetcher may pick up the host right away
     pathToIdentifierMap.put(
         getIdentifierFromPathAndReduceId(srcAttempt.getPathComponent(), partitionId), srcAttempt);
 
     // Mark the host as pending
-    if (host.getState() == MapHost.State.PENDING) {
-      pendingHosts.add(host);
-      notifyAll();
+    if (host.addKnownMap(srcAttempt)) {
+      addPendingHost(host);
     }
   }
   
+  private void addPendingHost(MapHost host) {
+    // The penalty referee and the fetcher freeing the host may both find it
+    // pending
+    if (host.markQueued()) {
+      PendingHost pending = new PendingHost(host, random.nextInt());
+      pendingOrder.add(pending);
+      pendingHosts.add(pending);
+    }
+  }
+
+  /**
+   * Take the pending host which has waited longer than
+   * {@link #MAX_PENDING_WAIT_MILLIS}, if any, and the one which scores
+   * highest otherwise.
+   * @return the host, or null if none is pending
+   */
+  private PendingHost pollPendingHost() {
+    long now = System.currentTimeMillis();
+    PendingHost oldest;
+    while ((oldest = pendingOrder.peek()) != null) {
+      if (!oldest.isTaken() && now - oldest.queueTime < MAX_PENDING_WAIT_MILLIS) {
+        break;
+      }
+      pendingOrder.remove(oldest);
+      if (oldest.take()) {
+        LOG.info("Taking " + oldest.host + " after waiting "
+            + (now - oldest.queueTime) + "ms");
+        return oldest;
+      }
+    }
+    PendingHost pending;
+    do {
+      pending = pendingHosts.poll();
+    } while (pending != null && !pending.take());
+    return pending;
+  }
+  
   public synchronized void obsoleteInput(InputAttemptIdentifier srcAttempt) {
     // The incoming srcAttempt does not contain a path component.
     LOG.info("Adding obsolete input: " + srcAttempt);
     obsoleteInputs.add(srcAttempt);
   }
   
-  public synchronized void putBackKnownMapOutput(MapHost host,
-                                                 InputAttemptIdentifier srcAttempt) {
-    host.addKnownMap(srcAttempt);
+  public void putBackKnownMapOutput(MapHost host,
+                                    InputAttemptIdentifier srcAttempt) {
+    // Inputs of a failed hedge are still owned by the original fetch
+    if (host.getHedgedHost() == null) {
+      host.addKnownMap(srcAttempt);
+    }
   }
 
-  public synchronized MapHost getHost() throws InterruptedException {
-      while(pendingHosts.isEmpty()) {
-        wait();
-      }
-      
-      MapHost host = null;
-      Iterator<MapHost> iter = pendingHosts.iterator();
-      int numToPick = random.nextInt(pendingHosts.size());
-      for (int i=0; i <= numToPick; ++i) {
-        host = iter.next();
+  public MapHost getHost() throws InterruptedException {
+      PendingHost pending = pollPendingHost();
+      while (pending == null) {
+        if (!hedgeEnabled) {
+          pending = pendingHosts.take();
+        } else {
+          int remaining = remainingMaps.get();
+          if (remaining > 0 && remaining <= hedgeTailInputs) {
+            MapHost hedge = hedgeStraggler();
+            if (hedge != null) {
+              return hedge;
+            }
+          }
+          pending = pendingHosts.poll(HEDGE_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+        if (pending != null && !pending.take()) {
+          pending = null;
+        }
       }
       
-      pendingHosts.remove(host);     
+      MapHost host = pending.host;
       host.markBusy();
       
       LOG.info("Assigning " + host + " with " + host.getNumKnownMapOutputs() + 
@@ -398,6 +531,41 @@ class ShuffleScheduler {
       return host;
   }
   
+  /**
+   * Find the fetch which has been running the longest, beyond what the
+   * average fetch time suggests, and start a duplicate of it.
+   * @return the host to run the duplicate fetch against, or null
+   */
+  private MapHost hedgeStraggler() {
+    int fetches = numFetches.get();
+    if (fetches == 0) {
+      return null;
+    }
+    long now = System.currentTimeMillis();
+    long threshold = Math.max(HEDGE_MIN_FETCH_MILLIS,
+        HEDGE_SLOWDOWN * totalFetchMillis.get() / fetches);
+    MapHost straggler = null;
+    long longest = threshold;
+    for (MapHost host : mapLocations.values()) {
+      if (host.getState() == MapHost.State.BUSY && !host.isHedged()
+          && host.hasInFlight() && now - host.getFetchStartTime() > longest) {
+        straggler = host;
+        longest = now - host.getFetchStartTime();
+      }
+    }
+    if (straggler == null) {
+      return null;
+    }
+    // null if another fetcher hedged it first, or the fetch just completed
+    MapHost hedge = straggler.createHedge();
+    if (hedge != null) {
+      LOG.info("Hedging fetch from " + straggler + " running for " + longest
+          + "ms, threshold " + threshold + "ms, by " + Thread.currentThread().getName());
+      shuffleStart.set(now);
+    }
+    return hedge;
+  }
+  
   public InputAttemptIdentifier getIdentifierForFetchedOutput(
       String path, int reduceId) {
     return pathToIdentifierMap.get(getIdentifierFromPathAndReduceId(path, reduceId));
@@ -408,7 +576,7 @@ class ShuffleScheduler {
              !isInputFinished(id.getInputIdentifier().getInputIndex()));
   }
   
-  public synchronized List<InputAttemptIdentifier> getMapsForHost(MapHost host) {
+  public List<InputAttemptIdentifier> getMapsForHost(MapHost host) {
     List<InputAttemptIdentifier> origList = host.getAndClearKnownMaps();
 
     Map<Integer, InputAttemptIdentifier> dedupedList = new LinkedHashMap<Integer, InputAttemptIdentifier>();
@@ -456,15 +624,27 @@ class ShuffleScheduler {
     }
     LOG.info("assigned " + includedMaps + " of " + totalSize + " to " +
              host + " to " + Thread.currentThread().getName());
+    host.setInFlight(result);
     return result;
   }
 
-  public synchronized void freeHost(MapHost host) {
-    if (host.getState() != MapHost.State.PENALIZED) {
-      if (host.markAvailable() == MapHost.State.PENDING) {
-        pendingHosts.add(host);
-        notifyAll();
+  public void freeHost(MapHost host) {
+    if (host.getHedgedHost() != null) {
+      LOG.info("Hedge of " + host + " freed by " + Thread.currentThread().getName());
+      return;
+    }
+    boolean pending;
+    synchronized (host) {
+      if (host.hasInFlight()) {
+        totalFetchMillis.addAndGet(System.currentTimeMillis() - host.getFetchStartTime());
+        numFetches.incrementAndGet();
+        host.setInFlight(new ArrayList<InputAttemptIdentifier>());
       }
+      pending = host.getState() != MapHost.State.PENALIZED
+          && host.markAvailable() == MapHost.State.PENDING;
+    }
+    if (pending) {
+      addPendingHost(host);
     }
     LOG.info(host + " freed by " + Thread.currentThread().getName() + " in " + 
              (System.currentTimeMillis()-shuffleStart.get()) + "ms");
@@ -474,6 +654,7 @@ class ShuffleScheduler {
     mapLocations.clear();
     obsoleteInputs.clear();
     pendingHosts.clear();
+    pendingOrder.clear();
     pathToIdentifierMap.clear();
   }
 
@@ -481,8 +662,8 @@ class ShuffleScheduler {
    * Utility method to check if the Shuffle data fetch is complete.
    * @return
    */
-  public synchronized boolean isDone() {
-    return remainingMaps == 0;
+  public boolean isDone() {
+    return remainingMaps.get() == 0;
   }
 
   /**
@@ -491,13 +672,69 @@ class ShuffleScheduler {
    * @return true if the shuffle is done
    * @throws InterruptedException
    */
-  public synchronized boolean waitUntilDone(int millis
-                                            ) throws InterruptedException {
-    if (remainingMaps > 0) {
-      wait(millis);
-      return remainingMaps == 0;
+  public boolean waitUntilDone(int millis) throws InterruptedException {
+    synchronized (doneMonitor) {
+      if (remainingMaps.get() > 0) {
+        doneMonitor.wait(millis);
+        return remainingMaps.get() == 0;
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Wake up the threads in {@link #waitUntilDone(int)}, e.g. to have them
+   * notice a failure.
+   */
+  public void wakeup() {
+    synchronized (doneMonitor) {
+      doneMonitor.notifyAll();
+    }
+  }
+
+  /**
+   * A pending host, ordered by the score of the host when it was queued.
+   * The score of a queued host must not change its position in the queue,
+   * so it is captured here. Hosts which score the same are taken in random
+   * order. Since the fast hosts keep coming back, a slow host could always
+   * be overtaken; it is taken in the order it was queued instead once it has
+   * waited for {@link #MAX_PENDING_WAIT_MILLIS}. It sits in both queues, and
+   * whichever takes it first wins.
+   */
+  private static class PendingHost implements Comparable<PendingHost> {
+    final MapHost host;
+    final long queueTime;
+    private final double score;
+    private final int tieBreaker;
+    private final AtomicBoolean taken = new AtomicBoolean(false);
+
+    PendingHost(MapHost host, int tieBreaker) {
+      this.host = host;
+      this.queueTime = System.currentTimeMillis();
+      this.score = host.getHealth().getScore();
+      this.tieBreaker = tieBreaker;
+    }
+
+    /**
+     * @return false if the host was taken through the other queue
+     */
+    boolean take() {
+      return taken.compareAndSet(false, true);
+    }
+
+    boolean isTaken() {
+      return taken.get();
+    }
+
+    @Override
+    public int compareTo(PendingHost o) {
+      // highest score first
+      int result = Double.compare(o.score, score);
+      if (result == 0) {
+        result = tieBreaker < o.tieBreaker ? -1 : (tieBreaker == o.tieBreaker ? 0 : 1);
+      }
+      return result;
     }
-    return true;
   }
   
   /**
@@ -543,11 +780,8 @@ class ShuffleScheduler {
         while (true) {
           // take the first host that has an expired penalty
           MapHost host = penalties.take().host;
-          synchronized (ShuffleScheduler.this) {
-            if (host.markAvailable() == MapHost.State.PENDING) {
-              pendingHosts.add(host);
-              ShuffleScheduler.this.notifyAll();
-            }
+          if (host.markAvailable() == MapHost.State.PENDING) {
+            addPendingHost(host);
           }
         }
       } catch (InterruptedException ie) {
@@ -569,15 +803,7 @@ class ShuffleScheduler {
     }
   }
   
-  void setInputFinished(int inputIndex) {
-    synchronized(finishedMaps) {
-      finishedMaps[inputIndex] = true;
-    }
-  }
-  
   boolean isInputFinished(int inputIndex) {
-    synchronized (finishedMaps) {
-      return finishedMaps[inputIndex];      
-    }
+    return finishedMaps.get(inputIndex) == 1;
   }
 }
@@ -30,6 +30,7 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.classification.InterfaceAudience;
 import org.apache.hadoop.classification.InterfaceStability;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
@@ -46,6 +47,8 @@ import org.apache.hadoop.io.compress.Decompressor;
 import org.apache.hadoop.io.serializer.SerializationFactory;
 import org.apache.hadoop.io.serializer.Serializer;
 import org.apache.tez.common.counters.TezCounter;
+import org.apache.tez.runtime.library.common.compress.BlockCompressionCodec;
+import org.apache.tez.runtime.library.common.compress.IndexedBlockDecompressionInputStream;
 
 /**
  * <code>IFile</code> is the simple <key-len, value-len, key, value> format
@@ -121,7 +124,7 @@ public class IFile {
         throws IOException {
       this.writtenRecordsCounter = writesCounter;
       this.serializedUncompressedBytes = serializedBytesCounter;
-      this.checksumOut = new IFileOutputStream(out);
+      this.checksumOut = new IFileOutputStream(out, IFileChecksums.getWriteVersion(conf));
       this.rawOut = out;
       this.start = this.rawOut.getPos();
       if (codec != null) {
@@ -372,6 +375,8 @@ public class IFile {
     protected final long fileLength;
     protected boolean eof = false;
     final IFileInputStream checksumIn;
+    // Set when a block compressed file is read through its block index
+    IndexedBlockDecompressionInputStream indexedIn;
     
     protected byte[] buffer = null;
     protected int bufferSize = DEFAULT_BUFFER_SIZE;
@@ -406,7 +411,10 @@ public class IFile {
     }
 
     /**
-     * Construct an IFile Reader.
+     * Construct an IFile Reader. A file compressed with the
+     * {@link BlockCompressionCodec} and given as an {@link FSDataInputStream}
+     * is read through its block index, which checksums each block; the
+     * checksum of the whole file is not validated then.
      * 
      * @param in   The input stream
      * @param length Length of the data in the stream, including the checksum
@@ -423,7 +431,14 @@ public class IFile {
       readRecordsCounter = readsCounter;
       this.bytesReadCounter = bytesReadCounter;
       checksumIn = new IFileInputStream(in,length, readAhead, readAheadLength);
-      if (codec != null) {
+      if (codec instanceof BlockCompressionCodec && in instanceof FSDataInputStream) {
+        FSDataInputStream fileIn = (FSDataInputStream) in;
+        long start = fileIn.getPos();
+        int headerLength = checksumIn.getHeaderLength();
+        indexedIn = ((BlockCompressionCodec) codec).createIndexedInputStream(fileIn,
+            start + headerLength, length - headerLength - checksumIn.getSize());
+        this.in = indexedIn;
+      } else if (codec != null) {
         decompressor = CodecPool.getDecompressor(codec);
         if (decompressor != null) {
           this.in = codec.createInputStream(checksumIn, decompressor);
@@ -449,8 +464,19 @@ public class IFile {
     }
     
     public long getPosition() throws IOException {    
+      if (indexedIn != null) {
+        return checksumIn.getHeaderLength() + indexedIn.getCompressedPosition();
+      }
       return checksumIn.getPosition(); 
     }
+
+    /**
+     * @return the length of the checksum header preceding the records, which
+     *         is included in {@link #getLength()}
+     */
+    public int getHeaderLength() throws IOException {
+      return checksumIn.getHeaderLength();
+    }
     
     /**
      * Read upto len bytes into buf starting at offset off.
@@ -568,7 +594,7 @@ public class IFile {
       }
 
       if (bytesReadCounter != null) {
-        bytesReadCounter.increment(checksumIn.getPosition() - startPos + checksumIn.getSize());
+        bytesReadCounter.increment(getPosition() - startPos + checksumIn.getSize());
       }
       
       // Return the decompressor
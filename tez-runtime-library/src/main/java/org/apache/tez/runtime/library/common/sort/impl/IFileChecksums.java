@@ -0,0 +1,164 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.sort.impl;
+
+import java.lang.reflect.Constructor;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.util.PureJavaCrc32C;
+import org.apache.tez.common.TezJobConfig;
+
+/**
+ * Versions of the IFile checksum framing written by {@link IFileOutputStream},
+ * and the checksums they use.
+ *
+ * Version 1 streams have no header and end with a CRC32 of the data. Version
+ * 2 streams start with {@link #MAGIC} and the version byte, and end with a
+ * CRC32C of the data following the header. The data is the records, or the
+ * codec's output for a compressed IFile; see {@link #MAGIC} for how the
+ * versions are told apart. CRC32C is computed by the JDK's
+ * java.util.zip.CRC32C, which the JIT compiles to the CPU's CRC32C
+ * instructions, when it is available (Java 9 and later), and by Hadoop's table
+ * driven PureJavaCrc32C otherwise. As the JDK's CRC32 is compiled to CPU
+ * instructions as well, but PureJavaCrc32C is several times slower than
+ * either, version 2 only pays off where the JDK's CRC32C is available.
+ *
+ * Both versions are always read, but older releases only read version 1, so
+ * streams are written in the version configured with
+ * {@link TezJobConfig#TEZ_RUNTIME_IFILE_CHECKSUM_WRITE_VERSION}, version 1 by
+ * default, see {@link #getWriteVersion(Configuration)}.
+ */
+@InterfaceAudience.Private
+public final class IFileChecksums {
+
+  private static final Log LOG = LogFactory.getLog(IFileChecksums.class);
+
+  public static final int VERSION_1 = 1;
+  public static final int VERSION_2 = 2;
+  public static final int CURRENT_VERSION = VERSION_2;
+
+  /**
+   * Starts a version 2 or later stream. A version 1 stream has no header, so
+   * the reader tells the versions apart by the first bytes of the checksummed
+   * data, which are the records of an uncompressed IFile, and the codec's
+   * output of a compressed one. The first byte, 0xC7, never starts:
+   * <ul>
+   * <li>records, which start with a non-negative key length or the EOF
+   * marker as a vint</li>
+   * <li>zlib (DefaultCodec), whose first byte has 8 in its low 4 bits</li>
+   * <li>gzip (0x1F) or bzip2 ('B')</li>
+   * <li>Snappy or LZ4 blocks of Hadoop's BlockCompressorStream, which start
+   * with a non-negative length as a big endian int</li>
+   * <li>a {@code BlockCompressionCodec} stream, which starts with its version
+   * byte, 1</li>
+   * </ul>
+   * The output of another codec could start with the magic, about once in
+   * 2^32 streams if it looks random. Such a stream fails to be read, either
+   * on its version byte or on its checksum, since the last 4 bytes hold the
+   * CRC32 of all the data rather than the CRC32C of the data after the
+   * supposed header. It is never read as wrong data unless its checksum is
+   * not validated, which only the readers of uncompressed key ranges skip.
+   */
+  static final byte[] MAGIC = { (byte) 0xC7, 'I', 'F', 'C' };
+  public static final int HEADER_LENGTH = MAGIC.length + 1;
+  public static final int CHECKSUM_SIZE = 4;
+
+  private static final Constructor<? extends Checksum> JDK_CRC32C;
+
+  static {
+    Constructor<? extends Checksum> constructor = null;
+    try {
+      constructor = Class.forName("java.util.zip.CRC32C").asSubclass(Checksum.class)
+          .getConstructor();
+    } catch (Exception e) {
+      LOG.info("java.util.zip.CRC32C not available, using PureJavaCrc32C");
+    }
+    JDK_CRC32C = constructor;
+  }
+
+  private IFileChecksums() {
+  }
+
+  /**
+   * @return the version streams are configured to be written in
+   */
+  public static int getWriteVersion(Configuration conf) {
+    if (conf == null) {
+      return TezJobConfig.TEZ_RUNTIME_IFILE_CHECKSUM_WRITE_VERSION_DEFAULT;
+    }
+    int version = conf.getInt(TezJobConfig.TEZ_RUNTIME_IFILE_CHECKSUM_WRITE_VERSION,
+        TezJobConfig.TEZ_RUNTIME_IFILE_CHECKSUM_WRITE_VERSION_DEFAULT);
+    if (version < VERSION_1 || version > CURRENT_VERSION) {
+      throw new IllegalArgumentException("Unknown IFile checksum version " + version
+          + " set for " + TezJobConfig.TEZ_RUNTIME_IFILE_CHECKSUM_WRITE_VERSION);
+    }
+    return version;
+  }
+
+  /**
+   * @return the checksum of a stream version
+   */
+  public static Checksum newChecksum(int version) {
+    switch (version) {
+    case VERSION_1:
+      return new CRC32();
+    case VERSION_2:
+      return newCrc32C();
+    default:
+      throw new IllegalArgumentException("Unknown IFile checksum version " + version);
+    }
+  }
+
+  public static Checksum newCrc32C() {
+    if (JDK_CRC32C != null) {
+      try {
+        return JDK_CRC32C.newInstance();
+      } catch (Exception e) {
+        throw new IllegalStateException("Could not create java.util.zip.CRC32C", e);
+      }
+    }
+    return new PureJavaCrc32C();
+  }
+
+  public static boolean isJdkCrc32CAvailable() {
+    return JDK_CRC32C != null;
+  }
+
+  /**
+   * Write the low 4 bytes of a checksum value, big endian.
+   */
+  static void writeValue(Checksum sum, byte[] b, int off) {
+    int value = (int) sum.getValue();
+    b[off] = (byte) (value >>> 24);
+    b[off + 1] = (byte) (value >>> 16);
+    b[off + 2] = (byte) (value >>> 8);
+    b[off + 3] = (byte) value;
+  }
+
+  static boolean compareValue(Checksum sum, byte[] b, int off) {
+    int value = ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16)
+        | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+    return value == (int) sum.getValue();
+  }
+}
@@ -23,6 +23,8 @@ import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.Checksum;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -33,20 +35,23 @@ import org.apache.hadoop.fs.HasFileDescriptor;
 import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.io.ReadaheadPool;
 import org.apache.hadoop.io.ReadaheadPool.ReadaheadRequest;
-import org.apache.hadoop.util.DataChecksum;
 /**
  * A checksum input stream, used for IFiles.
  * Used to validate the checksum of files created by {@link IFileOutputStream}. 
+ * The version of the stream, and so its checksum, is found from its first
+ * bytes, see {@link IFileChecksums}. The header of version 2 and later streams
+ * is not returned to the reader.
 */
 @InterfaceAudience.Private
 @InterfaceStability.Unstable
 public class IFileInputStream extends InputStream {
   
-  private final InputStream in; //The input stream to be verified for checksum.
+  private InputStream in; //The input stream to be verified for checksum.
   private final FileDescriptor inFd; // the file descriptor, if it is known
   private final long length; //The total length of the input file
   private final long dataLength;
-  private DataChecksum sum;
+  private Checksum sum; // set once the header is read
+  private int headerLength = 0;
   private long currentOffset = 0;
   private final byte b[] = new byte[1];
   private byte csum[] = null;
@@ -81,10 +86,8 @@ public class IFileInputStream extends InputStream {
    */
   public IFileInputStream(InputStream in, long len, boolean readAhead, int readAheadLength) {
     this.in = in;
-    sum = DataChecksum.newDataChecksum(DataChecksum.Type.CRC32, 
-        Integer.MAX_VALUE);
-    checksumSize = sum.getChecksumSize();
-    buffer = new byte[4096];
+    checksumSize = IFileChecksums.CHECKSUM_SIZE;
+    buffer = new byte[32 * 1024];
     offset = 0;
     length = len;
     dataLength = length - checksumSize;
@@ -118,8 +121,51 @@ public class IFileInputStream extends InputStream {
    * Close the input stream. Note that we need to read to the end of the
    * stream to validate the checksum.
    */
+  /**
+   * Read the header of the stream, if it has one, and set up its checksum.
+   */
+  private void readHeader() throws IOException {
+    if (sum != null) {
+      return;
+    }
+    int version = IFileChecksums.VERSION_1;
+    int n = (int) Math.min(IFileChecksums.HEADER_LENGTH, dataLength);
+    if (n > 0) {
+      byte[] header = new byte[n];
+      IOUtils.readFully(in, header, 0, n);
+      boolean hasHeader = n == IFileChecksums.HEADER_LENGTH;
+      for (int i = 0; hasHeader && i < IFileChecksums.MAGIC.length; i++) {
+        hasHeader = header[i] == IFileChecksums.MAGIC[i];
+      }
+      if (hasHeader) {
+        version = header[IFileChecksums.MAGIC.length] & 0xff;
+        if (version <= IFileChecksums.VERSION_1 || version > IFileChecksums.CURRENT_VERSION) {
+          throw new IOException("Unsupported IFile checksum version " + version);
+        }
+        headerLength = n;
+        currentOffset = n;
+      } else {
+        // A version 1 stream, the bytes are data
+        PushbackInputStream pushback = new PushbackInputStream(in, n);
+        pushback.unread(header, 0, n);
+        in = pushback;
+      }
+    }
+    sum = IFileChecksums.newChecksum(version);
+  }
+
+  /**
+   * @return the length of the header at the start of the stream, 0 for
+   *         version 1 streams
+   */
+  public int getHeaderLength() throws IOException {
+    readHeader();
+    return headerLength;
+  }
+
   @Override
   public void close() throws IOException {
+    readHeader();
 
     if (curReadahead != null) {
       curReadahead.cancel();
@@ -151,7 +197,7 @@ public class IFileInputStream extends InputStream {
   }
 
   private void checksum(byte[] b, int off, int len) {
-    if(len >= buffer.length) {
+    if (len >= 512) {
       sum.update(buffer, 0, offset);
       offset = 0;
       sum.update(b, off, len);
@@ -174,6 +220,7 @@ public class IFileInputStream extends InputStream {
    */
   @Override
   public int read(byte[] b, int off, int len) throws IOException {
+    readHeader();
 
     if (currentOffset >= dataLength) {
       return -1;
@@ -200,6 +247,7 @@ public class IFileInputStream extends InputStream {
    * these bytes appropriately
    */
   public int readWithChecksum(byte[] b, int off, int len) throws IOException {
+    readHeader();
 
     if (currentOffset == length) {
       return -1;
@@ -267,7 +315,7 @@ public class IFileInputStream extends InputStream {
       sum.update(buffer, 0, offset);
       csum = new byte[checksumSize];
       IOUtils.readFully(in, csum, 0, checksumSize);
-      if (!sum.compare(csum, 0)) {
+      if (!IFileChecksums.compareValue(sum, csum, 0)) {
         String mesg = "CurrentOffset=" + currentOffset +
             ", off=" + offset +
             ", dataLength=" + dataLength + 
@@ -276,7 +324,7 @@ public class IFileInputStream extends InputStream {
             ", length=" + length +
             ", checksumSize=" + checksumSize+
             ", csum=" + csum +
-            ", sum=" + sum; 
+            ", sum=" + Integer.toHexString((int) sum.getValue());
         LOG.info(mesg);
 
         throw new ChecksumException("Checksum Error: " + mesg, 0);
@@ -21,42 +21,61 @@ package org.apache.tez.runtime.library.common.sort.impl;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.zip.Checksum;
 
 import org.apache.hadoop.classification.InterfaceAudience;
 import org.apache.hadoop.classification.InterfaceStability;
-import org.apache.hadoop.util.DataChecksum;
 /**
  * A Checksum output stream.
  * Checksum for the contents of the file is calculated and
  * appended to the end of the file on close of the stream.
+ * Unless written as version 1, the stream starts with a header giving its
+ * version, see {@link IFileChecksums}. The header is written with the first
+ * bytes, so that it is part of the stream for callers which take the position
+ * of the underlying stream after creating this one.
  * Used for IFiles
  */
 @InterfaceAudience.Private
 @InterfaceStability.Unstable
 public class IFileOutputStream extends FilterOutputStream {
 
+  // Writes shorter than this are gathered, so that the checksum is updated
+  // over large batches
+  private static final int MIN_DIRECT_CHECKSUM_LENGTH = 512;
+
   /**
    * The output stream to be checksummed.
    */
-  private final DataChecksum sum;
+  private final Checksum sum;
+  private final int version;
   private byte[] barray;
   private byte[] buffer;
   private int offset;
+  private boolean headerWritten = false;
   private boolean closed = false;
   private boolean finished = false;
 
   /**
    * Create a checksum output stream that writes
-   * the bytes to the given stream.
+   * the bytes to the given stream, as version 1.
    * @param out
    */
   public IFileOutputStream(OutputStream out) {
+    this(out, IFileChecksums.VERSION_1);
+  }
+
+  /**
+   * Create a checksum output stream of the given version of
+   * {@link IFileChecksums}.
+   */
+  public IFileOutputStream(OutputStream out, int version) {
     super(out);
-    sum = DataChecksum.newDataChecksum(DataChecksum.Type.CRC32,
-        Integer.MAX_VALUE);
-    barray = new byte[sum.getChecksumSize()];
-    buffer = new byte[4096];
+    this.version = version;
+    sum = IFileChecksums.newChecksum(version);
+    barray = new byte[IFileChecksums.CHECKSUM_SIZE];
+    buffer = new byte[32 * 1024];
     offset = 0;
+    headerWritten = version == IFileChecksums.VERSION_1;
   }
 
   @Override
@@ -79,14 +98,23 @@ public class IFileOutputStream extends FilterOutputStream {
       return;
     }
     finished = true;
+    writeHeader();
     sum.update(buffer, 0, offset);
-    sum.writeValue(barray, 0, false);
-    out.write (barray, 0, sum.getChecksumSize());
+    IFileChecksums.writeValue(sum, barray, 0);
+    out.write (barray, 0, IFileChecksums.CHECKSUM_SIZE);
     out.flush();
   }
 
+  private void writeHeader() throws IOException {
+    if (!headerWritten) {
+      headerWritten = true;
+      out.write(IFileChecksums.MAGIC);
+      out.write(version);
+    }
+  }
+
   private void checksum(byte[] b, int off, int len) {
-    if(len >= buffer.length) {
+    if (len >= MIN_DIRECT_CHECKSUM_LENGTH) {
       sum.update(buffer, 0, offset);
       offset = 0;
       sum.update(b, off, len);
@@ -97,15 +125,6 @@ public class IFileOutputStream extends FilterOutputStream {
       sum.update(buffer, 0, offset);
       offset = 0;
     }
-    /*
-    // FIXME if needed re-enable this in debug mode
-    if (LOG.isDebugEnabled()) {
-      LOG.debug("XXX checksum" +
-          " b=" + b + " off=" + off +
-          " buffer=" + " offset=" + offset +
-          " len=" + len);
-    }
-    */
     /* now we should have len < buffer.length */
     System.arraycopy(b, off, buffer, offset, len);
     offset += len;
@@ -116,6 +135,7 @@ public class IFileOutputStream extends FilterOutputStream {
    */
   @Override
   public void write(byte[] b, int off, int len) throws IOException {
+    writeHeader();
     checksum(b, off, len);
     out.write(b,off,len);
   }
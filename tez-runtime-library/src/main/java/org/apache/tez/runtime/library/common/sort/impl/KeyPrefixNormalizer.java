@@ -0,0 +1,212 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.sort.impl;
+
+import java.nio.ByteBuffer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.tez.common.TezJobConfig;
+import org.apache.tez.runtime.library.common.ConfigUtils;
+
+/**
+ * Computes a fixed-width, byte-comparable prefix of a serialized key. The
+ * sorters store the prefix next to the record metadata, so that most
+ * comparisons are answered by comparing two longs. The full key comparator is
+ * only invoked when the prefixes are equal.
+ *
+ * Prefixes are compared as unsigned longs. An implementation must guarantee
+ * that if the prefix of key a is less than the prefix of key b, a sorts before
+ * b according to the key comparator.
+ */
+@Private
+public abstract class KeyPrefixNormalizer {
+
+  private static final Log LOG = LogFactory.getLog(KeyPrefixNormalizer.class);
+
+  /**
+   * Get the prefix of the serialized key in buf[off, off + len)
+   */
+  public abstract long getPrefix(byte[] buf, int off, int len);
+
+  /**
+   * Get the prefix of the serialized key in buf[off, off + len). The position
+   * of the buffer is not modified.
+   */
+  public abstract long getPrefix(ByteBuffer buf, int off, int len);
+
+  /**
+   * Whether equal prefixes imply equal keys, so that the key comparator never
+   * needs to be consulted.
+   */
+  public boolean isExact() {
+    return false;
+  }
+
+  /**
+   * Whether the sorters should use a {@link RadixSort} instead of a comparison
+   * sort, provided a normalizer is available.
+   */
+  public static boolean isRadixSortEnabled(Configuration conf) {
+    return conf.getBoolean(TezJobConfig.TEZ_RUNTIME_SORT_RADIX_ENABLED,
+        TezJobConfig.DEFAULT_TEZ_RUNTIME_SORT_RADIX_ENABLED);
+  }
+
+  /**
+   * Compare two prefixes as unsigned longs.
+   */
+  public static int compare(long prefix1, long prefix2) {
+    final long p1 = prefix1 + Long.MIN_VALUE;
+    final long p2 = prefix2 + Long.MIN_VALUE;
+    return p1 < p2 ? -1 : (p1 == p2 ? 0 : 1);
+  }
+
+  /**
+   * Returns a normalizer for the intermediate output key class, or null if
+   * both normalized key prefixes and radix sorting are disabled, a custom key
+   * comparator is configured, or the key class is not supported.
+   */
+  public static KeyPrefixNormalizer getIntermediateOutputKeyNormalizer(Configuration conf) {
+    if (!conf.getBoolean(TezJobConfig.TEZ_RUNTIME_SORT_KEY_PREFIX_ENABLED,
+        TezJobConfig.DEFAULT_TEZ_RUNTIME_SORT_KEY_PREFIX_ENABLED)
+        && !isRadixSortEnabled(conf)) {
+      return null;
+    }
+    // The prefixes mirror the default comparators of the supported key types
+    if (conf.get(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_OUTPUT_KEY_COMPARATOR_CLASS) != null) {
+      LOG.info("Not using normalized key prefixes with a custom key comparator");
+      return null;
+    }
+    Class<?> keyClass = ConfigUtils.getIntermediateOutputKeyClass(conf);
+    KeyPrefixNormalizer normalizer = null;
+    if (keyClass == Text.class) {
+      normalizer = new TextPrefixNormalizer();
+    } else if (keyClass == BytesWritable.class) {
+      normalizer = new BytesWritablePrefixNormalizer();
+    } else if (keyClass == IntWritable.class) {
+      normalizer = new IntWritablePrefixNormalizer();
+    } else if (keyClass == LongWritable.class) {
+      normalizer = new LongWritablePrefixNormalizer();
+    }
+    LOG.info("Normalized key prefix for " + keyClass + ": "
+        + (normalizer == null ? "unsupported" : normalizer.getClass().getSimpleName()));
+    return normalizer;
+  }
+
+  /**
+   * Big-endian packing of up to 8 bytes, padded with zeros. This matches an
+   * unsigned lexicographic comparison of the bytes.
+   */
+  static long bytesPrefix(byte[] buf, int off, int len) {
+    long prefix = 0;
+    final int n = Math.min(len, 8);
+    for (int i = 0; i < n; i++) {
+      prefix |= (buf[off + i] & 0xffL) << (56 - 8 * i);
+    }
+    return prefix;
+  }
+
+  static long bytesPrefix(ByteBuffer buf, int off, int len) {
+    long prefix = 0;
+    final int n = Math.min(len, 8);
+    for (int i = 0; i < n; i++) {
+      prefix |= (buf.get(off + i) & 0xffL) << (56 - 8 * i);
+    }
+    return prefix;
+  }
+
+  /**
+   * Text is serialized as a vint length followed by UTF-8 bytes, which are
+   * compared as unsigned bytes.
+   */
+  static class TextPrefixNormalizer extends KeyPrefixNormalizer {
+    @Override
+    public long getPrefix(byte[] buf, int off, int len) {
+      final int n = WritableUtils.decodeVIntSize(buf[off]);
+      return bytesPrefix(buf, off + n, len - n);
+    }
+
+    @Override
+    public long getPrefix(ByteBuffer buf, int off, int len) {
+      final int n = WritableUtils.decodeVIntSize(buf.get(off));
+      return bytesPrefix(buf, off + n, len - n);
+    }
+  }
+
+  /**
+   * BytesWritable is serialized as a 4 byte length followed by the bytes,
+   * which are compared as unsigned bytes.
+   */
+  static class BytesWritablePrefixNormalizer extends KeyPrefixNormalizer {
+    @Override
+    public long getPrefix(byte[] buf, int off, int len) {
+      return bytesPrefix(buf, off + 4, len - 4);
+    }
+
+    @Override
+    public long getPrefix(ByteBuffer buf, int off, int len) {
+      return bytesPrefix(buf, off + 4, len - 4);
+    }
+  }
+
+  /**
+   * The sign bit is flipped, so that negative values sort first when
+   * compared as unsigned.
+   */
+  static class IntWritablePrefixNormalizer extends KeyPrefixNormalizer {
+    @Override
+    public boolean isExact() {
+      return true;
+    }
+
+    @Override
+    public long getPrefix(byte[] buf, int off, int len) {
+      return bytesPrefix(buf, off, 4) ^ Long.MIN_VALUE;
+    }
+
+    @Override
+    public long getPrefix(ByteBuffer buf, int off, int len) {
+      return bytesPrefix(buf, off, 4) ^ Long.MIN_VALUE;
+    }
+  }
+
+  static class LongWritablePrefixNormalizer extends KeyPrefixNormalizer {
+    @Override
+    public boolean isExact() {
+      return true;
+    }
+
+    @Override
+    public long getPrefix(byte[] buf, int off, int len) {
+      return bytesPrefix(buf, off, 8) ^ Long.MIN_VALUE;
+    }
+
+    @Override
+    public long getPrefix(ByteBuffer buf, int off, int len) {
+      return bytesPrefix(buf, off, 8) ^ Long.MIN_VALUE;
+    }
+  }
+}
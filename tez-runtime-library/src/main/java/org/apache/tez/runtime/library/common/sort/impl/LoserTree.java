@@ -0,0 +1,151 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.sort.impl;
+
+import java.util.List;
+
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+
+/**
+ * A tournament tree of losers over k sorted sources, used for k-way merges.
+ * Each internal node holds the loser of the match played at it, and the
+ * overall winner is kept separately. After the winner advances to its next
+ * element, only the matches on the path from its leaf to the root are
+ * replayed, which takes exactly ceil(log2(k)) or floor(log2(k)) calls to
+ * {@link #compare(Object, Object)}. A binary heap needs up to twice as many
+ * to restore its order.
+ *
+ * The API mirrors {@link org.apache.hadoop.util.PriorityQueue}: the caller
+ * advances the top element in place and then calls {@link #adjustTop()}, or
+ * removes an exhausted top element with {@link #pop()}. Ties are broken in
+ * favour of the source added first.
+ */
+@Private
+public abstract class LoserTree<T> {
+
+  private Object[] items;
+  private boolean[] removed;
+  // tree[0] is the index of the winner, tree[1..k-1] the losers. Source i is
+  // the leaf at node k + i, and node n has children 2n and 2n + 1.
+  private int[] tree;
+  private int k;
+  private int size;
+
+  /**
+   * Determines the ordering of elements, like
+   * {@link java.util.Comparator#compare(Object, Object)}.
+   */
+  protected abstract int compare(Object a, Object b);
+
+  /**
+   * Build the tree over the current elements of the sources.
+   */
+  public final void initialize(List<T> sources) {
+    k = sources.size();
+    size = k;
+    items = sources.toArray();
+    removed = new boolean[k];
+    tree = new int[Math.max(1, k)];
+    if (k > 0) {
+      tree[0] = build(1);
+    }
+  }
+
+  private int build(int node) {
+    if (node >= k) {
+      return node - k;
+    }
+    int left = build(2 * node);
+    int right = build(2 * node + 1);
+    if (beats(right, left)) {
+      tree[node] = left;
+      return right;
+    }
+    tree[node] = right;
+    return left;
+  }
+
+  /**
+   * Whether source a should be returned before source b. Removed sources
+   * lose against all others.
+   */
+  private boolean beats(int a, int b) {
+    if (removed[a]) {
+      return false;
+    }
+    if (removed[b]) {
+      return true;
+    }
+    int cmp = compare(items[a], items[b]);
+    return cmp < 0 || (cmp == 0 && a < b);
+  }
+
+  /**
+   * The number of sources which have not been removed.
+   */
+  public final int size() {
+    return size;
+  }
+
+  /**
+   * The least element, or null if all sources have been removed.
+   */
+  @SuppressWarnings("unchecked")
+  public final T top() {
+    return size > 0 ? (T) items[tree[0]] : null;
+  }
+
+  /**
+   * Restore the order after the top element has changed.
+   */
+  public final void adjustTop() {
+    if (size > 0) {
+      replay(tree[0]);
+    }
+  }
+
+  /**
+   * Remove and return the top element.
+   */
+  @SuppressWarnings("unchecked")
+  public final T pop() {
+    if (size == 0) {
+      return null;
+    }
+    int winner = tree[0];
+    T result = (T) items[winner];
+    removed[winner] = true;
+    items[winner] = null;
+    size--;
+    replay(winner);
+    return result;
+  }
+
+  private void replay(int source) {
+    int winner = source;
+    for (int node = (source + k) >>> 1; node >= 1; node >>>= 1) {
+      int loser = tree[node];
+      if (beats(loser, winner)) {
+        tree[node] = winner;
+        winner = loser;
+      }
+    }
+    tree[0] = winner;
+  }
+}
@@ -20,6 +20,7 @@ package org.apache.tez.runtime.library.common.sort.impl;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.lang.reflect.Method;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -31,6 +32,7 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -40,7 +42,6 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.DataInputBuffer;
 import org.apache.hadoop.io.HashComparator;
 import org.apache.hadoop.io.RawComparator;
-import org.apache.hadoop.util.IndexedSortable;
 import org.apache.hadoop.util.IndexedSorter;
 import org.apache.hadoop.util.Progress;
 import org.apache.tez.common.TezJobConfig;
@@ -48,6 +49,7 @@ import org.apache.tez.common.TezUtils;
 import org.apache.tez.runtime.api.TezOutputContext;
 import org.apache.tez.runtime.library.common.ConfigUtils;
 import org.apache.tez.runtime.library.common.sort.impl.IFile.Writer;
+import org.apache.tez.runtime.library.common.sort.impl.RadixSort.RadixSortable;
 import org.apache.tez.runtime.library.common.sort.impl.TezMerger.Segment;
 
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
@@ -70,8 +72,10 @@ public class PipelinedSorter extends ExternalSorter {
   private static final int KEYSTART = 1;         // key offset in acct
   private static final int VALSTART = 2;         // val offset in acct
   private static final int VALLEN = 3;           // val len in acct
-  private static final int NMETA = 4;            // num meta ints
-  private static final int METASIZE = NMETA * 4; // size in bytes
+  private static final int PREFIX_HI = 4;        // normalized key prefix
+  private static final int PREFIX_LO = 5;
+  private final int nmeta;                       // num meta ints
+  private final int metasize;                    // size in bytes
 
   // spill accounting
   volatile Throwable sortSpillException = null;
@@ -82,6 +86,8 @@ public class PipelinedSorter extends ExternalSorter {
   // SortSpans  
   private SortSpan span;
   private ByteBuffer largeBuffer;
+  // The sort buffer if it is direct, freed on close
+  private ByteBuffer directBuffer;
   // Merger
   private final SpanMerger merger; 
   private final ExecutorService sortmaster;
@@ -91,6 +97,10 @@ public class PipelinedSorter extends ExternalSorter {
   private int totalIndexCacheMemory;
   private int indexCacheMemoryLimit;
 
+  // null if keys are compared with the key comparator alone
+  private final KeyPrefixNormalizer keyNormalizer;
+  private final boolean useRadixSort;
+
   // TODO Set additional countesr - total bytes written, spills etc.
 
   public PipelinedSorter(TezOutputContext outputContext, Configuration conf, int numOutputs,
@@ -117,10 +127,26 @@ public class PipelinedSorter extends ExternalSorter {
     }
     
     // buffers and accounting
+    keyNormalizer = KeyPrefixNormalizer.getIntermediateOutputKeyNormalizer(this.conf);
+    nmeta = keyNormalizer == null ? 4 : 6;
+    metasize = nmeta * 4;
+    if (KeyPrefixNormalizer.isRadixSortEnabled(this.conf) && keyNormalizer == null) {
+      LOG.warn("Radix sort is not supported for key " + keyClass
+          + ", falling back to " + sorter.getClass().getName());
+    }
+    useRadixSort = keyNormalizer != null && KeyPrefixNormalizer.isRadixSortEnabled(this.conf);
     int maxMemUsage = sortmb << 20;
-    maxMemUsage -= maxMemUsage % METASIZE;
-    largeBuffer = ByteBuffer.allocate(maxMemUsage);
-    LOG.info(TezJobConfig.TEZ_RUNTIME_IO_SORT_MB + " = " + sortmb);
+    maxMemUsage -= maxMemUsage % metasize;
+    final boolean useDirectBuffer = isDirectBufferEnabled(this.conf);
+    // Sort spans are plain ByteBuffer slices, so a direct buffer is transparent
+    // to the rest of the sorter. Keys are copied out in bulk for comparison.
+    largeBuffer = useDirectBuffer ? ByteBuffer.allocateDirect(maxMemUsage)
+        : ByteBuffer.allocate(maxMemUsage);
+    if (useDirectBuffer) {
+      directBuffer = largeBuffer;
+    }
+    LOG.info(TezJobConfig.TEZ_RUNTIME_IO_SORT_MB + " = " + sortmb + ", "
+        + TezJobConfig.TEZ_RUNTIME_PIPELINED_SORTER_DIRECT_BUFFER + " = " + useDirectBuffer);
     // TODO: configurable setting?
     span = new SortSpan(largeBuffer, 1024*1024, 16);
     merger = new SpanMerger(comparator);
@@ -166,7 +192,7 @@ public class PipelinedSorter extends ExternalSorter {
       if(span.length() != 0) {
         items = span.length();
         perItem = span.kvbuffer.limit()/items;
-        items = (largeBuffer.capacity())/(METASIZE+perItem);
+        items = (largeBuffer.capacity())/(metasize+perItem);
         if(items > 1024*1024) {
             // our goal is to have 1M splits and sort early
             items = 1024*1024;
@@ -212,7 +238,7 @@ public class PipelinedSorter extends ExternalSorter {
       throw new IOException("Illegal partition for " + key + " (" +
           partition + ")");
     }
-    if(span.kvmeta.remaining() < METASIZE) {
+    if(span.kvmeta.remaining() < metasize) {
       this.sort();
     }
     int keystart = span.kvbuffer.position();
@@ -240,11 +266,17 @@ public class PipelinedSorter extends ExternalSorter {
 
     prefix = (partition << (32 - partitionBits)) | (prefix >>> partitionBits);
 
-    /* maintain order as in PARTITION, KEYSTART, VALSTART, VALLEN */
+    /* maintain order as in PARTITION, KEYSTART, VALSTART, VALLEN, PREFIX_HI, PREFIX_LO */
     span.kvmeta.put(prefix);
     span.kvmeta.put(keystart);
     span.kvmeta.put(valstart);
     span.kvmeta.put(valend - valstart);
+    if (keyNormalizer != null) {
+      final long keyPrefix =
+          keyNormalizer.getPrefix(span.kvbuffer, keystart, valstart - keystart);
+      span.kvmeta.put((int) (keyPrefix >>> 32));
+      span.kvmeta.put((int) keyPrefix);
+    }
     if((valstart - keystart) > span.keymax) {
       span.keymax = (valstart - keystart);
     }
@@ -255,6 +287,16 @@ public class PipelinedSorter extends ExternalSorter {
     mapOutputByteCounter.increment(valend - keystart);
   }
 
+  /**
+   * Whether the sort buffer is allocated outside the Java heap. In that case
+   * the buffer should be requested from the task's direct memory budget
+   * instead of its heap memory budget.
+   */
+  public static boolean isDirectBufferEnabled(Configuration conf) {
+    return conf.getBoolean(TezJobConfig.TEZ_RUNTIME_PIPELINED_SORTER_DIRECT_BUFFER,
+        TezJobConfig.DEFAULT_TEZ_RUNTIME_PIPELINED_SORTER_DIRECT_BUFFER);
+  }
+
   public void spill() throws IOException { 
     // create spill file
     final long size = largeBuffer.capacity() + 
@@ -412,7 +454,45 @@ public class PipelinedSorter extends ExternalSorter {
     }
   }
 
-  public void close() { }
+  @Override
+  public void close() throws IOException {
+    if (directBuffer == null) {
+      return;
+    }
+    // After a failure sort tasks may still be reading the buffer
+    sortmaster.shutdownNow();
+    try {
+      if (!sortmaster.awaitTermination(30, TimeUnit.SECONDS)) {
+        LOG.warn("Sort threads did not stop, leaving the direct sort buffer to the"
+            + " garbage collector");
+        return;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    }
+    span = null;
+    freeDirectBuffer(directBuffer);
+    directBuffer = null;
+  }
+
+  /**
+   * Free the native memory of a direct buffer now rather than when it is
+   * garbage collected, so that it is available again to the next task of a
+   * reused container. The buffer must not be used afterwards.
+   */
+  private static void freeDirectBuffer(ByteBuffer buffer) {
+    try {
+      Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+      cleanerMethod.setAccessible(true);
+      Object cleaner = cleanerMethod.invoke(buffer);
+      if (cleaner != null) {
+        cleaner.getClass().getMethod("clean").invoke(cleaner);
+      }
+    } catch (Exception e) {
+      LOG.warn("Cannot free the direct sort buffer, leaving it to the garbage collector", e);
+    }
+  }
 
   private interface PartitionedRawKeyValueIterator extends TezRawKeyValueIterator {
     int getPartition();
@@ -460,13 +540,13 @@ public class PipelinedSorter extends ExternalSorter {
     }
   }
 
-  private class SortSpan  implements IndexedSortable {
+  private class SortSpan  implements RadixSortable {
     final IntBuffer kvmeta;
     final ByteBuffer kvbuffer;
     final DataOutputStream out;    
     private RawComparator comparator; 
-    final int imeta[] = new int[NMETA];
-    final int jmeta[] = new int[NMETA];
+    final int imeta[] = new int[nmeta];
+    final int jmeta[] = new int[nmeta];
     int keymax = 1;
     int valmax = 1;
     private int i,j;
@@ -478,20 +558,20 @@ public class PipelinedSorter extends ExternalSorter {
 
     public SortSpan(ByteBuffer source, int maxItems, int perItem) {
       int capacity = source.remaining(); 
-      int metasize = METASIZE*maxItems;
+      int metaBytes = metasize*maxItems;
       int dataSize = maxItems * perItem;
-      if(capacity < (metasize+dataSize)) {
+      if(capacity < (metaBytes+dataSize)) {
         // try to allocate less meta space, because we have sample data
-        metasize = METASIZE*(capacity/(perItem+METASIZE));
+        metaBytes = metasize*(capacity/(perItem+metasize));
       }
       ByteBuffer reserved = source.duplicate();
       reserved.mark();
       LOG.info("reserved.remaining() = "+reserved.remaining());
-      LOG.info("reserved.size = "+metasize);
-      reserved.position(metasize);
+      LOG.info("reserved.size = "+metaBytes);
+      reserved.position(metaBytes);
       kvbuffer = reserved.slice();
       reserved.flip();
-      reserved.limit(metasize);
+      reserved.limit(metaBytes);
       kvmeta = reserved
                 .slice()
                 .order(ByteOrder.nativeOrder())
@@ -506,14 +586,20 @@ public class PipelinedSorter extends ExternalSorter {
       kj = new byte[keymax];
       LOG.info("begin sorting Span"+index + " ("+length()+")");
       if(length() > 1) {
-        sorter.sort(this, 0, length(), nullProgressable);
+        if (useRadixSort) {
+          // not shared, since spans are sorted concurrently
+          new RadixSort(sorter, keyNormalizer.isExact())
+              .sort(this, 0, length(), nullProgressable);
+        } else {
+          sorter.sort(this, 0, length(), nullProgressable);
+        }
       }
       LOG.info("done sorting Span"+index);
       return new SpanIterator(this);
     }
 
     int offsetFor(int i) {
-      return (i * NMETA);
+      return (i * nmeta);
     }
 
     public void swap(final int mi, final int mj) {
@@ -539,6 +625,13 @@ public class PipelinedSorter extends ExternalSorter {
         return kvip - kvjp;
       }
       
+      if (keyNormalizer != null) {
+        final int cmp = KeyPrefixNormalizer.compare(prefixAt(kvi), prefixAt(kvj));
+        if (cmp != 0) {
+          return cmp;
+        }
+      }
+
       final int istart = kvmeta.get(kvi + KEYSTART);
       final int jstart = kvmeta.get(kvj + KEYSTART);
       final int ilen   = kvmeta.get(kvi + VALSTART) - istart;
@@ -554,6 +647,21 @@ public class PipelinedSorter extends ExternalSorter {
       return cmp;
     }
 
+    long prefixAt(final int kvoff) {
+      return ((long) kvmeta.get(kvoff + PREFIX_HI) << 32)
+          | (kvmeta.get(kvoff + PREFIX_LO) & 0xffffffffL);
+    }
+
+    @Override
+    public int getPartition(final int i) {
+      return kvmeta.get(offsetFor(i) + PARTITION);
+    }
+
+    @Override
+    public long getPrefix(final int i) {
+      return prefixAt(offsetFor(i));
+    }
+
     public SortSpan next() {
       ByteBuffer remaining = end();
       if(remaining != null) {
@@ -567,7 +675,7 @@ public class PipelinedSorter extends ExternalSorter {
     }
 
     public int length() {
-      return kvmeta.limit()/NMETA;
+      return kvmeta.limit()/nmeta;
     }
 
     public ByteBuffer end() {
@@ -582,7 +690,7 @@ public class PipelinedSorter extends ExternalSorter {
       }
       int perItem = kvbuffer.position()/items;
       LOG.info(String.format("Span%d.length = %d, perItem = %d", index, length(), perItem));
-      if(remaining.remaining() < METASIZE+perItem) {
+      if(remaining.remaining() < metasize+perItem) {
         return null;
       }
       return remaining;
@@ -615,7 +723,7 @@ public class PipelinedSorter extends ExternalSorter {
     
     @Override
     public String toString() {
-        return String.format("Span[%d,%d]", NMETA*kvmeta.capacity(), kvbuffer.limit());
+        return String.format("Span[%d,%d]", nmeta*kvmeta.capacity(), kvbuffer.limit());
     }
   }
 
@@ -635,7 +743,7 @@ public class PipelinedSorter extends ExternalSorter {
       this.kvmeta = span.kvmeta;
       this.kvbuffer = span.kvbuffer;
       this.span = span;
-      this.maxindex = (kvmeta.limit()/NMETA) - 1;
+      this.maxindex = (kvmeta.limit()/nmeta) - 1;
     }
 
     public DataInputBuffer getKey() throws IOException {
@@ -679,6 +787,18 @@ public class PipelinedSorter extends ExternalSorter {
     }
 
     public int compareTo(SpanIterator other) {
+      if (keyNormalizer != null) {
+        final int partition = getPartition();
+        final int otherPartition = other.getPartition();
+        if (partition != otherPartition) {
+          return partition - otherPartition;
+        }
+        final int cmp = KeyPrefixNormalizer.compare(
+            span.getPrefix(kvindex), other.span.getPrefix(other.kvindex));
+        if (cmp != 0) {
+          return cmp;
+        }
+      }
       try {
         return span.compareInternal(other.getKey(), other.getPartition(), kvindex);
       } catch(IOException ie) {
@@ -0,0 +1,150 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.sort.impl;
+
+import java.util.Arrays;
+
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.IndexedSorter;
+import org.apache.hadoop.util.Progressable;
+
+/**
+ * In-place MSD radix sort (American flag sort) over the partition and the
+ * normalized key prefix of each record. Records are moved with
+ * {@link RadixSortable#swap(int, int)} only, so the sort runs directly on the
+ * sorter's metadata.
+ *
+ * Small ranges, and ranges whose records share the same partition and prefix
+ * when the prefix does not determine the key order, are finished with a
+ * comparison sort.
+ */
+@Private
+public class RadixSort {
+
+  /**
+   * Records sortable by partition, then by normalized key prefix.
+   */
+  public interface RadixSortable extends IndexedSortable {
+    /** Partition of record i, ordered as a signed int */
+    int getPartition(int i);
+
+    /** Normalized key prefix of record i, ordered as an unsigned long */
+    long getPrefix(int i);
+  }
+
+  // 4 partition bytes followed by 8 prefix bytes
+  private static final int NUM_DIGITS = 12;
+  private static final int RADIX = 256;
+  // Below this a comparison sort is cheaper than another counting pass
+  private static final int MIN_RADIX_RANGE = 64;
+
+  private final IndexedSorter fallback;
+  private final boolean exactPrefix;
+  // one set of counters per digit, since buckets are recursed into
+  private final int[][] counts = new int[NUM_DIGITS][RADIX + 1];
+  private final int[][] heads = new int[NUM_DIGITS][RADIX];
+
+  /**
+   * @param fallback sorter for small ranges and ties
+   * @param exactPrefix whether equal prefixes imply equal keys, in which case
+   *          ties need no further sorting
+   */
+  public RadixSort(IndexedSorter fallback, boolean exactPrefix) {
+    this.fallback = fallback;
+    this.exactPrefix = exactPrefix;
+  }
+
+  public void sort(RadixSortable s, int l, int r, Progressable progress) {
+    sort(s, l, r, 0, progress);
+  }
+
+  private void sort(RadixSortable s, int l, int r, int digit, Progressable progress) {
+    while (true) {
+      if (r - l < 2) {
+        return;
+      }
+      if (digit == NUM_DIGITS) {
+        if (!exactPrefix) {
+          fallback.sort(s, l, r, progress);
+        }
+        return;
+      }
+      if (r - l < MIN_RADIX_RANGE) {
+        fallback.sort(s, l, r, progress);
+        return;
+      }
+      final int[] count = counts[digit];
+      Arrays.fill(count, 0);
+      for (int i = l; i < r; i++) {
+        count[digitOf(s, i, digit) + 1]++;
+      }
+      // skip digits shared by the whole range, e.g. the partition bytes of a
+      // single partition or the leading zeros of small integers
+      boolean single = false;
+      for (int b = 1; b <= RADIX; b++) {
+        if (count[b] == r - l) {
+          single = true;
+          break;
+        }
+        if (count[b] != 0) {
+          break;
+        }
+      }
+      if (single) {
+        digit++;
+        continue;
+      }
+      // count[b] becomes the start of bucket b, count[b + 1] its end
+      count[0] = l;
+      for (int b = 0; b < RADIX; b++) {
+        count[b + 1] += count[b];
+      }
+      final int[] head = heads[digit];
+      System.arraycopy(count, 0, head, 0, RADIX);
+      for (int b = 0; b < RADIX; b++) {
+        final int end = count[b + 1];
+        while (head[b] < end) {
+          final int v = digitOf(s, head[b], digit);
+          if (v == b) {
+            head[b]++;
+          } else {
+            s.swap(head[b], head[v]++);
+          }
+        }
+      }
+      if (progress != null) {
+        progress.progress();
+      }
+      for (int b = 0; b < RADIX; b++) {
+        sort(s, count[b], count[b + 1], digit + 1, progress);
+      }
+      return;
+    }
+  }
+
+  private static int digitOf(RadixSortable s, int i, int digit) {
+    if (digit < 4) {
+      // flip the sign bit, so that the partition orders as signed
+      final int partition = s.getPartition(i) ^ Integer.MIN_VALUE;
+      return (partition >>> (24 - 8 * digit)) & 0xff;
+    }
+    return (int) (s.getPrefix(i) >>> (56 - 8 * (digit - 4))) & 0xff;
+  }
+}
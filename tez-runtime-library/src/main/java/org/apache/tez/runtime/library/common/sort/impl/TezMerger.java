@@ -361,8 +361,66 @@ public class TezMerger {
     }
   }
 
+  /**
+   * The segments of a merge pass, ordered by their current key.
+   */
+  private interface SegmentQueue {
+    int size();
+
+    Segment top();
+
+    /** Restore the order after the key of the top segment changed */
+    void adjustTop();
+
+    Segment pop();
+  }
+
+  private static int compareKeys(RawComparator comparator, Segment a, Segment b) {
+    DataInputBuffer key1 = a.getKey();
+    DataInputBuffer key2 = b.getKey();
+    int s1 = key1.getPosition();
+    int l1 = key1.getLength() - s1;
+    int s2 = key2.getPosition();
+    int l2 = key2.getLength() - s2;
+
+    return comparator.compare(key1.getData(), s1, l1, key2.getData(), s2, l2);
+  }
+
+  private static class HeapSegmentQueue extends PriorityQueue<Segment>
+      implements SegmentQueue {
+    private final RawComparator comparator;
+
+    HeapSegmentQueue(List<Segment> segments, RawComparator comparator) {
+      this.comparator = comparator;
+      initialize(segments.size());
+      for (Segment segment : segments) {
+        put(segment);
+      }
+    }
+
+    @Override
+    protected boolean lessThan(Object a, Object b) {
+      return compareKeys(comparator, (Segment) a, (Segment) b) < 0;
+    }
+  }
+
+  private static class LoserTreeSegmentQueue extends LoserTree<Segment>
+      implements SegmentQueue {
+    private final RawComparator comparator;
+
+    LoserTreeSegmentQueue(List<Segment> segments, RawComparator comparator) {
+      this.comparator = comparator;
+      initialize(segments);
+    }
+
+    @Override
+    protected int compare(Object a, Object b) {
+      return compareKeys(comparator, (Segment) a, (Segment) b);
+    }
+  }
+
   private static class MergeQueue<K extends Object, V extends Object> 
-  extends PriorityQueue<Segment> implements TezRawKeyValueIterator {
+  implements TezRawKeyValueIterator {
     Configuration conf;
     FileSystem fs;
     CompressionCodec codec;
@@ -374,6 +432,9 @@ public class TezMerger {
     List<Segment> segments = new ArrayList<Segment>();
     
     RawComparator comparator;
+    final boolean useLoserTree;
+    // The segments of the current merge pass
+    SegmentQueue queue;
 
     private long totalBytesProcessed;
     private float progPerByte;
@@ -418,6 +479,7 @@ public class TezMerger {
       this.comparator = comparator;
       this.reporter = reporter;
       this.considerFinalMergeForProgress = considerFinalMergeForProgress;
+      this.useLoserTree = useLoserTree(conf);
       
       for (Path file : inputs) {
         LOG.debug("MergeQ: adding: " + file);
@@ -442,6 +504,7 @@ public class TezMerger {
       this.segments = segments;
       this.reporter = reporter;
       this.considerFinalMergeForProgress = considerFinalMergeForProgress;
+      this.useLoserTree = useLoserTree(conf);
       if (sortSegments) {
         Collections.sort(segments, segmentComparator);
       }
@@ -455,9 +518,17 @@ public class TezMerger {
       this.codec = codec;
     }
 
+    private static boolean useLoserTree(Configuration conf) {
+      return conf.getBoolean(TezJobConfig.TEZ_RUNTIME_MERGE_LOSER_TREE_ENABLED,
+          TezJobConfig.DEFAULT_TEZ_RUNTIME_MERGE_LOSER_TREE_ENABLED);
+    }
+
     public void close() throws IOException {
+      if (queue == null) {
+        return;
+      }
       Segment segment;
-      while((segment = pop()) != null) {
+      while((segment = queue.pop()) != null) {
         segment.close();
       }
     }
@@ -477,15 +548,15 @@ public class TezMerger {
       totalBytesProcessed += endPos - startPos;
       mergeProgress.set(totalBytesProcessed * progPerByte);
       if (hasNext) {
-        adjustTop();
+        queue.adjustTop();
       } else {
-        pop();
+        queue.pop();
         reader.close();
       }
     }
 
     public boolean next() throws IOException {
-      if (size() == 0)
+      if (queue == null || queue.size() == 0)
         return false;
 
       if (minSegment != null) {
@@ -493,12 +564,12 @@ public class TezMerger {
         //one. For the first invocation, the priority queue is ready for use
         //but for the subsequent invocations, first adjust the queue 
         adjustPriorityQueue(minSegment);
-        if (size() == 0) {
+        if (queue.size() == 0) {
           minSegment = null;
           return false;
         }
       }
-      minSegment = top();
+      minSegment = queue.top();
       if (!minSegment.inMemory()) {
         //When we load the value from an inmemory segment, we reset
         //the "value" DIB in this class to the inmem segment's byte[].
@@ -520,17 +591,6 @@ public class TezMerger {
       return true;
     }
 
-    protected boolean lessThan(Object a, Object b) {
-      DataInputBuffer key1 = ((Segment)a).getKey();
-      DataInputBuffer key2 = ((Segment)b).getKey();
-      int s1 = key1.getPosition();
-      int l1 = key1.getLength() - s1;
-      int s2 = key2.getPosition();
-      int l2 = key2.getLength() - s2;
-
-      return comparator.compare(key1.getData(), s1, l1, key2.getData(), s2, l2) < 0;
-    }
-    
     public TezRawKeyValueIterator merge(Class keyClass, Class valueClass,
                                      int factor, Path tmpDir,
                                      TezCounter readsCounter,
@@ -624,10 +684,10 @@ public class TezMerger {
         }
         
         //feed the streams to the priority queue
-        initialize(segmentsToMerge.size());
-        clear();
-        for (Segment segment : segmentsToMerge) {
-          put(segment);
+        if (useLoserTree) {
+          queue = new LoserTreeSegmentQueue(segmentsToMerge, comparator);
+        } else {
+          queue = new HeapSegmentQueue(segmentsToMerge, comparator);
         }
         
         //if we have lesser number of segments remaining, then just return the
@@ -25,7 +25,14 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -37,14 +44,21 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.DataInputBuffer;
 import org.apache.hadoop.io.RawComparator;
 import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.IndexedSorter;
 import org.apache.hadoop.util.Progress;
+import org.apache.hadoop.util.ReflectionUtils;
 import org.apache.hadoop.util.StringUtils;
 import org.apache.tez.common.TezJobConfig;
 import org.apache.tez.common.TezUtils;
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.common.counters.TezCounter;
 import org.apache.tez.runtime.api.TezOutputContext;
 import org.apache.tez.runtime.library.common.ConfigUtils;
 import org.apache.tez.runtime.library.common.sort.impl.ExternalSorter;
 import org.apache.tez.runtime.library.common.sort.impl.IFile;
+import org.apache.tez.runtime.library.common.sort.impl.KeyPrefixNormalizer;
+import org.apache.tez.runtime.library.common.sort.impl.RadixSort;
+import org.apache.tez.runtime.library.common.sort.impl.RadixSort.RadixSortable;
 import org.apache.tez.runtime.library.common.sort.impl.TezIndexRecord;
 import org.apache.tez.runtime.library.common.sort.impl.TezMerger;
 import org.apache.tez.runtime.library.common.sort.impl.TezRawKeyValueIterator;
@@ -52,8 +66,10 @@ import org.apache.tez.runtime.library.common.sort.impl.TezSpillRecord;
 import org.apache.tez.runtime.library.common.sort.impl.IFile.Writer;
 import org.apache.tez.runtime.library.common.sort.impl.TezMerger.Segment;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 @SuppressWarnings({"unchecked", "rawtypes"})
-public class DefaultSorter extends ExternalSorter implements IndexedSortable {
+public class DefaultSorter extends ExternalSorter implements RadixSortable {
   
   private static final Log LOG = LogFactory.getLog(DefaultSorter.class);
 
@@ -87,8 +103,10 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
   protected static final int KEYSTART = 1;         // key offset in acct
   protected static final int PARTITION = 2;        // partition offset in acct
   protected static final int VALLEN = 3;           // length of value
-  protected static final int NMETA = 4;            // num meta ints
-  protected static final int METASIZE = NMETA * 4; // size in bytes
+  protected static final int PREFIX_HI = 4;        // normalized key prefix
+  protected static final int PREFIX_LO = 5;
+  protected final int nmeta;                       // num meta ints
+  protected final int metasize;                    // size in bytes
 
   // spill accounting
   final int maxRec;
@@ -111,6 +129,19 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
   private final int indexCacheMemoryLimit;
   private int totalIndexCacheMemory;
 
+  // parallel spill sort. null if the spill is sorted by the spill thread alone
+  private final ExecutorService spillSortPool;
+  private final int spillSortThreads;
+
+  // Time spent sorting and writing spills
+  private final TezCounter spillSortMillis;
+  private final TezCounter spillWriteMillis;
+
+  // null if keys are compared with the key comparator alone
+  private final KeyPrefixNormalizer keyNormalizer;
+  // null if spills are sorted with a comparison sort
+  private final RadixSort radixSort;
+
   public DefaultSorter(TezOutputContext outputContext, Configuration conf, int numOutputs,
       long initialMemoryAvailable) throws IOException {
     super(outputContext, conf, numOutputs, initialMemoryAvailable);
@@ -132,8 +163,24 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
                                        TezJobConfig.DEFAULT_TEZ_RUNTIME_INDEX_CACHE_MEMORY_LIMIT_BYTES);
 
     // buffers and accounting
+    keyNormalizer = KeyPrefixNormalizer.getIntermediateOutputKeyNormalizer(this.conf);
+    nmeta = keyNormalizer == null ? 4 : 6;
+    metasize = nmeta * 4;
+    META_BUFFER_TMP = new byte[metasize];
+    if (KeyPrefixNormalizer.isRadixSortEnabled(this.conf)) {
+      if (keyNormalizer != null) {
+        LOG.info("Sorting spills with a radix sort");
+        radixSort = new RadixSort(sorter, keyNormalizer.isExact());
+      } else {
+        LOG.warn("Radix sort is not supported for key " + keyClass
+            + ", falling back to " + sorter.getClass().getName());
+        radixSort = null;
+      }
+    } else {
+      radixSort = null;
+    }
     int maxMemUsage = sortmb << 20;
-    maxMemUsage -= maxMemUsage % METASIZE;
+    maxMemUsage -= maxMemUsage % metasize;
     kvbuffer = new byte[maxMemUsage];
     bufvoid = kvbuffer.length;
     kvmeta = ByteBuffer.wrap(kvbuffer)
@@ -143,7 +190,7 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
     bufstart = bufend = bufindex = equator;
     kvstart = kvend = kvindex;
 
-    maxRec = kvmeta.capacity() / NMETA;
+    maxRec = kvmeta.capacity() / nmeta;
     softLimit = (int)(kvbuffer.length * spillper);
     bufferRemaining = softLimit;
     if (LOG.isInfoEnabled()) {
@@ -159,6 +206,22 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
 
     spillInProgress = false;
     minSpillsForCombine = this.conf.getInt(TezJobConfig.TEZ_RUNTIME_COMBINE_MIN_SPILLS, 3);
+
+    spillSortMillis = outputContext.getCounters().findCounter(TaskCounter.SPILL_SORT_MILLIS);
+    spillWriteMillis = outputContext.getCounters().findCounter(TaskCounter.SPILL_WRITE_MILLIS);
+    spillSortThreads = this.conf.getInt(TezJobConfig.TEZ_RUNTIME_SORT_SPILL_THREADS,
+        TezJobConfig.DEFAULT_TEZ_RUNTIME_SORT_SPILL_THREADS);
+    if (spillSortThreads > 1) {
+      LOG.info("Sorting spills with " + spillSortThreads + " threads");
+      spillSortPool = Executors.newFixedThreadPool(spillSortThreads,
+          new ThreadFactoryBuilder().setDaemon(true)
+          .setNameFormat("SpillSorter ["
+              + TezUtils.cleanVertexName(outputContext.getDestinationVertexName()) + "] #%d")
+          .build());
+    } else {
+      spillSortPool = null;
+    }
+
     spillThread.setDaemon(true);
     spillThread.setName("SpillThread ["
         + TezUtils.cleanVertexName(outputContext.getDestinationVertexName() + "]"));
@@ -209,7 +272,7 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
           partition + ")" + ", TotalPartitions: " + partitions);
     }
     checkSpillException();
-    bufferRemaining -= METASIZE;
+    bufferRemaining -= metasize;
     if (bufferRemaining <= 0) {
       // start spill if the thread is not running and the soft limit has been
       // reached
@@ -224,13 +287,13 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
             // created by a reset must be included in "used" bytes
             final int bUsed = distanceTo(kvbidx, bufindex);
             final boolean bufsoftlimit = bUsed >= softLimit;
-            if ((kvbend + METASIZE) % kvbuffer.length !=
-                equator - (equator % METASIZE)) {
+            if ((kvbend + metasize) % kvbuffer.length !=
+                equator - (equator % metasize)) {
               // spill finished, reclaim space
               resetSpill();
               bufferRemaining = Math.min(
-                  distanceTo(bufindex, kvbidx) - 2 * METASIZE,
-                  softLimit - bUsed) - METASIZE;
+                  distanceTo(bufindex, kvbidx) - 2 * metasize,
+                  softLimit - bUsed) - metasize;
               continue;
             } else if (bufsoftlimit && kvindex != kvend) {
               // spill records, if any collected; check latter, as it may
@@ -243,9 +306,9 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
               // ensure that kvindex >= bufindex
               final int distkvi = distanceTo(bufindex, kvbidx);
               final int newPos = (bufindex +
-                Math.max(2 * METASIZE - 1,
+                Math.max(2 * metasize - 1,
                         Math.min(distkvi / 2,
-                                 distkvi / (METASIZE + avgRec) * METASIZE)))
+                                 distkvi / (metasize + avgRec) * metasize)))
                 % kvbuffer.length;
               setEquator(newPos);
               bufmark = bufindex = newPos;
@@ -260,7 +323,7 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
                     // serialization max
                     distanceTo(newPos, serBound),
                     // soft limit
-                    softLimit)) - 2 * METASIZE;
+                    softLimit)) - 2 * metasize;
             }
           }
         } while (false);
@@ -302,8 +365,15 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
       kvmeta.put(kvindex + KEYSTART, keystart);
       kvmeta.put(kvindex + VALSTART, valstart);
       kvmeta.put(kvindex + VALLEN, distanceTo(valstart, valend));
+      if (keyNormalizer != null) {
+        // the key is contiguous, see BlockingBuffer#shiftBufferedKey
+        final long prefix =
+            keyNormalizer.getPrefix(kvbuffer, keystart, valstart - keystart);
+        kvmeta.put(kvindex + PREFIX_HI, (int) (prefix >>> 32));
+        kvmeta.put(kvindex + PREFIX_LO, (int) prefix);
+      }
       // advance kvindex
-      kvindex = (int)(((long)kvindex - NMETA + kvmeta.capacity()) % kvmeta.capacity());
+      kvindex = (int)(((long)kvindex - nmeta + kvmeta.capacity()) % kvmeta.capacity());
     } catch (MapBufferTooSmallException e) {
       LOG.info("Record too large for in-memory buffer: " + e.getMessage());
       spillSingleRecord(key, value, partition);
@@ -320,9 +390,9 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
   private void setEquator(int pos) {
     equator = pos;
     // set index prior to first entry, aligned at meta boundary
-    final int aligned = pos - (pos % METASIZE);
+    final int aligned = pos - (pos % metasize);
     // Cast one of the operands to long to avoid integer overflow
-    kvindex = (int) (((long) aligned - METASIZE + kvbuffer.length) % kvbuffer.length) / 4;
+    kvindex = (int) (((long) aligned - metasize + kvbuffer.length) % kvbuffer.length) / 4;
     if (LOG.isInfoEnabled()) {
       LOG.info("(EQUATOR) " + pos + " kvi " + kvindex +
           "(" + (kvindex * 4) + ")");
@@ -337,10 +407,10 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
   private void resetSpill() {
     final int e = equator;
     bufstart = bufend = e;
-    final int aligned = e - (e % METASIZE);
+    final int aligned = e - (e % metasize);
     // set start/end to point to first meta record
     // Cast one of the operands to long to avoid integer overflow
-    kvstart = kvend = (int) (((long) aligned - METASIZE + kvbuffer.length) % kvbuffer.length) / 4;
+    kvstart = kvend = (int) (((long) aligned - metasize + kvbuffer.length) % kvbuffer.length) / 4;
     if (LOG.isInfoEnabled()) {
       LOG.info("(RESET) equator " + e + " kv " + kvstart + "(" +
         (kvstart * 4) + ")" + " kvi " + kvindex + "(" + (kvindex * 4) + ")");
@@ -371,7 +441,7 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
    * kvmeta buffer.
    */
   int offsetFor(int metapos) {
-    return (metapos % maxRec) * NMETA;
+    return (metapos % maxRec) * nmeta;
     
   }
 
@@ -390,6 +460,12 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
       return kvip - kvjp;
     }
     // sort by key
+    if (keyNormalizer != null) {
+      final int cmp = comparePrefix(kvi, kvj);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
     return comparator.compare(kvbuffer,
         kvmeta.get(kvi + KEYSTART),
         kvmeta.get(kvi + VALSTART) - kvmeta.get(kvi + KEYSTART),
@@ -398,17 +474,40 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
         kvmeta.get(kvj + VALSTART) - kvmeta.get(kvj + KEYSTART));
   }
 
-  final byte META_BUFFER_TMP[] = new byte[METASIZE];
+  /**
+   * Compare the normalized key prefixes of the records at the given kvmeta
+   * offsets.
+   */
+  private int comparePrefix(final int kvi, final int kvj) {
+    return KeyPrefixNormalizer.compare(prefixAt(kvi), prefixAt(kvj));
+  }
+
+  private long prefixAt(final int kvoff) {
+    return ((long) kvmeta.get(kvoff + PREFIX_HI) << 32)
+        | (kvmeta.get(kvoff + PREFIX_LO) & 0xffffffffL);
+  }
+
+  @Override
+  public int getPartition(final int mi) {
+    return kvmeta.get(offsetFor(mi) + PARTITION);
+  }
+
+  @Override
+  public long getPrefix(final int mi) {
+    return prefixAt(offsetFor(mi));
+  }
+
+  final byte META_BUFFER_TMP[];
   /**
    * Swap metadata for items i,j
    * @see IndexedSortable#swap
    */
   public void swap(final int mi, final int mj) {
-    int iOff = (mi % maxRec) * METASIZE;
-    int jOff = (mj % maxRec) * METASIZE;
-    System.arraycopy(kvbuffer, iOff, META_BUFFER_TMP, 0, METASIZE);
-    System.arraycopy(kvbuffer, jOff, kvbuffer, iOff, METASIZE);
-    System.arraycopy(META_BUFFER_TMP, 0, kvbuffer, jOff, METASIZE);
+    int iOff = (mi % maxRec) * metasize;
+    int jOff = (mj % maxRec) * metasize;
+    System.arraycopy(kvbuffer, iOff, META_BUFFER_TMP, 0, metasize);
+    System.arraycopy(kvbuffer, jOff, kvbuffer, iOff, metasize);
+    System.arraycopy(META_BUFFER_TMP, 0, kvbuffer, jOff, metasize);
   }
 
   /**
@@ -484,7 +583,7 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
     @Override
     public void write(byte b[], int off, int len)
         throws IOException {
-      // must always verify the invariant that at least METASIZE bytes are
+      // must always verify the invariant that at least metasize bytes are
       // available beyond kvindex, even when len == 0
       bufferRemaining -= len;
       if (bufferRemaining <= 0) {
@@ -512,19 +611,19 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
             // either the metadata or the current write. Note that collect
             // ensures its metadata requirement with a zero-length write
             blockwrite = distkvi <= distkve
-              ? distkvi <= len + 2 * METASIZE
-              : distkve <= len || distanceTo(bufend, kvbidx) < 2 * METASIZE;
+              ? distkvi <= len + 2 * metasize
+              : distkve <= len || distanceTo(bufend, kvbidx) < 2 * metasize;
 
             if (!spillInProgress) {
               if (blockwrite) {
-                if ((kvbend + METASIZE) % kvbuffer.length !=
-                    equator - (equator % METASIZE)) {
+                if ((kvbend + metasize) % kvbuffer.length !=
+                    equator - (equator % metasize)) {
                   // spill finished, reclaim space
                   // need to use meta exclusively; zero-len rec & 100% spill
                   // pcnt would fail
                   resetSpill(); // resetSpill doesn't move bufindex, kvindex
                   bufferRemaining = Math.min(
-                      distkvi - 2 * METASIZE,
+                      distkvi - 2 * metasize,
                       softLimit - distanceTo(kvbidx, bufindex)) - len;
                   continue;
                 }
@@ -590,13 +689,13 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
       checkSpillException();
 
       final int kvbend = 4 * kvend;
-      if ((kvbend + METASIZE) % kvbuffer.length !=
-          equator - (equator % METASIZE)) {
+      if ((kvbend + metasize) % kvbuffer.length !=
+          equator - (equator % metasize)) {
         // spill finished
         resetSpill();
       }
       if (kvindex != kvend) {
-        kvend = (kvindex + NMETA) % kvmeta.capacity();
+        kvend = (kvindex + nmeta) % kvmeta.capacity();
         bufend = bufmark;
         if (LOG.isInfoEnabled()) {
           LOG.info("Sorting & Spilling map output");
@@ -626,6 +725,10 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
       spillThread.join();
     } catch (InterruptedException e) {
       throw new IOException("Spill failed", e);
+    } finally {
+      if (spillSortPool != null) {
+        spillSortPool.shutdownNow();
+      }
     }
     // release sort buffer before the merge
     //FIXME
@@ -689,7 +792,7 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
 
   private void startSpill() {
     assert !spillInProgress;
-    kvend = (kvindex + NMETA) % kvmeta.capacity();
+    kvend = (kvindex + nmeta) % kvmeta.capacity();
     bufend = bufmark;
     spillInProgress = true;
     if (LOG.isInfoEnabled()) {
@@ -705,22 +808,164 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
   }
 
   int getMetaStart() {
-    return kvend / NMETA;
+    return kvend / nmeta;
   }
 
   int getMetaEnd() {
     return 1 + // kvend is a valid record
         (kvstart >= kvend
         ? kvstart
-        : kvmeta.capacity() + kvstart) / NMETA;
+        : kvmeta.capacity() + kvstart) / nmeta;
   }
 
   protected void sortAndSpill()
       throws IOException, InterruptedException {
     final int mstart = getMetaStart();
     final int mend = getMetaEnd();
-    sorter.sort(this, mstart, mend, nullProgressable);
+    long sortStart = System.currentTimeMillis();
+    if (spillSortPool == null || mend - mstart < 2 * spillSortThreads) {
+      if (radixSort != null) {
+        radixSort.sort(this, mstart, mend, nullProgressable);
+      } else {
+        sorter.sort(this, mstart, mend, nullProgressable);
+      }
+    } else {
+      parallelSort(mstart, mend);
+    }
+    long writeStart = System.currentTimeMillis();
+    spillSortMillis.increment(writeStart - sortStart);
     spill(mstart, mend);
+    spillWriteMillis.increment(System.currentTimeMillis() - writeStart);
+  }
+
+  /**
+   * Sort the metadata for the range [mstart, mend) using the spill sort
+   * threads. Records are first grouped by partition with an in-place bucket
+   * pass, which requires no comparisons and no memory beyond the sort buffer.
+   * Each partition is then sorted independently by key.
+   */
+  private void parallelSort(final int mstart, final int mend)
+      throws IOException, InterruptedException {
+    final int[] partitionStart = new int[partitions + 1];
+    for (int i = mstart; i < mend; ++i) {
+      ++partitionStart[kvmeta.get(offsetFor(i) + PARTITION) + 1];
+    }
+    partitionStart[0] = mstart;
+    for (int p = 0; p < partitions; ++p) {
+      partitionStart[p + 1] += partitionStart[p];
+    }
+
+    // in-place bucketing - move each record into the region for its partition
+    final int[] next = new int[partitions];
+    System.arraycopy(partitionStart, 0, next, 0, partitions);
+    for (int p = 0; p < partitions; ++p) {
+      final int end = partitionStart[p + 1];
+      while (next[p] < end) {
+        final int target = kvmeta.get(offsetFor(next[p]) + PARTITION);
+        if (target == p) {
+          ++next[p];
+        } else {
+          swap(next[p], next[target]++);
+        }
+      }
+    }
+
+    // sort the largest partitions first so that the threads finish together
+    List<SpillSortTask> tasks = new ArrayList<SpillSortTask>();
+    for (int p = 0; p < partitions; ++p) {
+      if (partitionStart[p + 1] - partitionStart[p] > 1) {
+        tasks.add(new SpillSortTask(partitionStart[p], partitionStart[p + 1]));
+      }
+    }
+    Collections.sort(tasks, new Comparator<SpillSortTask>() {
+      @Override
+      public int compare(SpillSortTask o1, SpillSortTask o2) {
+        return (o2.end - o2.start) - (o1.end - o1.start);
+      }
+    });
+    List<Future<Void>> futures = new ArrayList<Future<Void>>(tasks.size());
+    for (SpillSortTask task : tasks) {
+      futures.add(spillSortPool.submit(task));
+    }
+    try {
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } catch (ExecutionException e) {
+      throw new IOException("Spill sort failed", e.getCause());
+    } finally {
+      for (Future<Void> future : futures) {
+        future.cancel(true);
+      }
+    }
+  }
+
+  /**
+   * Sorts a range of records from a single partition by key. Each task uses
+   * its own comparator, sorter and swap space, since neither the comparator
+   * nor {@link DefaultSorter#swap(int, int)} are safe for concurrent use.
+   */
+  private class SpillSortTask implements Callable<Void>, RadixSortable {
+
+    private final int start;
+    private final int end;
+    private final byte[] metaTmp = new byte[metasize];
+    private RawComparator keyComparator;
+
+    SpillSortTask(int start, int end) {
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    public Void call() throws Exception {
+      keyComparator = ConfigUtils.getIntermediateOutputKeyComparator(conf);
+      IndexedSorter rangeSorter = ReflectionUtils.newInstance(sorter.getClass(), conf);
+      if (radixSort != null) {
+        new RadixSort(rangeSorter, keyNormalizer.isExact())
+            .sort(this, start, end, nullProgressable);
+      } else {
+        rangeSorter.sort(this, start, end, nullProgressable);
+      }
+      return null;
+    }
+
+    @Override
+    public int compare(final int mi, final int mj) {
+      final int kvi = offsetFor(mi);
+      final int kvj = offsetFor(mj);
+      if (keyNormalizer != null) {
+        final int cmp = comparePrefix(kvi, kvj);
+        if (cmp != 0) {
+          return cmp;
+        }
+      }
+      return keyComparator.compare(kvbuffer,
+          kvmeta.get(kvi + KEYSTART),
+          kvmeta.get(kvi + VALSTART) - kvmeta.get(kvi + KEYSTART),
+          kvbuffer,
+          kvmeta.get(kvj + KEYSTART),
+          kvmeta.get(kvj + VALSTART) - kvmeta.get(kvj + KEYSTART));
+    }
+
+    @Override
+    public void swap(final int mi, final int mj) {
+      int iOff = (mi % maxRec) * metasize;
+      int jOff = (mj % maxRec) * metasize;
+      System.arraycopy(kvbuffer, iOff, metaTmp, 0, metasize);
+      System.arraycopy(kvbuffer, jOff, kvbuffer, iOff, metasize);
+      System.arraycopy(metaTmp, 0, kvbuffer, jOff, metasize);
+    }
+
+    @Override
+    public int getPartition(final int mi) {
+      return DefaultSorter.this.getPartition(mi);
+    }
+
+    @Override
+    public long getPrefix(final int mi) {
+      return DefaultSorter.this.getPrefix(mi);
+    }
   }
 
   protected void spill(int mstart, int mend)
@@ -0,0 +1,570 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.writers;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.Compressor;
+import org.apache.hadoop.io.serializer.Serializer;
+import org.apache.tez.common.TezJobConfig;
+import org.apache.tez.runtime.api.TezOutputContext;
+import org.apache.tez.runtime.library.common.sort.impl.ExternalSorter;
+import org.apache.tez.runtime.library.common.sort.impl.IFile;
+import org.apache.tez.runtime.library.common.sort.impl.IFileChecksums;
+import org.apache.tez.runtime.library.common.sort.impl.IFileOutputStream;
+import org.apache.tez.runtime.library.common.sort.impl.TezIndexRecord;
+import org.apache.tez.runtime.library.common.sort.impl.TezSpillRecord;
+import org.apache.tez.runtime.library.common.sort.impl.IFile.Writer;
+
+/**
+ * <code>UnorderedPartitionedKVWriter</code> collects key-value pairs into a
+ * single in-memory buffer, chaining the records of each partition together as
+ * they arrive. When the buffer fills up, the records are spilled partition by
+ * partition into an IFile with a {@link TezSpillRecord} index. Keys are never
+ * compared - records within a partition retain their arrival order.
+ *
+ * If all the records fit into the buffer, it is written out as the final
+ * output directly. Otherwise each spill stores the records of a partition as a
+ * chunk: the IFile encoding of the records, compressed on its own, without the
+ * EOF marker and checksum which end an IFile segment. The final output is
+ * then built without decoding any record, by copying the chunks of each
+ * partition one after the other and ending them with the EOF marker and the
+ * checksum. This relies on the codec's input stream reading concatenated
+ * compressed streams, as Hadoop's codecs do.
+ *
+ * A combiner is not run, as records are never grouped by key.
+ */
+@SuppressWarnings({"unchecked", "rawtypes"})
+public class UnorderedPartitionedKVWriter extends ExternalSorter {
+
+  private static final Log LOG = LogFactory.getLog(UnorderedPartitionedKVWriter.class);
+
+  /**
+   * The size of each record in the index file for the map-outputs.
+   */
+  public static final int INDEX_RECORD_LENGTH = 24;
+
+  private final static int APPROX_HEADER_LENGTH = 150;
+
+  // Per record metadata, stored in front of the serialized key and value.
+  private static final int NEXT = 0;     // offset of the next record in this partition
+  private static final int KEYLEN = 4;   // length of the serialized key
+  private static final int VALLEN = 8;   // length of the serialized value
+  private static final int METASIZE = 12;
+
+  private static final int END_OF_PARTITION = -1;
+
+  private final byte[] kvbuffer;
+  private final ByteArrayBufferStream bufferStream = new ByteArrayBufferStream();
+  private final DataOutputStream bufferOut = new DataOutputStream(bufferStream);
+
+  // First and last record of each partition in the current buffer
+  private final int[] partitionHeads;
+  private final int[] partitionTails;
+
+  private int bufindex = 0;
+  private int numRecordsInBuffer = 0;
+
+  private int numSpills = 0;
+  private final List<TezSpillRecord> indexCacheList = new ArrayList<TezSpillRecord>();
+  private final int indexCacheMemoryLimit;
+  private int totalIndexCacheMemory;
+  private final int checksumVersion;
+
+  private final DataInputBuffer keyBuffer = new DataInputBuffer();
+  private final DataInputBuffer valBuffer = new DataInputBuffer();
+
+  private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+  public UnorderedPartitionedKVWriter(TezOutputContext outputContext, Configuration conf,
+      int numOutputs, long initialMemoryAvailable) throws IOException {
+    super(outputContext, conf, numOutputs, initialMemoryAvailable);
+    if ((availableMemoryMb & 0x7FF) != availableMemoryMb) {
+      throw new IOException("Invalid \"" + TezJobConfig.TEZ_RUNTIME_IO_SORT_MB
+          + "\": " + availableMemoryMb);
+    }
+    indexCacheMemoryLimit = this.conf.getInt(
+        TezJobConfig.TEZ_RUNTIME_INDEX_CACHE_MEMORY_LIMIT_BYTES,
+        TezJobConfig.DEFAULT_TEZ_RUNTIME_INDEX_CACHE_MEMORY_LIMIT_BYTES);
+    checksumVersion = IFileChecksums.getWriteVersion(this.conf);
+
+    kvbuffer = new byte[availableMemoryMb << 20];
+    partitionHeads = new int[partitions];
+    partitionTails = new int[partitions];
+    resetBuffer();
+
+    keySerializer.open(bufferOut);
+    valSerializer.open(bufferOut);
+
+    if (combiner != null) {
+      LOG.warn("A combiner is configured for output to "
+          + outputContext.getDestinationVertexName() + ", but "
+          + getClass().getSimpleName() + " does not group records by key. The"
+          + " combiner will not be run.");
+    }
+
+    LOG.info("Created " + getClass().getSimpleName() + " with bufferSize: " + kvbuffer.length
+        + ", numPartitions: " + partitions + ", codec: "
+        + (codec == null ? "NoCompressionCodec" : codec.getClass().getName()));
+  }
+
+  @Override
+  public void write(Object key, Object value) throws IOException {
+    if (key.getClass() != keyClass) {
+      throw new IOException("Type mismatch in key from map: expected "
+          + keyClass.getName() + ", received " + key.getClass().getName());
+    }
+    if (value.getClass() != valClass) {
+      throw new IOException("Type mismatch in value from map: expected "
+          + valClass.getName() + ", received " + value.getClass().getName());
+    }
+    int partition = partitioner.getPartition(key, value, partitions);
+    if (partition < 0 || partition >= partitions) {
+      throw new IOException("Illegal partition for " + key + " (" + partition + ")"
+          + ", TotalPartitions: " + partitions);
+    }
+
+    if (!collect(key, value, partition)) {
+      // The record did not fit into what was left of the buffer. Spill
+      // everything collected so far and try again with an empty buffer.
+      if (numRecordsInBuffer > 0) {
+        spill();
+        if (collect(key, value, partition)) {
+          return;
+        }
+      }
+      LOG.info("Record too large for in-memory buffer. Spilling it directly");
+      spillSingleRecord(key, value, partition);
+    }
+  }
+
+  /**
+   * Serialize the record into the buffer and link it to the chain for its
+   * partition.
+   *
+   * @return false if there was not enough space left in the buffer, in which
+   *         case the buffer is left unmodified.
+   */
+  private boolean collect(Object key, Object value, int partition) throws IOException {
+    final int recordStart = bufindex;
+    int keyLength;
+    int valLength;
+    try {
+      bufferStream.skip(METASIZE);
+      final int keyStart = bufindex;
+      keySerializer.serialize(key);
+      keyLength = bufindex - keyStart;
+      valSerializer.serialize(value);
+      valLength = bufindex - keyStart - keyLength;
+    } catch (MapBufferTooSmallException e) {
+      bufindex = recordStart;
+      return false;
+    }
+
+    writeInt(recordStart + NEXT, END_OF_PARTITION);
+    writeInt(recordStart + KEYLEN, keyLength);
+    writeInt(recordStart + VALLEN, valLength);
+    if (partitionHeads[partition] == END_OF_PARTITION) {
+      partitionHeads[partition] = recordStart;
+    } else {
+      writeInt(partitionTails[partition] + NEXT, recordStart);
+    }
+    partitionTails[partition] = recordStart;
+    numRecordsInBuffer++;
+
+    mapOutputRecordCounter.increment(1);
+    mapOutputByteCounter.increment(keyLength + valLength);
+    return true;
+  }
+
+  private void resetBuffer() {
+    Arrays.fill(partitionHeads, END_OF_PARTITION);
+    Arrays.fill(partitionTails, END_OF_PARTITION);
+    bufindex = 0;
+    numRecordsInBuffer = 0;
+  }
+
+  private void writeInt(int pos, int v) {
+    kvbuffer[pos] = (byte) (v >>> 24);
+    kvbuffer[pos + 1] = (byte) (v >>> 16);
+    kvbuffer[pos + 2] = (byte) (v >>> 8);
+    kvbuffer[pos + 3] = (byte) v;
+  }
+
+  private int readInt(int pos) {
+    return ((kvbuffer[pos] & 0xFF) << 24) | ((kvbuffer[pos + 1] & 0xFF) << 16)
+        | ((kvbuffer[pos + 2] & 0xFF) << 8) | (kvbuffer[pos + 3] & 0xFF);
+  }
+
+  /**
+   * Write out the contents of the buffer to a new spill file, one chunk per
+   * partition, walking each partition's record chain in order.
+   */
+  private void spill() throws IOException {
+    final long size = bufindex + partitions * APPROX_HEADER_LENGTH;
+    final TezSpillRecord spillRec = new TezSpillRecord(partitions);
+    final Path filename = mapOutputFile.getSpillFileForWrite(numSpills, size);
+    FSDataOutputStream out = rfs.create(filename);
+    try {
+      for (int i = 0; i < partitions; i++) {
+        ChunkWriter writer = new ChunkWriter(out);
+        int recordPos = partitionHeads[i];
+        while (recordPos != END_OF_PARTITION) {
+          writer.append(kvbuffer, recordPos + METASIZE, readInt(recordPos + KEYLEN),
+              readInt(recordPos + VALLEN));
+          recordPos = readInt(recordPos + NEXT);
+        }
+        spillRec.putIndex(writer.close(), i);
+      }
+    } finally {
+      out.close();
+    }
+    finishSpill(filename, spillRec);
+    LOG.info("Finished spill " + numSpills + ", records: " + numRecordsInBuffer);
+    ++numSpills;
+    resetBuffer();
+  }
+
+  /**
+   * Handles the degenerate case where a record is larger than the in-memory
+   * buffer. The record is written out in a spill of its own.
+   */
+  private void spillSingleRecord(Object key, Object value, int partition) throws IOException {
+    DataOutputBuffer recordBuffer = new DataOutputBuffer();
+    Serializer recordKeySerializer = serializationFactory.getSerializer(keyClass);
+    Serializer recordValSerializer = serializationFactory.getSerializer(valClass);
+    recordKeySerializer.open(recordBuffer);
+    recordValSerializer.open(recordBuffer);
+    recordKeySerializer.serialize(key);
+    final int keyLength = recordBuffer.getLength();
+    recordValSerializer.serialize(value);
+    final int valLength = recordBuffer.getLength() - keyLength;
+
+    final long size = recordBuffer.getLength() + partitions * APPROX_HEADER_LENGTH;
+    final TezSpillRecord spillRec = new TezSpillRecord(partitions);
+    final Path filename = mapOutputFile.getSpillFileForWrite(numSpills, size);
+    FSDataOutputStream out = rfs.create(filename);
+    try {
+      for (int i = 0; i < partitions; i++) {
+        ChunkWriter writer = new ChunkWriter(out);
+        if (i == partition) {
+          writer.append(recordBuffer.getData(), 0, keyLength, valLength);
+        }
+        spillRec.putIndex(writer.close(), i);
+      }
+    } finally {
+      out.close();
+    }
+    mapOutputRecordCounter.increment(1);
+    mapOutputByteCounter.increment(keyLength + valLength);
+    finishSpill(filename, spillRec);
+    ++numSpills;
+  }
+
+  private void finishSpill(Path filename, TezSpillRecord spillRec) throws IOException {
+    // All spills are additional to the final output, which is written by
+    // concatenating them.
+    additionalSpillBytesWritten.increment(rfs.getFileStatus(filename).getLen());
+    numAdditionalSpills.increment(1);
+    cacheOrWriteSpillIndex(spillRec);
+  }
+
+  private void cacheOrWriteSpillIndex(TezSpillRecord spillRec) throws IOException {
+    if (totalIndexCacheMemory >= indexCacheMemoryLimit) {
+      Path indexFilename = mapOutputFile.getSpillIndexFileForWrite(numSpills, partitions
+          * INDEX_RECORD_LENGTH);
+      spillRec.writeToFile(indexFilename, conf);
+    } else {
+      indexCacheList.add(spillRec);
+      totalIndexCacheMemory += spillRec.size() * INDEX_RECORD_LENGTH;
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    LOG.info("Starting flush of unordered output");
+    if (numSpills == 0) {
+      writeBufferAsOutput();
+    } else {
+      if (numRecordsInBuffer > 0) {
+        spill();
+      }
+      concatSpills();
+    }
+    Path outputPath = mapOutputFile.getOutputFile();
+    fileOutputByteCounter.increment(rfs.getFileStatus(outputPath).getLen());
+  }
+
+  @Override
+  public void close() throws IOException {
+  }
+
+  /**
+   * Write the buffer out as the final output, when nothing was spilled.
+   */
+  private void writeBufferAsOutput() throws IOException {
+    final long size = bufindex + partitions * APPROX_HEADER_LENGTH;
+    final TezSpillRecord spillRec = new TezSpillRecord(partitions);
+    final Path finalOutputFile = mapOutputFile.getOutputFileForWrite(size);
+    final Path finalIndexFile = mapOutputFile.getOutputIndexFileForWrite(partitions
+        * INDEX_RECORD_LENGTH);
+    FSDataOutputStream out = rfs.create(finalOutputFile);
+    try {
+      for (int i = 0; i < partitions; i++) {
+        long segmentStart = out.getPos();
+        Writer writer = new Writer(conf, out, keyClass, valClass, codec,
+            spilledRecordsCounter, null);
+        try {
+          int recordPos = partitionHeads[i];
+          while (recordPos != END_OF_PARTITION) {
+            final int keyLength = readInt(recordPos + KEYLEN);
+            final int valLength = readInt(recordPos + VALLEN);
+            final int keyStart = recordPos + METASIZE;
+            keyBuffer.reset(kvbuffer, keyStart, keyLength);
+            valBuffer.reset(kvbuffer, keyStart + keyLength, valLength);
+            writer.append(keyBuffer, valBuffer);
+            recordPos = readInt(recordPos + NEXT);
+          }
+        } finally {
+          writer.close();
+        }
+        outputBytesWithOverheadCounter.increment(writer.getRawLength());
+        spillRec.putIndex(new TezIndexRecord(segmentStart, writer.getRawLength(),
+            writer.getCompressedLength()), i);
+      }
+    } finally {
+      out.close();
+    }
+    spillRec.writeToFile(finalIndexFile, conf);
+    resetBuffer();
+  }
+
+  /**
+   * Generate the final output file. Since the data is not ordered, the chunks
+   * of a partition from each spill are copied one after the other into the
+   * partition's IFile segment, instead of being merged.
+   */
+  private void concatSpills() throws IOException {
+    final Path[] filename = new Path[numSpills];
+    long finalOutFileSize = 0;
+    for (int i = 0; i < numSpills; i++) {
+      filename[i] = mapOutputFile.getSpillFile(i);
+      finalOutFileSize += rfs.getFileStatus(filename[i]).getLen();
+    }
+
+    // read in paged indices
+    for (int i = indexCacheList.size(); i < numSpills; ++i) {
+      Path indexFileName = mapOutputFile.getSpillIndexFile(i);
+      indexCacheList.add(new TezSpillRecord(indexFileName, conf));
+    }
+
+    finalOutFileSize += partitions * APPROX_HEADER_LENGTH;
+    Path finalOutputFile = mapOutputFile.getOutputFileForWrite(finalOutFileSize);
+    Path finalIndexFile = mapOutputFile.getOutputIndexFileForWrite(partitions
+        * INDEX_RECORD_LENGTH);
+
+    final TezSpillRecord spillRec = new TezSpillRecord(partitions);
+    final byte[] copyBuffer = new byte[COPY_BUFFER_SIZE];
+    final FSDataInputStream[] spillIn = new FSDataInputStream[numSpills];
+    FSDataOutputStream finalOut = rfs.create(finalOutputFile, true, 4096);
+    try {
+      for (int i = 0; i < numSpills; i++) {
+        spillIn[i] = rfs.open(filename[i]);
+      }
+      for (int parts = 0; parts < partitions; parts++) {
+        long segmentStart = finalOut.getPos();
+        IFileOutputStream checksumOut = new IFileOutputStream(finalOut, checksumVersion);
+        long rawLength = 0;
+        for (int i = 0; i < numSpills; i++) {
+          TezIndexRecord chunk = indexCacheList.get(i).getIndex(parts);
+          if (chunk.getPartLength() > 0) {
+            copyChunk(spillIn[i], chunk, checksumOut, copyBuffer);
+            rawLength += chunk.getRawLength();
+          }
+        }
+        rawLength += writeEndOfRecords(checksumOut);
+        checksumOut.finish();
+        outputBytesWithOverheadCounter.increment(rawLength);
+        spillRec.putIndex(new TezIndexRecord(segmentStart, rawLength,
+            finalOut.getPos() - segmentStart), parts);
+      }
+    } finally {
+      finalOut.close();
+      for (FSDataInputStream in : spillIn) {
+        if (in != null) {
+          in.close();
+        }
+      }
+    }
+    spillRec.writeToFile(finalIndexFile, conf);
+
+    for (int i = 0; i < numSpills; i++) {
+      rfs.delete(filename[i], true);
+    }
+  }
+
+  private void copyChunk(FSDataInputStream in, TezIndexRecord chunk, OutputStream out,
+      byte[] copyBuffer) throws IOException {
+    in.seek(chunk.getStartOffset());
+    long remaining = chunk.getPartLength();
+    while (remaining > 0) {
+      int n = (int) Math.min(remaining, copyBuffer.length);
+      in.readFully(copyBuffer, 0, n);
+      out.write(copyBuffer, 0, n);
+      remaining -= n;
+    }
+    additionalSpillBytesRead.increment(chunk.getPartLength());
+  }
+
+  /**
+   * Write the EOF marker which ends the records of an IFile segment,
+   * compressed on its own if the output is compressed.
+   *
+   * @return the uncompressed length of the marker
+   */
+  private int writeEndOfRecords(OutputStream out) throws IOException {
+    ChunkWriter writer = new ChunkWriter(out);
+    DataOutputStream chunkOut = writer.open();
+    WritableUtils.writeVInt(chunkOut, IFile.EOF_MARKER);
+    WritableUtils.writeVInt(chunkOut, IFile.EOF_MARKER);
+    writer.finish();
+    return 2 * WritableUtils.getVIntSize(IFile.EOF_MARKER);
+  }
+
+  /**
+   * Writes records in the IFile encoding, compressed with the output codec as
+   * a stream of their own. Nothing is written for a chunk without records, so
+   * that readers do not see the end of an empty compressed stream.
+   */
+  private class ChunkWriter {
+    private final OutputStream rawOut;
+    private final long start;
+    private Compressor compressor;
+    private CompressionOutputStream compressedOut;
+    private DataOutputStream out;
+    private long rawLength = 0;
+    private long numRecords = 0;
+
+    ChunkWriter(OutputStream rawOut) throws IOException {
+      this.rawOut = rawOut;
+      this.start = rawOut instanceof FSDataOutputStream
+          ? ((FSDataOutputStream) rawOut).getPos() : 0;
+    }
+
+    DataOutputStream open() throws IOException {
+      if (out == null) {
+        if (codec != null) {
+          compressor = CodecPool.getCompressor(codec);
+          if (compressor == null) {
+            throw new IOException("Could not obtain compressor for "
+                + codec.getClass().getName());
+          }
+          compressor.reset();
+          compressedOut = codec.createOutputStream(rawOut, compressor);
+          out = new DataOutputStream(compressedOut);
+        } else {
+          out = new DataOutputStream(rawOut);
+        }
+      }
+      return out;
+    }
+
+    void append(byte[] data, int keyStart, int keyLength, int valLength) throws IOException {
+      open();
+      WritableUtils.writeVInt(out, keyLength);
+      WritableUtils.writeVInt(out, valLength);
+      out.write(data, keyStart, keyLength + valLength);
+      rawLength += keyLength + valLength + WritableUtils.getVIntSize(keyLength)
+          + WritableUtils.getVIntSize(valLength);
+      numRecords++;
+    }
+
+    void finish() throws IOException {
+      if (out == null) {
+        return;
+      }
+      out.flush();
+      if (compressedOut != null) {
+        compressedOut.finish();
+        CodecPool.returnCompressor(compressor);
+        compressor = null;
+      }
+    }
+
+    /**
+     * Finish the chunk, which must have been written to an
+     * FSDataOutputStream.
+     *
+     * @return the position, uncompressed and stored lengths of the chunk
+     */
+    TezIndexRecord close() throws IOException {
+      finish();
+      spilledRecordsCounter.increment(numRecords);
+      return new TezIndexRecord(start, rawLength,
+          ((FSDataOutputStream) rawOut).getPos() - start);
+    }
+  }
+
+  /**
+   * Stream writing into the collection buffer at the current position. Throws
+   * a {@link MapBufferTooSmallException} instead of overflowing the buffer.
+   */
+  private class ByteArrayBufferStream extends OutputStream {
+
+    @Override
+    public void write(int b) throws IOException {
+      if (bufindex >= kvbuffer.length) {
+        throw new MapBufferTooSmallException("Buffer full");
+      }
+      kvbuffer[bufindex++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (len > kvbuffer.length - bufindex) {
+        throw new MapBufferTooSmallException(len + " bytes");
+      }
+      System.arraycopy(b, off, kvbuffer, bufindex, len);
+      bufindex += len;
+    }
+
+    void skip(int len) throws IOException {
+      if (len > kvbuffer.length - bufindex) {
+        throw new MapBufferTooSmallException(len + " bytes");
+      }
+      bufindex += len;
+    }
+  }
+}
@@ -37,9 +37,12 @@ import org.apache.tez.runtime.api.Event;
 import org.apache.tez.runtime.api.LogicalInput;
 import org.apache.tez.runtime.api.TezInputContext;
 import org.apache.tez.runtime.library.api.KeyValuesReader;
+import org.apache.tez.runtime.library.api.RawKeyValueBatch;
+import org.apache.tez.runtime.library.api.RawKeyValueBatchReader;
 import org.apache.tez.runtime.library.common.ConfigUtils;
 import org.apache.tez.runtime.library.common.MemoryUpdateCallbackHandler;
 import org.apache.tez.runtime.library.common.ValuesIterator;
+import org.apache.tez.runtime.library.common.readers.BatchedRawKeyValueReader;
 import org.apache.tez.runtime.library.common.shuffle.impl.Shuffle;
 import org.apache.tez.runtime.library.common.sort.impl.TezRawKeyValueIterator;
 
@@ -224,6 +227,55 @@ public class ShuffledMergedInput implements LogicalInput {
     return new ShuffledMergedKeyValuesReader(valuesIter);
   }
 
+  /**
+   * Get a reader which hands out the sorted input as batches of serialized
+   * key/value records, for consumers which process records without
+   * deserializing them one at a time. Like {@link #getReader()}, this method
+   * blocks until the copy and merge stages are complete.
+   *
+   * NOTE: This is an alternative to {@link #getReader()}, both read the same
+   * merged records and only one of them can be used on an input.
+   *
+   * @return a batch reader over the sorted input.
+   */
+  @SuppressWarnings("rawtypes")
+  public RawKeyValueBatchReader getBatchReader() throws IOException {
+    TezRawKeyValueIterator rawIterLocal;
+    synchronized (this) {
+      rawIterLocal = rawIter;
+      if (this.numInputs == 0) {
+        return new RawKeyValueBatchReader() {
+          @Override
+          public boolean next() throws IOException {
+            return false;
+          }
+
+          @Override
+          public RawKeyValueBatch getCurrentBatch() {
+            throw new RuntimeException("No data available in Input");
+          }
+        };
+      }
+    }
+    if (rawIterLocal == null) {
+      try {
+        waitForInputReady();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for input ready", e);
+      }
+    }
+    synchronized (this) {
+      return new BatchedRawKeyValueReader(rawIter,
+          (RawComparator) ConfigUtils.getIntermediateInputKeyComparator(conf),
+          conf.getInt(TezJobConfig.TEZ_RUNTIME_BATCH_READER_MAX_RECORDS,
+              TezJobConfig.DEFAULT_TEZ_RUNTIME_BATCH_READER_MAX_RECORDS),
+          conf.getInt(TezJobConfig.TEZ_RUNTIME_BATCH_READER_MAX_BYTES,
+              TezJobConfig.DEFAULT_TEZ_RUNTIME_BATCH_READER_MAX_BYTES),
+          inputKeyCounter, inputValueCounter);
+    }
+  }
+
   @Override
   public void handleEvents(List<Event> inputEvents) {
     synchronized (this) {
@@ -68,6 +68,8 @@ public class OnFileSortedOutput implements LogicalOutput {
   private long startTime;
   private long endTime;
   private boolean sendEmptyPartitionDetails;
+  // Assigned the direct memory of a direct sort buffer, null for a heap buffer
+  private MemoryUpdateCallbackHandler directMemoryUpdateCallbackHandler;
   private final AtomicBoolean isStarted = new AtomicBoolean(false);
 
   @Override
@@ -81,9 +83,17 @@ public class OnFileSortedOutput implements LogicalOutput {
     // TezMerger, etc.
     this.conf.setStrings(TezJobConfig.LOCAL_DIRS, outputContext.getWorkDirs());
     this.memoryUpdateCallbackHandler = new MemoryUpdateCallbackHandler();
-    outputContext.requestInitialMemory(
-        ExternalSorter.getInitialMemoryRequirement(conf,
-            outputContext.getTotalMemoryAvailableToTask()), memoryUpdateCallbackHandler);
+    long sortBufferSize = ExternalSorter.getInitialMemoryRequirement(conf,
+        outputContext.getTotalMemoryAvailableToTask());
+    if (useDirectSortBuffer()) {
+      // A direct sort buffer takes nothing from the task's heap memory budget
+      this.directMemoryUpdateCallbackHandler = new MemoryUpdateCallbackHandler();
+      outputContext.requestInitialDirectMemory(sortBufferSize,
+          directMemoryUpdateCallbackHandler);
+      outputContext.requestInitialMemory(0l, memoryUpdateCallbackHandler);
+    } else {
+      outputContext.requestInitialMemory(sortBufferSize, memoryUpdateCallbackHandler);
+    }
 
     sendEmptyPartitionDetails = this.conf.getBoolean(
         TezJobConfig.TEZ_RUNTIME_EMPTY_PARTITION_INFO_VIA_EVENTS_ENABLED,
@@ -95,18 +105,35 @@ public class OnFileSortedOutput implements LogicalOutput {
   public synchronized void start() throws Exception {
     if (!isStarted.get()) {
       memoryUpdateCallbackHandler.validateUpdateReceived();
-      if (this.conf.getInt(TezJobConfig.TEZ_RUNTIME_SORT_THREADS,
-          TezJobConfig.DEFAULT_TEZ_RUNTIME_SORT_THREADS) > 1) {
-        sorter = new PipelinedSorter(outputContext, conf, numOutputs,
-            memoryUpdateCallbackHandler.getMemoryAssigned());
-      } else {
-        sorter = new DefaultSorter(outputContext, conf, numOutputs,
-            memoryUpdateCallbackHandler.getMemoryAssigned());
+      if (directMemoryUpdateCallbackHandler != null) {
+        directMemoryUpdateCallbackHandler.validateUpdateReceived();
       }
+      sorter = createSorter();
       isStarted.set(true);
     }
   }
 
+  protected ExternalSorter createSorter() throws IOException {
+    if (usePipelinedSorter()) {
+      return new PipelinedSorter(outputContext, conf, numOutputs,
+          directMemoryUpdateCallbackHandler != null
+              ? directMemoryUpdateCallbackHandler.getMemoryAssigned()
+              : memoryUpdateCallbackHandler.getMemoryAssigned());
+    } else {
+      return new DefaultSorter(outputContext, conf, numOutputs,
+          memoryUpdateCallbackHandler.getMemoryAssigned());
+    }
+  }
+
+  protected boolean usePipelinedSorter() {
+    return this.conf.getInt(TezJobConfig.TEZ_RUNTIME_SORT_THREADS,
+        TezJobConfig.DEFAULT_TEZ_RUNTIME_SORT_THREADS) > 1;
+  }
+
+  private boolean useDirectSortBuffer() {
+    return usePipelinedSorter() && PipelinedSorter.isDirectBufferEnabled(conf);
+  }
+
   @Override
   public synchronized KeyValueWriter getWriter() throws IOException {
     Preconditions.checkState(isStarted.get(), "Cannot get writer before starting the Output");
@@ -131,8 +158,12 @@ public class OnFileSortedOutput implements LogicalOutput {
   @Override
   public synchronized List<Event> close() throws IOException {
     if (sorter != null) {
-      sorter.flush();
-      sorter.close();
+      try {
+        sorter.flush();
+      } finally {
+        // Frees a direct sort buffer even if the flush failed
+        sorter.close();
+      }
       this.endTime = System.nanoTime();
       return generateEventsOnClose();
     } else {
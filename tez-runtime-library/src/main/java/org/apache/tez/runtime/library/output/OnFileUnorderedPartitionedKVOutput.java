@@ -18,18 +18,31 @@
 
 package org.apache.tez.runtime.library.output;
 
+import java.io.IOException;
+
 import org.apache.tez.runtime.api.LogicalOutput;
+import org.apache.tez.runtime.library.common.sort.impl.ExternalSorter;
+import org.apache.tez.runtime.library.common.writers.UnorderedPartitionedKVWriter;
 
 /**
  * <code>OnFileUnorderedPartitionedKVOutput</code> is a {@link LogicalOutput}
  * which can be used to write Key-Value pairs. The key-value pairs are written
  * to the correct partition based on the configured Partitioner.
  * 
- * This currently acts as a usable placeholder for writing unordered output (the data is sorted,
- * which should be functionally correct since there's no guarantees on order without a sort).
- * TEZ-661 to add a proper implementation.
- * 
+ * The data is not sorted. Records within a partition are written out in the
+ * order in which they were received, using an {@link UnorderedPartitionedKVWriter}.
  */
 public class OnFileUnorderedPartitionedKVOutput extends OnFileSortedOutput {
 
-}
\ No newline at end of file
+  @Override
+  protected ExternalSorter createSorter() throws IOException {
+    return new UnorderedPartitionedKVWriter(outputContext, conf, numOutputs,
+        memoryUpdateCallbackHandler.getMemoryAssigned());
+  }
+
+  @Override
+  protected boolean usePipelinedSorter() {
+    // The writer buffers on the heap, whatever the sorter settings
+    return false;
+  }
+}
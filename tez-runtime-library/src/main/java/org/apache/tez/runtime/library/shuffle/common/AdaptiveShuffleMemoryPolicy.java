@@ -0,0 +1,235 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.shuffle.common;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.tez.common.TezJobConfig;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * Adjusts the shuffle memory limits at runtime, based on the heap headroom of
+ * the task and on how fast fetched data is merged or consumed.
+ *
+ * The largest output shuffled to memory shrinks from the configured
+ * single-shuffle limit as the heap fills up, and when fetches arrive faster
+ * than the in-memory merge can write them out, so that such outputs go to
+ * disk instead of exhausting the heap. Conversely, while the heap has ample
+ * headroom, the shuffle may exceed its memory budget by a bounded amount
+ * instead of stalling or going to disk.
+ */
+@Private
+public class AdaptiveShuffleMemoryPolicy {
+
+  private static final Log LOG = LogFactory.getLog(AdaptiveShuffleMemoryPolicy.class);
+
+  // Heap usage is sampled at most this often
+  private static final long HEAP_SAMPLE_INTERVAL_MS = 100;
+  // Fetch rates are measured over windows of this length
+  private static final long RATE_WINDOW_MS = 1000;
+  // Weight of the latest measurement in the moving averages
+  private static final double RATE_ALPHA = 0.3;
+  // The single-shuffle limit never drops below this fraction of its maximum
+  private static final int MIN_LIMIT_DIVISOR = 16;
+
+  private final long memoryLimit;
+  private final long maxSingleShuffleLimit;
+  private final long heapReserve;
+  private final long maxOvercommit;
+  private final long maxHeap;
+
+  private long lastHeapSampleTime = -1;
+  private long usedHeap;
+
+  private long fetchWindowStart = -1;
+  private long fetchWindowBytes;
+  private double fetchRate;
+  private double mergeRate;
+
+  private long currentLimit;
+
+  /**
+   * @param memoryLimit memory budget of the shuffle
+   * @param maxSingleShuffleLimit configured largest output shuffled to memory
+   */
+  public AdaptiveShuffleMemoryPolicy(Configuration conf, long memoryLimit,
+      long maxSingleShuffleLimit) {
+    this(conf, memoryLimit, maxSingleShuffleLimit, Runtime.getRuntime().maxMemory());
+  }
+
+  @VisibleForTesting
+  AdaptiveShuffleMemoryPolicy(Configuration conf, long memoryLimit,
+      long maxSingleShuffleLimit, long maxHeap) {
+    final float heapReservePercent = conf.getFloat(
+        TezJobConfig.TEZ_RUNTIME_SHUFFLE_MEMORY_ADAPTIVE_HEAP_RESERVE_PERCENT,
+        TezJobConfig.DEFAULT_TEZ_RUNTIME_SHUFFLE_MEMORY_ADAPTIVE_HEAP_RESERVE_PERCENT);
+    if (heapReservePercent < 0.0f || heapReservePercent > 1.0f) {
+      throw new IllegalArgumentException("Invalid value for "
+          + TezJobConfig.TEZ_RUNTIME_SHUFFLE_MEMORY_ADAPTIVE_HEAP_RESERVE_PERCENT + ": "
+          + heapReservePercent);
+    }
+    final float maxOvercommitPercent = conf.getFloat(
+        TezJobConfig.TEZ_RUNTIME_SHUFFLE_MEMORY_ADAPTIVE_MAX_OVERCOMMIT_PERCENT,
+        TezJobConfig.DEFAULT_TEZ_RUNTIME_SHUFFLE_MEMORY_ADAPTIVE_MAX_OVERCOMMIT_PERCENT);
+    if (maxOvercommitPercent < 0.0f) {
+      throw new IllegalArgumentException("Invalid value for "
+          + TezJobConfig.TEZ_RUNTIME_SHUFFLE_MEMORY_ADAPTIVE_MAX_OVERCOMMIT_PERCENT + ": "
+          + maxOvercommitPercent);
+    }
+    this.memoryLimit = memoryLimit;
+    this.maxSingleShuffleLimit = maxSingleShuffleLimit;
+    this.maxHeap = maxHeap;
+    this.heapReserve = (long) (maxHeap * heapReservePercent);
+    this.maxOvercommit = (long) (memoryLimit * maxOvercommitPercent);
+    this.currentLimit = maxSingleShuffleLimit;
+    LOG.info("AdaptiveShuffleMemoryPolicy: maxHeap=" + maxHeap + ", heapReserve=" + heapReserve
+        + ", maxOvercommit=" + maxOvercommit);
+  }
+
+  public static boolean isEnabled(Configuration conf) {
+    return conf.getBoolean(TezJobConfig.TEZ_RUNTIME_SHUFFLE_MEMORY_ADAPTIVE_ENABLED,
+        TezJobConfig.DEFAULT_TEZ_RUNTIME_SHUFFLE_MEMORY_ADAPTIVE_ENABLED);
+  }
+
+  /**
+   * The largest output which should currently be shuffled to memory.
+   *
+   * @param mergeInProgress whether fetched data is being merged out of memory
+   */
+  public synchronized long getSingleShuffleLimit(boolean mergeInProgress) {
+    long now = System.currentTimeMillis();
+    double scale = Math.min(1.0, (double) getHeapHeadroom(now) / memoryLimit);
+    if (mergeInProgress && mergeRate > 0 && fetchRate > mergeRate) {
+      // Memory fills faster than the merge frees it
+      scale *= mergeRate / fetchRate;
+    }
+    long limit = Math.max(maxSingleShuffleLimit / MIN_LIMIT_DIVISOR,
+        (long) (maxSingleShuffleLimit * scale));
+    if (LOG.isDebugEnabled() && limit != currentLimit) {
+      LOG.debug("Single shuffle limit changed from " + currentLimit + " to " + limit
+          + ", fetchRate=" + (long) fetchRate + ", mergeRate=" + (long) mergeRate);
+    }
+    currentLimit = limit;
+    return limit;
+  }
+
+  /**
+   * Whether an output of requestedSize may be shuffled to memory although the
+   * shuffle memory in use already exceeds the budget.
+   */
+  public synchronized boolean canExceedMemoryLimit(long usedMemory, long requestedSize) {
+    if (usedMemory + requestedSize > memoryLimit + maxOvercommit) {
+      return false;
+    }
+    return getHeapHeadroom(System.currentTimeMillis()) >= requestedSize;
+  }
+
+  /**
+   * Record an output fetched to memory.
+   */
+  public synchronized void fetchedToMemory(long bytes) {
+    long now = System.currentTimeMillis();
+    if (fetchWindowStart < 0) {
+      fetchWindowStart = now;
+    }
+    fetchWindowBytes += bytes;
+    long elapsed = now - fetchWindowStart;
+    if (elapsed >= RATE_WINDOW_MS) {
+      fetchRate = average(fetchRate, fetchWindowBytes * 1000.0 / elapsed);
+      fetchWindowStart = now;
+      fetchWindowBytes = 0;
+    }
+  }
+
+  /**
+   * Record a completed merge of bytes out of memory.
+   */
+  public synchronized void merged(long bytes, long millis) {
+    mergeRate = average(mergeRate, bytes * 1000.0 / Math.max(1, millis));
+  }
+
+  private static double average(double current, double sample) {
+    return current == 0 ? sample : (1 - RATE_ALPHA) * current + RATE_ALPHA * sample;
+  }
+
+  /**
+   * Heap which can still be used by the shuffle, beyond the reserve.
+   */
+  private long getHeapHeadroom(long now) {
+    if (lastHeapSampleTime < 0 || now - lastHeapSampleTime >= HEAP_SAMPLE_INTERVAL_MS) {
+      usedHeap = getUsedHeap();
+      lastHeapSampleTime = now;
+    }
+    return Math.max(0, maxHeap - usedHeap - heapReserve);
+  }
+
+  @VisibleForTesting
+  synchronized void resetHeapSample() {
+    lastHeapSampleTime = -1;
+  }
+
+  /**
+   * Live data on the heap, as of the last collection of each pool.
+   */
+  @VisibleForTesting
+  protected long getUsedHeap() {
+    return getUsedHeap(ManagementFactory.getMemoryPoolMXBeans());
+  }
+
+  /**
+   * Usage of the heap pools after their last collection. The current usage
+   * also counts garbage which has not been collected yet, and rises and falls
+   * with every allocation and collection; it is only taken for a pool which
+   * was never collected, or whose collector does not report a collection
+   * usage.
+   */
+  @VisibleForTesting
+  static long getUsedHeap(List<MemoryPoolMXBean> pools) {
+    long used = 0;
+    boolean measured = false;
+    for (MemoryPoolMXBean pool : pools) {
+      if (pool.getType() != MemoryType.HEAP || !pool.isValid()) {
+        continue;
+      }
+      MemoryUsage usage = pool.getCollectionUsage();
+      if (usage == null || usage.getUsed() == 0) {
+        usage = pool.getUsage();
+      }
+      if (usage == null) {
+        continue;
+      }
+      used += usage.getUsed();
+      measured = true;
+    }
+    if (!measured) {
+      Runtime runtime = Runtime.getRuntime();
+      used = runtime.totalMemory() - runtime.freeMemory();
+    }
+    return used;
+  }
+}
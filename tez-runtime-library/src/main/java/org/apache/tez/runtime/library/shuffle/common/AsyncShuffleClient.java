@@ -0,0 +1,926 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.shuffle.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.crypto.SecretKey;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.yarn.api.records.ApplicationId;
+import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.common.security.SecureShuffleUtils;
+import org.apache.tez.runtime.library.common.shuffle.impl.ShuffleHeader;
+import org.apache.tez.runtime.library.shuffle.common.FetchedInput.Type;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferInputStream;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFactory;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpClientCodec;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Non-blocking alternative to {@link Fetcher}. Fetches from all hosts are
+ * multiplexed on a small, fixed number of I/O threads, so the number of
+ * parallel fetches is not bounded by the number of threads.
+ *
+ * Each fetch requests the outputs of a set of inputs from a single host, and
+ * streams the response into {@link FetchedInput}s obtained from the
+ * {@link FetchedInputAllocator}. The I/O threads only parse the shuffle
+ * headers; the data of each input is handed to a decode thread, which checks,
+ * decompresses and copies it into the input's memory buffer, or writes it to
+ * disk, as it arrives. At most {@link #MAX_BUFFERED_BYTES} of a connection are
+ * held between the two, reading from the connection is paused beyond that.
+ * The read timeout does not run while reading is paused, and the decoding of
+ * the received data counts as activity on the connection, so that a host is
+ * not failed for the backpressure of the task itself.
+ * Successes and failures are reported to the
+ * {@link FetcherCallback} exactly as a {@link Fetcher} would, and the returned
+ * future completes with the same {@link FetchResult}.
+ */
+public class AsyncShuffleClient {
+
+  private static final Log LOG = LogFactory.getLog(AsyncShuffleClient.class);
+
+  private static final int MAX_INITIAL_LINE_LENGTH = 4096;
+  private static final int MAX_HEADER_SIZE = 8192;
+  private static final int MAX_CHUNK_SIZE = 64 * 1024;
+  private static final int MAX_BUFFERED_BYTES = 4 * MAX_CHUNK_SIZE;
+
+  private final FetcherCallback fetcherCallback;
+  private final FetchedInputAllocator inputManager;
+  private final ApplicationId appId;
+  private final SecretKey shuffleSecret;
+  private final CompressionCodec codec;
+  private final boolean ifileReadAhead;
+  private final int ifileReadAheadLength;
+  private final int connectionTimeout;
+  private final int readTimeout;
+
+  private final ChannelFactory channelFactory;
+  private final ExecutorService decodeExecutor;
+  private final Timer timer;
+  private final AtomicBoolean isShutdown = new AtomicBoolean(false);
+
+  /**
+   * @param name used to name the I/O threads
+   * @param ioThreads number of threads handling all connections
+   * @param decodeThreads number of threads checking, decompressing and
+   *          writing out the fetched data
+   * @param codec codec of the fetched data, or null
+   * @param connectionTimeout connect timeout in milliseconds
+   * @param readTimeout maximum time without data received or decoded on a
+   *          connection, in milliseconds, or 0 to wait indefinitely
+   */
+  public AsyncShuffleClient(String name, int ioThreads, int decodeThreads,
+      FetcherCallback fetcherCallback,
+      FetchedInputAllocator inputManager, ApplicationId appId, SecretKey shuffleSecret,
+      CompressionCodec codec, boolean ifileReadAhead, int ifileReadAheadLength,
+      int connectionTimeout, int readTimeout) {
+    this.fetcherCallback = fetcherCallback;
+    this.inputManager = inputManager;
+    this.appId = appId;
+    this.shuffleSecret = shuffleSecret;
+    this.codec = codec;
+    this.ifileReadAhead = ifileReadAhead;
+    this.ifileReadAheadLength = ifileReadAheadLength;
+    this.connectionTimeout = connectionTimeout;
+    this.readTimeout = readTimeout;
+
+    ExecutorService bossExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+        .setDaemon(true).setNameFormat("ShuffleClient Boss [" + name + "] #%d").build());
+    ExecutorService workerExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+        .setDaemon(true).setNameFormat("ShuffleClient IO [" + name + "] #%d").build());
+    this.channelFactory = new NioClientSocketChannelFactory(bossExecutor, workerExecutor, 1,
+        ioThreads);
+    this.decodeExecutor = Executors.newFixedThreadPool(decodeThreads, new ThreadFactoryBuilder()
+        .setDaemon(true).setNameFormat("ShuffleClient Decode [" + name + "] #%d").build());
+    this.timer = new HashedWheelTimer(new ThreadFactoryBuilder().setDaemon(true)
+        .setNameFormat("ShuffleClient Timer [" + name + "] #%d").build());
+  }
+
+  /**
+   * Fetch partition of the given inputs from the ShuffleHandler at host:port.
+   * The returned future fails only on unexpected errors; fetch failures are
+   * reported to the callback, and the inputs which were not fetched are
+   * returned as pending in the {@link FetchResult}.
+   */
+  public ListenableFuture<FetchResult> fetch(String host, int port, int partition,
+      List<InputAttemptIdentifier> inputs) {
+    HostFetch fetch = new HostFetch(host, port, partition, inputs);
+    fetch.start();
+    return fetch.result;
+  }
+
+  /**
+   * Release the I/O threads. Fetches in progress are abandoned.
+   */
+  public void shutdown() {
+    if (!isShutdown.getAndSet(true)) {
+      timer.stop();
+      channelFactory.releaseExternalResources();
+      decodeExecutor.shutdownNow();
+    }
+  }
+
+
+  /**
+   * State of the fetch of a set of inputs from a single host, over a single
+   * connection. All events of a connection are delivered by the same I/O
+   * thread, the synchronization guards against the connect callback and the
+   * decode threads.
+   */
+  private class HostFetch extends SimpleChannelUpstreamHandler {
+
+    private final String host;
+    private final int port;
+    private final int partition;
+    private final List<InputAttemptIdentifier> srcAttempts;
+    private final Map<String, InputAttemptIdentifier> pathToAttemptMap;
+    // Inputs which have not been fetched successfully
+    private final LinkedHashSet<InputAttemptIdentifier> remaining;
+    // Inputs whose data has not been received completely
+    private final LinkedHashSet<InputAttemptIdentifier> unreceived;
+    private final SettableFuture<FetchResult> result = SettableFuture.create();
+
+    private Channel channel;
+    private ReadThrottle throttle;
+    private Timeout idleTimeout;
+    private URL url;
+    private String encHash;
+    private boolean connected = false;
+    private boolean responseValidated = false;
+    private boolean done = false;
+    // Number of decoders submitted and not completed yet
+    private int inFlight = 0;
+
+    // Bytes of an incomplete shuffle header, carried over between chunks
+    private final ChannelBuffer pending = ChannelBuffers.dynamicBuffer();
+
+    // The input currently being received
+    private InputDecoder decoder;
+    private long bytesLeft;
+
+    HostFetch(String host, int port, int partition, List<InputAttemptIdentifier> srcAttempts) {
+      this.host = host;
+      this.port = port;
+      this.partition = partition;
+      this.srcAttempts = srcAttempts;
+      this.pathToAttemptMap = new HashMap<String, InputAttemptIdentifier>();
+      for (InputAttemptIdentifier in : srcAttempts) {
+        pathToAttemptMap.put(in.getPathComponent(), in);
+      }
+      this.remaining = new LinkedHashSet<InputAttemptIdentifier>(srcAttempts);
+      this.unreceived = new LinkedHashSet<InputAttemptIdentifier>(srcAttempts);
+    }
+
+    synchronized void start() {
+      if (remaining.isEmpty()) {
+        finish();
+        return;
+      }
+      try {
+        url = constructInputURL();
+        encHash = SecureShuffleUtils.hashFromString(SecureShuffleUtils.buildMsgFrom(url),
+            shuffleSecret);
+      } catch (IOException e) {
+        result.setException(e);
+        return;
+      }
+
+      ChannelPipeline pipeline = Channels.pipeline();
+      pipeline.addLast("codec",
+          new HttpClientCodec(MAX_INITIAL_LINE_LENGTH, MAX_HEADER_SIZE, MAX_CHUNK_SIZE));
+      pipeline.addLast("fetch", this);
+      try {
+        channel = channelFactory.newChannel(pipeline);
+      } catch (RuntimeException e) {
+        // The client has been shut down
+        result.setException(e);
+        return;
+      }
+      throttle = new ReadThrottle(channel);
+      channel.getConfig().setConnectTimeoutMillis(connectionTimeout);
+      channel.connect(new InetSocketAddress(host, port)).addListener(
+          new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) {
+              connected(future);
+            }
+          });
+    }
+
+    private synchronized void connected(ChannelFuture future) {
+      if (done) {
+        return;
+      }
+      if (!future.isSuccess()) {
+        connectFailed(future.getCause());
+        return;
+      }
+      connected = true;
+      throttle.touch();
+      if (readTimeout > 0) {
+        scheduleIdleCheck(readTimeout);
+      }
+      HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET,
+          url.getFile());
+      request.setHeader(HttpHeaders.Names.HOST, host + ":" + port);
+      request.setHeader(SecureShuffleUtils.HTTP_HEADER_URL_HASH, encHash);
+      request.setHeader(ShuffleHeader.HTTP_HEADER_NAME, ShuffleHeader.DEFAULT_HTTP_HEADER_NAME);
+      request.setHeader(ShuffleHeader.HTTP_HEADER_VERSION,
+          ShuffleHeader.DEFAULT_HTTP_HEADER_VERSION);
+      channel.write(request);
+    }
+
+    @Override
+    public synchronized void messageReceived(ChannelHandlerContext ctx, MessageEvent e) {
+      if (done) {
+        return;
+      }
+      throttle.touch();
+      Object message = e.getMessage();
+      if (message instanceof HttpResponse) {
+        HttpResponse response = (HttpResponse) message;
+        try {
+          validateResponse(response);
+        } catch (IOException ioe) {
+          // A problem with the response implies a problem with the first
+          // map, typically a lost map. So, penalize only that map.
+          connectionFailed(ioe);
+          return;
+        }
+        responseValidated = true;
+        if (!response.isChunked()) {
+          receive(response.getContent());
+          endOfResponse();
+        }
+      } else if (message instanceof HttpChunk) {
+        HttpChunk chunk = (HttpChunk) message;
+        receive(chunk.getContent());
+        if (chunk.isLast()) {
+          endOfResponse();
+        }
+      }
+    }
+
+    @Override
+    public synchronized void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) {
+      if (done) {
+        return;
+      }
+      failed(e.getCause());
+    }
+
+    @Override
+    public synchronized void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) {
+      if (done) {
+        return;
+      }
+      if (!connected) {
+        connectFailed(new EOFException("Connection closed by " + host));
+      } else if (!responseValidated) {
+        connectionFailed(new EOFException("Connection closed by " + host));
+      } else {
+        endOfResponse();
+      }
+    }
+
+    private void failed(Throwable cause) {
+      if (!connected) {
+        connectFailed(cause);
+      } else if (!responseValidated) {
+        connectionFailed(cause);
+      } else {
+        readFailed(cause);
+      }
+    }
+
+    private void scheduleIdleCheck(long delay) {
+      if (isShutdown.get()) {
+        return;
+      }
+      idleTimeout = timer.newTimeout(new TimerTask() {
+        @Override
+        public void run(Timeout timeout) {
+          checkIdle();
+        }
+      }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Fail the fetch once nothing has been received or decoded for the read
+     * timeout, while reading was not paused.
+     */
+    private synchronized void checkIdle() {
+      if (done) {
+        return;
+      }
+      long idleTime = throttle.getIdleTime(System.currentTimeMillis());
+      if (idleTime >= readTimeout) {
+        failed(new SocketTimeoutException("No data from " + host + " for " + idleTime + " ms"));
+      } else {
+        scheduleIdleCheck(readTimeout - idleTime);
+      }
+    }
+
+    /**
+     * Handle a failure to connect, which may be reported either to the connect
+     * future or, for immediate failures, to the pipeline.
+     */
+    private void connectFailed(Throwable cause) {
+      LOG.warn("Failed to connect to " + host + " with " + srcAttempts.size() + " inputs",
+          cause);
+      // If connect did not succeed, just mark all the maps as failed,
+      // indirectly penalizing the host
+      for (InputAttemptIdentifier left : remaining) {
+        fetcherCallback.fetchFailed(host, left, true);
+      }
+      finish();
+    }
+
+    /**
+     * Handle an error before the response was received. As with an invalid
+     * response, only the first input is penalized.
+     */
+    private void connectionFailed(Throwable cause) {
+      InputAttemptIdentifier firstAttempt = srcAttempts.get(0);
+      LOG.warn("Fetch Failure from host while connecting: " + host
+          + ", attempt: " + firstAttempt + " Informing ShuffleManager: ", cause);
+      fetcherCallback.fetchFailed(host, firstAttempt, false);
+      finish();
+    }
+
+    private void endOfResponse() {
+      if (!done) {
+        readFailed(new EOFException("server didn't return all expected map outputs: "
+            + unreceived.size() + " left."));
+      }
+    }
+
+    /**
+     * Consume the next part of the response: shuffle headers, each followed
+     * by the data of one input.
+     */
+    private void receive(ChannelBuffer content) {
+      ChannelBuffer buf = content;
+      if (pending.readable()) {
+        pending.writeBytes(content);
+        buf = pending;
+      }
+      try {
+        while (!done) {
+          if (decoder == null) {
+            if (!buf.readable() || !startInput(buf)) {
+              break;
+            }
+          } else {
+            int n = (int) Math.min(bytesLeft, buf.readableBytes());
+            if (n > 0) {
+              // The content of a response or chunk is not reused by the
+              // codec, so it can be sliced. The pending buffer is reused.
+              decoder.feed.add(buf == pending ? buf.readBytes(n) : buf.readSlice(n));
+              bytesLeft -= n;
+            }
+            if (bytesLeft > 0) {
+              if (decoder.feed.getBufferedBytes() >= MAX_BUFFERED_BYTES) {
+                // Too large to be buffered, decode it while it is received
+                submit(decoder);
+              }
+              break;
+            }
+            endInput();
+          }
+        }
+      } catch (IOException ioe) {
+        readFailed(ioe);
+        return;
+      }
+      // Keep a partial shuffle header for the next chunk
+      if (buf == pending) {
+        pending.discardReadBytes();
+      } else if (!done && buf.readable()) {
+        pending.writeBytes(buf);
+      }
+    }
+
+    /**
+     * Read the shuffle header of the next input from buf, and allocate the
+     * input.
+     *
+     * @return false if buf does not contain the complete header yet
+     */
+    private boolean startInput(ChannelBuffer buf) throws IOException {
+      long startTime = System.currentTimeMillis();
+      buf.markReaderIndex();
+      ShuffleHeader header = new ShuffleHeader();
+      try {
+        header.readFields(new ChannelBufferInputStream(buf));
+      } catch (EOFException e) {
+        buf.resetReaderIndex();
+        return false;
+      } catch (IllegalArgumentException e) {
+        LOG.warn("Invalid src id ", e);
+        // Don't know which one was bad, so consider all of them as bad
+        for (InputAttemptIdentifier left : unreceived) {
+          fetcherCallback.fetchFailed(host, left, false);
+        }
+        finish();
+        return false;
+      }
+      String pathComponent = header.getMapId();
+      InputAttemptIdentifier srcAttemptId = pathToAttemptMap.get(pathComponent);
+      long compressedLength = header.getCompressedLength();
+      long decompressedLength = header.getUncompressedLength();
+
+      if (!verifySanity(compressedLength, decompressedLength, header.getPartition(),
+          srcAttemptId, pathComponent)) {
+        if (srcAttemptId == null) {
+          LOG.warn("Was expecting " + getNextRemainingAttempt() + " but got null");
+          srcAttemptId = getNextRemainingAttempt();
+        }
+        fetcherCallback.fetchFailed(host, srcAttemptId, false);
+        finish();
+        return false;
+      }
+
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("header: " + srcAttemptId + ", len: " + compressedLength
+            + ", decomp len: " + decompressedLength);
+      }
+      FetchedInput fetchedInput = inputManager.allocate(decompressedLength, compressedLength,
+          srcAttemptId);
+      LOG.info("fetcher" + " about to shuffle output of srcAttempt "
+          + fetchedInput.getInputAttemptIdentifier() + " decomp: "
+          + decompressedLength + " len: " + compressedLength + " to "
+          + fetchedInput.getType());
+      decoder = new InputDecoder(this, srcAttemptId, fetchedInput, compressedLength,
+          decompressedLength, startTime, new InputFeed(throttle));
+      bytesLeft = compressedLength;
+      return true;
+    }
+
+    /**
+     * All the data of the current input has been received.
+     */
+    private void endInput() {
+      decoder.feed.end();
+      submit(decoder);
+      unreceived.remove(decoder.srcAttemptId);
+      decoder = null;
+      bytesLeft = 0;
+      if (unreceived.isEmpty()) {
+        finish();
+      }
+    }
+
+    private void submit(InputDecoder inputDecoder) {
+      if (!inputDecoder.submitted) {
+        inputDecoder.submitted = true;
+        inFlight++;
+        decodeExecutor.execute(inputDecoder);
+      }
+    }
+
+    /**
+     * Called by a decode thread once an input has been decoded, or has failed.
+     * The callback takes the locks of the shuffle, so it is called without
+     * holding this fetch's. The input stays in flight until it has been
+     * reported, so that the result is only set after it.
+     */
+    void inputDecoded(InputDecoder inputDecoder, IOException error) {
+      boolean failed;
+      synchronized (this) {
+        failed = error != null && !inputDecoder.abandoned;
+      }
+      if (error == null) {
+        fetcherCallback.fetchSucceeded(host, inputDecoder.srcAttemptId,
+            inputDecoder.fetchedInput, inputDecoder.compressedLength,
+            inputDecoder.decompressedLength,
+            System.currentTimeMillis() - inputDecoder.startTime);
+      } else {
+        abort(inputDecoder.fetchedInput);
+        if (failed) {
+          LOG.warn("Failed to shuffle output of " + inputDecoder.srcAttemptId + " from "
+              + host, error);
+          fetcherCallback.fetchFailed(host, inputDecoder.srcAttemptId, false);
+        }
+      }
+      synchronized (this) {
+        inFlight--;
+        if (error == null) {
+          remaining.remove(inputDecoder.srcAttemptId);
+        } else if (failed) {
+          finish();
+        }
+        completeIfIdle();
+      }
+    }
+
+    /**
+     * Handle an error while reading the response, after it was validated.
+     */
+    private void readFailed(Throwable cause) {
+      if (decoder == null) {
+        LOG.info("fetcher" + " failed to read map header", cause);
+        for (InputAttemptIdentifier left : unreceived) {
+          fetcherCallback.fetchFailed(host, left, false);
+        }
+      } else if (decoder.submitted) {
+        // The decoder reports the failure
+        decoder.feed.fail(cause instanceof IOException ? (IOException) cause
+            : new IOException(cause));
+        decoder = null;
+      } else {
+        LOG.warn("Failed to shuffle output of " + decoder.srcAttemptId + " from " + host,
+            cause);
+        abort(decoder.fetchedInput);
+        fetcherCallback.fetchFailed(host, decoder.srcAttemptId, false);
+        decoder = null;
+      }
+      finish();
+    }
+
+    private void abort(FetchedInput fetchedInput) {
+      try {
+        fetchedInput.abort();
+      } catch (IOException e) {
+        LOG.info("Failure to cleanup fetchedInput: " + fetchedInput);
+      }
+    }
+
+    /**
+     * Stop receiving. The result is set once the inputs which are being
+     * decoded are done.
+     */
+    private void finish() {
+      if (!done) {
+        done = true;
+        if (decoder != null) {
+          // Not received completely, left as pending without a failure
+          if (decoder.submitted) {
+            decoder.abandoned = true;
+            decoder.feed.fail(new IOException("Fetch from " + host + " abandoned"));
+          } else {
+            abort(decoder.fetchedInput);
+          }
+          decoder = null;
+        }
+        if (idleTimeout != null) {
+          idleTimeout.cancel();
+        }
+        if (channel != null) {
+          channel.close();
+        }
+      }
+      completeIfIdle();
+    }
+
+    private void completeIfIdle() {
+      if (done && inFlight == 0 && !result.isDone()) {
+        result.set(new FetchResult(host, port, partition, remaining));
+      }
+    }
+
+    private void validateResponse(HttpResponse response) throws IOException {
+      HttpResponseStatus status = response.getStatus();
+      if (!HttpResponseStatus.OK.equals(status)) {
+        throw new IOException("Got invalid response code " + status.getCode() + " from "
+            + url + ": " + status.getReasonPhrase());
+      }
+      if (!ShuffleHeader.DEFAULT_HTTP_HEADER_NAME.equals(
+          response.getHeader(ShuffleHeader.HTTP_HEADER_NAME))
+          || !ShuffleHeader.DEFAULT_HTTP_HEADER_VERSION.equals(
+              response.getHeader(ShuffleHeader.HTTP_HEADER_VERSION))) {
+        throw new IOException("Incompatible shuffle response version");
+      }
+      // get the replyHash which is HMac of the encHash we sent to the server
+      String replyHash = response.getHeader(SecureShuffleUtils.HTTP_HEADER_REPLY_URL_HASH);
+      if (replyHash == null) {
+        throw new IOException("security validation of TT Map output failed");
+      }
+      // verify that replyHash is HMac of encHash
+      SecureShuffleUtils.verifyReply(replyHash, encHash, shuffleSecret);
+    }
+
+    private boolean verifySanity(long compressedLength, long decompressedLength,
+        int fetchPartition, InputAttemptIdentifier srcAttemptId, String pathComponent) {
+      if (compressedLength < 0 || decompressedLength < 0) {
+        LOG.warn(" invalid lengths in input header -> headerPathComponent: "
+            + pathComponent + ", nextRemainingSrcAttemptId: "
+            + getNextRemainingAttempt() + ", mappedSrcAttemptId: " + srcAttemptId
+            + " len: " + compressedLength + ", decomp len: " + decompressedLength);
+        return false;
+      }
+      if (fetchPartition != partition) {
+        LOG.warn(" data for the wrong reduce -> headerPathComponent: "
+            + pathComponent + "nextRemainingSrcAttemptId: "
+            + getNextRemainingAttempt() + ", mappedSrcAttemptId: " + srcAttemptId
+            + " len: " + compressedLength + " decomp len: " + decompressedLength
+            + " for reduce " + fetchPartition);
+        return false;
+      }
+      if (!unreceived.contains(srcAttemptId)) {
+        LOG.warn("Invalid input. Received output for headerPathComponent: "
+            + pathComponent + "nextRemainingSrcAttemptId: "
+            + getNextRemainingAttempt() + ", mappedSrcAttemptId: " + srcAttemptId);
+        return false;
+      }
+      return true;
+    }
+
+    private InputAttemptIdentifier getNextRemainingAttempt() {
+      return unreceived.isEmpty() ? null : unreceived.iterator().next();
+    }
+
+    private URL constructInputURL() throws MalformedURLException {
+      StringBuilder sb = ShuffleUtils.constructBaseURIForShuffleHandler(host, port,
+          partition, appId);
+      boolean first = true;
+      for (InputAttemptIdentifier input : srcAttempts) {
+        if (!first) {
+          sb.append(",");
+        }
+        first = false;
+        sb.append(input.getPathComponent());
+      }
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("InputFetch URL for: " + host + " : " + sb.toString());
+      }
+      return new URL(sb.toString());
+    }
+  }
+
+  /**
+   * Checks, decompresses and stores one input on a decode thread, reading its
+   * data from the {@link InputFeed} filled by the I/O thread. Inputs smaller
+   * than {@link #MAX_BUFFERED_BYTES} are submitted once received completely,
+   * so that decode threads do not wait on the network for them.
+   */
+  private class InputDecoder implements Runnable {
+    private final HostFetch hostFetch;
+    private final InputAttemptIdentifier srcAttemptId;
+    private final FetchedInput fetchedInput;
+    private final long compressedLength;
+    private final long decompressedLength;
+    private final long startTime;
+    private final InputFeed feed;
+    // Guarded by the HostFetch
+    private boolean submitted = false;
+    private boolean abandoned = false;
+
+    InputDecoder(HostFetch hostFetch, InputAttemptIdentifier srcAttemptId,
+        FetchedInput fetchedInput, long compressedLength, long decompressedLength,
+        long startTime, InputFeed feed) {
+      this.hostFetch = hostFetch;
+      this.srcAttemptId = srcAttemptId;
+      this.fetchedInput = fetchedInput;
+      this.compressedLength = compressedLength;
+      this.decompressedLength = decompressedLength;
+      this.startTime = startTime;
+      this.feed = feed;
+    }
+
+    @Override
+    public void run() {
+      IOException error = null;
+      try {
+        if (fetchedInput.getType() == Type.MEMORY) {
+          ShuffleUtils.shuffleToMemory((MemoryFetchedInput) fetchedInput, feed,
+              (int) decompressedLength, (int) compressedLength, codec, ifileReadAhead,
+              ifileReadAheadLength, LOG);
+        } else {
+          ShuffleUtils.shuffleToDisk((DiskFetchedInput) fetchedInput, feed,
+              compressedLength, LOG);
+        }
+      } catch (IOException e) {
+        error = e;
+      } finally {
+        feed.close();
+      }
+      hostFetch.inputDecoded(this, error);
+    }
+  }
+
+  /**
+   * Pauses reading from a connection while more than
+   * {@link #MAX_BUFFERED_BYTES} received on it wait to be decoded, and resumes
+   * once half of that has been consumed. Also tracks the last activity on the
+   * connection for the read timeout.
+   */
+  private static class ReadThrottle {
+    private final Channel channel;
+    private long bufferedBytes = 0;
+    private boolean paused = false;
+    private long lastActivityTime = System.currentTimeMillis();
+
+    ReadThrottle(Channel channel) {
+      this.channel = channel;
+    }
+
+    synchronized void touch() {
+      lastActivityTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Time since data was last received or consumed, 0 while reading is
+     * paused.
+     */
+    synchronized long getIdleTime(long now) {
+      return paused ? 0 : now - lastActivityTime;
+    }
+
+    void added(int bytes) {
+      boolean pause;
+      synchronized (this) {
+        lastActivityTime = System.currentTimeMillis();
+        bufferedBytes += bytes;
+        pause = !paused && bufferedBytes > MAX_BUFFERED_BYTES;
+        if (pause) {
+          paused = true;
+        }
+      }
+      if (pause) {
+        channel.setReadable(false);
+      }
+    }
+
+    void consumed(int bytes) {
+      boolean resume;
+      synchronized (this) {
+        lastActivityTime = System.currentTimeMillis();
+        bufferedBytes -= bytes;
+        resume = paused && bufferedBytes <= MAX_BUFFERED_BYTES / 2;
+        if (resume) {
+          paused = false;
+        }
+      }
+      if (resume) {
+        channel.setReadable(true);
+      }
+    }
+  }
+
+  /**
+   * The data of one input, as received by the I/O thread and not consumed by
+   * the decode thread yet.
+   */
+  private static class InputFeed extends InputStream {
+    private final ReadThrottle throttle;
+    private final LinkedList<ChannelBuffer> buffers = new LinkedList<ChannelBuffer>();
+    private int bufferedBytes = 0;
+    private boolean ended = false;
+    private IOException error = null;
+
+    InputFeed(ReadThrottle throttle) {
+      this.throttle = throttle;
+    }
+
+    void add(ChannelBuffer buf) {
+      synchronized (this) {
+        if (error != null) {
+          return;
+        }
+        buffers.add(buf);
+        bufferedBytes += buf.readableBytes();
+        notifyAll();
+      }
+      throttle.added(buf.readableBytes());
+    }
+
+    synchronized int getBufferedBytes() {
+      return bufferedBytes;
+    }
+
+    synchronized void end() {
+      ended = true;
+      notifyAll();
+    }
+
+    /**
+     * Fail the reads of the decode thread, and release the buffered data.
+     */
+    void fail(IOException cause) {
+      int released;
+      synchronized (this) {
+        if (error == null) {
+          error = cause;
+        }
+        released = bufferedBytes;
+        buffers.clear();
+        bufferedBytes = 0;
+        notifyAll();
+      }
+      throttle.consumed(released);
+    }
+
+    @Override
+    public void close() {
+      fail(new IOException("Stream closed"));
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      int n;
+      synchronized (this) {
+        while (error == null && buffers.isEmpty() && !ended) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for shuffle data");
+          }
+        }
+        if (error != null) {
+          throw error;
+        }
+        if (buffers.isEmpty()) {
+          return -1;
+        }
+        ChannelBuffer head = buffers.getFirst();
+        n = Math.min(len, head.readableBytes());
+        head.readBytes(b, off, n);
+        if (!head.readable()) {
+          buffers.removeFirst();
+        }
+        bufferedBytes -= n;
+      }
+      throttle.consumed(n);
+      return n;
+    }
+
+    @Override
+    public synchronized int available() {
+      return bufferedBytes;
+    }
+  }
+}
@@ -33,6 +33,7 @@ public abstract class FetchedInput {
     WAIT, // TODO NEWTEZ Implement this, only if required.
     MEMORY,
     DISK,
+    DISK_DIRECT, // read in place from the producer's output on the local node
   }
   
   protected static enum State {
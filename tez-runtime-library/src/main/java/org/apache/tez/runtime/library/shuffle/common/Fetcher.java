@@ -25,6 +25,7 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -40,7 +41,6 @@ import javax.net.ssl.HttpsURLConnection;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.io.compress.CompressionCodec;
 import org.apache.hadoop.security.ssl.SSLFactory;
 import org.apache.hadoop.yarn.api.records.ApplicationId;
@@ -48,6 +48,9 @@ import org.apache.tez.common.TezJobConfig;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
 import org.apache.tez.runtime.library.common.security.SecureShuffleUtils;
 import org.apache.tez.runtime.library.common.shuffle.impl.ShuffleHeader;
+import org.apache.tez.runtime.library.common.sort.impl.TezIndexRecord;
+import org.apache.tez.runtime.library.common.sort.impl.TezSpillRecord;
+import org.apache.tez.runtime.library.common.task.local.output.TezTaskOutputFiles;
 import org.apache.tez.runtime.library.shuffle.common.FetchedInput.Type;
 
 import com.google.common.base.Preconditions;
@@ -81,7 +84,14 @@ public class Fetcher implements Callable<FetchResult> {
   private static SSLFactory sslFactory;
   private static boolean sslFactoryInited;
 
+  private final Configuration conf;
   private final int fetcherIdentifier;
+  private final boolean keepAlive;
+
+  // Read inputs produced on this node directly from the producer's files
+  private boolean localDiskFetchEnabled = false;
+  private String localHost;
+  private int localPort;
   
   // Parameters to track work.
   private List<InputAttemptIdentifier> srcAttempts;
@@ -105,8 +115,10 @@ public class Fetcher implements Callable<FetchResult> {
     this.shuffleSecret = shuffleSecret;
     this.appId = appId;
     this.pathToAttemptMap = new HashMap<String, InputAttemptIdentifier>();
+    this.conf = conf;
 
     this.fetcherIdentifier = fetcherIdGen.getAndIncrement();
+    this.keepAlive = ShuffleUtils.isKeepAliveEnabled(conf);
     
     // TODO NEWTEZ Ideally, move this out from here into a static initializer block.
     // Re-enable when ssl shuffle support is needed.
@@ -141,6 +153,15 @@ public class Fetcher implements Callable<FetchResult> {
 
     remaining = new LinkedHashSet<InputAttemptIdentifier>(srcAttempts);
 
+    if (localDiskFetchEnabled && host.equals(localHost) && port == localPort) {
+      doLocalDiskFetch();
+      if (remaining.isEmpty()) {
+        return new FetchResult(host, port, partition, remaining);
+      }
+      // Fetch whatever could not be read locally from the ShuffleHandler
+      srcAttempts = new ArrayList<InputAttemptIdentifier>(remaining);
+    }
+
     HttpURLConnection connection;
     try {
       connection = connectToShuffleHandler(host, port, partition, srcAttempts);
@@ -155,12 +176,13 @@ public class Fetcher implements Callable<FetchResult> {
       return new FetchResult(host, port, partition, remaining);
     }
 
-    DataInputStream input;
+    DataInputStream input = null;
 
     try {
       input = new DataInputStream(connection.getInputStream());
       validateConnectionResponse(connection, url, msgToEncode, encHash);
     } catch (IOException e) {
+      ShuffleUtils.releaseConnection(connection, input, keepAlive, false, LOG);
       // ioErrs.increment(1);
       // If we got a read error at this stage, it implies there was a problem
       // with the first map, typically lost map. So, penalize only that map
@@ -191,7 +213,8 @@ public class Fetcher implements Callable<FetchResult> {
       }
     }
 
-    IOUtils.cleanup(LOG, input);
+    ShuffleUtils.releaseConnection(connection, input, keepAlive,
+        failedInputs == null && remaining.isEmpty(), LOG);
 
     // Sanity check
     if (failedInputs == null && !remaining.isEmpty()) {
@@ -203,6 +226,40 @@ public class Fetcher implements Callable<FetchResult> {
 
   }
 
+  /**
+   * Read the partition of each remaining input from the producer's output
+   * files, which are on this node. Inputs which are read successfully are
+   * removed from remaining.
+   */
+  private void doLocalDiskFetch() throws IOException {
+    for (Iterator<InputAttemptIdentifier> iter = remaining.iterator(); iter.hasNext();) {
+      InputAttemptIdentifier srcAttemptId = iter.next();
+      long startTime = System.currentTimeMillis();
+      TezIndexRecord indexRecord;
+      FetchedInput fetchedInput;
+      try {
+        TezTaskOutputFiles outputFiles =
+            new TezTaskOutputFiles(conf, srcAttemptId.getPathComponent());
+        indexRecord = new TezSpillRecord(outputFiles.getOutputIndexFile(), conf)
+            .getIndex(partition);
+        fetchedInput = new LocalDiskFetchedInput(indexRecord.getStartOffset(),
+            indexRecord.getRawLength(), indexRecord.getPartLength(), srcAttemptId,
+            outputFiles.getOutputFile());
+      } catch (IOException e) {
+        LOG.warn("Failed to read output of " + srcAttemptId + " locally,"
+            + " will fetch it from the ShuffleHandler", e);
+        continue;
+      }
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Read local output: " + fetchedInput);
+      }
+      long endTime = System.currentTimeMillis();
+      fetcherCallback.fetchSucceeded(host, srcAttemptId, fetchedInput,
+          indexRecord.getPartLength(), indexRecord.getRawLength(), (endTime - startTime));
+      iter.remove();
+    }
+  }
+
   private InputAttemptIdentifier[] fetchInputs(DataInputStream input) {
     FetchedInput fetchedInput = null;
     InputAttemptIdentifier srcAttemptId = null;
@@ -478,7 +535,7 @@ public class Fetcher implements Callable<FetchResult> {
   private URL constructInputURL(String host, int port, int partition,
       List<InputAttemptIdentifier> inputs) throws MalformedURLException {
     StringBuilder url = ShuffleUtils.constructBaseURIForShuffleHandler(host,
-        port, partition, appId);
+        port, partition, appId, keepAlive);
     boolean first = true;
     for (InputAttemptIdentifier input : inputs) {
       if (first) {
@@ -526,6 +583,18 @@ public class Fetcher implements Callable<FetchResult> {
       return this;
     }
 
+    /**
+     * Read inputs produced by the ShuffleHandler at localHost:localPort
+     * directly from disk, if enabled.
+     */
+    public FetcherBuilder setLocalFetchParams(boolean localDiskFetchEnabled,
+        String localHost, int localPort) {
+      fetcher.localDiskFetchEnabled = localDiskFetchEnabled;
+      fetcher.localHost = localHost;
+      fetcher.localPort = localPort;
+      return this;
+    }
+
     public FetcherBuilder assignWork(String host, int port, int partition,
         List<InputAttemptIdentifier> inputs) {
       fetcher.host = host;
@@ -0,0 +1,155 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.shuffle.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * An input produced on the local node, read in place from a memory mapping of
+ * the producer's output file. Nothing is copied or allocated on behalf of the
+ * consumer, so the allocator is not involved, and the producer's file is left
+ * alone when the input is freed.
+ */
+public class LocalDiskFetchedInput extends FetchedInput {
+
+  private final Path inputFile;
+  private final long startOffset;
+  private ByteBuffer mappedSegment;
+
+  /**
+   * Map compressedSize bytes of the local file inputFile, starting at
+   * startOffset.
+   */
+  public LocalDiskFetchedInput(long startOffset, long actualSize, long compressedSize,
+      InputAttemptIdentifier inputAttemptIdentifier, Path inputFile) throws IOException {
+    super(Type.DISK_DIRECT, actualSize, compressedSize, inputAttemptIdentifier, null);
+    if (compressedSize > Integer.MAX_VALUE) {
+      throw new IOException("Segment of " + inputFile + " too large to map: " + compressedSize);
+    }
+    this.inputFile = inputFile;
+    this.startOffset = startOffset;
+    RandomAccessFile file = new RandomAccessFile(inputFile.toUri().getPath(), "r");
+    try {
+      // The mapping stays valid once the file is closed
+      this.mappedSegment = file.getChannel().map(FileChannel.MapMode.READ_ONLY, startOffset,
+          compressedSize);
+    } finally {
+      file.close();
+    }
+  }
+
+  /**
+   * Local inputs are read in place, nothing is written to them. The fetchers
+   * only write to memory and disk inputs.
+   */
+  @Override
+  public OutputStream getOutputStream() throws IOException {
+    throw new IOException("Cannot write to local input " + inputAttemptIdentifier
+        + ", which is read in place from " + inputFile);
+  }
+
+  @Override
+  public InputStream getInputStream() throws IOException {
+    Preconditions.checkState(mappedSegment != null, "Input has already been freed");
+    return new ByteBufferInputStream(mappedSegment.duplicate());
+  }
+
+  @Override
+  public void commit() {
+    if (state == State.PENDING) {
+      state = State.COMMITTED;
+    }
+  }
+
+  @Override
+  public void abort() {
+    if (state == State.PENDING) {
+      state = State.ABORTED;
+      mappedSegment = null;
+    }
+  }
+
+  @Override
+  public void free() {
+    Preconditions.checkState(
+        state == State.COMMITTED || state == State.ABORTED,
+        "FetchedInput can only be freed after it is committed or aborted");
+    if (state == State.COMMITTED) {
+      state = State.FREED;
+      // The mapping is released once the buffer is garbage collected
+      mappedSegment = null;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "LocalDiskFetchedInput [inputFile=" + inputFile + ", startOffset=" + startOffset
+        + ", inputAttemptIdentifier=" + inputAttemptIdentifier
+        + ", actualSize=" + actualSize + ", compressedSize=" + compressedSize
+        + ", type=" + type + ", id=" + id + ", state=" + state + "]";
+  }
+
+  private static class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buf;
+
+    ByteBufferInputStream(ByteBuffer buf) {
+      this.buf = buf;
+    }
+
+    @Override
+    public int read() {
+      return buf.hasRemaining() ? buf.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (!buf.hasRemaining()) {
+        return -1;
+      }
+      len = Math.min(len, buf.remaining());
+      buf.get(b, off, len);
+      return len;
+    }
+
+    @Override
+    public long skip(long n) {
+      int skipped = (int) Math.max(0, Math.min(n, buf.remaining()));
+      buf.position(buf.position() + skipped);
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return buf.remaining();
+    }
+  }
+}
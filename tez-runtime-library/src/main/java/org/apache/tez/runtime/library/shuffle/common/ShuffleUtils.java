@@ -21,11 +21,13 @@ package org.apache.tez.runtime.library.shuffle.common;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.HttpURLConnection;
 import java.nio.ByteBuffer;
 
 import javax.crypto.SecretKey;
 
 import org.apache.commons.logging.Log;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.DataInputByteBuffer;
 import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.IOUtils;
@@ -34,6 +36,7 @@ import org.apache.hadoop.io.compress.CompressionCodec;
 import org.apache.hadoop.io.compress.Decompressor;
 import org.apache.hadoop.security.token.Token;
 import org.apache.hadoop.yarn.api.records.ApplicationId;
+import org.apache.tez.common.TezJobConfig;
 import org.apache.tez.common.security.JobTokenIdentifier;
 import org.apache.tez.common.security.JobTokenSecretManager;
 import org.apache.tez.runtime.library.common.sort.impl.IFileInputStream;
@@ -144,8 +147,13 @@ public class ShuffleUtils {
     }
   }
   
-  // TODO NEWTEZ handle ssl shuffle
   public static StringBuilder constructBaseURIForShuffleHandler(String host, int port, int partition, ApplicationId appId) {
+    return constructBaseURIForShuffleHandler(host, port, partition, appId, false);
+  }
+
+  // TODO NEWTEZ handle ssl shuffle
+  public static StringBuilder constructBaseURIForShuffleHandler(String host, int port,
+      int partition, ApplicationId appId, boolean keepAlive) {
     StringBuilder sb = new StringBuilder("http://");
     sb.append(host);
     sb.append(":");
@@ -155,7 +163,42 @@ public class ShuffleUtils {
     sb.append(appId.toString().replace("application", "job"));
     sb.append("&reduce=");
     sb.append(String.valueOf(partition));
+    if (keepAlive) {
+      // Asks the ShuffleHandler to keep the connection open after the response
+      sb.append("&keepAlive=true");
+    }
     sb.append("&map=");
     return sb;
   }
+
+  public static boolean isKeepAliveEnabled(Configuration conf) {
+    return conf.getBoolean(TezJobConfig.TEZ_RUNTIME_SHUFFLE_KEEP_ALIVE_ENABLED,
+        TezJobConfig.DEFAULT_TEZ_RUNTIME_SHUFFLE_KEEP_ALIVE_ENABLED);
+  }
+
+  /**
+   * Release a shuffle connection once the response has been consumed. With
+   * keep-alive, any unread bytes are skipped so that the connection can be
+   * reused; after an error the state of the connection is unknown, and it is
+   * closed instead.
+   */
+  public static void releaseConnection(HttpURLConnection connection, InputStream input,
+      boolean keepAlive, boolean succeeded, Log log) {
+    boolean reusable = succeeded;
+    if (keepAlive && reusable && input != null) {
+      try {
+        byte[] buf = new byte[4096];
+        while (input.read(buf) >= 0) {
+          // drain
+        }
+      } catch (IOException e) {
+        log.debug("Failed to drain shuffle response, closing connection", e);
+        reusable = false;
+      }
+    }
+    IOUtils.cleanup(log, input);
+    if (keepAlive && !reusable && connection != null) {
+      connection.disconnect();
+    }
+  }
 }
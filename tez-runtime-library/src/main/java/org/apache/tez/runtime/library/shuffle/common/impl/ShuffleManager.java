@@ -34,6 +34,7 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -43,6 +44,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.yarn.api.ApplicationConstants;
 import org.apache.tez.common.TezJobConfig;
 import org.apache.tez.common.TezUtils;
 import org.apache.tez.common.counters.TaskCounter;
@@ -55,6 +57,7 @@ import org.apache.tez.runtime.api.events.InputReadErrorEvent;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
 import org.apache.tez.runtime.library.common.InputIdentifier;
 import org.apache.tez.runtime.library.common.TezRuntimeUtils;
+import org.apache.tez.runtime.library.shuffle.common.AsyncShuffleClient;
 import org.apache.tez.runtime.library.shuffle.common.FetchResult;
 import org.apache.tez.runtime.library.shuffle.common.FetchedInput;
 import org.apache.tez.runtime.library.shuffle.common.FetchedInputAllocator;
@@ -65,6 +68,7 @@ import org.apache.tez.runtime.library.shuffle.common.ShuffleUtils;
 import org.apache.tez.runtime.library.shuffle.common.FetchedInput.Type;
 import org.apache.tez.runtime.library.shuffle.common.Fetcher.FetcherBuilder;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.FutureCallback;
@@ -88,6 +92,8 @@ public class ShuffleManager implements FetcherCallback {
   private final FetchedInputAllocator inputManager;
 
   private final ListeningExecutorService fetcherExecutor;
+  // Non-null if remote inputs are fetched with the non-blocking client
+  private final AsyncShuffleClient asyncClient;
 
   private final ExecutorService schedulerRawExecutor;
   private final ListeningExecutorService schedulerExecutor;
@@ -101,6 +107,11 @@ public class ShuffleManager implements FetcherCallback {
   private final Set<InputAttemptIdentifier> obsoletedInputs;
   
   private final AtomicInteger numCompletedInputs = new AtomicInteger(0);
+
+  // Bytes of completed inputs which the reader has not taken yet. No new
+  // fetches are started while this is above the limit, -1 if unlimited.
+  private final AtomicLong bufferedBytes = new AtomicLong(0);
+  private final long maxBufferedBytes;
   
   private final long startTime;
   private long lastProgressTime;
@@ -110,6 +121,8 @@ public class ShuffleManager implements FetcherCallback {
   private final Condition wakeLoop = lock.newCondition();
   
   private final int numFetchers;
+  // Fetches which may run at once, above numFetchers with the async client
+  private final int maxRunningFetches;
   private final AtomicInteger numRunningFetchers = new AtomicInteger(0);
   
   // Parameters required by Fetchers
@@ -117,6 +130,9 @@ public class ShuffleManager implements FetcherCallback {
   private final int connectionTimeout;
   private final int readTimeout;
   private final CompressionCodec codec;
+  private final boolean localDiskFetchEnabled;
+  private final String localHost;
+  private final int localPort;
   
   private final int ifileBufferSize;
   private final boolean ifileReadAhead;
@@ -132,6 +148,7 @@ public class ShuffleManager implements FetcherCallback {
   private final TezCounter decompressedDataSizeCounter;
   private final TezCounter bytesShuffledToDiskCounter;
   private final TezCounter bytesShuffledToMemCounter;
+  private final TezCounter bytesShuffledDirectDiskCounter;
   
   private volatile Throwable shuffleError;
   
@@ -150,6 +167,7 @@ public class ShuffleManager implements FetcherCallback {
     this.decompressedDataSizeCounter = inputContext.getCounters().findCounter(TaskCounter.SHUFFLE_BYTES_DECOMPRESSED);
     this.bytesShuffledToDiskCounter = inputContext.getCounters().findCounter(TaskCounter.SHUFFLE_BYTES_TO_DISK);
     this.bytesShuffledToMemCounter = inputContext.getCounters().findCounter(TaskCounter.SHUFFLE_BYTES_TO_MEM);
+    this.bytesShuffledDirectDiskCounter = inputContext.getCounters().findCounter(TaskCounter.SHUFFLE_BYTES_DISK_DIRECT);
   
     this.ifileBufferSize = bufferSize;
     this.ifileReadAhead = ifileReadAheadEnabled;
@@ -169,6 +187,16 @@ public class ShuffleManager implements FetcherCallback {
             TezJobConfig.DEFAULT_TEZ_RUNTIME_SHUFFLE_PARALLEL_COPIES);
     
     this.numFetchers = Math.min(maxConfiguredFetchers, numInputs);
+
+    float maxBufferedPercent = conf.getFloat(
+        TezJobConfig.TEZ_RUNTIME_SHUFFLE_UNORDERED_BUFFER_PERCENT,
+        TezJobConfig.DEFAULT_TEZ_RUNTIME_SHUFFLE_UNORDERED_BUFFER_PERCENT);
+    if (maxBufferedPercent > 0) {
+      this.maxBufferedBytes =
+          (long) (inputContext.getTotalMemoryAvailableToTask() * maxBufferedPercent);
+    } else {
+      this.maxBufferedBytes = -1;
+    }
     
     ExecutorService fetcherRawExecutor = Executors.newFixedThreadPool(
         numFetchers,
@@ -201,11 +229,47 @@ public class ShuffleManager implements FetcherCallback {
     this.readTimeout = conf.getInt(
         TezJobConfig.TEZ_RUNTIME_SHUFFLE_READ_TIMEOUT,
         TezJobConfig.DEFAULT_TEZ_RUNTIME_SHUFFLE_READ_TIMEOUT);
+
+    this.localDiskFetchEnabled = conf.getBoolean(
+        TezJobConfig.TEZ_RUNTIME_SHUFFLE_OPTIMIZE_LOCAL_FETCH,
+        TezJobConfig.DEFAULT_TEZ_RUNTIME_SHUFFLE_OPTIMIZE_LOCAL_FETCH);
+    if (localDiskFetchEnabled) {
+      // Outputs advertise the NodeManager host and the port of its ShuffleHandler
+      this.localHost = System.getenv(ApplicationConstants.Environment.NM_HOST.toString());
+      this.localPort = ShuffleUtils.deserializeShuffleProviderMetaData(inputContext
+          .getServiceProviderMetaData(ShuffleUtils.SHUFFLE_HANDLER_SERVICE_ID));
+    } else {
+      this.localHost = null;
+      this.localPort = -1;
+    }
+
+    if (conf.getBoolean(TezJobConfig.TEZ_RUNTIME_SHUFFLE_ASYNC_CLIENT_ENABLED,
+        TezJobConfig.DEFAULT_TEZ_RUNTIME_SHUFFLE_ASYNC_CLIENT_ENABLED)) {
+      this.asyncClient = new AsyncShuffleClient(
+          TezUtils.cleanVertexName(inputContext.getSourceVertexName()),
+          conf.getInt(TezJobConfig.TEZ_RUNTIME_SHUFFLE_ASYNC_CLIENT_IO_THREADS,
+              TezJobConfig.DEFAULT_TEZ_RUNTIME_SHUFFLE_ASYNC_CLIENT_IO_THREADS),
+          conf.getInt(TezJobConfig.TEZ_RUNTIME_SHUFFLE_ASYNC_CLIENT_DECODE_THREADS,
+              TezJobConfig.DEFAULT_TEZ_RUNTIME_SHUFFLE_ASYNC_CLIENT_DECODE_THREADS),
+          this, inputAllocator, inputContext.getApplicationId(), shuffleSecret, codec,
+          ifileReadAhead, ifileReadAheadLength, connectionTimeout, readTimeout);
+      int maxConnections = conf.getInt(
+          TezJobConfig.TEZ_RUNTIME_SHUFFLE_ASYNC_CLIENT_MAX_CONNECTIONS,
+          TezJobConfig.DEFAULT_TEZ_RUNTIME_SHUFFLE_ASYNC_CLIENT_MAX_CONNECTIONS);
+      this.maxRunningFetches = Math.max(numFetchers, Math.min(maxConnections, numInputs));
+    } else {
+      this.asyncClient = null;
+      this.maxRunningFetches = numFetchers;
+    }
     
     LOG.info(this.getClass().getSimpleName() + " : numInputs=" + numInputs + ", compressionCodec="
         + (codec == null ? "NoCompressionCodec" : codec.getClass().getName()) + ", numFetchers="
         + numFetchers + ", ifileBufferSize=" + ifileBufferSize + ", ifileReadAheadEnabled="
-        + ifileReadAhead + ", ifileReadAheadLength=" + ifileReadAheadLength);
+        + ifileReadAhead + ", ifileReadAheadLength=" + ifileReadAheadLength
+        + ", localDiskFetchEnabled=" + localDiskFetchEnabled
+        + ", asyncClientEnabled=" + (asyncClient != null)
+        + ", maxRunningFetches=" + maxRunningFetches
+        + ", maxBufferedBytes=" + maxBufferedBytes);
   }
 
   public void run() throws IOException {
@@ -224,7 +288,8 @@ public class ShuffleManager implements FetcherCallback {
       while (!isShutdown.get() && numCompletedInputs.get() < numInputs) {
         lock.lock();
         try {
-          if (numRunningFetchers.get() >= numFetchers || pendingHosts.size() == 0) {
+          if (numRunningFetchers.get() >= maxRunningFetches || pendingHosts.size() == 0
+              || isBufferFull()) {
             if (numCompletedInputs.get() < numInputs) {
               wakeLoop.await();
             }
@@ -245,9 +310,9 @@ public class ShuffleManager implements FetcherCallback {
         if (numCompletedInputs.get() < numInputs) {
           lock.lock();
           try {
-            int maxFetchersToRun = numFetchers - numRunningFetchers.get();
+            int maxFetchersToRun = maxRunningFetches - numRunningFetchers.get();
             int count = 0;
-            while (pendingHosts.peek() != null) {
+            while (pendingHosts.peek() != null && !isBufferFull()) {
               InputHost inputHost = null;
               try {
                 inputHost = pendingHosts.take();
@@ -264,13 +329,23 @@ public class ShuffleManager implements FetcherCallback {
               }
               if (inputHost.getNumPendingInputs() > 0) {
                 LOG.info("Scheduling fetch for inputHost: " + inputHost.getHost());
-                Fetcher fetcher = constructFetcherForHost(inputHost);
-                numRunningFetchers.incrementAndGet();
-                if (isShutdown.get()) {
-                  LOG.info("hasBeenShutdown, Breaking out of ShuffleScheduler Loop");
+                ListenableFuture<FetchResult> future;
+                if (asyncClient != null && !isLocalHost(inputHost)) {
+                  List<InputAttemptIdentifier> pendingInputsForHost =
+                      getPendingInputsForHost(inputHost);
+                  LOG.info("Fetching asynchronously from host: " + inputHost.getHost()
+                      + ", with inputs: " + pendingInputsForHost);
+                  numRunningFetchers.incrementAndGet();
+                  future = asyncClient.fetch(inputHost.getHost(), inputHost.getPort(),
+                      inputHost.getSrcPhysicalIndex(), pendingInputsForHost);
+                } else {
+                  Fetcher fetcher = constructFetcherForHost(inputHost);
+                  numRunningFetchers.incrementAndGet();
+                  if (isShutdown.get()) {
+                    LOG.info("hasBeenShutdown, Breaking out of ShuffleScheduler Loop");
+                  }
+                  future = fetcherExecutor.submit(fetcher);
                 }
-                ListenableFuture<FetchResult> future = fetcherExecutor
-                    .submit(fetcher);
                 Futures.addCallback(future, fetchFutureCallback);
                 if (++count >= maxFetchersToRun) {
                   break;
@@ -292,6 +367,9 @@ public class ShuffleManager implements FetcherCallback {
       if (!fetcherExecutor.isShutdown()) {
         fetcherExecutor.shutdownNow();
       }
+      if (asyncClient != null) {
+        asyncClient.shutdown();
+      }
       return null;
     }
   }
@@ -305,7 +383,24 @@ public class ShuffleManager implements FetcherCallback {
       fetcherBuilder.setCompressionParameters(codec);
     }
     fetcherBuilder.setIFileParams(ifileReadAhead, ifileReadAheadLength);
+    fetcherBuilder.setLocalFetchParams(localDiskFetchEnabled, localHost, localPort);
 
+    List<InputAttemptIdentifier> pendingInputsForHost = getPendingInputsForHost(inputHost);
+    // TODO NEWTEZ Maybe limit the number of inputs being given to a single
+    // fetcher, especially in the case where #hosts < #fetchers
+    fetcherBuilder.assignWork(inputHost.getHost(), inputHost.getPort(),
+        inputHost.getSrcPhysicalIndex(), pendingInputsForHost);
+    LOG.info("Created Fetcher for host: " + inputHost.getHost()
+        + ", with inputs: " + pendingInputsForHost);
+    return fetcherBuilder.build();
+  }
+
+  private boolean isLocalHost(InputHost inputHost) {
+    return localDiskFetchEnabled && inputHost.getHost().equals(localHost)
+        && inputHost.getPort() == localPort;
+  }
+
+  private List<InputAttemptIdentifier> getPendingInputsForHost(InputHost inputHost) {
     // Remove obsolete inputs from the list being given to the fetcher. Also
     // remove from the obsolete list.
     List<InputAttemptIdentifier> pendingInputsForHost = inputHost
@@ -323,13 +418,7 @@ public class ShuffleManager implements FetcherCallback {
         obsoletedInputs.remove(input);
       }
     }
-    // TODO NEWTEZ Maybe limit the number of inputs being given to a single
-    // fetcher, especially in the case where #hosts < #fetchers
-    fetcherBuilder.assignWork(inputHost.getHost(), inputHost.getPort(),
-        inputHost.getSrcPhysicalIndex(), pendingInputsForHost);
-    LOG.info("Created Fetcher for host: " + inputHost.getHost()
-        + ", with inputs: " + pendingInputsForHost);
-    return fetcherBuilder.build();
+    return pendingInputsForHost;
   }
   
   /////////////////// Methods for InputEventHandler
@@ -461,6 +550,8 @@ public class ShuffleManager implements FetcherCallback {
           bytesShuffledCounter.increment(fetchedBytes);
           if (fetchedInput.getType() == Type.MEMORY) {
             bytesShuffledToMemCounter.increment(fetchedBytes);
+          } else if (fetchedInput.getType() == Type.DISK_DIRECT) {
+            bytesShuffledDirectDiskCounter.increment(fetchedBytes);
           } else {
             bytesShuffledToDiskCounter.increment(fetchedBytes);
           }
@@ -522,6 +613,9 @@ public class ShuffleManager implements FetcherCallback {
     if (this.fetcherExecutor != null && !this.fetcherExecutor.isShutdown()) {
       this.fetcherExecutor.shutdownNow(); // Interrupt all running fetchers
     }
+    if (this.asyncClient != null) {
+      this.asyncClient.shutdown();
+    }
   }
   
   private void registerCompletedInput(FetchedInput fetchedInput) {
@@ -529,6 +623,7 @@ public class ShuffleManager implements FetcherCallback {
     try {
       completedInputSet.add(fetchedInput.getInputAttemptIdentifier().getInputIdentifier());
       completedInputs.add(fetchedInput);
+      bufferedBytes.addAndGet(getBufferedSize(fetchedInput));
       if (!inputReadyNotificationSent.getAndSet(true)) {
         // TODO Should eventually be controlled by Inputs which are processing the data.
         inputContext.inputIsReady();
@@ -587,9 +682,46 @@ public class ShuffleManager implements FetcherCallback {
         lock.unlock();
       }
       input = completedInputs.take(); // block
+      inputTaken(input);
     } while (input instanceof NullFetchedInput);
     return input;
   }
+
+  private void inputTaken(FetchedInput input) {
+    long buffered = bufferedBytes.addAndGet(-getBufferedSize(input));
+    if (maxBufferedBytes >= 0 && buffered + getBufferedSize(input) > maxBufferedBytes
+        && buffered <= maxBufferedBytes) {
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Reader caught up with fetched inputs, resuming fetches");
+      }
+      lock.lock();
+      try {
+        wakeLoop.signal();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Heap held by a fetched input until the reader takes it. Inputs on disk,
+   * fetched or read in place, do not count against the buffer limit.
+   */
+  private static long getBufferedSize(FetchedInput input) {
+    if (input.getType() != FetchedInput.Type.MEMORY) {
+      return 0;
+    }
+    return Math.max(0, input.getActualSize());
+  }
+
+  /**
+   * @return true if the reader has fallen behind, and no new fetches should
+   *         be started
+   */
+  @VisibleForTesting
+  boolean isBufferFull() {
+    return maxBufferedBytes >= 0 && bufferedBytes.get() > maxBufferedBytes;
+  }
   /////////////////// End of methods for walking the available inputs
 
 
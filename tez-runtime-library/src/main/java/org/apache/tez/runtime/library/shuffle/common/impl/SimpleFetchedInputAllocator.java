@@ -30,6 +30,7 @@ import org.apache.tez.dag.api.TezUncheckedException;
 import org.apache.tez.runtime.library.common.Constants;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
 import org.apache.tez.runtime.library.common.task.local.output.TezTaskOutputFiles;
+import org.apache.tez.runtime.library.shuffle.common.AdaptiveShuffleMemoryPolicy;
 import org.apache.tez.runtime.library.shuffle.common.DiskFetchedInput;
 import org.apache.tez.runtime.library.shuffle.common.FetchedInput;
 import org.apache.tez.runtime.library.shuffle.common.FetchedInputAllocator;
@@ -55,6 +56,8 @@ public class SimpleFetchedInputAllocator implements FetchedInputAllocator,
   // Configuration parameters
   private final long memoryLimit;
   private final long maxSingleShuffleLimit;
+  // Adjusts the limits to the heap headroom, if enabled
+  private final AdaptiveShuffleMemoryPolicy memoryPolicy;
 
   private final long maxAvailableTaskMemory;
   private final long initialMemoryAvailable;
@@ -103,6 +106,12 @@ public class SimpleFetchedInputAllocator implements FetchedInputAllocator,
     }
 
     this.maxSingleShuffleLimit = (long) (memoryLimit * singleShuffleMemoryLimitPercent);
+    if (AdaptiveShuffleMemoryPolicy.isEnabled(conf)) {
+      this.memoryPolicy = new AdaptiveShuffleMemoryPolicy(conf, memoryLimit,
+          maxSingleShuffleLimit);
+    } else {
+      this.memoryPolicy = null;
+    }
     
     LOG.info("SimpleInputManager -> " + "MemoryLimit: " + 
         this.memoryLimit + ", maxSingleMemLimit: " + this.maxSingleShuffleLimit);
@@ -126,8 +135,7 @@ public class SimpleFetchedInputAllocator implements FetchedInputAllocator,
   @Override
   public synchronized FetchedInput allocate(long actualSize, long compressedSize,
       InputAttemptIdentifier inputAttemptIdentifier) throws IOException {
-    if (actualSize > maxSingleShuffleLimit
-        || this.usedMemory + actualSize > this.memoryLimit) {
+    if (!canShuffleToMemory(actualSize)) {
       return new DiskFetchedInput(actualSize, compressedSize,
           inputAttemptIdentifier, this, conf, localDirAllocator,
           fileNameAllocator);
@@ -138,6 +146,19 @@ public class SimpleFetchedInputAllocator implements FetchedInputAllocator,
     }
   }
 
+  private boolean canShuffleToMemory(long actualSize) {
+    if (memoryPolicy == null) {
+      return actualSize <= maxSingleShuffleLimit
+          && this.usedMemory + actualSize <= this.memoryLimit;
+    }
+    // Inputs are consumed by the reader, there is no merge to fall behind
+    if (actualSize > memoryPolicy.getSingleShuffleLimit(false)) {
+      return false;
+    }
+    return this.usedMemory + actualSize <= this.memoryLimit
+        || memoryPolicy.canExceedMemoryLimit(usedMemory, actualSize);
+  }
+
   @Override
   public synchronized void fetchComplete(FetchedInput fetchedInput) {
     switch (fetchedInput.getType()) {
@@ -0,0 +1,163 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.util.Progress;
+import org.apache.tez.common.TezJobConfig;
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.runtime.library.common.sort.impl.TezRawKeyValueIterator;
+import org.junit.Test;
+
+public class TestValuesIterator {
+
+  private static final int NUM_KEYS = 100;
+
+  @Test
+  public void testGrouping() throws IOException {
+    verifyGrouping(false);
+  }
+
+  @Test
+  public void testGroupingReuseObjects() throws IOException {
+    verifyGrouping(true);
+  }
+
+  private void verifyGrouping(boolean reuseObjects) throws IOException {
+    Configuration conf = new Configuration();
+    conf.setBoolean(TezJobConfig.TEZ_RUNTIME_VALUES_ITERATOR_REUSE_OBJECTS, reuseObjects);
+    TezCounters counters = new TezCounters();
+    ValuesIterator<Text, IntWritable> iterator = new ValuesIterator<Text, IntWritable>(
+        createInput(), WritableComparator.get(Text.class), Text.class, IntWritable.class, conf,
+        counters.findCounter(TaskCounter.REDUCE_INPUT_GROUPS),
+        counters.findCounter(TaskCounter.REDUCE_INPUT_RECORDS));
+
+    int groups = 0;
+    Text previousKey = null;
+    Iterable<IntWritable> previousValues = null;
+    Iterator<IntWritable> previousIterator = null;
+    while (iterator.moveToNext()) {
+      Text key = iterator.getKey();
+      assertEquals(String.format("key%03d", groups), key.toString());
+      Iterable<IntWritable> values = iterator.getValues();
+      if (previousKey != null) {
+        if (reuseObjects) {
+          assertSame(previousKey, key);
+          assertSame(previousValues, values);
+        } else {
+          assertNotSame(previousValues, values);
+          try {
+            previousIterator.next();
+            fail("Values of a previous key must not be readable");
+          } catch (IllegalStateException e) {
+          }
+        }
+      }
+      // skip the values of every third key, which moveToNext must do
+      int count = 0;
+      previousIterator = values.iterator();
+      if (groups % 3 != 0) {
+        for (IntWritable value : values) {
+          assertEquals(groups, value.get());
+          count++;
+        }
+        assertEquals(groups % 4 + 1, count);
+      }
+      previousKey = key;
+      previousValues = values;
+      groups++;
+    }
+    assertEquals(NUM_KEYS, groups);
+  }
+
+  /**
+   * Key i has i % 4 + 1 values, all i.
+   */
+  private TezRawKeyValueIterator createInput() throws IOException {
+    final List<byte[]> keys = new ArrayList<byte[]>();
+    final List<byte[]> values = new ArrayList<byte[]>();
+    DataOutputBuffer out = new DataOutputBuffer();
+    for (int k = 0; k < NUM_KEYS; k++) {
+      for (int v = 0; v <= k % 4; v++) {
+        out.reset();
+        new Text(String.format("key%03d", k)).write(out);
+        keys.add(copy(out));
+        out.reset();
+        new IntWritable(k).write(out);
+        values.add(copy(out));
+      }
+    }
+    return new TezRawKeyValueIterator() {
+      private final DataInputBuffer key = new DataInputBuffer();
+      private final DataInputBuffer value = new DataInputBuffer();
+      private int index = -1;
+
+      @Override
+      public DataInputBuffer getKey() throws IOException {
+        return key;
+      }
+
+      @Override
+      public DataInputBuffer getValue() throws IOException {
+        return value;
+      }
+
+      @Override
+      public boolean next() throws IOException {
+        if (++index >= keys.size()) {
+          return false;
+        }
+        key.reset(keys.get(index), keys.get(index).length);
+        value.reset(values.get(index), values.get(index).length);
+        return true;
+      }
+
+      @Override
+      public void close() throws IOException {
+      }
+
+      @Override
+      public Progress getProgress() {
+        return null;
+      }
+    };
+  }
+
+  private static byte[] copy(DataOutputBuffer out) {
+    byte[] bytes = new byte[out.getLength()];
+    System.arraycopy(out.getData(), 0, bytes, 0, bytes.length);
+    return bytes;
+  }
+}
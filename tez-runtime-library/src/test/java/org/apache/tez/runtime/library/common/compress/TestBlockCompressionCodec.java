@@ -0,0 +1,378 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.compress;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.DecompressorStream;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.tez.common.TezJobConfig;
+import org.apache.tez.runtime.library.common.sort.impl.IFile;
+import org.apache.tez.runtime.library.common.sort.impl.IFileChecksums;
+import org.apache.tez.runtime.library.common.sort.impl.IFileInputStream;
+import org.junit.Assume;
+import org.junit.Test;
+
+public class TestBlockCompressionCodec {
+
+  private static final int NUM_RECORDS = 2000;
+
+  @Test
+  public void testSnappyIFile() throws IOException {
+    verifyIFile("snappy");
+  }
+
+  @Test
+  public void testLz4IFile() throws IOException {
+    verifyIFile("lz4");
+  }
+
+  @Test
+  public void testDeflateIFile() throws IOException {
+    verifyIFile("deflate");
+  }
+
+  private void verifyIFile(String algorithm) throws IOException {
+    Configuration conf = createConf(algorithm);
+    BlockCompressionCodec codec = ReflectionUtils.newInstance(BlockCompressionCodec.class, conf);
+    DataOutputBuffer data = new DataOutputBuffer();
+    long rawLength = writeIFile(conf, codec, data);
+    assertTrue("Data was not compressed", data.getLength() < rawLength);
+
+    IFile.Reader reader = new IFile.Reader(
+        new ByteArrayInputStream(data.getData(), 0, data.getLength()), data.getLength(), codec,
+        null, null, false, 0, -1);
+    verifyRecords(reader);
+    reader.close();
+  }
+
+  @Test
+  public void testFetchExactLength() throws IOException {
+    Configuration conf = createConf("snappy");
+    BlockCompressionCodec codec = ReflectionUtils.newInstance(BlockCompressionCodec.class, conf);
+    DataOutputBuffer data = new DataOutputBuffer();
+    long rawLength = writeIFile(conf, codec, data);
+
+    // As the fetchers do, read the uncompressed length and no further
+    ByteArrayInputStream connection = new ByteArrayInputStream(data.getData(), 0,
+        data.getLength());
+    IFileInputStream checksumIn = new IFileInputStream(connection, data.getLength());
+    byte[] uncompressed = new byte[(int) rawLength];
+    IOUtils.readFully(codec.createInputStream(checksumIn), uncompressed, 0,
+        uncompressed.length);
+    // the block index and the checksum were consumed
+    assertEquals(0, connection.available());
+  }
+
+  @Test
+  public void testBlockIndex() throws IOException {
+    Configuration conf = createConf("deflate");
+    BlockCompressionCodec codec = ReflectionUtils.newInstance(BlockCompressionCodec.class, conf);
+    FileSystem fs = FileSystem.getLocal(conf).getRaw();
+    Path file = new Path(System.getProperty("test.build.data", "/tmp"),
+        TestBlockCompressionCodec.class.getName() + ".out");
+    try {
+      FSDataOutputStream out = fs.create(file);
+      out.writeLong(42);
+      long start = out.getPos();
+      DataOutputBuffer data = new DataOutputBuffer();
+      long rawLength = writeIFile(conf, codec, data);
+      out.write(data.getData(), 0, data.getLength());
+      out.close();
+
+      FSDataInputStream in = fs.open(file);
+      // excluding the IFile checksum header and trailer
+      int headerLength = new IFileInputStream(new ByteArrayInputStream(data.getData(), 0,
+          data.getLength()), data.getLength()).getHeaderLength();
+      start += headerLength;
+      BlockCompressionCodec.BlockIndex index = BlockCompressionCodec.readBlockIndex(in, start,
+          data.getLength() - headerLength - IFileChecksums.CHECKSUM_SIZE);
+      int blockSize = conf.getInt(TezJobConfig.TEZ_RUNTIME_COMPRESS_BLOCK_SIZE, 0);
+      assertEquals((rawLength + blockSize - 1) / blockSize, index.getNumBlocks());
+      for (int i = 0; i < index.getNumBlocks(); i++) {
+        assertEquals((long) i * blockSize, index.getUncompressedOffset(i));
+        in.seek(start + index.getBlockOffset(i));
+        int length = in.readInt();
+        assertEquals((int) Math.min(blockSize, rawLength - (long) i * blockSize), length);
+      }
+      in.close();
+    } finally {
+      fs.delete(file, false);
+    }
+  }
+
+  @Test
+  public void testIndexedIFile() throws IOException {
+    verifyIndexedIFile(0);
+    verifyIndexedIFile(2);
+  }
+
+  private void verifyIndexedIFile(int readAhead) throws IOException {
+    Configuration conf = createConf("snappy");
+    conf.setInt(TezJobConfig.TEZ_RUNTIME_COMPRESS_BLOCK_READAHEAD_BLOCKS, readAhead);
+    BlockCompressionCodec codec = ReflectionUtils.newInstance(BlockCompressionCodec.class, conf);
+    FileSystem fs = FileSystem.getLocal(conf).getRaw();
+    Path file = new Path(System.getProperty("test.build.data", "/tmp"),
+        TestBlockCompressionCodec.class.getName() + ".ifile");
+    try {
+      DataOutputBuffer data = new DataOutputBuffer();
+      writeIFile(conf, codec, data);
+      FSDataOutputStream out = fs.create(file);
+      out.write(data.getData(), 0, data.getLength());
+      out.close();
+
+      IFile.Reader reader = new IFile.Reader(fs, file, codec, null, null, false, 0, -1);
+      verifyRecords(reader);
+      assertEquals(data.getLength() - IFileChecksums.CHECKSUM_SIZE, reader.getPosition());
+      reader.close();
+    } finally {
+      fs.delete(file, false);
+    }
+  }
+
+  @Test
+  public void testConcatenatedStreams() throws IOException {
+    Configuration conf = createConf("lz4");
+    BlockCompressionCodec codec = ReflectionUtils.newInstance(BlockCompressionCodec.class, conf);
+    Random random = new Random(7);
+    byte[] first = createBlock(random, 10000);
+    byte[] second = createBlock(random, 3 * 1024);
+    byte[] expected = new byte[first.length + second.length];
+    System.arraycopy(first, 0, expected, 0, first.length);
+    System.arraycopy(second, 0, expected, first.length, second.length);
+    DataOutputBuffer data = new DataOutputBuffer();
+    compress(codec, first, data);
+    compress(codec, second, data);
+
+    byte[] result = new byte[expected.length];
+    InputStream in = codec.createInputStream(
+        new ByteArrayInputStream(data.getData(), 0, data.getLength()));
+    IOUtils.readFully(in, result, 0, result.length);
+    assertEquals(-1, in.read());
+    assertTrue(Arrays.equals(expected, result));
+
+    // As the streams of other codecs are read, through the Decompressor
+    Arrays.fill(result, (byte) 0);
+    in = new DecompressorStream(new ByteArrayInputStream(data.getData(), 0,
+        data.getLength()), codec.createDecompressor(), 100);
+    IOUtils.readFully(in, result, 0, result.length);
+    assertEquals(-1, in.read());
+    assertTrue(Arrays.equals(expected, result));
+
+    FileSystem fs = FileSystem.getLocal(conf).getRaw();
+    Path file = new Path(System.getProperty("test.build.data", "/tmp"),
+        TestBlockCompressionCodec.class.getName() + ".concat");
+    try {
+      FSDataOutputStream out = fs.create(file);
+      out.write(data.getData(), 0, data.getLength());
+      out.close();
+
+      BlockCompressionCodec.BlockIndex index = BlockCompressionCodec.readBlockIndex(
+          fs.open(file), 0, data.getLength());
+      // 3 blocks of 4KB, then one
+      assertEquals(4, index.getNumBlocks());
+      assertEquals(first.length, index.getUncompressedOffset(3));
+      assertEquals(expected.length, index.getUncompressedLength());
+
+      IndexedBlockDecompressionInputStream indexedIn = codec.createIndexedInputStream(
+          fs.open(file), 0, data.getLength());
+      Arrays.fill(result, (byte) 0);
+      IOUtils.readFully(indexedIn, result, 0, result.length);
+      assertEquals(-1, indexedIn.read());
+      assertTrue(Arrays.equals(expected, result));
+
+      // Seek into each stream, and back
+      for (int pos : new int[] { first.length + 100, 5000, 4096, 0, expected.length - 1 }) {
+        indexedIn.seek(pos);
+        assertEquals(pos, indexedIn.getPos());
+        byte[] b = new byte[expected.length - pos];
+        IOUtils.readFully(indexedIn, b, 0, b.length);
+        assertTrue(Arrays.equals(Arrays.copyOfRange(expected, pos, expected.length), b));
+      }
+      indexedIn.close();
+    } finally {
+      fs.delete(file, false);
+    }
+  }
+
+  @Test
+  public void testCompressorStreaming() throws IOException {
+    Configuration conf = createConf("deflate");
+    BlockCompressionCodec codec = ReflectionUtils.newInstance(BlockCompressionCodec.class, conf);
+    BlockCompressor compressor = (BlockCompressor) codec.createCompressor();
+    byte[] src = createBlock(new Random(3), 9000);
+
+    // Through the Compressor methods, with small input and output buffers
+    DataOutputBuffer data = new DataOutputBuffer();
+    byte[] buffer = new byte[100];
+    for (int off = 0; off < src.length; off += 1000) {
+      compressor.setInput(src, off, Math.min(1000, src.length - off));
+      while (!compressor.needsInput()) {
+        int n = compressor.compress(buffer, 0, buffer.length);
+        data.write(buffer, 0, n);
+      }
+    }
+    compressor.finish();
+    while (!compressor.finished()) {
+      int n = compressor.compress(buffer, 0, buffer.length);
+      data.write(buffer, 0, n);
+    }
+    assertEquals(src.length, compressor.getBytesRead());
+    assertEquals(data.getLength(), compressor.getBytesWritten());
+
+    DataOutputBuffer expected = new DataOutputBuffer();
+    compress(codec, src, expected);
+    assertTrue(Arrays.equals(Arrays.copyOf(expected.getData(), expected.getLength()),
+        Arrays.copyOf(data.getData(), data.getLength())));
+
+    // A stream without input is empty
+    compressor.reset();
+    compressor.finish();
+    assertEquals(0, compressor.compress(buffer, 0, buffer.length));
+    assertTrue(compressor.finished());
+    compressor.end();
+  }
+
+  @Test
+  public void testCorruptBlock() throws IOException {
+    Configuration conf = createConf("snappy");
+    BlockCompressionCodec codec = ReflectionUtils.newInstance(BlockCompressionCodec.class, conf);
+    DataOutputBuffer data = new DataOutputBuffer();
+    writeIFile(conf, codec, data);
+    byte[] corrupt = Arrays.copyOf(data.getData(), data.getLength());
+    int headerLength = new IFileInputStream(new ByteArrayInputStream(corrupt), corrupt.length)
+        .getHeaderLength();
+    // in the data of the first block
+    corrupt[headerLength + BlockCompressionCodec.HEADER_LENGTH + BlockCompressionCodec.BLOCK_HEADER_LENGTH
+        + 10] ^= 0x40;
+    IFile.Reader reader = new IFile.Reader(new ByteArrayInputStream(corrupt), corrupt.length,
+        codec, null, null, false, 0, -1);
+    reader.disableChecksumValidation();
+    try {
+      DataInputBuffer key = new DataInputBuffer();
+      DataInputBuffer value = new DataInputBuffer();
+      while (reader.nextRawKey(key)) {
+        reader.nextRawValue(value);
+      }
+      fail("Corrupt block was not detected");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("Checksum error in block 0"));
+    }
+  }
+
+  @Test
+  public void testSnappyImplementationsInterchangeable() throws IOException {
+    Assume.assumeTrue(SnappyBlockCompression.isNativeAvailable());
+    byte[] src = createBlock(new Random(0), 64 * 1024);
+    SnappyBlockCompression nativeSnappy = new SnappyBlockCompression(true);
+    SnappyBlockCompression javaSnappy = new SnappyBlockCompression(false);
+
+    byte[] compressed = new byte[javaSnappy.maxCompressedLength(src.length)];
+    byte[] result = new byte[src.length];
+    int length = nativeSnappy.compress(src, 0, src.length, compressed, 0);
+    javaSnappy.decompress(compressed, 0, length, result, 0, src.length);
+    assertTrue(Arrays.equals(src, result));
+
+    length = javaSnappy.compress(src, 0, src.length, compressed, 0);
+    Arrays.fill(result, (byte) 0);
+    nativeSnappy.decompress(compressed, 0, length, result, 0, src.length);
+    assertTrue(Arrays.equals(src, result));
+  }
+
+  private static void compress(BlockCompressionCodec codec, byte[] src, OutputStream out)
+      throws IOException {
+    CompressionOutputStream compressedOut = codec.createOutputStream(out);
+    compressedOut.write(src);
+    compressedOut.finish();
+  }
+
+  private static Configuration createConf(String algorithm) {
+    Configuration conf = new Configuration();
+    conf.set(TezJobConfig.TEZ_RUNTIME_COMPRESS_BLOCK_ALGORITHM, algorithm);
+    conf.setInt(TezJobConfig.TEZ_RUNTIME_COMPRESS_BLOCK_SIZE, 4 * 1024);
+    return conf;
+  }
+
+  /**
+   * Write records with compressible keys and partly random values.
+   *
+   * @return the uncompressed length
+   */
+  private static long writeIFile(Configuration conf, BlockCompressionCodec codec,
+      DataOutputBuffer data) throws IOException {
+    IFile.Writer writer = new IFile.Writer(conf, new FSDataOutputStream(data, null),
+        Text.class, BytesWritable.class, codec, null, null);
+    Random random = new Random(42);
+    for (int i = 0; i < NUM_RECORDS; i++) {
+      writer.append(new Text(String.format("key%08d", i)),
+          new BytesWritable(createBlock(random, i % 100)));
+    }
+    writer.close();
+    return writer.getRawLength();
+  }
+
+  private static void verifyRecords(IFile.Reader reader) throws IOException {
+    DataInputBuffer keyIn = new DataInputBuffer();
+    DataInputBuffer valueIn = new DataInputBuffer();
+    Text key = new Text();
+    BytesWritable value = new BytesWritable();
+    Random random = new Random(42);
+    for (int i = 0; i < NUM_RECORDS; i++) {
+      assertTrue(reader.nextRawKey(keyIn));
+      reader.nextRawValue(valueIn);
+      key.readFields(keyIn);
+      value.readFields(valueIn);
+      assertEquals(String.format("key%08d", i), key.toString());
+      assertTrue(Arrays.equals(createBlock(random, i % 100), value.copyBytes()));
+    }
+    assertFalse(reader.nextRawKey(keyIn));
+  }
+
+  /**
+   * Half random, half repeated bytes.
+   */
+  private static byte[] createBlock(Random random, int length) {
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i += 2) {
+      bytes[i] = (byte) random.nextInt();
+    }
+    return bytes;
+  }
+}
@@ -0,0 +1,166 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.readers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.util.Progress;
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.runtime.library.api.RawKeyValueBatch;
+import org.apache.tez.runtime.library.common.sort.impl.TezRawKeyValueIterator;
+import org.junit.Test;
+
+public class TestBatchedRawKeyValueReader {
+
+  @Test
+  public void testBatches() throws IOException {
+    // 50 keys with 1 to 5 values each
+    List<byte[]> keys = new ArrayList<byte[]>();
+    List<byte[]> values = new ArrayList<byte[]>();
+    int numGroups = 50;
+    for (int k = 0; k < numGroups; k++) {
+      for (int v = 0; v <= k % 5; v++) {
+        keys.add(serialize(new Text(String.format("key%03d", k))));
+        values.add(serialize(new IntWritable(k)));
+      }
+    }
+
+    TezCounters counters = new TezCounters();
+    BatchedRawKeyValueReader reader = new BatchedRawKeyValueReader(
+        new ListIterator(keys, values), WritableComparator.get(Text.class), 7, 1024,
+        counters.findCounter(TaskCounter.REDUCE_INPUT_GROUPS),
+        counters.findCounter(TaskCounter.REDUCE_INPUT_RECORDS));
+
+    Text key = new Text();
+    IntWritable value = new IntWritable();
+    DataInputBuffer buffer = new DataInputBuffer();
+    int records = 0;
+    int groups = 0;
+    String lastKey = null;
+    while (reader.next()) {
+      RawKeyValueBatch batch = reader.getCurrentBatch();
+      assertTrue(batch.size() > 0 && batch.size() <= 7);
+      for (int i = 0; i < batch.size(); i++) {
+        batch.getKey(i, buffer);
+        key.readFields(buffer);
+        batch.getValue(i, buffer);
+        value.readFields(buffer);
+        assertEquals(String.format("key%03d", value.get()), key.toString());
+        assertEquals(!key.toString().equals(lastKey), batch.isNewKey(i));
+        if (batch.isNewKey(i)) {
+          groups++;
+        }
+        lastKey = key.toString();
+        records++;
+      }
+    }
+    assertFalse(reader.next());
+    assertEquals(keys.size(), records);
+    assertEquals(numGroups, groups);
+    assertEquals(numGroups, counters.findCounter(TaskCounter.REDUCE_INPUT_GROUPS).getValue());
+    assertEquals(keys.size(), counters.findCounter(TaskCounter.REDUCE_INPUT_RECORDS).getValue());
+  }
+
+  @Test
+  public void testByteLimit() throws IOException {
+    List<byte[]> keys = new ArrayList<byte[]>();
+    List<byte[]> values = new ArrayList<byte[]>();
+    for (int k = 0; k < 10; k++) {
+      keys.add(serialize(new Text("key" + k)));
+      values.add(new byte[100]);
+    }
+    TezCounters counters = new TezCounters();
+    BatchedRawKeyValueReader reader = new BatchedRawKeyValueReader(
+        new ListIterator(keys, values), WritableComparator.get(Text.class), 1024, 50,
+        counters.findCounter(TaskCounter.REDUCE_INPUT_GROUPS),
+        counters.findCounter(TaskCounter.REDUCE_INPUT_RECORDS));
+    int batches = 0;
+    while (reader.next()) {
+      // records larger than the limit still go out, one per batch
+      assertEquals(1, reader.getCurrentBatch().size());
+      batches++;
+    }
+    assertEquals(10, batches);
+  }
+
+  private static byte[] serialize(org.apache.hadoop.io.Writable writable) throws IOException {
+    DataOutputBuffer out = new DataOutputBuffer();
+    writable.write(out);
+    byte[] bytes = new byte[out.getLength()];
+    System.arraycopy(out.getData(), 0, bytes, 0, bytes.length);
+    return bytes;
+  }
+
+  private static class ListIterator implements TezRawKeyValueIterator {
+    private final List<byte[]> keys;
+    private final List<byte[]> values;
+    private final DataInputBuffer key = new DataInputBuffer();
+    private final DataInputBuffer value = new DataInputBuffer();
+    private int index = -1;
+
+    ListIterator(List<byte[]> keys, List<byte[]> values) {
+      this.keys = keys;
+      this.values = values;
+    }
+
+    @Override
+    public DataInputBuffer getKey() throws IOException {
+      return key;
+    }
+
+    @Override
+    public DataInputBuffer getValue() throws IOException {
+      return value;
+    }
+
+    @Override
+    public boolean next() throws IOException {
+      if (++index >= keys.size()) {
+        return false;
+      }
+      // offset the records within the buffers, as merged segments are
+      byte[] k = new byte[keys.get(index).length + 3];
+      System.arraycopy(keys.get(index), 0, k, 3, k.length - 3);
+      key.reset(k, 3, k.length - 3);
+      value.reset(values.get(index), values.get(index).length);
+      return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+
+    @Override
+    public Progress getProgress() {
+      return null;
+    }
+  }
+}
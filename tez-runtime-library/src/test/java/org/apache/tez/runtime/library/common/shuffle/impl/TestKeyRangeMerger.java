@@ -0,0 +1,250 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.shuffle.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.tez.common.counters.GenericCounter;
+import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.common.sort.impl.IFile;
+import org.apache.tez.runtime.library.common.sort.impl.IFileInputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestKeyRangeMerger {
+
+  private static Configuration conf = new Configuration();
+  private static FileSystem localFs = null;
+  private static Path workDir = null;
+
+  static {
+    conf.set("fs.defaultFS", "file:///");
+    try {
+      localFs = FileSystem.getLocal(conf).getRaw();
+      workDir = new Path(
+          new Path(System.getProperty("test.build.data", "/tmp")),
+          TestKeyRangeMerger.class.getName())
+          .makeQualified(localFs.getUri(), localFs.getWorkingDirectory());
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Before
+  @After
+  public void cleanup() throws Exception {
+    localFs.delete(workDir, true);
+  }
+
+  @Test
+  public void testMergeByKeyRange() throws IOException {
+    Random random = new Random(17);
+    List<String> expected = new ArrayList<String>();
+    MergeManager manager = mock(MergeManager.class);
+    // A single byte of prefetch keeps one batch per range, so that the
+    // range mergers block on the consumer
+    KeyRangeMerger merger = createMerger(manager, 4, 1);
+
+    List<Path> files = new ArrayList<Path>();
+    for (int i = 0; i < 6; i++) {
+      Path file = new Path(workDir, "input" + i);
+      writeInput(file, i, 5000 + random.nextInt(5000), random, expected);
+      merger.addOnDisk(file);
+      files.add(file);
+    }
+    Path memoryFile = new Path(workDir, "memory");
+    long rawLength = writeInput(memoryFile, 6, 20000, random, expected);
+    byte[] data = readRecords(memoryFile, rawLength);
+    merger.addInMemory(new InputAttemptIdentifier(6, 0), data);
+    // an input with no records
+    Path emptyFile = new Path(workDir, "empty");
+    writeInput(emptyFile, 7, 0, random, expected);
+    merger.addOnDisk(emptyFile);
+    files.add(emptyFile);
+
+    merger.start();
+    assertEquals(4, merger.getNumRanges());
+
+    List<String> actual = readMerged(merger);
+    assertEquals(1.0f, merger.getProgress().get(), 0.0f);
+    merger.close();
+
+    Collections.sort(expected);
+    Collections.sort(actual);
+    assertEquals(expected, actual);
+    for (Path file : files) {
+      assertFalse(localFs.exists(file));
+    }
+    verify(manager).unreserve(data.length);
+    verify(manager).releasePrefetchMemory(1);
+  }
+
+  @Test
+  public void testFewerDistinctKeysThanRanges() throws IOException {
+    Random random = new Random(3);
+    List<String> expected = new ArrayList<String>();
+    KeyRangeMerger merger = createMerger(mock(MergeManager.class), 8, 1024);
+    for (int i = 0; i < 3; i++) {
+      Path file = new Path(workDir, "input" + i);
+      IFile.Writer writer = new IFile.Writer(conf, localFs, file, Text.class,
+          IntWritable.class, null, null, null);
+      for (int j = 0; j < 1000; j++) {
+        Text key = new Text(j < 500 ? "a" : "b");
+        writer.append(key, new IntWritable(j));
+        expected.add(key + "=" + j);
+      }
+      writer.close();
+      merger.addOnDisk(file);
+    }
+    merger.start();
+    assertTrue(merger.getNumRanges() <= 2);
+
+    int count = 0;
+    while (merger.next()) {
+      count++;
+    }
+    merger.close();
+    assertEquals(expected.size(), count);
+  }
+
+  @Test
+  public void testMergeFilesSampledWhileWriting() throws IOException {
+    Random random = new Random(5);
+    List<String> expected = new ArrayList<String>();
+    KeyRangeMerger merger = createMerger(mock(MergeManager.class), 4, 1024);
+    for (int i = 0; i < 4; i++) {
+      Path file = new Path(workDir, "merged" + i);
+      KeyRangeMerger.SampledWriter writer = new KeyRangeMerger.SampledWriter(
+          conf, localFs, file, Text.class, IntWritable.class, null);
+      writeRecords(writer, i, 40000, random, expected);
+      merger.addOnDisk(file, writer.getFileSamples());
+    }
+    // a sampled file with no records
+    Path emptyFile = new Path(workDir, "empty");
+    KeyRangeMerger.SampledWriter emptyWriter = new KeyRangeMerger.SampledWriter(
+        conf, localFs, emptyFile, Text.class, IntWritable.class, null);
+    emptyWriter.close();
+    merger.addOnDisk(emptyFile, emptyWriter.getFileSamples());
+
+    merger.start();
+    assertTrue(merger.getNumRanges() > 1);
+
+    List<String> actual = readMerged(merger);
+    merger.close();
+
+    Collections.sort(expected);
+    Collections.sort(actual);
+    assertEquals(expected, actual);
+  }
+
+  private KeyRangeMerger createMerger(MergeManager manager, int parallelism,
+      long prefetchBytes) {
+    return new KeyRangeMerger(manager, conf, localFs, Text.class,
+        IntWritable.class, WritableComparator.get(Text.class),
+        new Path(workDir, "tmp"), 10, parallelism, prefetchBytes, 4096,
+        new GenericCounter("records", "records"),
+        new GenericCounter("bytes", "bytes"), "test");
+  }
+
+  private long writeInput(Path file, int input, int numRecords, Random random,
+      List<String> expected) throws IOException {
+    IFile.Writer writer = new IFile.Writer(conf, localFs, file, Text.class,
+        IntWritable.class, null, null, null);
+    writeRecords(writer, input, numRecords, random, expected);
+    return writer.getRawLength();
+  }
+
+  private void writeRecords(IFile.Writer writer, int input, int numRecords,
+      Random random, List<String> expected) throws IOException {
+    List<Integer> keys = new ArrayList<Integer>();
+    for (int i = 0; i < numRecords; i++) {
+      keys.add(random.nextInt(50000));
+    }
+    Collections.sort(keys);
+    for (int i = 0; i < numRecords; i++) {
+      // fixed width, so that the text order matches the numeric one
+      Text key = new Text(String.format("%08d", keys.get(i)));
+      writer.append(key, new IntWritable(input * 100000 + i));
+      expected.add(key + "=" + (input * 100000 + i));
+    }
+    writer.close();
+  }
+
+  /**
+   * Read all the records of the merge, checking that they come in order.
+   */
+  private List<String> readMerged(KeyRangeMerger merger) throws IOException {
+    List<String> actual = new ArrayList<String>();
+    RawComparator comparator = WritableComparator.get(Text.class);
+    Text key = new Text();
+    IntWritable value = new IntWritable();
+    DataInputBuffer previous = new DataInputBuffer();
+    byte[] previousKey = null;
+    while (merger.next()) {
+      DataInputBuffer k = merger.getKey();
+      int keyLength = k.getLength() - k.getPosition();
+      if (previousKey != null) {
+        assertTrue("Out of order at " + actual.size(), comparator.compare(
+            previousKey, 0, previousKey.length, k.getData(), k.getPosition(),
+            keyLength) <= 0);
+      }
+      previousKey = new byte[keyLength];
+      System.arraycopy(k.getData(), k.getPosition(), previousKey, 0, keyLength);
+      previous.reset(previousKey, keyLength);
+      key.readFields(previous);
+      value.readFields(merger.getValue());
+      actual.add(key + "=" + value);
+    }
+    return actual;
+  }
+
+  private byte[] readRecords(Path file, long rawLength) throws IOException {
+    byte[] data = new byte[(int) rawLength];
+    FSDataInputStream in = localFs.open(file);
+    try {
+      // without the checksum header and trailer
+      IOUtils.readFully(new IFileInputStream(in, localFs.getFileStatus(file).getLen()), data, 0,
+          data.length);
+    } finally {
+      in.close();
+    }
+    return data;
+  }
+}
@@ -0,0 +1,301 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.shuffle.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalDirAllocator;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.tez.common.TezJobConfig;
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.runtime.api.TezInputContext;
+import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.common.combine.Combiner;
+import org.apache.tez.runtime.library.common.sort.impl.IFile;
+import org.apache.tez.runtime.library.common.sort.impl.IFileInputStream;
+import org.apache.tez.runtime.library.common.sort.impl.TezRawKeyValueIterator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestMergeManager {
+
+  private static final int NUM_KEYS = 1000;
+
+  private static Configuration conf = new Configuration();
+  private static FileSystem localFs = null;
+  private static Path workDir = null;
+
+  static {
+    conf.set("fs.defaultFS", "file:///");
+    try {
+      localFs = FileSystem.getLocal(conf).getRaw();
+      workDir = new Path(
+          new Path(System.getProperty("test.build.data", "/tmp")),
+          TestMergeManager.class.getName())
+          .makeQualified(localFs.getUri(), localFs.getWorkingDirectory());
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Before
+  @After
+  public void cleanup() throws Exception {
+    localFs.delete(workDir, true);
+  }
+
+  @Test(timeout = 60000)
+  public void testCombineInMerges() throws Throwable {
+    int numInputs = 40;
+    TezCounters counters = new TezCounters();
+    TreeMap<String, Long> sums = new TreeMap<String, Long>();
+    int records = mergeInputs(numInputs, new IntWritable(1), new SumCombiner(),
+        counters, sums);
+
+    assertEquals(NUM_KEYS, sums.size());
+    for (Long sum : sums.values()) {
+      assertEquals(numInputs, sum.longValue());
+    }
+    long combineIn = counters.findCounter(
+        TaskCounter.SHUFFLE_MERGE_COMBINE_INPUT_RECORDS).getValue();
+    long combineOut = counters.findCounter(
+        TaskCounter.SHUFFLE_MERGE_COMBINE_OUTPUT_RECORDS).getValue();
+    assertTrue("Intermediate merges did not combine", combineIn > 0);
+    assertTrue(combineOut < combineIn);
+    // Every record fed to the combiner and not written out is one less for
+    // the final merge
+    assertEquals((long) numInputs * NUM_KEYS - (combineIn - combineOut), records);
+  }
+
+  @Test(timeout = 60000)
+  public void testCombinedOutputExceedingReservation() throws Throwable {
+    // The combiner pads the sums, so its output does not fit in the memory
+    // of the inputs and the Memory-to-Memory merges fall back to merging
+    // without it
+    int numInputs = 40;
+    TezCounters counters = new TezCounters();
+    TreeMap<String, Long> sums = new TreeMap<String, Long>();
+    int records = mergeInputs(numInputs, new Text("1"), new PaddingSumCombiner(),
+        counters, sums);
+
+    assertEquals(NUM_KEYS, sums.size());
+    for (Long sum : sums.values()) {
+      assertEquals(numInputs, sum.longValue());
+    }
+    long combineIn = counters.findCounter(
+        TaskCounter.SHUFFLE_MERGE_COMBINE_INPUT_RECORDS).getValue();
+    long combineOut = counters.findCounter(
+        TaskCounter.SHUFFLE_MERGE_COMBINE_OUTPUT_RECORDS).getValue();
+    // Abandoned combines are not counted
+    assertEquals((long) numInputs * NUM_KEYS - (combineIn - combineOut), records);
+  }
+
+  @Test(timeout = 60000)
+  public void testPrefetchMemoryWithinLimit() throws Throwable {
+    Configuration jobConf = new Configuration(conf);
+    jobConf.set(TezJobConfig.LOCAL_DIRS, workDir.toString());
+    jobConf.setInt(TezJobConfig.TEZ_RUNTIME_SHUFFLE_FINAL_MERGE_PARALLELISM, 4);
+    jobConf.setLong(TezJobConfig.TEZ_RUNTIME_SHUFFLE_FINAL_MERGE_PREFETCH_BYTES, 1L << 30);
+    long memory = 64 << 20;
+    TezCounters counters = new TezCounters();
+    MergeManager merger = createMergeManager(jobConf, counters, memory, null);
+
+    // The prefetch of all ranges is capped by the shuffle memory
+    long reserved = merger.reservePrefetchMemory();
+    assertTrue("reserved: " + reserved, reserved <= memory
+        && reserved >= 4 * KeyRangeMerger.BATCH_SIZE);
+    // Nothing is left, but every range gets one batch
+    assertEquals(4 * KeyRangeMerger.BATCH_SIZE, merger.reservePrefetchMemory());
+    merger.releasePrefetchMemory(4 * KeyRangeMerger.BATCH_SIZE);
+    merger.releasePrefetchMemory(reserved);
+    assertEquals(reserved, merger.reservePrefetchMemory());
+    merger.releasePrefetchMemory(reserved);
+  }
+
+  private MergeManager createMergeManager(Configuration jobConf, TezCounters counters,
+      long memory, Combiner combiner) throws IOException {
+    TezInputContext inputContext = mock(TezInputContext.class);
+    doReturn(counters).when(inputContext).getCounters();
+    doReturn("source").when(inputContext).getSourceVertexName();
+    doReturn("attempt_test").when(inputContext).getUniqueIdentifier();
+    doReturn(memory).when(inputContext).getTotalMemoryAvailableToTask();
+    return new MergeManager(jobConf, FileSystem.getLocal(jobConf),
+        new LocalDirAllocator(TezJobConfig.LOCAL_DIRS), inputContext, combiner,
+        counters.findCounter(TaskCounter.SPILLED_RECORDS),
+        counters.findCounter(TaskCounter.COMBINE_INPUT_RECORDS),
+        counters.findCounter(TaskCounter.MERGED_MAP_OUTPUTS),
+        new ExceptionReporter() {
+          @Override
+          public void reportException(Throwable t) {
+            throw new RuntimeException(t);
+          }
+        }, MergeManager.getInitialMemoryRequirement(jobConf, memory), null, false, 0);
+  }
+
+  /**
+   * Shuffles numInputs inputs of NUM_KEYS records with the given value into a
+   * MergeManager which merges in memory, and sums the merged values per key.
+   * 
+   * @return the number of records of the final merge
+   */
+  private int mergeInputs(int numInputs, Writable one, Combiner combiner,
+      TezCounters counters, Map<String, Long> sums) throws Throwable {
+    Configuration jobConf = new Configuration(conf);
+    jobConf.set(TezJobConfig.LOCAL_DIRS, workDir.toString());
+    jobConf.set(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_INPUT_KEY_CLASS, Text.class.getName());
+    jobConf.set(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_INPUT_VALUE_CLASS,
+        one.getClass().getName());
+    jobConf.setBoolean(TezJobConfig.TEZ_RUNTIME_SHUFFLE_ENABLE_MEMTOMEM, true);
+    jobConf.setBoolean(TezJobConfig.TEZ_RUNTIME_SHUFFLE_MERGE_COMBINE_ENABLED, true);
+    jobConf.setInt(TezJobConfig.TEZ_RUNTIME_SHUFFLE_MEMTOMEM_SEGMENTS, 4);
+    jobConf.setInt(TezJobConfig.TEZ_RUNTIME_IO_SORT_FACTOR, 3);
+
+    MergeManager merger = createMergeManager(jobConf, counters, 200 * 1024, combiner);
+    merger.configureAndStart();
+
+    for (int i = 0; i < numInputs; i++) {
+      DataOutputBuffer data = new DataOutputBuffer();
+      IFile.Writer writer = new IFile.Writer(jobConf, new FSDataOutputStream(data, null),
+          Text.class, one.getClass(), null, null, null);
+      for (int k = 0; k < NUM_KEYS; k++) {
+        writer.append(new Text(String.format("key%05d", k)), one);
+      }
+      writer.close();
+      // the fetchers copy the records without the checksum header and trailer
+      int length = (int) writer.getRawLength();
+      byte[] records = new byte[length];
+      IOUtils.readFully(new IFileInputStream(new ByteArrayInputStream(data.getData(), 0,
+          data.getLength()), data.getLength()), records, 0, length);
+      InputAttemptIdentifier attempt = new InputAttemptIdentifier(i, 0);
+      MapOutput mapOutput = merger.reserve(attempt, length, 0);
+      while (mapOutput.getType() == MapOutput.Type.WAIT) {
+        merger.waitForInMemoryMerge();
+        mapOutput = merger.reserve(attempt, length, 0);
+      }
+      if (mapOutput.getType() == MapOutput.Type.MEMORY) {
+        System.arraycopy(records, 0, mapOutput.getMemory(), 0, length);
+      } else {
+        mapOutput.getDisk().write(records, 0, length);
+        mapOutput.getDisk().close();
+      }
+      mapOutput.commit();
+    }
+
+    TezRawKeyValueIterator iterator = merger.close();
+    Text key = new Text();
+    Writable value = ReflectionUtils.newInstance(one.getClass(), jobConf);
+    int records = 0;
+    while (iterator.next()) {
+      key.readFields(iterator.getKey());
+      value.readFields(iterator.getValue());
+      Long sum = sums.get(key.toString());
+      sums.put(key.toString(), (sum == null ? 0 : sum) + toLong(value));
+      records++;
+    }
+    iterator.close();
+    return records;
+  }
+
+  private static long toLong(Writable value) {
+    if (value instanceof IntWritable) {
+      return ((IntWritable) value).get();
+    }
+    return Long.parseLong(value.toString());
+  }
+
+  /**
+   * Sums the IntWritable values of each Text key.
+   */
+  private static class SumCombiner implements Combiner {
+    @Override
+    public void combine(TezRawKeyValueIterator rawIter, IFile.Writer writer)
+        throws InterruptedException, IOException {
+      Text key = new Text();
+      Text current = null;
+      IntWritable value = new IntWritable();
+      int sum = 0;
+      while (rawIter.next()) {
+        DataInputBuffer keyBuffer = rawIter.getKey();
+        key.readFields(keyBuffer);
+        value.readFields(rawIter.getValue());
+        if (current != null && !current.equals(key)) {
+          writer.append(current, new IntWritable(sum));
+          sum = 0;
+        }
+        if (current == null || !current.equals(key)) {
+          current = new Text(key);
+        }
+        sum += value.get();
+      }
+      if (current != null) {
+        writer.append(current, new IntWritable(sum));
+      }
+    }
+  }
+
+  /**
+   * Sums the Text encoded values of each Text key, and writes the sums padded
+   * to much more than the size of an input record.
+   */
+  private static class PaddingSumCombiner implements Combiner {
+    @Override
+    public void combine(TezRawKeyValueIterator rawIter, IFile.Writer writer)
+        throws InterruptedException, IOException {
+      Text key = new Text();
+      Text current = null;
+      Text value = new Text();
+      long sum = 0;
+      while (rawIter.next()) {
+        key.readFields(rawIter.getKey());
+        value.readFields(rawIter.getValue());
+        if (current != null && !current.equals(key)) {
+          writer.append(current, new Text(String.format("%064d", sum)));
+          sum = 0;
+        }
+        if (current == null || !current.equals(key)) {
+          current = new Text(key);
+        }
+        sum += Long.parseLong(value.toString());
+      }
+      if (current != null) {
+        writer.append(current, new Text(String.format("%064d", sum)));
+      }
+    }
+  }
+}
@@ -0,0 +1,261 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.shuffle.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.tez.common.TezJobConfig;
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.runtime.api.Event;
+import org.apache.tez.runtime.api.TezInputContext;
+import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.common.shuffle.impl.MapOutput.Type;
+import org.junit.Test;
+
+public class TestShuffleScheduler {
+
+  @Test
+  public void testFastHostsFirst() throws Exception {
+    ShuffleScheduler scheduler = createScheduler(new Configuration(), 5);
+    scheduler.addKnownMapOutput("a", 0, "http://a:80/", input(0));
+    scheduler.addKnownMapOutput("b", 0, "http://b:80/", input(1));
+    MapHost first = scheduler.getHost();
+    MapHost second = scheduler.getHost();
+    scheduler.getMapsForHost(first);
+    scheduler.getMapsForHost(second);
+    first.getHealth().fetchSucceeded(1000, 1000);
+    second.getHealth().fetchSucceeded(100000, 1000);
+    scheduler.freeHost(first);
+    scheduler.freeHost(second);
+
+    scheduler.addKnownMapOutput(first.getHostName(), 0, "http://x:80/", input(2));
+    scheduler.addKnownMapOutput(second.getHostName(), 0, "http://x:80/", input(3));
+    scheduler.addKnownMapOutput("c", 0, "http://c:80/", input(4));
+    // hosts without observations are measured first
+    assertEquals("c", scheduler.getHost().getHostName());
+    assertEquals(second.getHostName(), scheduler.getHost().getHostName());
+    assertEquals(first.getHostName(), scheduler.getHost().getHostName());
+    scheduler.close();
+  }
+
+  @Test(timeout = 20000)
+  public void testPenalizedHostQueuedOnce() throws Exception {
+    final ShuffleScheduler scheduler = createScheduler(new Configuration(), 5);
+    scheduler.addKnownMapOutput("a", 0, "http://a:80/", input(0));
+    MapHost host = scheduler.getHost();
+    scheduler.getMapsForHost(host);
+    scheduler.copyFailed(input(0), host, false, true);
+    scheduler.putBackKnownMapOutput(host, input(0));
+    // The referee finds the host pending when its penalty expires, before
+    // the fetcher frees it
+    while (host.getState() != MapHost.State.PENDING) {
+      Thread.sleep(100);
+    }
+    scheduler.freeHost(host);
+    assertEquals(host, scheduler.getHost());
+
+    // The host was queued once, so no other fetcher gets it
+    final AtomicReference<MapHost> second = new AtomicReference<MapHost>();
+    Thread fetcher = new Thread() {
+      @Override
+      public void run() {
+        try {
+          second.set(scheduler.getHost());
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    };
+    fetcher.start();
+    fetcher.join(500);
+    assertTrue(fetcher.isAlive());
+    fetcher.interrupt();
+    fetcher.join();
+    assertNull(second.get());
+    scheduler.close();
+  }
+
+  @Test(timeout = 10000)
+  public void testHedgeStraggler() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setBoolean(TezJobConfig.TEZ_RUNTIME_SHUFFLE_HEDGED_FETCH_ENABLED, true);
+    conf.setFloat(TezJobConfig.TEZ_RUNTIME_SHUFFLE_HEDGED_FETCH_TAIL_PERCENT, 1.0f);
+    ShuffleScheduler scheduler = createScheduler(conf, 2);
+    scheduler.addKnownMapOutput("a", 0, "http://a:80/", input(0));
+    MapHost fast = scheduler.getHost();
+    scheduler.getMapsForHost(fast);
+    scheduler.copySucceeded(input(0), fast, 100, 100, 1, mockOutput());
+    scheduler.freeHost(fast);
+
+    scheduler.addKnownMapOutput("b", 0, "http://b:80/", input(1));
+    MapHost slow = scheduler.getHost();
+    assertEquals(Collections.singletonList(input(1)), scheduler.getMapsForHost(slow));
+
+    // No host is pending, so the next fetcher duplicates the straggler
+    MapHost hedge = scheduler.getHost();
+    assertNotNull(hedge.getHedgedHost());
+    assertTrue(slow.isHedged());
+    assertEquals(Collections.singletonList(input(1)), scheduler.getMapsForHost(hedge));
+    MapOutput hedgeOutput = mockOutput();
+    scheduler.copySucceeded(input(1), hedge, 100, 100, 1, hedgeOutput);
+    scheduler.freeHost(hedge);
+    assertTrue(scheduler.isDone());
+
+    // The straggler completes later, its copy is released
+    MapOutput slowOutput = mockOutput();
+    scheduler.copySucceeded(input(1), slow, 100, 100, 5000, slowOutput);
+    scheduler.freeHost(slow);
+    verify(hedgeOutput).commit();
+    verify(slowOutput, never()).commit();
+    verify(slowOutput).abort();
+    scheduler.close();
+  }
+
+  @Test(timeout = 10000)
+  public void testStragglerFailsAfterHedgeWins() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setBoolean(TezJobConfig.TEZ_RUNTIME_SHUFFLE_HEDGED_FETCH_ENABLED, true);
+    conf.setFloat(TezJobConfig.TEZ_RUNTIME_SHUFFLE_HEDGED_FETCH_TAIL_PERCENT, 1.0f);
+    ShuffleScheduler scheduler = createScheduler(conf, 2);
+    scheduler.addKnownMapOutput("a", 0, "http://a:80/", input(0));
+    MapHost fast = scheduler.getHost();
+    scheduler.getMapsForHost(fast);
+    scheduler.copySucceeded(input(0), fast, 100, 100, 1, mockOutput());
+    scheduler.freeHost(fast);
+
+    scheduler.addKnownMapOutput("b", 0, "http://b:80/", input(1));
+    MapHost slow = scheduler.getHost();
+    scheduler.getMapsForHost(slow);
+    MapHost hedge = scheduler.getHost();
+    assertEquals(slow, hedge.getHedgedHost());
+    scheduler.getMapsForHost(hedge);
+    scheduler.copySucceeded(input(1), hedge, 100, 100, 1, mockOutput());
+    scheduler.freeHost(hedge);
+    assertTrue(scheduler.isDone());
+
+    // The straggler fails after the hedge completed the input
+    scheduler.copyFailed(input(1), slow, true, false);
+    scheduler.freeHost(slow);
+    assertFalse(slow.getState() == MapHost.State.PENALIZED);
+    assertEquals(0, counters.findCounter("test", "failed").getValue());
+    verify(inputContext, never()).sendEvents(anyListOf(Event.class));
+    verify(shuffle, never()).reportException(any(Throwable.class));
+    scheduler.close();
+  }
+
+  @Test(timeout = 60000)
+  public void testConcurrentFetchers() throws Exception {
+    final int numInputs = 20000;
+    final int numHosts = 100;
+    final ShuffleScheduler scheduler = createScheduler(new Configuration(), numInputs);
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    List<Thread> fetchers = new ArrayList<Thread>();
+    for (int i = 0; i < 64; i++) {
+      Thread fetcher = new Thread() {
+        @Override
+        public void run() {
+          try {
+            while (true) {
+              MapHost host = scheduler.getHost();
+              for (InputAttemptIdentifier id : scheduler.getMapsForHost(host)) {
+                scheduler.copySucceeded(id, host, 10, 10, 1, null);
+              }
+              scheduler.freeHost(host);
+            }
+          } catch (InterruptedException e) {
+            return;
+          } catch (Throwable t) {
+            error.compareAndSet(null, t);
+          }
+        }
+      };
+      fetcher.start();
+      fetchers.add(fetcher);
+    }
+    // Inputs keep arriving while the fetchers run; every tenth one is also
+    // reported by a second attempt on another host, and both get fetched
+    for (int i = 0; i < numInputs; i++) {
+      scheduler.addKnownMapOutput("host" + (i % numHosts), 0, "http://host:80/",
+          input(i));
+      if (i % 10 == 0) {
+        scheduler.addKnownMapOutput("host" + ((i + 1) % numHosts), 0, "http://host:80/",
+            new InputAttemptIdentifier(i, 1, "attempt_" + i + "_1"));
+      }
+    }
+    while (!scheduler.waitUntilDone(100)) {
+      if (error.get() != null) {
+        break;
+      }
+    }
+    for (Thread fetcher : fetchers) {
+      fetcher.interrupt();
+      fetcher.join();
+    }
+    scheduler.close();
+    if (error.get() != null) {
+      throw new AssertionError(error.get());
+    }
+    // Each input is claimed exactly once
+    assertEquals(numInputs, counters.findCounter(TaskCounter.NUM_SKIPPED_INPUTS).getValue());
+  }
+
+  private static InputAttemptIdentifier input(int index) {
+    return new InputAttemptIdentifier(index, 0, "attempt_" + index);
+  }
+
+  private static MapOutput mockOutput() {
+    MapOutput output = mock(MapOutput.class);
+    doReturn(Type.MEMORY).when(output).getType();
+    return output;
+  }
+
+  private TezCounters counters;
+  private TezInputContext inputContext;
+  private Shuffle shuffle;
+
+  private ShuffleScheduler createScheduler(Configuration conf, int numInputs) {
+    inputContext = mock(TezInputContext.class);
+    shuffle = mock(Shuffle.class);
+    counters = new TezCounters();
+    doReturn(counters).when(inputContext).getCounters();
+    doReturn("source").when(inputContext).getSourceVertexName();
+    return new ShuffleScheduler(inputContext, conf, numInputs,
+        shuffle, mock(ShuffleClientMetrics.class),
+        counters.findCounter("test", "shuffled"), counters.findCounter("test", "bytes"),
+        counters.findCounter("test", "decompressed"), counters.findCounter("test", "failed"),
+        counters.findCounter("test", "disk"), counters.findCounter("test", "memory"));
+  }
+}
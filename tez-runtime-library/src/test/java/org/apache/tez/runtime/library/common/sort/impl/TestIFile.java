@@ -19,21 +19,29 @@
 package org.apache.tez.runtime.library.common.sort.impl;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.ChecksumException;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.DefaultCodec;
 import org.apache.hadoop.io.serializer.Deserializer;
 import org.apache.hadoop.io.serializer.SerializationFactory;
+import org.apache.tez.common.TezJobConfig;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
 import org.apache.tez.runtime.library.common.shuffle.impl.InMemoryReader;
 import org.apache.tez.runtime.library.common.sort.impl.IFile.Reader;
@@ -149,6 +157,142 @@ public class TestIFile {
     LOG.info("Read: " + bytes.length + " bytes");
   }
 
+  @Test
+  public void testChecksumVersions() throws IOException {
+    Path outputPath = new Path(workDir, "ifile.out");
+    List<KVPair> data = KVDataGen.generateTestData(false);
+    writeTestFile(outputPath, false, data);
+
+    for (int version : new int[] { IFileChecksums.VERSION_1, IFileChecksums.VERSION_2 }) {
+      byte[] file = rewrite(outputPath, version);
+      if (version != IFileChecksums.VERSION_1) {
+        assertEquals(version, file[IFileChecksums.MAGIC.length]);
+      }
+      IFile.Reader reader = new IFile.Reader(new ByteArrayInputStream(file), file.length,
+          null, null, null, false, 0, -1);
+      assertEquals(version == IFileChecksums.VERSION_1 ? 0 : IFileChecksums.HEADER_LENGTH,
+          reader.getHeaderLength());
+      readAndVerify(reader, data);
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testConfiguredWriteVersion() throws IOException {
+    Path outputPath = new Path(workDir, "ifile.out");
+    List<KVPair> data = KVDataGen.generateTestData(false);
+
+    // Written readable by all readers unless configured otherwise
+    writeTestFile(defaultConf, outputPath, false, data);
+    IFile.Reader reader = new IFile.Reader(localFs, outputPath, null, null, null, false, 0, -1);
+    assertEquals(0, reader.getHeaderLength());
+    readAndVerify(reader, data);
+    reader.close();
+
+    Configuration conf = new Configuration(defaultConf);
+    conf.setInt(TezJobConfig.TEZ_RUNTIME_IFILE_CHECKSUM_WRITE_VERSION, IFileChecksums.VERSION_2);
+    writeTestFile(conf, outputPath, false, data);
+    reader = new IFile.Reader(localFs, outputPath, null, null, null, false, 0, -1);
+    assertEquals(IFileChecksums.HEADER_LENGTH, reader.getHeaderLength());
+    readAndVerify(reader, data);
+    reader.close();
+
+    conf.setInt(TezJobConfig.TEZ_RUNTIME_IFILE_CHECKSUM_WRITE_VERSION, 3);
+    try {
+      writeTestFile(conf, outputPath, false, data);
+      fail("Unknown checksum version accepted");
+    } catch (IllegalArgumentException e) {
+    }
+  }
+
+  @Test
+  public void testRepeatedKeysInMemReaderVersion2() throws IOException {
+    Path outputPath = new Path(workDir, "ifile.out");
+    List<KVPair> data = KVDataGen.generateTestData(true);
+    Configuration conf = new Configuration(defaultConf);
+    conf.setInt(TezJobConfig.TEZ_RUNTIME_IFILE_CHECKSUM_WRITE_VERSION, IFileChecksums.VERSION_2);
+    Writer writer = writeTestFile(conf, outputPath, false, data);
+
+    // As the fetchers do, strip the checksum header and trailer
+    FSDataInputStream inStream = localFs.open(outputPath);
+    IFileInputStream checksumIn = new IFileInputStream(inStream,
+        localFs.getFileStatus(outputPath).getLen());
+    byte[] bytes = new byte[(int) writer.getRawLength()];
+    IOUtils.readFully(checksumIn, bytes, 0, bytes.length);
+    assertEquals(IFileChecksums.HEADER_LENGTH, checksumIn.getHeaderLength());
+    checksumIn.close();
+
+    InMemoryReader inMemReader = new InMemoryReader(null, new InputAttemptIdentifier(0, 0),
+        bytes, 0, bytes.length);
+    readAndVerify(inMemReader, data);
+  }
+
+  @Test
+  public void testCompressedVersions() throws IOException {
+    Path outputPath = new Path(workDir, "ifile.out");
+    List<KVPair> data = KVDataGen.generateTestData(false);
+    DefaultCodec codec = new DefaultCodec();
+    codec.setConf(defaultConf);
+
+    for (int version : new int[] { IFileChecksums.VERSION_1, IFileChecksums.VERSION_2 }) {
+      Configuration conf = new Configuration(defaultConf);
+      conf.setInt(TezJobConfig.TEZ_RUNTIME_IFILE_CHECKSUM_WRITE_VERSION, version);
+      IFile.Writer writer = new IFile.Writer(conf, localFs, outputPath,
+          Text.class, IntWritable.class, codec, null, null);
+      for (KVPair kvp : data) {
+        writer.append(kvp.getKey(), kvp.getvalue());
+      }
+      writer.close();
+
+      // The zlib output of a version 1 stream is not taken for a header
+      IFile.Reader reader = new IFile.Reader(localFs, outputPath, codec, null, null, false,
+          0, -1);
+      assertEquals(version == IFileChecksums.VERSION_1 ? 0 : IFileChecksums.HEADER_LENGTH,
+          reader.getHeaderLength());
+      readAndVerify(reader, data);
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testChecksumMismatch() throws IOException {
+    Path outputPath = new Path(workDir, "ifile.out");
+    List<KVPair> data = KVDataGen.generateTestData(false);
+    writeTestFile(outputPath, false, data);
+
+    for (int version : new int[] { IFileChecksums.VERSION_1, IFileChecksums.VERSION_2 }) {
+      byte[] file = rewrite(outputPath, version);
+      file[file.length / 2] ^= 0x1;
+      IFileInputStream in = new IFileInputStream(new ByteArrayInputStream(file), file.length);
+      byte[] buffer = new byte[1024];
+      try {
+        while (in.read(buffer, 0, buffer.length) >= 0) {
+        }
+        fail("Checksum error not detected in version " + version);
+      } catch (ChecksumException e) {
+      }
+    }
+  }
+
+  /**
+   * @return the records of an IFile, checksummed with the given version
+   */
+  private byte[] rewrite(Path path, int version) throws IOException {
+    long length = localFs.getFileStatus(path).getLen();
+    FSDataInputStream in = localFs.open(path);
+    IFileInputStream checksumIn = new IFileInputStream(in, length);
+    byte[] records = new byte[(int) (length - checksumIn.getHeaderLength()
+        - IFileChecksums.CHECKSUM_SIZE)];
+    IOUtils.readFully(checksumIn, records, 0, records.length);
+    checksumIn.close();
+
+    DataOutputBuffer out = new DataOutputBuffer();
+    IFileOutputStream checksumOut = new IFileOutputStream(out, version);
+    checksumOut.write(records);
+    checksumOut.close();
+    return Arrays.copyOf(out.getData(), out.getLength());
+  }
+
   private void readAndVerify(Reader reader, List<KVPair> data)
       throws IOException {
     Text readKey = new Text();
@@ -186,8 +330,13 @@ public class TestIFile {
 
   private Writer writeTestFile(Path outputPath, boolean useRle, List<KVPair> data)
       throws IOException {
+    return writeTestFile(defaultConf, outputPath, useRle, data);
+  }
+
+  private Writer writeTestFile(Configuration conf, Path outputPath, boolean useRle,
+      List<KVPair> data) throws IOException {
 
-    IFile.Writer writer = new IFile.Writer(defaultConf, localFs, outputPath,
+    IFile.Writer writer = new IFile.Writer(conf, localFs, outputPath,
         Text.class, IntWritable.class, null, null, null);
     writer.setRLE(useRle);
 
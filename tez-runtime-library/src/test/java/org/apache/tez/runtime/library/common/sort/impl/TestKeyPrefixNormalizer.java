@@ -0,0 +1,165 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.sort.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.tez.common.TezJobConfig;
+import org.junit.Test;
+
+public class TestKeyPrefixNormalizer {
+
+  private final Random random = new Random(0x5eed);
+
+  @Test
+  public void testUnsupported() {
+    Configuration conf = createConf(Text.class);
+    conf.setBoolean(TezJobConfig.TEZ_RUNTIME_SORT_KEY_PREFIX_ENABLED, false);
+    assertNull(KeyPrefixNormalizer.getIntermediateOutputKeyNormalizer(conf));
+
+    assertNull(KeyPrefixNormalizer.getIntermediateOutputKeyNormalizer(
+        createConf(NullWritable.class)));
+
+    conf = createConf(Text.class);
+    conf.set(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_OUTPUT_KEY_COMPARATOR_CLASS,
+        Text.Comparator.class.getName());
+    assertNull(KeyPrefixNormalizer.getIntermediateOutputKeyNormalizer(conf));
+  }
+
+  @Test
+  public void testText() throws IOException {
+    String[] keys = new String[2000];
+    for (int i = 0; i < keys.length; i++) {
+      StringBuilder sb = new StringBuilder("key_");
+      int len = random.nextInt(12);
+      for (int j = 0; j < len; j++) {
+        // include multi-byte characters
+        sb.append((char) (random.nextBoolean()
+            ? 'a' + random.nextInt(4) : 0xe0 + random.nextInt(4)));
+      }
+      keys[i] = sb.toString();
+    }
+    Writable[] writables = new Writable[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      writables[i] = new Text(keys[i]);
+    }
+    verify(Text.class, writables);
+  }
+
+  @Test
+  public void testBytesWritable() throws IOException {
+    Writable[] writables = new Writable[2000];
+    for (int i = 0; i < writables.length; i++) {
+      byte[] bytes = new byte[random.nextInt(12)];
+      for (int j = 0; j < bytes.length; j++) {
+        bytes[j] = (byte) (random.nextInt(4) - 2);
+      }
+      writables[i] = new BytesWritable(bytes);
+    }
+    verify(BytesWritable.class, writables);
+  }
+
+  @Test
+  public void testIntWritable() throws IOException {
+    Writable[] writables = new Writable[2000];
+    for (int i = 0; i < writables.length; i++) {
+      writables[i] = new IntWritable(i < 4 ? (i % 2 == 0 ? Integer.MIN_VALUE : Integer.MAX_VALUE)
+          : random.nextInt());
+    }
+    verify(IntWritable.class, writables);
+  }
+
+  @Test
+  public void testLongWritable() throws IOException {
+    Writable[] writables = new Writable[2000];
+    for (int i = 0; i < writables.length; i++) {
+      writables[i] = new LongWritable(i < 4 ? (i % 2 == 0 ? Long.MIN_VALUE : Long.MAX_VALUE)
+          : random.nextLong() >> random.nextInt(64));
+    }
+    verify(LongWritable.class, writables);
+  }
+
+  /**
+   * Check that the prefix order never contradicts the comparator, and that
+   * both prefix variants agree.
+   */
+  private void verify(Class<?> keyClass, Writable[] keys) throws IOException {
+    KeyPrefixNormalizer normalizer =
+        KeyPrefixNormalizer.getIntermediateOutputKeyNormalizer(createConf(keyClass));
+    assertNotNull(normalizer);
+    RawComparator comparator =
+        WritableComparator.get(keyClass.asSubclass(WritableComparable.class));
+
+    byte[][] serialized = new byte[keys.length][];
+    long[] prefixes = new long[keys.length];
+    DataOutputBuffer out = new DataOutputBuffer();
+    for (int i = 0; i < keys.length; i++) {
+      out.reset();
+      // leading garbage to check offsets are honoured
+      out.write(new byte[] { 1, 2, 3 });
+      keys[i].write(out);
+      serialized[i] = new byte[out.getLength()];
+      System.arraycopy(out.getData(), 0, serialized[i], 0, out.getLength());
+      int len = out.getLength() - 3;
+      prefixes[i] = normalizer.getPrefix(serialized[i], 3, len);
+      assertEquals(prefixes[i],
+          normalizer.getPrefix(ByteBuffer.wrap(serialized[i]), 3, len));
+    }
+
+    for (int i = 0; i < keys.length; i++) {
+      for (int j = 0; j < 50; j++) {
+        int k = random.nextInt(keys.length);
+        int prefixCmp = KeyPrefixNormalizer.compare(prefixes[i], prefixes[k]);
+        int keyCmp = comparator.compare(serialized[i], 3, serialized[i].length - 3,
+            serialized[k], 3, serialized[k].length - 3);
+        if (prefixCmp != 0) {
+          assertTrue(keys[i] + " vs " + keys[k],
+              Integer.signum(prefixCmp) == Integer.signum(keyCmp));
+        } else if (keyCmp == 0) {
+          assertEquals(0, prefixCmp);
+        }
+      }
+    }
+  }
+
+  private Configuration createConf(Class<?> keyClass) {
+    Configuration conf = new Configuration(false);
+    conf.setBoolean(TezJobConfig.TEZ_RUNTIME_SORT_KEY_PREFIX_ENABLED, true);
+    conf.set(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_OUTPUT_KEY_CLASS, keyClass.getName());
+    return conf;
+  }
+}
@@ -0,0 +1,140 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.sort.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestLoserTree {
+
+  @Test
+  public void testMerge() {
+    runTest(1, 1000, 1000);
+    runTest(2, 1000, 1000);
+    runTest(7, 5000, 1000000);
+    runTest(64, 20000, 1000000);
+    runTest(100, 20000, 1000000);
+  }
+
+  @Test
+  public void testTiesAreStable() {
+    // few distinct values, so sources are interleaved by their index
+    runTest(13, 10000, 4);
+  }
+
+  @Test
+  public void testEmptySources() {
+    CursorTree tree = new CursorTree();
+    tree.initialize(new ArrayList<Cursor>());
+    assertEquals(0, tree.size());
+    assertNull(tree.top());
+    assertNull(tree.pop());
+  }
+
+  private void runTest(int k, int n, int bound) {
+    Random random = new Random(k * 31 + n);
+    int[][] data = new int[k][];
+    int[] lengths = new int[k];
+    for (int i = 0; i < n; i++) {
+      lengths[random.nextInt(k)]++;
+    }
+    List<Cursor> cursors = new ArrayList<Cursor>();
+    for (int i = 0; i < k; i++) {
+      data[i] = new int[lengths[i]];
+      for (int j = 0; j < lengths[i]; j++) {
+        data[i][j] = random.nextInt(bound);
+      }
+      Arrays.sort(data[i]);
+      if (lengths[i] > 0) {
+        cursors.add(new Cursor(cursors.size(), data[i]));
+      }
+    }
+
+    CursorTree tree = new CursorTree();
+    tree.initialize(cursors);
+    int built = tree.comparisons;
+    tree.comparisons = 0;
+
+    int count = 0;
+    int lastValue = Integer.MIN_VALUE;
+    int lastSource = -1;
+    while (tree.size() > 0) {
+      Cursor top = tree.top();
+      int value = top.current();
+      assertTrue("Out of order at " + count, value >= lastValue);
+      if (value == lastValue) {
+        assertTrue("Unstable at " + count, top.source >= lastSource);
+      }
+      lastValue = value;
+      lastSource = top.source;
+      count++;
+      if (top.advance()) {
+        tree.adjustTop();
+      } else {
+        tree.pop();
+      }
+    }
+    assertEquals(n, count);
+
+    int sources = cursors.size();
+    int depth = 32 - Integer.numberOfLeadingZeros(Math.max(1, sources - 1));
+    assertTrue("Build took " + built + " comparisons", built <= sources);
+    assertTrue("Merge took " + tree.comparisons + " comparisons",
+        tree.comparisons <= (long) n * depth);
+  }
+
+  private static class Cursor {
+    final int source;
+    final int[] values;
+    int position;
+
+    Cursor(int source, int[] values) {
+      this.source = source;
+      this.values = values;
+    }
+
+    int current() {
+      return values[position];
+    }
+
+    boolean advance() {
+      return ++position < values.length;
+    }
+  }
+
+  private static class CursorTree extends LoserTree<Cursor> {
+    int comparisons;
+
+    @Override
+    protected int compare(Object a, Object b) {
+      comparisons++;
+      int x = ((Cursor) a).current();
+      int y = ((Cursor) b).current();
+      return x < y ? -1 : (x == y ? 0 : 1);
+    }
+  }
+}
@@ -0,0 +1,112 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.sort.impl;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.apache.hadoop.util.QuickSort;
+import org.apache.tez.runtime.library.common.sort.impl.RadixSort.RadixSortable;
+import org.junit.Test;
+
+public class TestRadixSort {
+
+  @Test
+  public void testExactPrefix() {
+    // wide and narrow value ranges, including negative partitions
+    runTest(100000, 7, Long.MAX_VALUE, true);
+    runTest(100000, 1, 1000, true);
+    runTest(10, 3, 1000, true);
+  }
+
+  @Test
+  public void testInexactPrefix() {
+    // many prefix ties, which are resolved by the secondary key
+    runTest(100000, 5, 16, false);
+  }
+
+  private void runTest(int n, int numPartitions, long prefixBound, boolean exact) {
+    Random random = new Random(n + numPartitions);
+    Records records = new Records(n, exact);
+    for (int i = 0; i < n; i++) {
+      records.partitions[i] = random.nextInt(numPartitions) - numPartitions / 2;
+      long prefix = random.nextLong() % prefixBound;
+      records.prefixes[i] = exact ? prefix : Math.abs(prefix);
+      records.secondary[i] = random.nextInt();
+    }
+    new RadixSort(new QuickSort(), exact).sort(records, 0, n, null);
+    for (int i = 1; i < n; i++) {
+      assertTrue("Out of order at " + i, records.compare(i - 1, i) <= 0);
+    }
+  }
+
+  /**
+   * Orders by partition, prefix (unsigned) and, for inexact prefixes, a
+   * secondary key standing in for the full key comparison.
+   */
+  private static class Records implements RadixSortable {
+    final int[] partitions;
+    final long[] prefixes;
+    final int[] secondary;
+    final boolean exact;
+
+    Records(int n, boolean exact) {
+      partitions = new int[n];
+      prefixes = new long[n];
+      secondary = new int[n];
+      this.exact = exact;
+    }
+
+    @Override
+    public int compare(int i, int j) {
+      if (partitions[i] != partitions[j]) {
+        return partitions[i] < partitions[j] ? -1 : 1;
+      }
+      int cmp = KeyPrefixNormalizer.compare(prefixes[i], prefixes[j]);
+      if (cmp != 0 || exact) {
+        return cmp;
+      }
+      return secondary[i] < secondary[j] ? -1 : (secondary[i] == secondary[j] ? 0 : 1);
+    }
+
+    @Override
+    public void swap(int i, int j) {
+      int p = partitions[i];
+      partitions[i] = partitions[j];
+      partitions[j] = p;
+      long l = prefixes[i];
+      prefixes[i] = prefixes[j];
+      prefixes[j] = l;
+      int s = secondary[i];
+      secondary[i] = secondary[j];
+      secondary[j] = s;
+    }
+
+    @Override
+    public int getPartition(int i) {
+      return partitions[i];
+    }
+
+    @Override
+    public long getPrefix(int i) {
+      return prefixes[i];
+    }
+  }
+}
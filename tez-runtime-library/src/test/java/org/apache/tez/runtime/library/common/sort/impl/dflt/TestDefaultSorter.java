@@ -0,0 +1,197 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.sort.impl.dflt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.tez.common.TezJobConfig;
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.runtime.api.TezOutputContext;
+import org.apache.tez.runtime.library.api.Partitioner;
+import org.apache.tez.runtime.library.common.sort.impl.IFile;
+import org.apache.tez.runtime.library.common.sort.impl.TezIndexRecord;
+import org.apache.tez.runtime.library.common.sort.impl.TezSpillRecord;
+import org.apache.tez.runtime.library.testutils.LocalWorkDir;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestDefaultSorter {
+
+  private static final Log LOG = LogFactory.getLog(TestDefaultSorter.class);
+
+  private static Configuration defaultConf = new Configuration();
+  private static FileSystem localFs = null;
+  private static Path workDir = null;
+
+  static {
+    defaultConf.set("fs.defaultFS", "file:///");
+    try {
+      localFs = FileSystem.getLocal(defaultConf);
+      workDir = LocalWorkDir.create(localFs, TestDefaultSorter.class);
+      LOG.info("Using workDir: " + workDir);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Before
+  @After
+  public void cleanup() throws Exception {
+    LocalWorkDir.reset(localFs, workDir);
+  }
+
+  @Test
+  public void testSingleThreadedSpillSort() throws IOException {
+    runTest(1, 50000, 7);
+  }
+
+  @Test
+  public void testParallelSpillSort() throws IOException {
+    runTest(4, 50000, 7);
+  }
+
+  @Test
+  public void testParallelSpillSortMultipleSpills() throws IOException {
+    // ~40 bytes per record including metadata, 1MB buffer
+    runTest(4, 200000, 13);
+  }
+
+  @Test
+  public void testKeyPrefixMultipleSpills() throws IOException {
+    runTest(1, 200000, 13, true);
+  }
+
+  @Test
+  public void testParallelSpillSortKeyPrefix() throws IOException {
+    runTest(4, 50000, 7, true);
+  }
+
+  @Test
+  public void testRadixSortMultipleSpills() throws IOException {
+    runTest(1, 200000, 13, false, true);
+  }
+
+  @Test
+  public void testParallelSpillSortRadixSort() throws IOException {
+    runTest(4, 50000, 7, false, true);
+  }
+
+  private void runTest(int spillThreads, int numRecords, int numPartitions) throws IOException {
+    runTest(spillThreads, numRecords, numPartitions, false);
+  }
+
+  private void runTest(int spillThreads, int numRecords, int numPartitions, boolean keyPrefix)
+      throws IOException {
+    runTest(spillThreads, numRecords, numPartitions, keyPrefix, false);
+  }
+
+  private void runTest(int spillThreads, int numRecords, int numPartitions, boolean keyPrefix,
+      boolean radixSort) throws IOException {
+    Configuration conf = new Configuration(defaultConf);
+    conf.set(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_OUTPUT_KEY_CLASS, Text.class.getName());
+    conf.set(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_OUTPUT_VALUE_CLASS,
+        IntWritable.class.getName());
+    conf.set(TezJobConfig.TEZ_RUNTIME_PARTITIONER_CLASS, ModPartitioner.class.getName());
+    conf.setInt(TezJobConfig.TEZ_RUNTIME_SORT_SPILL_THREADS, spillThreads);
+    conf.setBoolean(TezJobConfig.TEZ_RUNTIME_SORT_KEY_PREFIX_ENABLED, keyPrefix);
+    conf.setBoolean(TezJobConfig.TEZ_RUNTIME_SORT_RADIX_ENABLED, radixSort);
+    LocalWorkDir.setLocalDirs(conf, workDir);
+
+    TezCounters counters = new TezCounters();
+    TezOutputContext outputContext = mock(TezOutputContext.class);
+    doReturn(counters).when(outputContext).getCounters();
+    doReturn("attempt_1_0001_1_01_000001_0").when(outputContext).getUniqueIdentifier();
+    doReturn("destinationVertex").when(outputContext).getDestinationVertexName();
+
+    DefaultSorter sorter = new DefaultSorter(outputContext, conf, numPartitions, 1 << 20);
+    Random random = new Random(numRecords);
+    Text key = new Text();
+    IntWritable value = new IntWritable();
+    for (int i = 0; i < numRecords; i++) {
+      key.set("key_" + random.nextInt(numRecords));
+      value.set(i);
+      sorter.write(key, value);
+    }
+    sorter.flush();
+    sorter.close();
+
+    if (numRecords > 100000) {
+      assertTrue(counters.findCounter(TaskCounter.ADDITIONAL_SPILL_COUNT).getValue() > 0);
+    }
+
+    Path outputFile = sorter.getMapOutput().getOutputFile();
+    TezSpillRecord spillRecord = new TezSpillRecord(sorter.getMapOutput().getOutputIndexFile(),
+        conf);
+    DataInputBuffer keyBuffer = new DataInputBuffer();
+    DataInputBuffer valBuffer = new DataInputBuffer();
+    Text readKey = new Text();
+    Text prevKey = new Text();
+    int totalRead = 0;
+    for (int i = 0; i < numPartitions; i++) {
+      TezIndexRecord indexRecord = spillRecord.getIndex(i);
+      FSDataInputStream in = localFs.open(outputFile);
+      in.seek(indexRecord.getStartOffset());
+      IFile.Reader reader = new IFile.Reader(in, indexRecord.getPartLength(), null, null, null,
+          false, 0, -1);
+      boolean first = true;
+      while (reader.nextRawKey(keyBuffer)) {
+        reader.nextRawValue(valBuffer);
+        readKey.readFields(keyBuffer);
+        assertEquals(i, ModPartitioner.partitionFor(readKey, numPartitions));
+        if (!first) {
+          assertTrue(prevKey.compareTo(readKey) <= 0);
+        }
+        prevKey.set(readKey);
+        first = false;
+        totalRead++;
+      }
+      reader.close();
+    }
+    assertEquals(numRecords, totalRead);
+  }
+
+  public static class ModPartitioner implements Partitioner {
+
+    static int partitionFor(Object key, int numPartitions) {
+      return (key.hashCode() & Integer.MAX_VALUE) % numPartitions;
+    }
+
+    @Override
+    public int getPartition(Object key, Object value, int numPartitions) {
+      return partitionFor(key, numPartitions);
+    }
+  }
+}
@@ -0,0 +1,227 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.writers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.tez.common.TezJobConfig;
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.runtime.api.TezOutputContext;
+import org.apache.tez.runtime.library.api.Partitioner;
+import org.apache.tez.runtime.library.common.sort.impl.IFile;
+import org.apache.tez.runtime.library.common.sort.impl.TezIndexRecord;
+import org.apache.tez.runtime.library.common.sort.impl.TezSpillRecord;
+import org.apache.tez.runtime.library.testutils.LocalWorkDir;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestUnorderedPartitionedKVWriter {
+
+  private static final Log LOG = LogFactory.getLog(TestUnorderedPartitionedKVWriter.class);
+
+  private static Configuration defaultConf = new Configuration();
+  private static FileSystem localFs = null;
+  private static Path workDir = null;
+
+  static {
+    defaultConf.set("fs.defaultFS", "file:///");
+    try {
+      localFs = FileSystem.getLocal(defaultConf);
+      workDir = LocalWorkDir.create(localFs, TestUnorderedPartitionedKVWriter.class);
+      LOG.info("Using workDir: " + workDir);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Before
+  @After
+  public void cleanup() throws Exception {
+    LocalWorkDir.reset(localFs, workDir);
+  }
+
+  @Test
+  public void testNoSpill() throws IOException {
+    runTest(1000, 10);
+  }
+
+  @Test
+  public void testMultipleSpills() throws IOException {
+    // ~30 bytes per record, 1MB buffer
+    runTest(200000, 10);
+  }
+
+  @Test
+  public void testMultipleSpillsCompressed() throws IOException {
+    // the chunks of each spill are concatenated without being decompressed
+    runTest(200000, 10, DefaultCodec.class, false);
+  }
+
+  @Test
+  public void testLargeRecordsCompressed() throws IOException {
+    // records larger than the buffer are spilled on their own, between
+    // regular spills
+    runTest(200000, 10, DefaultCodec.class, true);
+  }
+
+  @Test
+  public void testNoRecords() throws IOException {
+    runTest(0, 5);
+  }
+
+  private void runTest(int numRecords, int numPartitions) throws IOException {
+    runTest(numRecords, numPartitions, null, false);
+  }
+
+  private void runTest(int numRecords, int numPartitions,
+      Class<? extends CompressionCodec> codecClass, boolean largeRecords) throws IOException {
+    Configuration conf = createConf();
+    CompressionCodec codec = null;
+    if (codecClass != null) {
+      conf.setBoolean(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_OUTPUT_SHOULD_COMPRESS, true);
+      conf.setClass(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_OUTPUT_COMPRESS_CODEC, codecClass,
+          CompressionCodec.class);
+      codec = ReflectionUtils.newInstance(codecClass, conf);
+    }
+    TezCounters counters = new TezCounters();
+    TezOutputContext outputContext = createOutputContext(counters);
+
+    UnorderedPartitionedKVWriter kvWriter = new UnorderedPartitionedKVWriter(outputContext, conf,
+        numPartitions, 1 << 20);
+
+    List<List<Integer>> expected = new ArrayList<List<Integer>>();
+    for (int i = 0; i < numPartitions; i++) {
+      expected.add(new ArrayList<Integer>());
+    }
+    Text key = new Text();
+    IntWritable value = new IntWritable();
+    StringBuilder largeSuffix = new StringBuilder();
+    if (largeRecords) {
+      for (int i = 0; i < (1 << 20); i++) {
+        largeSuffix.append('x');
+      }
+    }
+    for (int i = 0; i < numRecords; i++) {
+      if (largeRecords && i % 50000 == 25000) {
+        key.set("key_" + (i % 97) + largeSuffix);
+      } else {
+        key.set("key_" + (i % 97) + "_suffix");
+      }
+      value.set(i);
+      kvWriter.write(key, value);
+      expected.get(ModPartitioner.partitionFor(key, numPartitions)).add(i);
+    }
+    kvWriter.flush();
+    kvWriter.close();
+
+    assertEquals(numRecords,
+        counters.findCounter(TaskCounter.OUTPUT_RECORDS).getValue());
+    if (numRecords > 100000) {
+      assertTrue(counters.findCounter(TaskCounter.ADDITIONAL_SPILL_COUNT).getValue() > 0);
+    }
+
+    Path outputFile = kvWriter.getMapOutput().getOutputFile();
+    Path indexFile = kvWriter.getMapOutput().getOutputIndexFile();
+    TezSpillRecord spillRecord = new TezSpillRecord(indexFile, conf);
+    assertEquals(numPartitions, spillRecord.size());
+    assertEquals(localFs.getFileStatus(outputFile).getLen(),
+        counters.findCounter(TaskCounter.OUTPUT_BYTES_PHYSICAL).getValue());
+
+    DataInputBuffer keyBuffer = new DataInputBuffer();
+    DataInputBuffer valBuffer = new DataInputBuffer();
+    Text readKey = new Text();
+    IntWritable readValue = new IntWritable();
+    for (int i = 0; i < numPartitions; i++) {
+      TezIndexRecord indexRecord = spillRecord.getIndex(i);
+      List<Integer> expectedValues = expected.get(i);
+      if (expectedValues.isEmpty()) {
+        assertFalse(indexRecord.hasData());
+        continue;
+      }
+      FSDataInputStream in = localFs.open(outputFile);
+      in.seek(indexRecord.getStartOffset());
+      IFile.Reader reader = new IFile.Reader(in, indexRecord.getPartLength(), codec, null, null,
+          false, 0, -1);
+      int numRead = 0;
+      while (reader.nextRawKey(keyBuffer)) {
+        reader.nextRawValue(valBuffer);
+        readKey.readFields(keyBuffer);
+        readValue.readFields(valBuffer);
+        assertEquals(i, ModPartitioner.partitionFor(readKey, numPartitions));
+        // Records within a partition retain the order in which they were written
+        assertEquals(expectedValues.get(numRead).intValue(), readValue.get());
+        numRead++;
+      }
+      reader.close();
+      assertEquals(expectedValues.size(), numRead);
+    }
+  }
+
+  private Configuration createConf() {
+    Configuration conf = new Configuration(defaultConf);
+    conf.set(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_OUTPUT_KEY_CLASS, Text.class.getName());
+    conf.set(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_OUTPUT_VALUE_CLASS,
+        IntWritable.class.getName());
+    conf.set(TezJobConfig.TEZ_RUNTIME_PARTITIONER_CLASS, ModPartitioner.class.getName());
+    LocalWorkDir.setLocalDirs(conf, workDir);
+    return conf;
+  }
+
+  private TezOutputContext createOutputContext(TezCounters counters) {
+    TezOutputContext outputContext = mock(TezOutputContext.class);
+    doReturn(counters).when(outputContext).getCounters();
+    doReturn("attempt_1_0001_1_01_000001_0").when(outputContext).getUniqueIdentifier();
+    doReturn("destinationVertex").when(outputContext).getDestinationVertexName();
+    return outputContext;
+  }
+
+  public static class ModPartitioner implements Partitioner {
+
+    static int partitionFor(Object key, int numPartitions) {
+      return (key.hashCode() & Integer.MAX_VALUE) % numPartitions;
+    }
+
+    @Override
+    public int getPartition(Object key, Object value, int numPartitions) {
+      return partitionFor(key, numPartitions);
+    }
+  }
+}
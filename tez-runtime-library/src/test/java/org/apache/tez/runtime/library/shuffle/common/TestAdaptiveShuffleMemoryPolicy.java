@@ -0,0 +1,143 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.shuffle.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.Arrays;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.tez.common.TezJobConfig;
+import org.junit.Test;
+
+public class TestAdaptiveShuffleMemoryPolicy {
+
+  private static final long MAX_HEAP = 1000 << 20;
+  private static final long MEMORY_LIMIT = 500 << 20;
+  private static final long SINGLE_LIMIT = 125 << 20;
+
+  @Test
+  public void testSingleShuffleLimitFollowsHeadroom() {
+    TestPolicy policy = createPolicy();
+    // Headroom above the shuffle budget allows the configured limit
+    policy.usedHeap = 100 << 20;
+    assertEquals(SINGLE_LIMIT, policy.getSingleShuffleLimit(false));
+
+    // 1000 - 650 - 100 (reserve) leaves half the budget
+    policy.usedHeap = 650 << 20;
+    policy.resetHeapSample();
+    assertEquals(SINGLE_LIMIT / 2, policy.getSingleShuffleLimit(false));
+
+    // No headroom left, only small outputs go to memory
+    policy.usedHeap = 950 << 20;
+    policy.resetHeapSample();
+    assertEquals(SINGLE_LIMIT / 16, policy.getSingleShuffleLimit(false));
+  }
+
+  @Test
+  public void testSingleShuffleLimitFollowsMergeBacklog() throws InterruptedException {
+    TestPolicy policy = createPolicy();
+    policy.usedHeap = 100 << 20;
+    // Fetches arrive at roughly twice the merge rate
+    policy.merged(100 << 20, 1000);
+    policy.fetchedToMemory(0);
+    Thread.sleep(1000);
+    policy.fetchedToMemory(200 << 20);
+    long limit = policy.getSingleShuffleLimit(true);
+    assertTrue("limit: " + limit, limit < SINGLE_LIMIT * 0.6 && limit > SINGLE_LIMIT * 0.3);
+    // The backlog only matters while a merge is running
+    assertEquals(SINGLE_LIMIT, policy.getSingleShuffleLimit(false));
+  }
+
+  @Test
+  public void testOvercommit() {
+    TestPolicy policy = createPolicy();
+    policy.usedHeap = 100 << 20;
+    // Up to 25% past the budget while the heap has room
+    assertTrue(policy.canExceedMemoryLimit(MEMORY_LIMIT, 100 << 20));
+    assertFalse(policy.canExceedMemoryLimit(MEMORY_LIMIT, 200 << 20));
+
+    policy.usedHeap = 850 << 20;
+    policy.resetHeapSample();
+    assertFalse(policy.canExceedMemoryLimit(MEMORY_LIMIT, 100 << 20));
+  }
+
+  @Test
+  public void testUsedHeapWithoutCollectionUsage() {
+    // A pool which has not been collected yet reports no collection usage,
+    // or an empty one
+    MemoryPoolMXBean eden = mockPool(MemoryType.HEAP, 300 << 20, null);
+    MemoryPoolMXBean survivor = mockPool(MemoryType.HEAP, 10 << 20, 20L << 20);
+    MemoryPoolMXBean old = mockPool(MemoryType.HEAP, 400 << 20, 0L);
+    MemoryPoolMXBean metaspace = mockPool(MemoryType.NON_HEAP, 50 << 20, null);
+    assertEquals((300 + 20 + 400) << 20, AdaptiveShuffleMemoryPolicy.getUsedHeap(
+        Arrays.asList(eden, survivor, old, metaspace)));
+  }
+
+  @Test
+  public void testUsedHeapIgnoresUncollectedGarbage() {
+    // Pools close to their next collection, holding little live data
+    MemoryPoolMXBean eden = mockPool(MemoryType.HEAP, 300 << 20, 5L << 20);
+    MemoryPoolMXBean old = mockPool(MemoryType.HEAP, 600 << 20, 150L << 20);
+    assertEquals((5 + 150) << 20, AdaptiveShuffleMemoryPolicy.getUsedHeap(
+        Arrays.asList(eden, old)));
+
+    TestPolicy policy = createPolicy();
+    policy.usedHeap = AdaptiveShuffleMemoryPolicy.getUsedHeap(Arrays.asList(eden, old));
+    assertEquals(SINGLE_LIMIT, policy.getSingleShuffleLimit(false));
+    assertTrue(policy.canExceedMemoryLimit(MEMORY_LIMIT, 100 << 20));
+  }
+
+  private static MemoryPoolMXBean mockPool(MemoryType type, long used, Long usedAfterGc) {
+    MemoryPoolMXBean pool = mock(MemoryPoolMXBean.class);
+    doReturn(type).when(pool).getType();
+    doReturn(true).when(pool).isValid();
+    doReturn(new MemoryUsage(0, used, used, -1)).when(pool).getUsage();
+    doReturn(usedAfterGc == null ? null : new MemoryUsage(0, usedAfterGc, usedAfterGc, -1))
+        .when(pool).getCollectionUsage();
+    return pool;
+  }
+
+  private TestPolicy createPolicy() {
+    Configuration conf = new Configuration();
+    conf.setFloat(TezJobConfig.TEZ_RUNTIME_SHUFFLE_MEMORY_ADAPTIVE_HEAP_RESERVE_PERCENT, 0.1f);
+    conf.setFloat(TezJobConfig.TEZ_RUNTIME_SHUFFLE_MEMORY_ADAPTIVE_MAX_OVERCOMMIT_PERCENT, 0.25f);
+    return new TestPolicy(conf);
+  }
+
+  private static class TestPolicy extends AdaptiveShuffleMemoryPolicy {
+    long usedHeap;
+
+    TestPolicy(Configuration conf) {
+      super(conf, MEMORY_LIMIT, SINGLE_LIMIT, MAX_HEAP);
+    }
+
+    @Override
+    protected long getUsedHeap() {
+      return usedHeap;
+    }
+  }
+}
@@ -0,0 +1,383 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.shuffle.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalDirAllocator;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.yarn.api.records.ApplicationId;
+import org.apache.tez.common.TezJobConfig;
+import org.apache.tez.common.security.JobTokenSecretManager;
+import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.common.security.SecureShuffleUtils;
+import org.apache.tez.runtime.library.common.shuffle.impl.ShuffleHeader;
+import org.apache.tez.runtime.library.common.sort.impl.IFile;
+import org.apache.tez.runtime.library.common.task.local.output.TezTaskOutputFiles;
+import org.apache.tez.runtime.library.testutils.LocalWorkDir;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class TestAsyncShuffleClient {
+
+  private static final String HOST = "localhost";
+  private static final int PARTITION = 1;
+  private static final int NUM_RECORDS = 100;
+
+  private Configuration conf;
+  private FileSystem localFs;
+  private Path workDir;
+  private SecretKey secret;
+  private HttpServer server;
+  private AsyncShuffleClient client;
+  // Served outputs, by path component
+  private final Map<String, byte[]> outputs = new HashMap<String, byte[]>();
+  private final Map<String, Long> rawLengths = new HashMap<String, Long>();
+
+  @Before
+  public void setup() throws IOException {
+    conf = new Configuration();
+    localFs = FileSystem.getLocal(conf);
+    workDir = LocalWorkDir.create(localFs, TestAsyncShuffleClient.class);
+    LocalWorkDir.reset(localFs, workDir);
+    LocalWorkDir.setLocalDirs(conf, workDir);
+    secret = JobTokenSecretManager.createSecretKey("secret".getBytes());
+
+    server = HttpServer.create(new InetSocketAddress(HOST, 0), 0);
+    server.createContext("/mapOutput", new ShuffleHttpHandler());
+    server.start();
+  }
+
+  @After
+  public void cleanup() throws IOException {
+    if (client != null) {
+      client.shutdown();
+    }
+    server.stop(0);
+    localFs.delete(workDir, true);
+  }
+
+  @Test(timeout = 10000)
+  public void testFetchToMemoryAndDisk() throws Exception {
+    InputAttemptIdentifier memAttempt = addOutput(0, "attempt_1_0001_1_01_000000_0");
+    InputAttemptIdentifier diskAttempt = addOutput(1, "attempt_1_0001_1_01_000001_0");
+    FetcherCallback callback = mock(FetcherCallback.class);
+    client = new AsyncShuffleClient("test", 1, 1, callback, new TestAllocator(memAttempt),
+        ApplicationId.newInstance(1, 1), secret, null, false, 0, 1000, 1000);
+
+    FetchResult result = client.fetch(HOST, server.getAddress().getPort(), PARTITION,
+        Arrays.asList(memAttempt, diskAttempt)).get(5, TimeUnit.SECONDS);
+    assertFalse(result.getPendingInputs().iterator().hasNext());
+    verify(callback, never()).fetchFailed(eq(HOST), eq(memAttempt), anyBoolean());
+    verify(callback, never()).fetchFailed(eq(HOST), eq(diskAttempt), anyBoolean());
+
+    ArgumentCaptor<FetchedInput> memInput = ArgumentCaptor.forClass(FetchedInput.class);
+    verify(callback).fetchSucceeded(eq(HOST), eq(memAttempt), memInput.capture(),
+        anyLong(), anyLong(), anyLong());
+    assertEquals(FetchedInput.Type.MEMORY, memInput.getValue().getType());
+    verifyMemoryInput(0, (MemoryFetchedInput) memInput.getValue());
+
+    ArgumentCaptor<FetchedInput> diskInput = ArgumentCaptor.forClass(FetchedInput.class);
+    verify(callback).fetchSucceeded(eq(HOST), eq(diskAttempt), diskInput.capture(),
+        anyLong(), anyLong(), anyLong());
+    assertEquals(FetchedInput.Type.DISK, diskInput.getValue().getType());
+    diskInput.getValue().commit();
+    verifyDiskInput(1, diskInput.getValue());
+  }
+
+  @Test(timeout = 10000)
+  public void testFetchLargeInputs() throws Exception {
+    // Larger than what is buffered for a connection, so reading is paused
+    // while the inputs are decoded
+    int numRecords = 50000;
+    InputAttemptIdentifier memAttempt =
+        addOutput(0, "attempt_1_0001_1_01_000000_0", numRecords);
+    InputAttemptIdentifier diskAttempt =
+        addOutput(1, "attempt_1_0001_1_01_000001_0", numRecords);
+    FetcherCallback callback = mock(FetcherCallback.class);
+    client = new AsyncShuffleClient("test", 1, 1, callback, new TestAllocator(memAttempt),
+        ApplicationId.newInstance(1, 1), secret, null, false, 0, 1000, 1000);
+
+    FetchResult result = client.fetch(HOST, server.getAddress().getPort(), PARTITION,
+        Arrays.asList(memAttempt, diskAttempt)).get(5, TimeUnit.SECONDS);
+    assertFalse(result.getPendingInputs().iterator().hasNext());
+
+    ArgumentCaptor<FetchedInput> memInput = ArgumentCaptor.forClass(FetchedInput.class);
+    verify(callback).fetchSucceeded(eq(HOST), eq(memAttempt), memInput.capture(),
+        anyLong(), anyLong(), anyLong());
+    verifyMemoryInput(0, (MemoryFetchedInput) memInput.getValue(), numRecords);
+
+    ArgumentCaptor<FetchedInput> diskInput = ArgumentCaptor.forClass(FetchedInput.class);
+    verify(callback).fetchSucceeded(eq(HOST), eq(diskAttempt), diskInput.capture(),
+        anyLong(), anyLong(), anyLong());
+    diskInput.getValue().commit();
+    verifyDiskInput(1, diskInput.getValue(), numRecords);
+  }
+
+  @Test(timeout = 10000)
+  public void testSlowConsumerDoesNotTimeOut() throws Exception {
+    // Reading is paused for longer than the read timeout while the decode
+    // thread slowly writes out the input
+    int numRecords = 20000;
+    InputAttemptIdentifier diskAttempt =
+        addOutput(0, "attempt_1_0001_1_01_000000_0", numRecords);
+    FetcherCallback callback = mock(FetcherCallback.class);
+    client = new AsyncShuffleClient("test", 1, 1, callback, new TestAllocator(null, 150),
+        ApplicationId.newInstance(1, 1), secret, null, false, 0, 1000, 100);
+
+    FetchResult result = client.fetch(HOST, server.getAddress().getPort(), PARTITION,
+        Arrays.asList(diskAttempt)).get(8, TimeUnit.SECONDS);
+    assertFalse(result.getPendingInputs().iterator().hasNext());
+    verify(callback, never()).fetchFailed(eq(HOST), eq(diskAttempt), anyBoolean());
+
+    ArgumentCaptor<FetchedInput> diskInput = ArgumentCaptor.forClass(FetchedInput.class);
+    verify(callback).fetchSucceeded(eq(HOST), eq(diskAttempt), diskInput.capture(),
+        anyLong(), anyLong(), anyLong());
+    diskInput.getValue().commit();
+    verifyDiskInput(0, diskInput.getValue(), numRecords);
+  }
+
+  @Test(timeout = 10000)
+  public void testMissingOutput() throws Exception {
+    InputAttemptIdentifier srcAttempt = addOutput(0, "attempt_1_0001_1_01_000000_0");
+    InputAttemptIdentifier missingAttempt =
+        new InputAttemptIdentifier(1, 0, "attempt_1_0001_1_01_000001_0");
+    FetcherCallback callback = mock(FetcherCallback.class);
+    client = new AsyncShuffleClient("test", 1, 1, callback, new TestAllocator(srcAttempt),
+        ApplicationId.newInstance(1, 1), secret, null, false, 0, 1000, 1000);
+
+    // The server stops after the outputs it knows about
+    FetchResult result = client.fetch(HOST, server.getAddress().getPort(), PARTITION,
+        Arrays.asList(srcAttempt, missingAttempt)).get(5, TimeUnit.SECONDS);
+    verify(callback).fetchSucceeded(eq(HOST), eq(srcAttempt), any(FetchedInput.class),
+        anyLong(), anyLong(), anyLong());
+    verify(callback).fetchFailed(eq(HOST), eq(missingAttempt), eq(false));
+    assertEquals(missingAttempt, result.getPendingInputs().iterator().next());
+  }
+
+  @Test(timeout = 10000)
+  public void testConnectFailure() throws Exception {
+    InputAttemptIdentifier srcAttempt = addOutput(0, "attempt_1_0001_1_01_000000_0");
+    FetcherCallback callback = mock(FetcherCallback.class);
+    client = new AsyncShuffleClient("test", 1, 1, callback, new TestAllocator(srcAttempt),
+        ApplicationId.newInstance(1, 1), secret, null, false, 0, 1000, 1000);
+    int port = server.getAddress().getPort();
+    server.stop(0);
+
+    FetchResult result = client.fetch(HOST, port, PARTITION, Arrays.asList(srcAttempt))
+        .get(5, TimeUnit.SECONDS);
+    assertTrue(result.getPendingInputs().iterator().hasNext());
+    verify(callback).fetchFailed(eq(HOST), eq(srcAttempt), eq(true));
+  }
+
+  private InputAttemptIdentifier addOutput(int index, String pathComponent) throws IOException {
+    return addOutput(index, pathComponent, NUM_RECORDS);
+  }
+
+  private InputAttemptIdentifier addOutput(int index, String pathComponent, int numRecords)
+      throws IOException {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    FSDataOutputStream out = new FSDataOutputStream(bout, null);
+    IFile.Writer writer = new IFile.Writer(conf, out, Text.class, Text.class, null, null, null);
+    Text key = new Text();
+    Text value = new Text();
+    for (int i = 0; i < numRecords; i++) {
+      key.set("key_" + index + "_" + i);
+      value.set("value_" + index + "_" + i);
+      writer.append(key, value);
+    }
+    writer.close();
+    out.close();
+    outputs.put(pathComponent, bout.toByteArray());
+    rawLengths.put(pathComponent, writer.getRawLength());
+    return new InputAttemptIdentifier(index, 0, pathComponent);
+  }
+
+  private void verifyMemoryInput(int index, MemoryFetchedInput input) throws IOException {
+    verifyMemoryInput(index, input, NUM_RECORDS);
+  }
+
+  private void verifyMemoryInput(int index, MemoryFetchedInput input, int numRecords)
+      throws IOException {
+    // The checksum has been verified and stripped, leaving the raw records
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(input.getBytes(), input.getBytes().length);
+    Text key = new Text();
+    Text value = new Text();
+    for (int i = 0; i < numRecords; i++) {
+      int keyLength = WritableUtils.readVInt(in);
+      int valueLength = WritableUtils.readVInt(in);
+      assertTrue(keyLength > 0 && valueLength > 0);
+      key.readFields(in);
+      value.readFields(in);
+      assertEquals("key_" + index + "_" + i, key.toString());
+      assertEquals("value_" + index + "_" + i, value.toString());
+    }
+  }
+
+  private void verifyDiskInput(int index, FetchedInput input) throws IOException {
+    verifyDiskInput(index, input, NUM_RECORDS);
+  }
+
+  private void verifyDiskInput(int index, FetchedInput input, int numRecords)
+      throws IOException {
+    IFile.Reader reader = new IFile.Reader(input.getInputStream(), input.getCompressedSize(),
+        null, null, null, false, 0, -1);
+    DataInputBuffer keyIn = new DataInputBuffer();
+    DataInputBuffer valueIn = new DataInputBuffer();
+    Text key = new Text();
+    Text value = new Text();
+    int readRecords = 0;
+    while (reader.nextRawKey(keyIn)) {
+      reader.nextRawValue(valueIn);
+      key.readFields(keyIn);
+      value.readFields(valueIn);
+      assertEquals("key_" + index + "_" + readRecords, key.toString());
+      assertEquals("value_" + index + "_" + readRecords, value.toString());
+      readRecords++;
+    }
+    reader.close();
+    assertEquals(numRecords, readRecords);
+  }
+
+  /**
+   * Allocates memory for a single input, and disk for all others. Writes to
+   * disk may be delayed, to simulate a slow consumer.
+   */
+  private class TestAllocator implements FetchedInputAllocator {
+    private final InputAttemptIdentifier memAttempt;
+    private final long writeDelayMs;
+
+    TestAllocator(InputAttemptIdentifier memAttempt) {
+      this(memAttempt, 0);
+    }
+
+    TestAllocator(InputAttemptIdentifier memAttempt, long writeDelayMs) {
+      this.memAttempt = memAttempt;
+      this.writeDelayMs = writeDelayMs;
+    }
+
+    @Override
+    public FetchedInput allocate(long actualSize, long compressedSize,
+        InputAttemptIdentifier inputAttemptIdentifier) throws IOException {
+      FetchedInputCallback callback = mock(FetchedInputCallback.class);
+      if (inputAttemptIdentifier.equals(memAttempt)) {
+        return new MemoryFetchedInput(actualSize, compressedSize, inputAttemptIdentifier,
+            callback);
+      }
+      return new DiskFetchedInput(actualSize, compressedSize, inputAttemptIdentifier,
+          callback, conf, new LocalDirAllocator(TezJobConfig.LOCAL_DIRS),
+          new TezTaskOutputFiles(conf, "test")) {
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+          if (writeDelayMs == 0) {
+            return super.getOutputStream();
+          }
+          return new FilterOutputStream(super.getOutputStream()) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+              try {
+                Thread.sleep(writeDelayMs);
+              } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+              }
+              out.write(b, off, len);
+            }
+          };
+        }
+      };
+    }
+  }
+
+  /**
+   * Serves the known outputs like the ShuffleHandler: a chunked response of
+   * shuffle headers, each followed by the output.
+   */
+  private class ShuffleHttpHandler implements HttpHandler {
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      String urlHash = exchange.getRequestHeaders().getFirst(
+          SecureShuffleUtils.HTTP_HEADER_URL_HASH);
+      exchange.getResponseHeaders().set(SecureShuffleUtils.HTTP_HEADER_REPLY_URL_HASH,
+          SecureShuffleUtils.generateHash(urlHash.getBytes(), secret));
+      exchange.getResponseHeaders().set(ShuffleHeader.HTTP_HEADER_NAME,
+          ShuffleHeader.DEFAULT_HTTP_HEADER_NAME);
+      exchange.getResponseHeaders().set(ShuffleHeader.HTTP_HEADER_VERSION,
+          ShuffleHeader.DEFAULT_HTTP_HEADER_VERSION);
+      exchange.sendResponseHeaders(200, 0);
+
+      String query = exchange.getRequestURI().getQuery();
+      List<String> mapIds = Arrays.asList(
+          query.substring(query.indexOf("map=") + "map=".length()).split(","));
+      OutputStream body = exchange.getResponseBody();
+      DataOutputStream out = new DataOutputStream(body);
+      for (String mapId : mapIds) {
+        byte[] data = outputs.get(mapId);
+        if (data == null) {
+          break;
+        }
+        new ShuffleHeader(mapId, data.length, rawLengths.get(mapId), PARTITION).write(out);
+        // Split the output across writes, to exercise partial reads
+        int half = data.length / 2;
+        out.write(data, 0, half);
+        out.flush();
+        out.write(data, half, data.length - half);
+        out.flush();
+      }
+      out.close();
+      exchange.close();
+    }
+  }
+}
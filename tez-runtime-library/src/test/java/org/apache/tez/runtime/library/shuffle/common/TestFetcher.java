@@ -0,0 +1,269 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.shuffle.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.crypto.SecretKey;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.yarn.api.records.ApplicationId;
+import org.apache.tez.common.TezJobConfig;
+import org.apache.tez.common.security.JobTokenSecretManager;
+import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.common.security.SecureShuffleUtils;
+import org.apache.tez.runtime.library.common.shuffle.impl.ShuffleHeader;
+import org.apache.tez.runtime.library.common.sort.impl.IFile;
+import org.apache.tez.runtime.library.common.sort.impl.TezIndexRecord;
+import org.apache.tez.runtime.library.common.sort.impl.TezSpillRecord;
+import org.apache.tez.runtime.library.common.task.local.output.TezTaskOutputFiles;
+import org.apache.tez.runtime.library.testutils.LocalWorkDir;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class TestFetcher {
+
+  private static final String HOST = "localhost";
+  private static final int PORT = 13562;
+  private static final String PATH_COMPONENT = "attempt_1_0001_1_01_000000_0";
+  private static final int NUM_PARTITIONS = 3;
+  private static final int NUM_RECORDS = 100;
+
+  private Configuration conf;
+  private FileSystem localFs;
+  private Path workDir;
+
+  @Before
+  public void setup() throws IOException {
+    conf = new Configuration();
+    localFs = FileSystem.getLocal(conf);
+    workDir = LocalWorkDir.create(localFs, TestFetcher.class);
+    LocalWorkDir.reset(localFs, workDir);
+    LocalWorkDir.setLocalDirs(conf, workDir);
+  }
+
+  @After
+  public void cleanup() throws IOException {
+    localFs.delete(workDir, true);
+  }
+
+  @Test
+  public void testLocalDiskFetch() throws Exception {
+    writeOutput();
+    FetcherCallback callback = mock(FetcherCallback.class);
+    FetchedInputAllocator allocator = mock(FetchedInputAllocator.class);
+    InputAttemptIdentifier srcAttempt = new InputAttemptIdentifier(0, 0, PATH_COMPONENT);
+
+    Fetcher fetcher = new Fetcher.FetcherBuilder(callback, allocator,
+        ApplicationId.newInstance(1, 1), null, conf)
+        .setLocalFetchParams(true, HOST, PORT)
+        .assignWork(HOST, PORT, 1, Collections.singletonList(srcAttempt)).build();
+    FetchResult result = fetcher.call();
+    assertFalse(result.getPendingInputs().iterator().hasNext());
+
+    ArgumentCaptor<FetchedInput> fetchedInput = ArgumentCaptor.forClass(FetchedInput.class);
+    verify(callback).fetchSucceeded(eq(HOST), eq(srcAttempt), fetchedInput.capture(),
+        anyLong(), anyLong(), anyLong());
+    verifyZeroInteractions(allocator);
+
+    // The input is read in place from partition 1 of the producer's output
+    FetchedInput input = fetchedInput.getValue();
+    assertEquals(FetchedInput.Type.DISK_DIRECT, input.getType());
+    IFile.Reader reader = new IFile.Reader(input.getInputStream(), input.getCompressedSize(),
+        null, null, null, false, 0, -1);
+    DataInputBuffer keyIn = new DataInputBuffer();
+    DataInputBuffer valueIn = new DataInputBuffer();
+    Text key = new Text();
+    Text value = new Text();
+    int numRecords = 0;
+    while (reader.nextRawKey(keyIn)) {
+      reader.nextRawValue(valueIn);
+      key.readFields(keyIn);
+      value.readFields(valueIn);
+      assertEquals("key_1_" + numRecords, key.toString());
+      assertEquals("value_1_" + numRecords, value.toString());
+      numRecords++;
+    }
+    reader.close();
+    assertEquals(NUM_RECORDS, numRecords);
+    input.commit();
+    input.free();
+  }
+
+  @Test
+  public void testLocalDiskFetchDisabledForRemoteHost() throws Exception {
+    writeOutput();
+    FetcherCallback callback = mock(FetcherCallback.class);
+    InputAttemptIdentifier srcAttempt = new InputAttemptIdentifier(0, 0, PATH_COMPONENT);
+
+    // Nothing listens on the remote port, so the HTTP fetch fails
+    Fetcher fetcher = new Fetcher.FetcherBuilder(callback, mock(FetchedInputAllocator.class),
+        ApplicationId.newInstance(1, 1),
+        JobTokenSecretManager.createSecretKey("secret".getBytes()), conf)
+        .setLocalFetchParams(true, HOST, PORT)
+        .setConnectionParameters(0, 0)
+        .assignWork(HOST, 1, 1, Collections.singletonList(srcAttempt)).build();
+    FetchResult result = fetcher.call();
+    assertTrue(result.getPendingInputs().iterator().hasNext());
+    verify(callback).fetchFailed(eq(HOST), eq(srcAttempt), anyBoolean());
+  }
+
+  @Test(timeout = 10000)
+  public void testKeepAliveReusesConnection() throws Exception {
+    conf.setBoolean(TezJobConfig.TEZ_RUNTIME_SHUFFLE_KEEP_ALIVE_ENABLED, true);
+    final SecretKey secret = JobTokenSecretManager.createSecretKey("secret".getBytes());
+    final List<Integer> clientPorts = new ArrayList<Integer>();
+    final List<String> queries = new ArrayList<String>();
+    HttpServer server = HttpServer.create(new InetSocketAddress(HOST, 0), 0);
+    server.createContext("/mapOutput", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        clientPorts.add(exchange.getRemoteAddress().getPort());
+        queries.add(exchange.getRequestURI().getQuery());
+        String urlHash = exchange.getRequestHeaders().getFirst(
+            SecureShuffleUtils.HTTP_HEADER_URL_HASH);
+        exchange.getResponseHeaders().set(SecureShuffleUtils.HTTP_HEADER_REPLY_URL_HASH,
+            SecureShuffleUtils.generateHash(urlHash.getBytes(), secret));
+        exchange.getResponseHeaders().set(ShuffleHeader.HTTP_HEADER_NAME,
+            ShuffleHeader.DEFAULT_HTTP_HEADER_NAME);
+        exchange.getResponseHeaders().set(ShuffleHeader.HTTP_HEADER_VERSION,
+            ShuffleHeader.DEFAULT_HTTP_HEADER_VERSION);
+        byte[] response = createResponse(1);
+        // A known length lets the client keep the connection open
+        exchange.sendResponseHeaders(200, response.length);
+        exchange.getResponseBody().write(response);
+        exchange.close();
+      }
+    });
+    server.start();
+    try {
+      FetchedInputAllocator allocator = mock(FetchedInputAllocator.class);
+      doAnswer(new Answer<FetchedInput>() {
+        @Override
+        public FetchedInput answer(InvocationOnMock invocation) {
+          Object[] args = invocation.getArguments();
+          return new MemoryFetchedInput((Long) args[0], (Long) args[1],
+              (InputAttemptIdentifier) args[2], mock(FetchedInputCallback.class));
+        }
+      }).when(allocator).allocate(anyLong(), anyLong(), any(InputAttemptIdentifier.class));
+      int port = server.getAddress().getPort();
+
+      for (int i = 0; i < 2; i++) {
+        FetcherCallback callback = mock(FetcherCallback.class);
+        InputAttemptIdentifier srcAttempt = new InputAttemptIdentifier(0, 0, PATH_COMPONENT);
+        Fetcher fetcher = new Fetcher.FetcherBuilder(callback, allocator,
+            ApplicationId.newInstance(1, 1), secret, conf)
+            .setConnectionParameters(1000, 1000)
+            .assignWork(HOST, port, 1, Collections.singletonList(srcAttempt)).build();
+        FetchResult result = fetcher.call();
+        assertFalse(result.getPendingInputs().iterator().hasNext());
+        verify(callback).fetchSucceeded(eq(HOST), eq(srcAttempt), any(FetchedInput.class),
+            anyLong(), anyLong(), anyLong());
+      }
+    } finally {
+      server.stop(0);
+    }
+    assertEquals(2, clientPorts.size());
+    assertTrue(queries.get(0).contains("keepAlive=true"));
+    // The second fetch is made over the connection of the first one
+    assertEquals(clientPorts.get(0), clientPorts.get(1));
+  }
+
+  /**
+   * A ShuffleHandler response holding partition of the output.
+   */
+  private byte[] createResponse(int partition) throws IOException {
+    ByteArrayOutputStream ifile = new ByteArrayOutputStream();
+    FSDataOutputStream out = new FSDataOutputStream(ifile, null);
+    IFile.Writer writer = new IFile.Writer(conf, out, Text.class, Text.class, null, null, null);
+    Text key = new Text();
+    Text value = new Text();
+    for (int i = 0; i < NUM_RECORDS; i++) {
+      key.set("key_" + partition + "_" + i);
+      value.set("value_" + partition + "_" + i);
+      writer.append(key, value);
+    }
+    writer.close();
+    out.close();
+
+    ByteArrayOutputStream response = new ByteArrayOutputStream();
+    DataOutputStream dos = new DataOutputStream(response);
+    new ShuffleHeader(PATH_COMPONENT, ifile.size(), writer.getRawLength(), partition).write(dos);
+    ifile.writeTo(dos);
+    dos.close();
+    return response.toByteArray();
+  }
+
+  /**
+   * Write an output with NUM_PARTITIONS partitions to the local dirs, as the
+   * producer would.
+   */
+  private void writeOutput() throws IOException {
+    TezTaskOutputFiles outputFiles = new TezTaskOutputFiles(conf, PATH_COMPONENT);
+    TezSpillRecord spillRecord = new TezSpillRecord(NUM_PARTITIONS);
+    FSDataOutputStream out = localFs.create(outputFiles.getOutputFileForWrite());
+    Text key = new Text();
+    Text value = new Text();
+    for (int partition = 0; partition < NUM_PARTITIONS; partition++) {
+      long segmentStart = out.getPos();
+      IFile.Writer writer = new IFile.Writer(conf, out, Text.class, Text.class, null, null, null);
+      for (int i = 0; i < NUM_RECORDS; i++) {
+        key.set("key_" + partition + "_" + i);
+        value.set("value_" + partition + "_" + i);
+        writer.append(key, value);
+      }
+      writer.close();
+      spillRecord.putIndex(new TezIndexRecord(segmentStart, writer.getRawLength(),
+          writer.getCompressedLength()), partition);
+    }
+    out.close();
+    spillRecord.writeToFile(outputFiles.getOutputIndexFileForWrite(0), conf);
+  }
+}
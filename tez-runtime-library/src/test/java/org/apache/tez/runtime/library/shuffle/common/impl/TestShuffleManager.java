@@ -0,0 +1,122 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.shuffle.common.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.security.token.Token;
+import org.apache.tez.common.TezJobConfig;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.common.security.JobTokenIdentifier;
+import org.apache.tez.common.security.JobTokenSecretManager;
+import org.apache.tez.runtime.api.TezInputContext;
+import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.shuffle.common.FetchedInput;
+import org.apache.tez.runtime.library.shuffle.common.FetchedInputAllocator;
+import org.apache.tez.runtime.library.shuffle.common.FetchedInputCallback;
+import org.apache.tez.runtime.library.shuffle.common.MemoryFetchedInput;
+import org.apache.tez.runtime.library.shuffle.common.ShuffleUtils;
+import org.junit.Test;
+
+public class TestShuffleManager {
+
+  @Test
+  public void testBufferLimit() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setFloat(TezJobConfig.TEZ_RUNTIME_SHUFFLE_UNORDERED_BUFFER_PERCENT, 0.5f);
+    ShuffleManager shuffleManager = createShuffleManager(conf, 1000, 3);
+
+    FetchedInput first = addCompletedInput(shuffleManager, 0, 400);
+    assertFalse(shuffleManager.isBufferFull());
+    addCompletedInput(shuffleManager, 1, 200);
+    assertTrue(shuffleManager.isBufferFull());
+    shuffleManager.addCompletedInputWithNoData(new InputAttemptIdentifier(2, 0));
+    assertTrue(shuffleManager.isBufferFull());
+
+    // Fetches resume once the reader takes the first input
+    assertEquals(first, shuffleManager.getNextInput());
+    assertFalse(shuffleManager.isBufferFull());
+    shuffleManager.shutdown();
+  }
+
+  @Test
+  public void testBufferUnlimitedByDefault() throws Exception {
+    ShuffleManager shuffleManager = createShuffleManager(new Configuration(), 1000, 2);
+    addCompletedInput(shuffleManager, 0, 800);
+    addCompletedInput(shuffleManager, 1, 800);
+    assertFalse(shuffleManager.isBufferFull());
+    shuffleManager.shutdown();
+  }
+
+  @Test
+  public void testBufferLimitIgnoresDiskInputs() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setFloat(TezJobConfig.TEZ_RUNTIME_SHUFFLE_UNORDERED_BUFFER_PERCENT, 0.5f);
+    ShuffleManager shuffleManager = createShuffleManager(conf, 1000, 3);
+
+    addCompletedInput(shuffleManager, 0, 800, FetchedInput.Type.DISK);
+    addCompletedInput(shuffleManager, 1, 800, FetchedInput.Type.DISK_DIRECT);
+    assertFalse(shuffleManager.isBufferFull());
+    addCompletedInput(shuffleManager, 2, 600);
+    assertTrue(shuffleManager.isBufferFull());
+    shuffleManager.shutdown();
+  }
+
+  private void addCompletedInput(ShuffleManager shuffleManager, int input, long size,
+      FetchedInput.Type type) throws IOException {
+    InputAttemptIdentifier identifier = new InputAttemptIdentifier(input, 0);
+    FetchedInput fetchedInput = mock(FetchedInput.class);
+    doReturn(type).when(fetchedInput).getType();
+    doReturn(size).when(fetchedInput).getActualSize();
+    doReturn(identifier).when(fetchedInput).getInputAttemptIdentifier();
+    shuffleManager.addCompletedInputWithData(identifier, fetchedInput);
+  }
+
+  private FetchedInput addCompletedInput(ShuffleManager shuffleManager, int input,
+      long size) throws IOException {
+    InputAttemptIdentifier identifier = new InputAttemptIdentifier(input, 0);
+    FetchedInput fetchedInput = new MemoryFetchedInput(size, size, identifier,
+        mock(FetchedInputCallback.class));
+    shuffleManager.addCompletedInputWithData(identifier, fetchedInput);
+    return fetchedInput;
+  }
+
+  private ShuffleManager createShuffleManager(Configuration conf, long taskMemory,
+      int numInputs) throws IOException {
+    TezInputContext inputContext = mock(TezInputContext.class);
+    doReturn(new TezCounters()).when(inputContext).getCounters();
+    doReturn("source").when(inputContext).getSourceVertexName();
+    doReturn(taskMemory).when(inputContext).getTotalMemoryAvailableToTask();
+    Token<JobTokenIdentifier> token = new Token<JobTokenIdentifier>(
+        new JobTokenIdentifier(new Text("job")), new JobTokenSecretManager());
+    doReturn(ShuffleUtils.convertJobTokenToBytes(token)).when(inputContext)
+        .getServiceConsumerMetaData(any(String.class));
+    return new ShuffleManager(inputContext, conf, numInputs, -1, false, 0, null,
+        mock(FetchedInputAllocator.class));
+  }
+}
@@ -0,0 +1,57 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.testutils;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.tez.common.TezJobConfig;
+
+/**
+ * Per test class work directory, used as the only
+ * {@link TezJobConfig#LOCAL_DIRS} entry of the tests that spill or fetch
+ * through a LocalDirAllocator.
+ */
+public class LocalWorkDir {
+
+  private LocalWorkDir() {
+  }
+
+  public static Path create(FileSystem localFs, Class<?> testClass) {
+    return new Path(new Path(System.getProperty("test.build.data", "/tmp")),
+        testClass.getName()).makeQualified(localFs.getUri(),
+        localFs.getWorkingDirectory());
+  }
+
+  /**
+   * Empties the work directory. The directory itself is recreated, since
+   * LocalDirAllocator caches the configured directories across tests and
+   * does not create them again for an unchanged configuration.
+   */
+  public static void reset(FileSystem localFs, Path workDir) throws IOException {
+    localFs.delete(workDir, true);
+    localFs.mkdirs(workDir);
+  }
+
+  public static void setLocalDirs(Configuration conf, Path workDir) {
+    conf.setStrings(TezJobConfig.LOCAL_DIRS, workDir.toUri().getPath());
+  }
+}